@@ -0,0 +1,303 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.rest;
+
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.requests.AuthenticationRequest;
+import com.strongkey.skfs.requests.BatchOperation;
+import com.strongkey.skfs.requests.PatchFidoKeyRequest;
+import com.strongkey.skfs.requests.PreauthenticationRequest;
+import com.strongkey.skfs.requests.PreregistrationRequest;
+import com.strongkey.skfs.requests.RegistrationRequest;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.logging.Level;
+import javax.ws.rs.core.Response;
+
+/**
+ * Checks made on APIServlet requests before the rate limits, the HMAC and
+ * any database or crypto work: required fields, lengths, the protocol, JSON
+ * where JSON is expected, and the form of key ids. The beans keep their own
+ * checks, which still run on the requests accepted here; a request rejected
+ * here never reaches them, so this stage only makes rejecting a malformed
+ * request cheap and does not replace them.
+ *
+ * Each check returns null or a Rejection from a fixed catalogue whose
+ * response bodies are built once, so no exception, JSON building or message
+ * formatting happens per rejected request. The bodies do not echo the input.
+ */
+final class APIRequestValidator {
+
+    enum Rejection {
+        NO_BODY("FIDO-ERR-0002", " request body"),
+        NO_PROTOCOL("FIDO-ERR-0002", " protocol"),
+        BAD_PROTOCOL("FIDO-ERR-5002", ""),
+        NO_USERNAME("FIDO-ERR-0002", " username"),
+        LONG_USERNAME("FIDO-ERR-0027", " username"),
+        LONG_DISPLAYNAME("FIDO-ERR-0027", " displayname"),
+        BAD_OPTIONS("FIDO-ERR-0020", " options"),
+        BAD_EXTENSIONS("FIDO-ERR-0020", " extensions"),
+        NO_REGISTRATION_RESPONSE("FIDO-ERR-0004", ""),
+        NO_REGISTRATION_METADATA("FIDO-ERR-0016", ""),
+        NO_AUTHENTICATION_RESPONSE("FIDO-ERR-0010", ""),
+        NO_AUTHENTICATION_METADATA("FIDO-ERR-0017", ""),
+        BAD_RESPONSE("FIDO-ERR-0020", " response"),
+        BAD_METADATA("FIDO-ERR-0020", " metadata"),
+        NO_KEYID("FIDO-ERR-0002", " keyid"),
+        BAD_KEYID("FIDO-ERR-0020", " keyid"),
+        OTHER_DOMAIN_KEYID("FIDO-ERR-0035", ""),
+        NO_STATUS("FIDO-ERR-0002", " status"),
+        BAD_STATUS("FIDO-ERR-0020", " status"),
+        NO_MODIFY_LOCATION("FIDO-ERR-0002", " modify_location"),
+        LONG_MODIFY_LOCATION("FIDO-ERR-0027", " modify_location"),
+        NO_OPERATIONS("FIDO-ERR-0002", " operations"),
+        TOO_MANY_OPERATIONS("FIDO-ERR-0056", ""),
+        BAD_OPERATION("FIDO-ERR-0020", " operation");
+
+        private final String key;
+        private final String message;
+        private final String json;
+
+        Rejection(String key, String detail) {
+            this.key = key;
+            this.message = skfsCommon.getMessageProperty(key) + detail;
+            this.json = skfsCommon.buildReturn(message);
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        /**
+         * @param asJson - true for the FIDOReturnObject body, false for the
+         * plain message, as the operation answers its own errors
+         * @return a 400 response
+         */
+        Response response(boolean asJson) {
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, key, name());
+            return Response.status(Response.Status.BAD_REQUEST).entity(asJson ? json : message).build();
+        }
+    }
+
+    private APIRequestValidator() {
+    }
+
+    static Rejection preregister(PreregistrationRequest r) {
+        if (r == null) {
+            return Rejection.NO_BODY;
+        }
+        Rejection rejection = protocol(r.getProtocol());
+        if (rejection == null) {
+            rejection = username(r.getUsername());
+        }
+        if (rejection == null && r.getDisplayname() != null
+                && r.getDisplayname().length() > applianceCommon.getMaxLenProperty("appliance.cfg.maxlen.256charstring")) {
+            rejection = Rejection.LONG_DISPLAYNAME;
+        }
+        if (rejection == null && !isOptionalJson(r.getOptions(), "skfs.cfg.property.request.maxlen.options")) {
+            rejection = Rejection.BAD_OPTIONS;
+        }
+        if (rejection == null && !isOptionalJson(r.getExtensions(), "skfs.cfg.property.request.maxlen.options")) {
+            rejection = Rejection.BAD_EXTENSIONS;
+        }
+        return rejection;
+    }
+
+    static Rejection register(RegistrationRequest r) {
+        if (r == null) {
+            return Rejection.NO_BODY;
+        }
+        if (isEmpty(r.getResponse())) {
+            return Rejection.NO_REGISTRATION_RESPONSE;
+        }
+        if (isEmpty(r.getMetadata())) {
+            return Rejection.NO_REGISTRATION_METADATA;
+        }
+        return responseAndMetadata(r.getProtocol(), r.getResponse(), r.getMetadata());
+    }
+
+    static Rejection preauthenticate(PreauthenticationRequest r) {
+        if (r == null) {
+            return Rejection.NO_BODY;
+        }
+        Rejection rejection = protocol(r.getProtocol());
+        if (rejection == null) {
+            rejection = username(r.getUsername());
+        }
+        if (rejection == null && !isOptionalJson(r.getOptions(), "skfs.cfg.property.request.maxlen.options")) {
+            rejection = Rejection.BAD_OPTIONS;
+        }
+        if (rejection == null && !isOptionalJson(r.getExtensions(), "skfs.cfg.property.request.maxlen.options")) {
+            rejection = Rejection.BAD_EXTENSIONS;
+        }
+        return rejection;
+    }
+
+    static Rejection authenticate(AuthenticationRequest r) {
+        if (r == null) {
+            return Rejection.NO_BODY;
+        }
+        if (isEmpty(r.getResponse())) {
+            return Rejection.NO_AUTHENTICATION_RESPONSE;
+        }
+        if (isEmpty(r.getMetadata())) {
+            return Rejection.NO_AUTHENTICATION_METADATA;
+        }
+        return responseAndMetadata(r.getProtocol(), r.getResponse(), r.getMetadata());
+    }
+
+    static Rejection patch(Long did, String kid, PatchFidoKeyRequest r) {
+        if (r == null) {
+            return Rejection.NO_BODY;
+        }
+        Rejection rejection = keyid(did, kid);
+        if (rejection != null) {
+            return rejection;
+        }
+        String status = r.getStatus();
+        if (isEmpty(status)) {
+            return Rejection.NO_STATUS;
+        }
+        if (!status.trim().equalsIgnoreCase(applianceConstants.ACTIVE_STATUS)
+                && !status.trim().equalsIgnoreCase(applianceConstants.INACTIVE_STATUS)) {
+            return Rejection.BAD_STATUS;
+        }
+        String modifyloc = r.getModify_location();
+        if (modifyloc == null || modifyloc.trim().isEmpty()) {
+            return Rejection.NO_MODIFY_LOCATION;
+        }
+        if (modifyloc.trim().length() >= applianceCommon.getMaxLenProperty("appliance.cfg.maxlen.256charstring")) {
+            return Rejection.LONG_MODIFY_LOCATION;
+        }
+        return null;
+    }
+
+    /**
+     * @param did - domain of the request
+     * @param op - an operation of a batch request
+     * @return null if the operation is getkeysinfo, patchkey or deregister
+     * with the inputs of the single operation
+     */
+    static Rejection operation(Long did, BatchOperation op) {
+        if (op == null || op.getOperation() == null) {
+            return Rejection.BAD_OPERATION;
+        }
+        switch (op.getOperation()) {
+            case skfsConstants.FIDO_METHOD_GETKEYSINFO:
+                return username(op.getUsername());
+            case skfsConstants.FIDO_METHOD_PATCHKEY:
+                PatchFidoKeyRequest patch = new PatchFidoKeyRequest();
+                patch.setStatus(op.getStatus());
+                patch.setModify_location(op.getModify_location());
+                return patch(did, op.getKeyid(), patch);
+            case skfsConstants.FIDO_METHOD_DEREGISTER:
+                return keyid(did, op.getKeyid());
+            default:
+                return Rejection.BAD_OPERATION;
+        }
+    }
+
+    /**
+     * @param did - domain of the request
+     * @param kid - sid-did-username-fkid of a key
+     * @return null if kid has that form, and is a key of the domain
+     */
+    static Rejection keyid(Long did, String kid) {
+        if (kid == null || kid.trim().isEmpty()) {
+            return Rejection.NO_KEYID;
+        }
+        if (kid.length() > applianceCommon.getMaxLenProperty("appliance.cfg.maxlen.512charstring")) {
+            return Rejection.BAD_KEYID;
+        }
+        int first = kid.indexOf('-');
+        int second = (first < 0) ? -1 : kid.indexOf('-', first + 1);
+        int last = kid.lastIndexOf('-');
+        if (first < 1 || second < 0 || last <= second + 1 || last == kid.length() - 1
+                || !isDigits(kid, 0, first) || !isDigits(kid, first + 1, second) || !isDigits(kid, last + 1, kid.length())) {
+            return Rejection.BAD_KEYID;
+        }
+        if (!kid.substring(first + 1, second).equals(String.valueOf(did))) {
+            return Rejection.OTHER_DOMAIN_KEYID;
+        }
+        return null;
+    }
+
+    static Rejection username(String username) {
+        if (isEmpty(username)) {
+            return Rejection.NO_USERNAME;
+        }
+        if (username.trim().length() > applianceCommon.getMaxLenProperty("appliance.cfg.maxlen.256charstring")) {
+            return Rejection.LONG_USERNAME;
+        }
+        return null;
+    }
+
+    private static Rejection protocol(String protocol) {
+        if (isEmpty(protocol)) {
+            return Rejection.NO_PROTOCOL;
+        }
+        if (!skfsCommon.isFIDOProtocolSupported(protocol)) {
+            return Rejection.BAD_PROTOCOL;
+        }
+        return null;
+    }
+
+    private static Rejection responseAndMetadata(String protocol, String response, String metadata) {
+        Rejection rejection = protocol(protocol);
+        if (rejection == null && !isJson(response, "skfs.cfg.property.request.maxlen.response")) {
+            rejection = Rejection.BAD_RESPONSE;
+        }
+        if (rejection == null && !isJson(metadata, "skfs.cfg.property.request.maxlen.metadata")) {
+            rejection = Rejection.BAD_METADATA;
+        }
+        return rejection;
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.isEmpty();
+    }
+
+    private static boolean isOptionalJson(String s, String maxlen) {
+        return isEmpty(s) || isJson(s, maxlen);
+    }
+
+    /**
+     * @return true if s is no longer than the configured limit and is
+     * enclosed in braces; the beans parse it
+     */
+    private static boolean isJson(String s, String maxlen) {
+        if (s.length() > ConfigurationSnapshot.get().getInt(maxlen, Integer.MAX_VALUE)) {
+            return false;
+        }
+        int start = 0;
+        int end = s.length() - 1;
+        while (start < end && Character.isWhitespace(s.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(s.charAt(end))) {
+            end--;
+        }
+        return start < end && s.charAt(start) == '{' && s.charAt(end) == '}';
+    }
+
+    private static boolean isDigits(String s, int start, int end) {
+        if (start >= end || end - start > 18) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -8,6 +8,8 @@
 package com.strongkey.apiws.rest;
 
 import com.strongkey.apiws.utility.PATCH;
+import com.strongkey.skfs.core.ChallengeRateLimiter;
+import com.strongkey.skfs.pojos.FIDOReturnObject;
 import com.strongkey.skfs.requests.AuthenticationRequest;
 import com.strongkey.skfs.requests.PatchFidoKeyRequest;
 import com.strongkey.skfs.requests.PreauthenticationRequest;
@@ -15,6 +17,10 @@ import com.strongkey.skfs.requests.PreregistrationRequest;
 import com.strongkey.skfs.requests.RegistrationRequest;
 import com.strongkey.skfs.txbeans.u2fServletHelperBeanLocal;
 import com.strongkey.auth.txbeans.authenticateRestRequestBeanLocal;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.logging.Level;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.servlet.http.HttpServletRequest;
@@ -31,12 +37,16 @@ import javax.ws.rs.core.Response;
 /**
  * REST based web services that serve FIDO U2F protocol based functionality.
  *
+ * Requests and responses are JSON by default; callers may send and accept
+ * application/cbor instead, see CBORRequestReader and CBORResponseWriter.
  */
 @Stateless
 @Path("/domains/{did}/fidokeys")
 public class APIServlet {
 
     @javax.ws.rs.core.Context private HttpServletRequest request;
+
+    private static final int TOO_MANY_REQUESTS = 429;
     @EJB u2fServletHelperBeanLocal u2fHelperBean;
     @EJB authenticateRestRequestBeanLocal authRest;
 
@@ -58,14 +68,29 @@ public class APIServlet {
      */
     @POST
     @Path("/registration/challenge")
-    @Consumes({"application/json"})
-    @Produces({"application/json"})
+    @Consumes({"application/json", "application/cbor"})
+    @Produces({"application/json", "application/cbor"})
     public Response preregister(PreregistrationRequest preregistration,
                                 @PathParam("did") Long did) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.preregister(preregistration);
+        if (rejection != null) {
+            return rejection.response(false);
+        }
+
+        Response limited = checkAdmission(did);
+        if (limited != null) {
+            return limited;
+        }
+
         if (!authRest.execute(did, request, preregistration)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
+
+        limited = checkRateLimit(did, preregistration.getUsername());
+        if (limited != null) {
+            return limited;
+        }
         
         return u2fHelperBean.preregister(did, preregistration);
     }
@@ -90,11 +115,16 @@ public class APIServlet {
      */
     @POST
     @Path("/registration")
-    @Consumes({"application/json"})
-    @Produces({"application/json"})
+    @Consumes({"application/json", "application/cbor"})
+    @Produces({"application/json", "application/cbor"})
     public Response register(RegistrationRequest registration,
                              @PathParam("did") Long did) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.register(registration);
+        if (rejection != null) {
+            return rejection.response(false);
+        }
+
         if (!authRest.execute(did, request, registration)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
@@ -116,15 +146,30 @@ public class APIServlet {
      */
     @POST
     @Path("/authentication/challenge")
-    @Consumes({"application/json"})
-    @Produces({"application/json"})
+    @Consumes({"application/json", "application/cbor"})
+    @Produces({"application/json", "application/cbor"})
     public Response preauthenticate(PreauthenticationRequest preauthentication,
                                     @PathParam("did") Long did) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.preauthenticate(preauthentication);
+        if (rejection != null) {
+            return rejection.response(true);
+        }
+
+        Response limited = checkAdmission(did);
+        if (limited != null) {
+            return limited;
+        }
+
         if (!authRest.execute(did, request, preauthentication)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
 
+        limited = checkRateLimit(did, preauthentication.getUsername());
+        if (limited != null) {
+            return limited;
+        }
+
         return u2fHelperBean.preauthenticate(did, preauthentication);
     }
 
@@ -149,11 +194,16 @@ public class APIServlet {
      */
     @POST
     @Path("/authentication")
-    @Consumes({"application/json"})
-    @Produces({"application/json"})
+    @Consumes({"application/json", "application/cbor"})
+    @Produces({"application/json", "application/cbor"})
     public Response authenticate(AuthenticationRequest authentication,
                                  @PathParam("did") Long did) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.authenticate(authentication);
+        if (rejection != null) {
+            return rejection.response(true);
+        }
+
         if (!authRest.execute(did, request, authentication)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
@@ -177,10 +227,15 @@ public class APIServlet {
      */
     @DELETE
     @Path("/{kid}")
-    @Produces({"application/json"})
+    @Produces({"application/json", "application/cbor"})
     public Response deregister(@PathParam("did") Long did,
                                @PathParam("kid") String kid) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.keyid(did, kid);
+        if (rejection != null) {
+            return rejection.response(true);
+        }
+
         if (!authRest.execute(did, request, null)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
@@ -206,12 +261,17 @@ public class APIServlet {
      */
     @PATCH
     @Path("/{kid}")
-    @Consumes({"application/merge-patch+json"})
-    @Produces({"application/json"})
+    @Consumes({"application/merge-patch+json", "application/cbor"})
+    @Produces({"application/json", "application/cbor"})
     public Response patchkey(PatchFidoKeyRequest patchkey,
                            @PathParam("did") Long did,
                            @PathParam("kid") String kid) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.patch(did, kid, patchkey);
+        if (rejection != null) {
+            return rejection.response(true);
+        }
+
         if (!authRest.execute(did, request, patchkey)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
@@ -236,14 +296,56 @@ public class APIServlet {
      * successful.
      */
     @GET
-    @Produces({"application/json"})
+    @Produces({"application/json", "application/cbor"})
     public Response getkeysinfo(@PathParam("did") Long did,
                                 @QueryParam("username") String username) {
 
+        APIRequestValidator.Rejection rejection = APIRequestValidator.username(username);
+        if (rejection != null) {
+            return rejection.response(true);
+        }
+
         if (!authRest.execute(did, request, null)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
         
         return u2fHelperBean.getkeysinfo(did, username);
     }
+
+    /**
+     * Applies the challenge issuance limits that do not depend on what the
+     * request claims, before any authentication or database work is done.
+     *
+     * @param did - Long value of the domain to service this request
+     * @return - null if the request may proceed, otherwise a 429 response
+     */
+    private Response checkAdmission(Long did) {
+        return tooManyRequests(did, ChallengeRateLimiter.getInstance().tryAdmit(request.getRemoteAddr()));
+    }
+
+    /**
+     * Applies the challenge issuance limits of the domain, user and access
+     * key of a request that has been authenticated.
+     *
+     * @param did - Long value of the domain to service this request
+     * @param username - username from the request body
+     * @return - null if the request may proceed, otherwise a 429 response
+     */
+    private Response checkRateLimit(Long did, String username) {
+        String accesskey = null;
+        String authHeader = request.getHeader("Authorization");
+        if (authHeader != null && authHeader.startsWith("HMAC ") && authHeader.indexOf(':') > 5) {
+            accesskey = authHeader.substring(5, authHeader.indexOf(':'));
+        }
+        return tooManyRequests(did, ChallengeRateLimiter.getInstance().tryAcquire(did, username, accesskey));
+    }
+
+    private Response tooManyRequests(Long did, String limit) {
+        if (limit == null) {
+            return null;
+        }
+        skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-ERR-0045", limit + " did=" + did);
+        return Response.status(TOO_MANY_REQUESTS)
+                .entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0045") + limit)).build();
+    }
 }
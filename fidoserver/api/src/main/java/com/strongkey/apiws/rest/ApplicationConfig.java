@@ -8,6 +8,9 @@
 package com.strongkey.apiws.rest;
 
 //import com.strongauth.apiws.fido2.rest.FidoAdminServlet;
+import com.strongkey.apiws.utility.CBORRequestReader;
+import com.strongkey.apiws.utility.CBORResponseWriter;
+import com.strongkey.apiws.utility.FIDOReturnObjectWriter;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -19,7 +22,8 @@ public class ApplicationConfig extends Application {
 
     @Override
     public Set<Class<?>> getClasses() {
-        return new HashSet<>(Arrays.asList(APIServlet.class));
+        return new HashSet<>(Arrays.asList(APIServlet.class, AuthenticatorServlet.class, BatchServlet.class, ReadinessServlet.class, ShardServlet.class,
+                FIDOReturnObjectWriter.class, CBORRequestReader.class, CBORResponseWriter.class));
 //        return new HashSet<>(Arrays.asList(APIServlet.class, FidoAdminServlet.class));
     }
 }
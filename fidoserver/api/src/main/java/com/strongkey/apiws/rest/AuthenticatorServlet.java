@@ -0,0 +1,101 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.rest;
+
+import com.strongkey.auth.txbeans.authenticateRestRequestBeanLocal;
+import com.strongkey.skce.utilities.skceConstants;
+import com.strongkey.skfs.requests.AuthenticatorRevokeRequest;
+import com.strongkey.skfs.txbeans.fidoKeysRevokerLocal;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * Keys of a domain made by an authenticator model that is no longer trusted:
+ * the same flag and deactivate operations the server runs when the MDS
+ * reports a status change, on demand. Both need an access key listed in
+ * skce.cfg.property.admin.accesskeys.
+ */
+@Stateless
+@Path("/domains/{did}/authenticators")
+public class AuthenticatorServlet {
+
+    @javax.ws.rs.core.Context private HttpServletRequest request;
+
+    @EJB fidoKeysRevokerLocal revokerBean;
+    @EJB authenticateRestRequestBeanLocal authRest;
+
+    public AuthenticatorServlet() {
+    }
+
+    /**
+     * @param did - Long value of the domain
+     * @return - A Json with 'revoke', the progress of the last revocation
+     * started on this server if any
+     */
+    @GET
+    @Path("/revoke")
+    @Produces({"application/json"})
+    public Response getrevoke(@PathParam("did") Long did) {
+
+        if (!authRest.execute(did, request, null, skceConstants.LDAP_ROLE_ADM)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        JsonObjectBuilder body = Json.createObjectBuilder();
+        String status = revokerBean.getStatus(did);
+        if (status != null) {
+            body.add("revoke", status);
+        }
+        return Response.ok().entity(body.build().toString()).build();
+    }
+
+    /**
+     * Flags (counts) or deactivates the active keys of the domain made by the
+     * authenticator model with the 'aaguid', or whose attestation certificate
+     * has one of the 'keyidentifiers'. The revocation runs in the background;
+     * its progress is returned by getrevoke.
+     *
+     * @param revoke - 'aaguid' and/or 'keyidentifiers', 'action' (flag or
+     * deactivate) and 'reason', the modify_location of the keys deactivated
+     * @param did - Long value of the domain
+     * @return - 202 once the revocation has started, 400 with the reason if
+     * it cannot start
+     */
+    @POST
+    @Path("/revoke")
+    @Consumes({"application/json"})
+    @Produces({"application/json"})
+    public Response revoke(AuthenticatorRevokeRequest revoke,
+                           @PathParam("did") Long did) {
+
+        if (!authRest.execute(did, request, revoke, skceConstants.LDAP_ROLE_ADM)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        if (revoke == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("aaguid or keyidentifiers is required").build();
+        }
+        String error = revokerBean.validate(did, revoke.getAaguid(), revoke.getKeyidentifiers(), revoke.getAction());
+        if (error != null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+        }
+        String reason = (revoke.getReason() == null || revoke.getReason().trim().isEmpty()) ? "admin revoke" : revoke.getReason().trim();
+        revokerBean.revoke(did, revoke.getAaguid(), revoke.getKeyidentifiers(), revoke.getAction(), reason);
+        return Response.status(Response.Status.ACCEPTED).build();
+    }
+}
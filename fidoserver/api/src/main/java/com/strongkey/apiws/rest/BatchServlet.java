@@ -0,0 +1,170 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.rest;
+
+import com.strongkey.auth.txbeans.authenticateRestRequestBeanLocal;
+import com.strongkey.skfs.requests.BatchOperation;
+import com.strongkey.skfs.requests.BatchRequest;
+import com.strongkey.skfs.txbeans.batchFidoKeysBeanLocal;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.Stateless;
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Many getkeysinfo, patchkey and deregister operations of a domain in one
+ * request, for bulk jobs such as offboarding. The request is authenticated
+ * once; each operation is checked as the single operation would be, and the
+ * operations are executed in chunks of skfs.cfg.property.jdbc.dbcommitsize,
+ * each in one transaction (see batchFidoKeysBean). Results are streamed as
+ * each chunk completes.
+ */
+@Stateless
+@Path("/domains/{did}/batch")
+public class BatchServlet {
+
+    @javax.ws.rs.core.Context private HttpServletRequest request;
+
+    private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+    private static final JsonBuilderFactory JSON = Json.createBuilderFactory(null);
+
+    @EJB batchFidoKeysBeanLocal batchBean;
+    @EJB authenticateRestRequestBeanLocal authRest;
+
+    public BatchServlet() {
+    }
+
+    /**
+     * @param batch - 'operations', each with 'operation' (getkeysinfo,
+     * patchkey or deregister) and the inputs of that operation: 'username';
+     * 'keyid', 'status' and 'modify_location'; or 'keyid'
+     * @param did - Long value of the domain to service this request
+     * @return - A Json with 'Response', an array with for each operation, in
+     * order, its 'index', 'operation', 'status' (the HTTP status the single
+     * operation would have returned) and 'Response' (its message, or for
+     * getkeysinfo the keys)
+     */
+    @POST
+    @Consumes({"application/json"})
+    @Produces({"application/json"})
+    public Response batch(BatchRequest batch,
+                          @PathParam("did") Long did) {
+
+        List<BatchOperation> operations = (batch == null) ? null : batch.getOperations();
+        if (operations == null || operations.isEmpty()) {
+            return APIRequestValidator.Rejection.NO_OPERATIONS.response(true);
+        }
+        if (operations.size() > ConfigurationSnapshot.get().getInt("skfs.cfg.property.batch.maxoperations", 10000)) {
+            return APIRequestValidator.Rejection.TOO_MANY_OPERATIONS.response(true);
+        }
+
+        if (!authRest.execute(did, request, batch)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        int chunksize = Math.max(1, ConfigurationSnapshot.get().getInt("skfs.cfg.property.jdbc.dbcommitsize", 200));
+        StreamingOutput body = out -> {
+            long start = System.currentTimeMillis();
+            int failed = 0;
+            JsonGenerator generator = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+            generator.writeStartObject();
+            generator.writeStartArray(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE);
+            for (int first = 0; first < operations.size(); first += chunksize) {
+                List<BatchOperation> chunk = operations.subList(first, Math.min(operations.size(), first + chunksize));
+                List<JsonObject> results = execute(did, chunk);
+                for (int i = 0; i < results.size(); i++) {
+                    JsonObject result = results.get(i);
+                    BatchOperation op = chunk.get(i);
+                    generator.writeStartObject();
+                    generator.write("index", first + i);
+                    generator.write("operation", (op == null || op.getOperation() == null) ? "" : op.getOperation());
+                    for (Map.Entry<String, JsonValue> e : result.entrySet()) {
+                        generator.write(e.getKey(), e.getValue());
+                    }
+                    generator.writeEnd();
+                    if (result.getInt("status") != 200) {
+                        failed++;
+                    }
+                }
+                generator.flush();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+            generator.flush();
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.INFO, "FIDO-MSG-0068", "did=" + did + " operations=" + operations.size()
+                    + " failed=" + failed + " TTC=" + (System.currentTimeMillis() - start));
+        };
+        return Response.ok(body).build();
+    }
+
+    /**
+     * @return results of the operations of the chunk, in order
+     */
+    private List<JsonObject> execute(Long did, List<BatchOperation> chunk) {
+        JsonObject[] results = new JsonObject[chunk.size()];
+        List<BatchOperation> valid = new ArrayList<>(chunk.size());
+        List<Integer> positions = new ArrayList<>(chunk.size());
+        for (int i = 0; i < results.length; i++) {
+            APIRequestValidator.Rejection rejection = APIRequestValidator.operation(did, chunk.get(i));
+            if (rejection == null) {
+                valid.add(chunk.get(i));
+                positions.add(i);
+            } else {
+                results[i] = result(400, rejection.getMessage());
+            }
+        }
+        if (!valid.isEmpty()) {
+            List<JsonObject> done;
+            try {
+                done = batchBean.execute(did, valid);
+            } catch (EJBException ex) {
+                //  the chunk's transaction is rolled back
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", ex.getLocalizedMessage());
+                done = new ArrayList<>(valid.size());
+                JsonObject failure = result(500, skfsCommon.getMessageProperty("FIDO-ERR-0001") + ex.getLocalizedMessage());
+                for (int i = 0; i < valid.size(); i++) {
+                    done.add(failure);
+                }
+            }
+            for (int i = 0; i < done.size(); i++) {
+                results[positions.get(i)] = done.get(i);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private static JsonObject result(int status, String response) {
+        return JSON.createObjectBuilder()
+                .add("status", status)
+                .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, response)
+                .build();
+    }
+}
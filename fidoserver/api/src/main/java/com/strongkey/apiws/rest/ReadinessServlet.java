@@ -0,0 +1,47 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.rest;
+
+import com.strongkey.skfs.txbeans.warmupServicesLocal;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.json.Json;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * Readiness of the server for load balancers; not authenticated, it reveals
+ * nothing but the warm-up progress.
+ */
+@Stateless
+@Path("/ready")
+public class ReadinessServlet {
+
+    @EJB warmupServicesLocal warmupBean;
+
+    public ReadinessServlet() {
+    }
+
+    /**
+     * @return - 200 once the server has warmed up, 503 until then; the body
+     * is a Json with 'ready' and 'status'
+     */
+    @GET
+    @Produces({"application/json"})
+    public Response ready() {
+        boolean ready = warmupBean.isReady();
+        String body = Json.createObjectBuilder()
+                .add("ready", ready)
+                .add("status", warmupBean.getStatus())
+                .build().toString();
+        return Response.status(ready ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+                .entity(body).build();
+    }
+}
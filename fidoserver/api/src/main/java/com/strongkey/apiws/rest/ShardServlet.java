@@ -0,0 +1,107 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.rest;
+
+import com.strongkey.auth.txbeans.authenticateRestRequestBeanLocal;
+import com.strongkey.skce.utilities.skceConstants;
+import com.strongkey.skfs.requests.ShardSplitRequest;
+import com.strongkey.skfs.txbeans.shardSplitterLocal;
+import com.strongkey.skfs.utilities.ShardRouter;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * Shard map of a domain, and online splits of its hash ranges to other
+ * shards. Splits need an access key listed in
+ * skce.cfg.property.admin.accesskeys.
+ */
+@Stateless
+@Path("/domains/{did}/shards")
+public class ShardServlet {
+
+    @javax.ws.rs.core.Context private HttpServletRequest request;
+
+    @EJB shardSplitterLocal splitterBean;
+    @EJB authenticateRestRequestBeanLocal authRest;
+
+    public ShardServlet() {
+    }
+
+    /**
+     * @param did - Long value of the domain
+     * @return - A Json with 'ranges', each with 'start', 'end', 'jndiname'
+     * and 'frozen', and 'split', the progress of the last split of the
+     * domain if any
+     */
+    @GET
+    @Produces({"application/json"})
+    public Response getshards(@PathParam("did") Long did) {
+
+        if (!authRest.execute(did, request, null)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        JsonArrayBuilder ranges = Json.createArrayBuilder();
+        for (ShardRouter.Range r : ShardRouter.getRanges(did)) {
+            ranges.add(Json.createObjectBuilder()
+                    .add("start", r.getStart())
+                    .add("end", r.getEnd())
+                    .add("jndiname", r.getJndiname())
+                    .add("frozen", r.isFrozen()));
+        }
+        JsonObjectBuilder body = Json.createObjectBuilder().add("ranges", ranges);
+        String status = splitterBean.getStatus(did);
+        if (status != null) {
+            body.add("split", status);
+        }
+        return Response.ok().entity(body.build().toString()).build();
+    }
+
+    /**
+     * Moves the users of the domain hashing from 'at' to the end of its range
+     * into the 'target' JDBC resource. The split runs in the background;
+     * its progress is returned by getshards. Only for administrators.
+     *
+     * @param split - 'at' and 'target'
+     * @param did - Long value of the domain
+     * @return - 202 once the split has started, 400 with the reason if it
+     * cannot start
+     */
+    @POST
+    @Path("/split")
+    @Consumes({"application/json"})
+    @Produces({"application/json"})
+    public Response split(ShardSplitRequest split,
+                          @PathParam("did") Long did) {
+
+        if (!authRest.execute(did, request, split, skceConstants.LDAP_ROLE_ADM)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        if (split == null || split.getAt() == null || split.getTarget() == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("at and target are required").build();
+        }
+        String error = splitterBean.validate(did, split.getAt(), split.getTarget());
+        if (error != null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+        }
+        splitterBean.split(did, split.getAt(), split.getTarget());
+        return Response.status(Response.Status.ACCEPTED).build();
+    }
+}
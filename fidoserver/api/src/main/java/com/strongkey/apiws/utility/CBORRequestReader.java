@@ -0,0 +1,153 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.utility;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.requests.AuthenticationRequest;
+import com.strongkey.skfs.requests.PatchFidoKeyRequest;
+import com.strongkey.skfs.requests.PreauthenticationRequest;
+import com.strongkey.skfs.requests.PreregistrationRequest;
+import com.strongkey.skfs.requests.RegistrationRequest;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Reads application/cbor bodies of the fidokeys requests. The body is a CBOR
+ * map with the fields of the JSON request; response and metadata are maps
+ * whose byte strings (attestationObject, authenticatorData, clientDataJSON,
+ * signature, rawId...) are sent raw instead of base64url encoded.
+ *
+ * The map is mapped onto the same request objects as the JSON form, byte
+ * strings in base64url, so both forms go through the same validation and
+ * beans. The raw body is left in the request attributes: the request HMAC
+ * is computed over it. A body that is not a CBOR map is read as no body.
+ * A body longer than skfs.cfg.property.request.maxlen.body is rejected with
+ * 413 without being read past the limit.
+ */
+@Provider
+@Consumes({applianceConstants.MEDIA_TYPE_CBOR})
+public class CBORRequestReader implements MessageBodyReader<Object> {
+
+    private static final ObjectMapper CBOR = new ObjectMapper(new CBORFactory());
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final ObjectWriter JSON_WRITER = JSON.writer().with(Base64Variants.MODIFIED_FOR_URL);
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Set<Class<?>> REQUESTS = new HashSet<>(Arrays.asList(
+            PreregistrationRequest.class, RegistrationRequest.class,
+            PreauthenticationRequest.class, AuthenticationRequest.class,
+            PatchFidoKeyRequest.class));
+
+    @Context
+    private HttpServletRequest request;
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return REQUESTS.contains(type);
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+        int maxlen = ConfigurationSnapshot.get().getInt("skfs.cfg.property.request.maxlen.body", 131072);
+        String length = httpHeaders.getFirst("Content-Length");
+        if (length != null) {
+            try {
+                if (Long.parseLong(length.trim()) > maxlen) {
+                    throw tooLarge(length.trim());
+                }
+            } catch (NumberFormatException ex) {
+                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+            }
+        }
+        byte[] body = read(entityStream, maxlen);
+        request.setAttribute(applianceConstants.REQUEST_ATTRIBUTE_RAW_BODY, body);
+
+        JsonNode tree;
+        try {
+            tree = CBOR.readTree(body);
+        } catch (JsonProcessingException ex) {
+            return null;
+        }
+        if (tree == null || !tree.isObject()) {
+            return null;
+        }
+
+        ObjectNode fields = JSON.createObjectNode();
+        for (Iterator<Map.Entry<String, JsonNode>> it = tree.fields(); it.hasNext();) {
+            Map.Entry<String, JsonNode> e = it.next();
+            JsonNode value = e.getValue();
+            if (value.isContainerNode()) {
+                fields.put(e.getKey(), JSON_WRITER.writeValueAsString(value));
+            } else if (value.isBinary()) {
+                fields.put(e.getKey(), BASE64URL.encodeToString(value.binaryValue()));
+            } else if (!value.isNull()) {
+                fields.put(e.getKey(), value.asText());
+            }
+        }
+        try {
+            return JSON.treeToValue(fields, type);
+        } catch (JsonProcessingException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @throws WebApplicationException 413 once more than maxlen bytes are read
+     */
+    private static byte[] read(InputStream in, int maxlen) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (baos.size() + n > maxlen) {
+                throw tooLarge("> " + maxlen);
+            }
+            baos.write(buffer, 0, n);
+        }
+        return baos.toByteArray();
+    }
+
+    private static WebApplicationException tooLarge(String length) {
+        skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-ERR-0058", length);
+        return new WebApplicationException(Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE)
+                .entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0058") + length))
+                .type(MediaType.APPLICATION_JSON)
+                .build());
+    }
+}
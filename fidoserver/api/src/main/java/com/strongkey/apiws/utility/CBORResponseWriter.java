@@ -0,0 +1,176 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.utility;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.pojos.FIDOReturnObject;
+import com.strongkey.skfs.utilities.skfsConstants;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes the fidokeys responses as application/cbor, when the caller asks
+ * for it. The document is the one of the JSON form, except that challenges
+ * and the ids of the user and of the allowed and excluded credentials are
+ * byte strings instead of base64url text. Responses built as JSON strings
+ * are parsed once; a string that is not a JSON object is written as text.
+ */
+@Provider
+@Produces({applianceConstants.MEDIA_TYPE_CBOR})
+public class CBORResponseWriter implements MessageBodyWriter<Object> {
+
+    // the container owns the output stream
+    private static final JsonFactory CBOR = new CBORFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final JsonReaderFactory READERS = Json.createReaderFactory(null);
+    private static final Base64.Decoder BASE64URL_DECODER = Base64.getUrlDecoder();
+    private static final Base64.Encoder BASE64URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    // objects whose "id" is a byte string
+    private static final Set<String> ID_CONTAINERS = new HashSet<>(Arrays.asList(
+            skfsConstants.FIDO2_PREREG_ATTR_USER,
+            skfsConstants.FIDO2_PREREG_ATTR_EXCLUDECRED,
+            skfsConstants.FIDO2_PREAUTH_ATTR_ALLOWCREDENTIALS));
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == String.class || FIDOReturnObject.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+        try (JsonGenerator generator = CBOR.createGenerator(entityStream)) {
+            if (t instanceof FIDOReturnObject) {
+                FIDOReturnObject fro = (FIDOReturnObject) t;
+                generator.writeStartObject();
+                generator.writeFieldName(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE);
+                if (fro.getJson() == null) {
+                    generator.writeString(fro.getResponse());
+                } else {
+                    write(generator, fro.getJson(), null, skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE);
+                }
+                generator.writeEndObject();
+            } else {
+                String s = (String) t;
+                JsonObject json = null;
+                if (s.trim().startsWith("{")) {
+                    try (JsonReader reader = READERS.createReader(new StringReader(s))) {
+                        json = reader.readObject();
+                    } catch (JsonException ex) {
+                        json = null;
+                    }
+                }
+                if (json == null) {
+                    generator.writeString(s);
+                } else {
+                    write(generator, json, null, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param container - name of the object holding the value; for the
+     * elements of an array, of the object holding the array
+     * @param name - name of the value; for the elements of an array, of the
+     * array
+     */
+    private static void write(JsonGenerator generator, JsonValue value, String container, String name) throws IOException {
+        switch (value.getValueType()) {
+            case OBJECT:
+                generator.writeStartObject();
+                for (Map.Entry<String, JsonValue> e : ((JsonObject) value).entrySet()) {
+                    generator.writeFieldName(e.getKey());
+                    write(generator, e.getValue(), name, e.getKey());
+                }
+                generator.writeEndObject();
+                break;
+            case ARRAY:
+                generator.writeStartArray();
+                for (JsonValue e : (JsonArray) value) {
+                    write(generator, e, container, name);
+                }
+                generator.writeEndArray();
+                break;
+            case STRING:
+                String s = ((JsonString) value).getString();
+                byte[] bytes = isBinary(container, name) ? decode(s) : null;
+                if (bytes == null) {
+                    generator.writeString(s);
+                } else {
+                    generator.writeBinary(bytes);
+                }
+                break;
+            case NUMBER:
+                JsonNumber n = (JsonNumber) value;
+                if (n.isIntegral()) {
+                    generator.writeNumber(n.bigIntegerValue());
+                } else {
+                    generator.writeNumber(n.doubleValue());
+                }
+                break;
+            case TRUE:
+                generator.writeBoolean(true);
+                break;
+            case FALSE:
+                generator.writeBoolean(false);
+                break;
+            default:
+                generator.writeNull();
+        }
+    }
+
+    private static boolean isBinary(String container, String name) {
+        return skfsConstants.FIDO2_PREREG_ATTR_CHALLENGE.equals(name)
+                || (skfsConstants.FIDO2_ATTR_ID.equals(name) && ID_CONTAINERS.contains(container));
+    }
+
+    /**
+     * @return the bytes of s, or null if s is not in unpadded base64url, in
+     * which case it is sent as text
+     */
+    private static byte[] decode(String s) {
+        byte[] bytes;
+        try {
+            bytes = BASE64URL_DECODER.decode(s);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return BASE64URL_ENCODER.encodeToString(bytes).equals(s) ? bytes : null;
+    }
+}
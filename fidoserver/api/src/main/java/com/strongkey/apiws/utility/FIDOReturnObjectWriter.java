@@ -0,0 +1,44 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.apiws.utility;
+
+import com.strongkey.skfs.pojos.FIDOReturnObject;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes FIDOReturnObject entities to the response stream with a Json
+ * generator, in one pass and without building the document as a string.
+ */
+@Provider
+@Produces({MediaType.APPLICATION_JSON})
+public class FIDOReturnObjectWriter implements MessageBodyWriter<FIDOReturnObject> {
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return FIDOReturnObject.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(FIDOReturnObject t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(FIDOReturnObject t, Class<?> type, Type genericType, Annotation[] annotations,
+            MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) {
+        //  not closed: the container owns entityStream
+        t.writeTo(entityStream);
+    }
+}
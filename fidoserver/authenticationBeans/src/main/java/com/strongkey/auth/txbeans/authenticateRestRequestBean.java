@@ -17,6 +17,8 @@ import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
 import com.strongkey.crypto.utility.cryptoCommon;
 import com.strongkey.skce.utilities.skceCommon;
+import com.strongkey.skce.utilities.skceConstants;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -54,7 +56,9 @@ public class authenticateRestRequestBean implements authenticateRestRequestBeanL
      * @param did Long the domain identifier for which to authenticate to 
      * @param request HttpServletRequest full request object in which to gather
      * headers and other parts of the request
-     * @param requestbody String body of the request to be SHA'd 
+     * @param requestbody String body of the request to be SHA'd; for a CBOR
+     * request the raw body, left by the reader in the request attributes, is
+     * hashed instead
      * @return boolean value indicating either True (for authenticated) or False
      * (for unauthenticated or failure in processing)
      */
@@ -63,6 +67,25 @@ public class authenticateRestRequestBean implements authenticateRestRequestBeanL
             Long did,
             HttpServletRequest request,
             Object requestbody) {
+        return execute(did, request, requestbody, null);
+    }
+
+    /**
+     * Authenticates the request as execute(did, request, requestbody) does,
+     * and also requires the access key to hold the role
+     *
+     * @param role String the role required, or null for none; only
+     * skceConstants.LDAP_ROLE_ADM, held by the access keys listed in
+     * skce.cfg.property.admin.accesskeys, is known
+     * @return boolean value indicating either True (for authenticated and
+     * authorized) or False
+     */
+    @Override
+    public boolean execute(
+            Long did,
+            HttpServletRequest request,
+            Object requestbody,
+            String role) {
 
         strongkeyLogger.logp(applianceConstants.APPLIANCE_LOGGER, Level.FINE, classname, "execute", "APPL-MSG-1051",
                 "\n EJB name=" + classname +
@@ -82,17 +105,23 @@ public class authenticateRestRequestBean implements authenticateRestRequestBeanL
             String contentSHA  = request.getHeader("strongkey-content-sha256");
             contenttype = request.getHeader("Content-Type");
 
-            ObjectWriter ow = new ObjectMapper().writer();
-            String json;
-            try {
-                json = ow.writeValueAsString(requestbody);
-            } catch (JsonProcessingException ex) {
-                strongkeyLogger.logp(applianceConstants.APPLIANCE_LOGGER, Level.SEVERE, classname, "execute", "APPL-ERR-1042", "");
-                return false;
+            // CBOR bodies are hashed as received; JSON bodies as re-serialized
+            byte[] rawbody = (byte[]) request.getAttribute(applianceConstants.REQUEST_ATTRIBUTE_RAW_BODY);
+            if (rawbody != null) {
+                generatedSHA = cryptoCommon.calculateHash(rawbody, "SHA-256");
+            } else {
+                ObjectWriter ow = new ObjectMapper().writer();
+                String json;
+                try {
+                    json = ow.writeValueAsString(requestbody);
+                } catch (JsonProcessingException ex) {
+                    strongkeyLogger.logp(applianceConstants.APPLIANCE_LOGGER, Level.SEVERE, classname, "execute", "APPL-ERR-1042", "");
+                    return false;
+                }
+
+                generatedSHA = cryptoCommon.calculateHash(json, "SHA-256");
             }
 
-            generatedSHA = cryptoCommon.calculateHash(json, "SHA-256");
-
             if (!generatedSHA.equals(contentSHA)) {
                 strongkeyLogger.logp(applianceConstants.APPLIANCE_LOGGER, Level.SEVERE, classname, "execute", "APPL-ERR-1041", "Received: " + contentSHA + " Expected: " + generatedSHA);
                 return false;
@@ -118,6 +147,11 @@ public class authenticateRestRequestBean implements authenticateRestRequestBeanL
             return false;
         }
 
+        if (role != null && !hasRole(accessKey, role)) {
+            strongkeyLogger.logp(applianceConstants.APPLIANCE_LOGGER, Level.SEVERE, classname, "execute", "APPL-ERR-1043", role + " " + accessKey);
+            return false;
+        }
+
         String queryParams = request.getQueryString();
         if (queryParams != null) {
             queryParams = "?" + queryParams;
@@ -151,4 +185,12 @@ public class authenticateRestRequestBean implements authenticateRestRequestBeanL
             return false;
         }
     }
-}
\ No newline at end of file
+
+    private static boolean hasRole(String accessKey, String role) {
+        if (!skceConstants.LDAP_ROLE_ADM.equals(role)) {
+            return false;
+        }
+        String admins = skceCommon.getConfigurationProperty("skce.cfg.property.admin.accesskeys");
+        return admins != null && Arrays.asList(admins.trim().split("\\s*,\\s*")).contains(accessKey);
+    }
+}
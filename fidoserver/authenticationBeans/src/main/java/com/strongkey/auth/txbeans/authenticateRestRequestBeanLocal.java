@@ -19,4 +19,9 @@ public interface authenticateRestRequestBeanLocal {
     boolean execute(Long did, 
                     HttpServletRequest accesskey,
                     Object requestBody);
+
+    boolean execute(Long did,
+                    HttpServletRequest request,
+                    Object requestBody,
+                    String role);
 }
@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -49,6 +50,11 @@ public class applianceCommon {
     //Resource bundle for the appliance config
     private static ResourceBundle appliancehrb = null;
 
+    // Defaults overlaid by appliancehrb, and the modification time of the file
+    // it was read from; rebuilt whole when the file is reloaded
+    private static volatile Map<String, String> applianceconfig = Collections.emptyMap();
+    private static volatile long applianceconfigtime = 0L;
+
     private static final ResourceBundle vrb = ResourceBundle.getBundle("resources.appliance.appliance-version");
 
     private static final ResourceBundle defaultApplianceConfig = ResourceBundle.getBundle("resources.appliance.appliance-configuration");
@@ -87,6 +93,7 @@ Y8P          Y8P 888
 *******************************************
      */
     static {
+        resolveApplianceConfiguration(null, 0L);
         setupMaxLenMap();
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -100,6 +107,7 @@ Y8P          Y8P 888
             try (FileInputStream fis = new FileInputStream(f)) {
                 appliancehrb = new java.util.PropertyResourceBundle(fis);
             }
+            resolveApplianceConfiguration(appliancehrb, f.lastModified());
 
             strongkeyLogger.log(applianceConstants.APPLIANCE_LOGGER, Level.INFO, "APPL-MSG-1053",
                     "Using appliance-configuration.properties from APPLIANCE_HOME directory: "
@@ -563,19 +571,35 @@ Y8P          Y8P 888
     }
 
     public static String getApplianceConfigurationProperty(String key) {
-        if (appliancehrb != null) {
-            try {
-                String s = appliancehrb.getString(key);
-                if (s.startsWith("APPLIANCE_HOME")) {
-                    return s.replaceFirst("APPLIANCE_HOME", appliancehome);
-                } else {
-                    return s;
-                }
-            } catch (java.util.MissingResourceException ex) {
-                // Do nothing
+        String s = applianceconfig.get(key);
+        if (s == null) {
+            throw new java.util.MissingResourceException("Can't find resource for key " + key, classname, key);
+        }
+        return s;
+    }
+
+    /**
+     * @return true if appliance-configuration.properties in APPLIANCE_HOME
+     * was added or modified since it was last read
+     */
+    public static boolean isApplianceConfigurationStale() {
+        long filetime = new File(appliancehome + fs + "etc" + fs + "appliance-configuration.properties").lastModified();
+        return filetime != 0L && filetime != applianceconfigtime;
+    }
+
+    private static void resolveApplianceConfiguration(ResourceBundle rb, long filetime) {
+        Map<String, String> m = new HashMap<>();
+        for (String key : Collections.list(defaultApplianceConfig.getKeys())) {
+            m.put(key, defaultApplianceConfig.getString(key));
+        }
+        if (rb != null) {
+            for (String key : Collections.list(rb.getKeys())) {
+                String s = rb.getString(key);
+                m.put(key, s.startsWith("APPLIANCE_HOME") ? s.replaceFirst("APPLIANCE_HOME", appliancehome) : s);
             }
         }
-        return defaultApplianceConfig.getString(key);
+        applianceconfig = m;
+        applianceconfigtime = filetime;
     }
 
     public static boolean reloadApplianceConfiguration() {
@@ -589,6 +613,7 @@ Y8P          Y8P 888
 
             if (rb != null) {
                 appliancehrb = rb;
+                resolveApplianceConfiguration(rb, f.lastModified());
 
                 // Sort properties for readability
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
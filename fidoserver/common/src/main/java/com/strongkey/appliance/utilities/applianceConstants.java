@@ -807,6 +807,17 @@ public class applianceConstants {
     public static final int RESPONSE_ENCODING_JSON = 1;
     public static final int RESPONSE_ENCODING_XML = 2;
 
+    /**
+     * Media type of CBOR encoded REST requests and responses
+     */
+    public static final String MEDIA_TYPE_CBOR = "application/cbor";
+
+    /**
+     * Request attribute holding the raw body of a CBOR request; the request
+     * HMAC is computed over these bytes
+     */
+    public static final String REQUEST_ATTRIBUTE_RAW_BODY = "com.strongkey.rawbody";
+
     /**
      * Parameter for CreditCardData from JAXB
      */
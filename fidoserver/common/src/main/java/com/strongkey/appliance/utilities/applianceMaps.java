@@ -108,16 +108,15 @@ public class applianceMaps {
      * @return Domains entity, if it exists
      */
     public static Domains getDomain(Long did) {
-        try {
-            if (domainmap.containsKey(did)) {
-                DomainObject dobj = domainmap.get(did);
-                dobj.setLastUsed(System.currentTimeMillis());
-                return dobj.getDomain();
-            }
-        } catch (NullPointerException ex) {
+        if (did == null) {
             return null;
         }
-        return null;
+        DomainObject dobj = domainmap.get(did);
+        if (dobj == null) {
+            return null;
+        }
+        dobj.setLastUsed(System.currentTimeMillis());
+        return dobj.getDomain();
     }
 
     /**
@@ -0,0 +1,160 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.replication.entitybeans;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ * Replication outbox: one row per change to a replicated object, written in
+ * the transaction that makes the change. rpid identifies the row within its
+ * source server (ssid); it has holes where a transaction rolled back. seqno is
+ * assigned by the source server when it publishes the row, after the row is
+ * committed, and is the order in which peers apply the rows of a server; it
+ * is null until then. objectdata carries the fields peers need to update their
+ * caches without reading the object, as JSON.
+ */
+@Entity
+@Table(name = "replication")
+@NamedQueries({
+    @NamedQuery(name = "Replication.findAfter", query = "SELECT r FROM Replication r WHERE r.replicationPK.ssid = :ssid and r.seqno > :seqno ORDER BY r.seqno"),
+    @NamedQuery(name = "Replication.findUnpublished", query = "SELECT r FROM Replication r WHERE r.replicationPK.ssid = :ssid and r.seqno IS NULL ORDER BY r.replicationPK.rpid"),
+    @NamedQuery(name = "Replication.findSources", query = "SELECT DISTINCT r.replicationPK.ssid FROM Replication r"),
+    @NamedQuery(name = "Replication.maxrpid", query = "SELECT max(r.replicationPK.rpid) FROM Replication r where r.replicationPK.ssid = :ssid"),
+    @NamedQuery(name = "Replication.maxseqno", query = "SELECT max(r.seqno) FROM Replication r where r.replicationPK.ssid = :ssid"),
+    @NamedQuery(name = "Replication.deleteBefore", query = "DELETE FROM Replication r WHERE r.replicationPK.ssid = :ssid and r.replicationPK.rpid < :rpid and r.seqno < :seqno and r.createDate < :createDate")})
+public class Replication implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    @EmbeddedId
+    protected ReplicationPK replicationPK;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "objectype")
+    private int objectype;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "objectop")
+    private int objectop;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 1024)
+    @Column(name = "objectpk")
+    private String objectpk;
+    @Size(max = 4096)
+    @Column(name = "objectdata")
+    private String objectdata;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "create_date")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date createDate;
+    @Column(name = "seqno")
+    private Long seqno;
+
+    public Replication() {
+    }
+
+    public Replication(ReplicationPK replicationPK, int objectype, int objectop, String objectpk, String objectdata, Date createDate) {
+        this.replicationPK = replicationPK;
+        this.objectype = objectype;
+        this.objectop = objectop;
+        this.objectpk = objectpk;
+        this.objectdata = objectdata;
+        this.createDate = createDate;
+    }
+
+    public ReplicationPK getReplicationPK() {
+        return replicationPK;
+    }
+
+    public void setReplicationPK(ReplicationPK replicationPK) {
+        this.replicationPK = replicationPK;
+    }
+
+    public int getObjectype() {
+        return objectype;
+    }
+
+    public void setObjectype(int objectype) {
+        this.objectype = objectype;
+    }
+
+    public int getObjectop() {
+        return objectop;
+    }
+
+    public void setObjectop(int objectop) {
+        this.objectop = objectop;
+    }
+
+    public String getObjectpk() {
+        return objectpk;
+    }
+
+    public void setObjectpk(String objectpk) {
+        this.objectpk = objectpk;
+    }
+
+    public String getObjectdata() {
+        return objectdata;
+    }
+
+    public void setObjectdata(String objectdata) {
+        this.objectdata = objectdata;
+    }
+
+    public Date getCreateDate() {
+        return createDate;
+    }
+
+    public void setCreateDate(Date createDate) {
+        this.createDate = createDate;
+    }
+
+    public Long getSeqno() {
+        return seqno;
+    }
+
+    public void setSeqno(Long seqno) {
+        this.seqno = seqno;
+    }
+
+    @Override
+    public int hashCode() {
+        return (replicationPK != null ? replicationPK.hashCode() : 0);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof Replication)) {
+            return false;
+        }
+        Replication other = (Replication) object;
+        return (this.replicationPK != null || other.replicationPK == null)
+                && (this.replicationPK == null || this.replicationPK.equals(other.replicationPK));
+    }
+
+    @Override
+    public String toString() {
+        return "com.strongkey.replication.entitybeans.Replication[ replicationPK=" + replicationPK
+                + ", objectype=" + objectype + ", objectop=" + objectop + ", objectpk=" + objectpk + " ]";
+    }
+
+}
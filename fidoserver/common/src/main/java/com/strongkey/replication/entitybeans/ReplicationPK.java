@@ -0,0 +1,74 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.replication.entitybeans;
+
+import java.io.Serializable;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.validation.constraints.NotNull;
+
+@Embeddable
+public class ReplicationPK implements Serializable {
+
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "ssid")
+    private short ssid;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "rpid")
+    private long rpid;
+
+    public ReplicationPK() {
+    }
+
+    public ReplicationPK(short ssid, long rpid) {
+        this.ssid = ssid;
+        this.rpid = rpid;
+    }
+
+    public short getSsid() {
+        return ssid;
+    }
+
+    public void setSsid(short ssid) {
+        this.ssid = ssid;
+    }
+
+    public long getRpid() {
+        return rpid;
+    }
+
+    public void setRpid(long rpid) {
+        this.rpid = rpid;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (int) ssid;
+        hash += (int) (rpid ^ (rpid >>> 32));
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof ReplicationPK)) {
+            return false;
+        }
+        ReplicationPK other = (ReplicationPK) object;
+        return this.ssid == other.ssid && this.rpid == other.rpid;
+    }
+
+    @Override
+    public String toString() {
+        return "com.strongkey.replication.entitybeans.ReplicationPK[ ssid=" + ssid + ", rpid=" + rpid + " ]";
+    }
+
+}
@@ -11,7 +11,6 @@ import com.strongkey.skce.pojos.FIDOSecretKeyInfo;
 import com.strongkey.skce.pojos.FidoKeysInfo;
 import com.strongkey.skce.pojos.FidoPolicyMDS;
 import com.strongkey.skce.pojos.UserSessionInfo;
-import com.strongkey.skce.utilities.skceCommon;
 import com.strongkey.skce.utilities.skceConstants;
 import com.strongkey.skce.utilities.skceMaps;
 import java.util.Collection;
@@ -21,6 +20,12 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
 
     private static SAConcurrentHashMapImpl mapObj = null;
 
+    private static volatile SessionMapListener sessionListener = null;
+
+    // Age in seconds at which clean removes an entry, set by the flush jobs
+    private volatile long sessionAgeLimit = 30L;
+    private volatile long fidokeysAgeLimit = 30L;
+
     protected SAConcurrentHashMapImpl() {
         System.out.println("Initiating SACHMImpl");
     }
@@ -32,6 +37,10 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
         return mapObj;
     }
 
+    public static void setSessionListener(SessionMapListener listener) {
+        sessionListener = listener;
+    }
+
     @Override
     public Object put(Integer type, Object key, Object value) {
         if (type == null || key == null || value == null) {
@@ -39,7 +48,15 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
         }
         switch (type) {
             case skceConstants.MAP_USER_SESSION_INFO:
-                return skceMaps.sessionMap.put((String) key, (UserSessionInfo) value);
+                SessionMapListener addListener = sessionListener;
+                if (addListener == null) {
+                    return skceMaps.sessionMap.put((String) key, (UserSessionInfo) value);
+                }
+                synchronized (addListener) {
+                    Object previous = skceMaps.sessionMap.put((String) key, (UserSessionInfo) value);
+                    addListener.sessionAdded((String) key, (UserSessionInfo) value);
+                    return previous;
+                }
             case skceConstants.MAP_FIDO_SECRET_KEY:
                 return skceMaps.FSKMap.put((String) key, (FIDOSecretKeyInfo) value);
 //            case Constants.MAP_USER_KEY_POINTERS:
@@ -102,7 +119,15 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
         }
         switch (type) {
             case skceConstants.MAP_USER_SESSION_INFO:
-                return skceMaps.sessionMap.remove((String) key);
+                SessionMapListener removeListener = sessionListener;
+                if (removeListener == null) {
+                    return skceMaps.sessionMap.remove((String) key);
+                }
+                synchronized (removeListener) {
+                    Object removed = skceMaps.sessionMap.remove((String) key);
+                    removeListener.sessionRemoved((String) key);
+                    return removed;
+                }
             case skceConstants.MAP_FIDO_SECRET_KEY:
                 return skceMaps.FSKMap.remove((String) key);
 //            case Constants.MAP_USER_KEY_POINTERS:
@@ -205,6 +230,19 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
         }
     }
 
+    @Override
+    public void setAgeLimit(Integer type, long seconds) {
+        //  not less than 5 seconds, not more than 5 minutes
+        long agelimit = Math.min(Math.max(seconds, 5L), 300L);
+        if (type == skceConstants.MAP_USER_SESSION_INFO) {
+            sessionAgeLimit = agelimit;
+        } else if (type == skceConstants.MAP_FIDO_KEYS) {
+            fidokeysAgeLimit = agelimit;
+        } else {
+            throw new IllegalArgumentException("Invalid map type");
+        }
+    }
+
     @Override
     public void clean(Integer type) {
         if (type == null) {
@@ -217,27 +255,7 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
                 sessionids = skceMaps.sessionMap.keySet();
             }
 
-            String agelimit = skceCommon.getConfigurationProperty("skfs.cfg.property.usersession.flush.cutofftime.seconds");
-
-            long sessionagelimit;
-            if (agelimit == null || agelimit.trim().isEmpty()) {
-                //  if not configured, set it to 30 seconds as default.
-                sessionagelimit = 30L;
-            } else {
-                try {
-                    sessionagelimit = Long.parseLong(agelimit);
-                    //  if the configured time is < 5 seconds, set it to 5 seconds
-                    if (sessionagelimit < 5L) {
-                        sessionagelimit = 5L;
-                    } //  if the configured time is > 5 minutes, set it to 5 min
-                    else if (sessionagelimit > 300L) {
-                        sessionagelimit = 300L;
-                    }
-                } catch (NumberFormatException ex) {
-                    //  any exception, default it to 30 seconds.
-                    sessionagelimit = 30L;
-                }
-            }
+            long sessionagelimit = sessionAgeLimit;
 
             if (sessionids != null) {
                 for (String k : sessionids) {
@@ -296,27 +314,7 @@ public class SAConcurrentHashMapImpl implements SAHashmap {
             if (skceMaps.FIDOkeysmap != null) {
                 fkids = skceMaps.FIDOkeysmap.keySet();
             }
-            String agelimit = skceCommon.getConfigurationProperty("skfs.cfg.property.fidokeys.flush.cutofftime.seconds");
-
-            long sessionagelimit;
-            if (agelimit == null || agelimit.trim().isEmpty()) {
-                //  if not configured, set it to 30 seconds as default.
-                sessionagelimit = 30L;
-            } else {
-                try {
-                    sessionagelimit = Long.parseLong(agelimit);
-                    //  if the configured time is < 5 seconds, set it to 5 seconds
-                    if (sessionagelimit < 5L) {
-                        sessionagelimit = 5L;
-                    } //  if the configured time is > 5 minutes, set it to 5 min
-                    else if (sessionagelimit > 300L) {
-                        sessionagelimit = 300L;
-                    }
-                } catch (NumberFormatException ex) {
-                    //  any exception, default it to 30 seconds.
-                    sessionagelimit = 30L;
-                }
-            }
+            long sessionagelimit = fidokeysAgeLimit;
             
             if (fkids != null) {
                 for (String k : fkids) {
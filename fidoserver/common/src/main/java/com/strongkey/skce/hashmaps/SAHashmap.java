@@ -28,5 +28,7 @@ public interface SAHashmap {
 
     public void clear(Integer type);
 
+    public void setAgeLimit(Integer type, long seconds);
+
     public void clean(Integer type);
 }
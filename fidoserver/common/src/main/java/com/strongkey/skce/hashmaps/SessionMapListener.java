@@ -0,0 +1,24 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skce.hashmaps;
+
+import com.strongkey.skce.pojos.UserSessionInfo;
+
+/**
+ * Notified of the sessions put into and removed from the user session map
+ * through SAHashmap; sessions expired by clean() are not reported. Each call
+ * is made after the map has changed, with the listener's monitor held across
+ * the change and the call, so a listener that synchronizes on itself sees
+ * changes in map order.
+ */
+public interface SessionMapListener {
+
+    public void sessionAdded(String key, UserSessionInfo session);
+
+    public void sessionRemoved(String key);
+}
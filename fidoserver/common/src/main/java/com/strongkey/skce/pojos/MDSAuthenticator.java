@@ -0,0 +1,139 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skce.pojos;
+
+import java.security.cert.TrustAnchor;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable view of what the MDS knows about one authenticator model: its
+ * identifiers, the latest status report of its TOC entry and the trust
+ * anchors of its metadata statement, decoded once when the metadata was
+ * loaded (see MDSClient).
+ */
+public final class MDSAuthenticator {
+
+    private final String aaguid;
+    private final String aaid;
+    private final List<String> attestationCertificateKeyIdentifiers;
+    private final String description;
+    private final String status;
+    private final String statusEffectiveDate;
+    private final String compromisedStatus;
+    private final List<String> attestationRootCertificates;
+    private final Set<TrustAnchor> attestationRoots;
+    private final List<String> ecdaaTrustAnchors;
+    private final long verified;
+    private final long maxAgeMillis;
+
+    /**
+     * @param aaguid - AAGUID, null if none
+     * @param aaid - AAID, null if none
+     * @param attestationCertificateKeyIdentifiers - key identifiers of the
+     * attestation certificates
+     * @param description - description of the authenticator model
+     * @param status - latest status report, null if there is no TOC entry
+     * @param statusEffectiveDate - effective date of the latest status report
+     * @param compromisedStatus - latest status report marking the model as
+     * compromised, revoked or bypassing user verification, null if none
+     * @param attestationRootCertificates - base64 attestation root certificates
+     * @param attestationRoots - the same certificates, as trust anchors
+     * @param ecdaaTrustAnchors - ECDAA trust anchors, as JSON
+     * @param verified - when the metadata was verified against its source, 0
+     * if it has no expiry
+     * @param maxAgeMillis - age beyond which the metadata is stale, 0 for no
+     * limit
+     */
+    public MDSAuthenticator(String aaguid, String aaid, List<String> attestationCertificateKeyIdentifiers,
+            String description, String status, String statusEffectiveDate, String compromisedStatus,
+            List<String> attestationRootCertificates, Set<TrustAnchor> attestationRoots,
+            List<String> ecdaaTrustAnchors, long verified, long maxAgeMillis) {
+        this.aaguid = aaguid;
+        this.aaid = aaid;
+        this.attestationCertificateKeyIdentifiers = Collections.unmodifiableList(attestationCertificateKeyIdentifiers);
+        this.description = description;
+        this.status = status;
+        this.statusEffectiveDate = statusEffectiveDate;
+        this.compromisedStatus = compromisedStatus;
+        this.attestationRootCertificates = Collections.unmodifiableList(attestationRootCertificates);
+        this.attestationRoots = Collections.unmodifiableSet(attestationRoots);
+        this.ecdaaTrustAnchors = Collections.unmodifiableList(ecdaaTrustAnchors);
+        this.verified = verified;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return a copy verified at the given time
+     */
+    public MDSAuthenticator withVerified(long verified) {
+        return new MDSAuthenticator(aaguid, aaid, attestationCertificateKeyIdentifiers, description, status,
+                statusEffectiveDate, compromisedStatus, attestationRootCertificates, attestationRoots,
+                ecdaaTrustAnchors, verified, maxAgeMillis);
+    }
+
+    public String getAaguid() {
+        return aaguid;
+    }
+
+    public String getAaid() {
+        return aaid;
+    }
+
+    public List<String> getAttestationCertificateKeyIdentifiers() {
+        return attestationCertificateKeyIdentifiers;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getStatusEffectiveDate() {
+        return statusEffectiveDate;
+    }
+
+    public boolean isCompromised() {
+        return compromisedStatus != null;
+    }
+
+    /**
+     * @return the status that makes the model compromised, which need not be
+     * its latest status; null if it is not compromised
+     */
+    public String getCompromisedStatus() {
+        return compromisedStatus;
+    }
+
+    public List<String> getAttestationRootCertificates() {
+        return attestationRootCertificates;
+    }
+
+    public Set<TrustAnchor> getAttestationRoots() {
+        return attestationRoots;
+    }
+
+    public List<String> getEcdaaTrustAnchors() {
+        return ecdaaTrustAnchors;
+    }
+
+    /**
+     * @return milliseconds since the metadata was verified against its source
+     */
+    public long getAge() {
+        return (verified == 0L) ? 0L : System.currentTimeMillis() - verified;
+    }
+
+    public boolean isStale() {
+        return maxAgeMillis > 0L && getAge() > maxAgeMillis;
+    }
+}
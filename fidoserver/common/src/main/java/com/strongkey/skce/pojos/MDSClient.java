@@ -10,5 +10,21 @@ package com.strongkey.skce.pojos;
 import javax.json.JsonObject;
 
 public interface MDSClient {
-    public JsonObject getTrustAnchors(String aaguid);    
+    public JsonObject getTrustAnchors(String aaguid);
+
+    /**
+     * @return the authenticator model with this AAGUID, null if unknown
+     */
+    public MDSAuthenticator getAuthenticator(String aaguid);
+
+    /**
+     * @return the authenticator model with this AAID, null if unknown
+     */
+    public MDSAuthenticator getAuthenticatorByAaid(String aaid);
+
+    /**
+     * @return the authenticator model whose attestation certificate has this
+     * key identifier, null if unknown
+     */
+    public MDSAuthenticator getAuthenticatorByKeyIdentifier(String keyIdentifier);
 }
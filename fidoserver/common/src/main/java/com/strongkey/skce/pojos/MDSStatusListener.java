@@ -0,0 +1,22 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skce.pojos;
+
+/**
+ * Told by an MDSClient when a refresh finds that the status of an
+ * authenticator model changed (its TOC entry has a new
+ * timeOfLastStatusChange). Called on the refresh thread, once the new
+ * metadata is published.
+ */
+public interface MDSStatusListener {
+
+    /**
+     * @param authenticator - the authenticator model, with its new status
+     */
+    public void statusChanged(MDSAuthenticator authenticator);
+}
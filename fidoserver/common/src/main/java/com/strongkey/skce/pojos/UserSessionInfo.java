@@ -7,35 +7,75 @@
 
 package com.strongkey.skce.pojos;
 
-import java.io.Serializable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class UserSessionInfo implements Serializable {
+/**
+ * Session kept for every outstanding challenge.
+ *
+ * Since hundreds of thousands of these can be held at once, values unique to
+ * the session (challenge, public key, digests, names) are kept as bytes -
+ * base64 values decoded to their raw bytes, other text as UTF-8 - and values
+ * shared by many sessions (appid, session type, policy, user verification
+ * and attestation preferences) are interned. The getters and setters still
+ * take and return the original strings.
+ *
+ * Serialization is explicit and versioned, see writeTo() and readFrom().
+ */
+public class UserSessionInfo implements Externalizable {
 
-    private static final long serialVersionUID = 1L;
-    private String username = null;
-    private String displayName = null;
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Version of the serialized form
+     */
+    private static final byte VERSION = 1;
+
+    //  Forms of the packed values, stored in their first byte
+    private static final byte FORM_UTF8 = 0;
+    private static final byte FORM_BASE64URL = 1;
+    private static final byte FORM_BASE64 = 2;
+
+    private static final int MAX_INTERNED = 4096;
+    private static final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<>();
+
+    private byte[] username = null;
+    private byte[] displayName = null;
     private String rpName = null;
-    private String nonce = null;
-    private String userId = null;
+    private byte[] nonce = null;
+    private byte[] userId = null;
     private String appid = null;
     private String sessiontype = null;
-    private Date creationdate = null;
-    private String userPublicKey = null;
+    private long creationtime;
+    private byte[] userPublicKey = null;
     //fido key id
     private long fkid = 0;
     //server id where the key was originally registered
-    private Short skid = 0;
+    private short skid = 0;
     //server id where the prereg/preauth has been originated
-    private Short sid = 0;
-    private String sessionid = null;
-    
-    private String userIcon = null;
+    private short sid = 0;
+    private byte[] sessionid = null;
+
+    private byte[] userIcon = null;
     private String userVerificationReq = null;
     private String attestationPreferance = null;
     private String policyMapKey = null;
-    
-    private String mapkey;
+
+    private byte[] mapkey;
 
     /**
      * Constructor of this class.
@@ -48,42 +88,42 @@ public class UserSessionInfo implements Serializable {
      * @param sessionID
      */
     public UserSessionInfo(String username, String nonce, String appid, String sessiontype, String userPublicKey, String sessionID) {
-        this.username = username;
-        this.nonce = nonce;
-        this.appid = appid;
-        this.sessiontype = sessiontype;
-        this.creationdate = new Date();
-        this.userPublicKey = userPublicKey;
-        this.sessionid = sessionID;
-    }
-    
+        this.username = pack(username);
+        this.nonce = pack(nonce);
+        this.appid = intern(appid);
+        this.sessiontype = intern(sessiontype);
+        this.creationtime = System.currentTimeMillis();
+        this.userPublicKey = pack(userPublicKey);
+        this.sessionid = pack(sessionID);
+    }
+
     //Empty Constructor
     public UserSessionInfo(){
-        this.creationdate = new Date();
+        this.creationtime = System.currentTimeMillis();
     }
 
     public void setSessionid(String sessionid) {
-        this.sessionid = sessionid;
+        this.sessionid = pack(sessionid);
     }
 
     public String getSessionid() {
-        return sessionid;
+        return unpack(sessionid);
     }
 
     public String getUsername() {
-        return username;
+        return unpack(username);
     }
 
     public void setUsername(String username) {
-        this.username = username;
+        this.username = pack(username);
     }
 
     public String getNonce() {
-        return nonce;
+        return unpack(nonce);
     }
 
     public void setNonce(String nonce) {
-        this.nonce = nonce;
+        this.nonce = pack(nonce);
     }
 
     public String getAppid() {
@@ -91,7 +131,7 @@ public class UserSessionInfo implements Serializable {
     }
 
     public void setAppid(String appid) {
-        this.appid = appid;
+        this.appid = intern(appid);
     }
 
     public String getSessiontype() {
@@ -99,29 +139,28 @@ public class UserSessionInfo implements Serializable {
     }
 
     public void setSessiontype(String sessiontype) {
-        this.sessiontype = sessiontype;
+        this.sessiontype = intern(sessiontype);
     }
 
     public Date getCreationdate() {
-        return creationdate;
+        return new Date(creationtime);
     }
 
     public void setCreationdate(Date creationdate) {
-        this.creationdate = creationdate;
+        this.creationtime = creationdate.getTime();
     }
 
     public long getSessionAge() {
-        Date rightnow = new Date();
-        long age = (rightnow.getTime() / 1000) - (creationdate.getTime() / 1000);
+        long age = (System.currentTimeMillis() / 1000) - (creationtime / 1000);
         return age;
     }
 
     public String getUserPublicKey() {
-        return userPublicKey;
+        return unpack(userPublicKey);
     }
 
     public void setUserPublicKey(String userPublicKey) {
-        this.userPublicKey = userPublicKey;
+        this.userPublicKey = pack(userPublicKey);
     }
 
     public long getFkid() {
@@ -137,7 +176,7 @@ public class UserSessionInfo implements Serializable {
     }
 
     public void setSid(Short sid) {
-        this.sid = sid;
+        this.sid = (sid == null) ? 0 : sid;
     }
 
     public Short getSkid() {
@@ -145,55 +184,55 @@ public class UserSessionInfo implements Serializable {
     }
 
     public void setSkid(Short skid) {
-        this.skid = skid;
+        this.skid = (skid == null) ? 0 : skid;
     }
 
     public String getMapkey() {
-        return mapkey;
+        return unpack(mapkey);
     }
 
     public void setMapkey(String mapkey) {
-        this.mapkey = mapkey;
+        this.mapkey = pack(mapkey);
     }
-    
+
     public String getRpName() {
         return rpName;
     }
 
     public void setRpName(String rpName) {
-        this.rpName = rpName;
+        this.rpName = intern(rpName);
     }
 
     public String getDisplayName() {
-        return displayName;
+        return unpack(displayName);
     }
 
     public void setDisplayName(String displayName) {
-        this.displayName = displayName;
+        this.displayName = pack(displayName);
     }
 
     public String getUserId() {
-        return userId;
+        return unpack(userId);
     }
 
     public void setUserId(String userId) {
-        this.userId = userId;
+        this.userId = pack(userId);
     }
 
     public String getUserIcon() {
-        return userIcon;
+        return unpack(userIcon);
     }
 
     public void setUserIcon(String userIcon) {
-        this.userIcon = userIcon;
+        this.userIcon = pack(userIcon);
     }
-    
+
     public String getUserVerificationReq(){
         return userVerificationReq;
     }
-    
+
     public void setuserVerificationReq(String userVerificationReq){
-        this.userVerificationReq = userVerificationReq;
+        this.userVerificationReq = intern(userVerificationReq);
     }
 
     public String getAttestationPreferance() {
@@ -201,16 +240,102 @@ public class UserSessionInfo implements Serializable {
     }
 
     public void setAttestationPreferance(String attestationPreferance) {
-        this.attestationPreferance = attestationPreferance;
+        this.attestationPreferance = intern(attestationPreferance);
     }
-    
+
     public String getPolicyMapKey() {
         return policyMapKey;
     }
 
     public void setPolicyMapKey(String policyMapKey) {
-        this.policyMapKey = policyMapKey;
+        this.policyMapKey = intern(policyMapKey);
     }
+
+    /**
+     * Writes the session in its versioned binary form
+     *
+     * @param out - where to write
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeLong(creationtime);
+        out.writeLong(fkid);
+        out.writeShort(skid);
+        out.writeShort(sid);
+        writeBytes(out, username);
+        writeBytes(out, displayName);
+        writeBytes(out, nonce);
+        writeBytes(out, userId);
+        writeBytes(out, userPublicKey);
+        writeBytes(out, sessionid);
+        writeBytes(out, userIcon);
+        writeBytes(out, mapkey);
+        writeString(out, rpName);
+        writeString(out, appid);
+        writeString(out, sessiontype);
+        writeString(out, userVerificationReq);
+        writeString(out, attestationPreferance);
+        writeString(out, policyMapKey);
+    }
+
+    /**
+     * Reads a session written by writeTo()
+     *
+     * @param in - where to read from
+     * @throws IOException - if the data is truncated or of an unknown version
+     */
+    public void readFrom(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new InvalidObjectException("Unsupported UserSessionInfo version " + version);
+        }
+        creationtime = in.readLong();
+        fkid = in.readLong();
+        skid = in.readShort();
+        sid = in.readShort();
+        username = readBytes(in);
+        displayName = readBytes(in);
+        nonce = readBytes(in);
+        userId = readBytes(in);
+        userPublicKey = readBytes(in);
+        sessionid = readBytes(in);
+        userIcon = readBytes(in);
+        mapkey = readBytes(in);
+        rpName = intern(readString(in));
+        appid = intern(readString(in));
+        sessiontype = intern(readString(in));
+        userVerificationReq = intern(readString(in));
+        attestationPreferance = intern(readString(in));
+        policyMapKey = intern(readString(in));
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            writeTo(out);
+        }
+        return baos.toByteArray();
+    }
+
+    public static UserSessionInfo fromBytes(byte[] bytes) throws IOException {
+        UserSessionInfo session = new UserSessionInfo();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            session.readFrom(in);
+        }
+        return session;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        readFrom(in);
+    }
+
     /**
      * Over-ridden toString method to print the object content in a readable
      * manner
@@ -219,15 +344,153 @@ public class UserSessionInfo implements Serializable {
      */
     @Override
     public String toString() {
-        return    "\n    username       = " + this.username
-                + "\n    challenge      = " + this.nonce
+        return    "\n    username       = " + getUsername()
+                + "\n    challenge      = " + getNonce()
                 + "\n    appid          = " + this.appid
                 + "\n    sessiontype    = " + this.sessiontype
-                + "\n    sessioni       = " + this.sessionid
-                + "\n    UPK            = " + this.userPublicKey
+                + "\n    sessioni       = " + getSessionid()
+                + "\n    UPK            = " + getUserPublicKey()
                 + "\n    age            = " + getSessionAge() + " seconds"
-                + "\n    userId         = " + this.userId
-                + "\n    userIcon       = " + this.userIcon
+                + "\n    userId         = " + getUserId()
+                + "\n    userIcon       = " + getUserIcon()
                 + "\n    policyMapKey   = " + this.policyMapKey;
     }
+
+    /**
+     * Returns the shared instance of a value repeated across sessions; once
+     * the pool is full new values are kept as they are.
+     */
+    private static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String shared = interned.get(value);
+        if (shared != null) {
+            return shared;
+        }
+        if (interned.size() >= MAX_INTERNED) {
+            return value;
+        }
+        shared = interned.putIfAbsent(value, value);
+        return (shared == null) ? value : shared;
+    }
+
+    /**
+     * Converts a value to bytes: base64 (url safe without padding, or standard
+     * with padding) is decoded when it encodes back to the same text, anything
+     * else, including text the decoder rejects, is kept as UTF-8. The first
+     * byte tells which.
+     */
+    private static byte[] pack(String value) {
+        if (value == null) {
+            return null;
+        }
+        byte form = FORM_UTF8;
+        byte[] bytes = null;
+        try {
+            if (isBase64Url(value)) {
+                bytes = Base64.getUrlDecoder().decode(value);
+                form = FORM_BASE64URL;
+            } else if (isBase64(value)) {
+                bytes = Base64.getDecoder().decode(value);
+                if (Base64.getEncoder().encodeToString(bytes).equals(value)) {
+                    form = FORM_BASE64;
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            form = FORM_UTF8;
+        }
+        if (form == FORM_UTF8) {
+            bytes = value.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] packed = new byte[bytes.length + 1];
+        packed[0] = form;
+        System.arraycopy(bytes, 0, packed, 1, bytes.length);
+        return packed;
+    }
+
+    private static String unpack(byte[] packed) {
+        if (packed == null) {
+            return null;
+        }
+        byte[] bytes = Arrays.copyOfRange(packed, 1, packed.length);
+        switch (packed[0]) {
+            case FORM_BASE64URL:
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            case FORM_BASE64:
+                return Base64.getEncoder().encodeToString(bytes);
+            default:
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return true if the value is url safe base64 without padding that
+     * decodes and encodes back to itself (no stray bits in the last character)
+     */
+    private static boolean isBase64Url(String value) {
+        int length = value.length();
+        if (length == 0 || length % 4 == 1) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Base64.getUrlDecoder().decode(value)).equals(value);
+    }
+
+    /**
+     * @return true if the value is standard base64 whose only '=' are one or
+     * two characters of padding at the end
+     */
+    private static boolean isBase64(String value) {
+        int length = value.length();
+        if (length == 0 || length % 4 != 0) {
+            return false;
+        }
+        int data = length;
+        while (data > length - 2 && value.charAt(data - 1) == '=') {
+            data--;
+        }
+        for (int i = 0; i < data; i++) {
+            char c = value.charAt(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
 }
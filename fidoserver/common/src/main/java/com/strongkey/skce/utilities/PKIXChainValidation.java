@@ -7,16 +7,16 @@
 
 package com.strongkey.skce.utilities;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.cert.CertPath;
 import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
 import java.security.cert.CertPathValidatorResult;
 import java.security.cert.PKIXParameters;
 import java.security.cert.PKIXRevocationChecker;
 import java.security.cert.TrustAnchor;
+import java.security.cert.X509CRL;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,17 +45,44 @@ public class PKIXChainValidation {
                                                                             
             PKIXParameters pkix = new PKIXParameters(trustAnchorSet);
             
+            pkix.setPolicyQualifiersRejected(isPolicyQualifiersRejected);
+            pkix.setDate(null);
+
+            RevocationCache revocationCache = RevocationCache.getInstance();
+            List<X509CRL> crls = null;
+            if (isRevocationChecked && revocationCache.isEnabled()) {
+                // The distribution points come from certificates supplied by
+                // the client: only fetch them once the path is known to chain
+                // to a trust anchor
+                pkix.setRevocationEnabled(false);
+                cpv.validate(cp, pkix);
+                pkix.setRevocationEnabled(true);
+                // Cached CRLs, so the checker does not download them
+                crls = revocationCache.getCRLs(cp);
+                if (crls == null) {
+                    if (!revocationCache.isSoftFail()) {
+                        Logger.getLogger(PKIXChainValidation.class.getName()).log(Level.WARNING,
+                                "Revocation status unavailable, certificate path rejected");
+                        return false;
+                    }
+                    Logger.getLogger(PKIXChainValidation.class.getName()).log(Level.WARNING,
+                            "Revocation status unavailable, certificate path accepted without revocation checking (soft-fail)");
+                    isRevocationChecked = false;
+                }
+            }
+            
             if(isRevocationChecked){
                 PKIXRevocationChecker prc = (PKIXRevocationChecker) cpv.getRevocationChecker();
                 prc.setOptions(EnumSet.of(PKIXRevocationChecker.Option.PREFER_CRLS, PKIXRevocationChecker.Option.NO_FALLBACK));
                 pkix.addCertPathChecker(prc);
+                if (crls != null) {
+                    pkix.addCertStore(RevocationCache.getCertStore(crls));
+                }
             }
             else{
                 pkix.setRevocationEnabled(false);
             }
             
-            pkix.setPolicyQualifiersRejected(isPolicyQualifiersRejected);
-            pkix.setDate(null);
             CertPathValidatorResult cpvr = cpv.validate(cp, pkix);
             if (cpvr != null) {
                 System.out.println("Certificate validated");
@@ -64,7 +91,7 @@ public class PKIXChainValidation {
                 System.out.println("Certificate not valid");
                 return false;
             }
-        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException | CertPathValidatorException ex) {
+        } catch (GeneralSecurityException ex) {
             Logger.getLogger(PKIXChainValidation.class.getName()).log(Level.SEVERE, null, ex);
             return false;
         }
@@ -0,0 +1,430 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skce.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertPath;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+
+/**
+ * Cache of the CRLs named in the CRL distribution points of the certificates
+ * validated by PKIXChainValidation, so that revocation checking does not
+ * download and parse them on the request thread.
+ *
+ * A CRL is downloaded the first time a certificate pointing to it is
+ * validated, then kept in memory and on disk (one file per distribution
+ * point, bounded in total size, least recently used evicted first) and
+ * downloaded again in the background by refresh() before its nextUpdate. The
+ * files on disk are loaded back by the first refresh() after a restart. A
+ * distribution point that cannot be reached is not tried again on the request
+ * thread before the next refresh interval, and is forgotten after maxFailures
+ * failed downloads in a row. At most maxEntries distribution points, failed
+ * ones included, are tracked.
+ *
+ * Only http(s) distribution points are cached; certificates without one are
+ * left to the revocation checker of the JDK, as before.
+ */
+public final class RevocationCache {
+
+    private static final Logger logger = Logger.getLogger(RevocationCache.class.getName());
+
+    private static final RevocationCache instance = new RevocationCache();
+
+    private static final String SUFFIX = ".crl";
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled = false;
+    private volatile boolean softFail = false;
+    private volatile boolean loaded = false;
+    private Path directory;
+    private long maxBytes;
+    private int maxEntries;
+    private int maxFailures;
+    private int timeoutMillis;
+    private long retryMillis;
+
+    private static final class Entry {
+        final String url;
+        volatile X509CRL crl;
+        volatile int size;
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile long failedAt = 0L;
+        volatile int failures = 0;
+
+        Entry(String url) {
+            this.url = url;
+        }
+    }
+
+    RevocationCache() {
+    }
+
+    public static RevocationCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param directory - where the CRLs are kept on disk
+     * @param maxBytes - total size of the CRLs kept, also the limit for one CRL
+     * @param maxEntries - number of distribution points tracked
+     * @param timeoutMillis - connect and read timeout of a download
+     * @param refreshSeconds - interval of refresh(), also how long a failed
+     * distribution point is left alone
+     * @param maxFailures - failed downloads in a row after which a
+     * distribution point without a current CRL is forgotten
+     * @param softFail - accept a certificate whose CRL cannot be obtained
+     */
+    public synchronized void start(Path directory, long maxBytes, int maxEntries, int timeoutMillis,
+            long refreshSeconds, int maxFailures, boolean softFail) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxFailures = Math.max(1, maxFailures);
+        this.timeoutMillis = timeoutMillis;
+        this.retryMillis = refreshSeconds * 1000L;
+        this.softFail = softFail;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot create CRL cache directory " + directory, ex);
+        }
+        enabled = true;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isSoftFail() {
+        return softFail;
+    }
+
+    /**
+     * @return the current CRLs of all the distribution points of the
+     * certificates in the path, null if one of the certificates has
+     * distribution points but none of their CRLs is available
+     */
+    public List<X509CRL> getCRLs(CertPath cp) {
+        List<X509CRL> crls = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Certificate certificate : cp.getCertificates()) {
+            List<String> urls = distributionPoints((X509Certificate) certificate);
+            boolean found = urls.isEmpty();
+            for (String url : urls) {
+                X509CRL crl = getCRL(url, now);
+                if (crl != null) {
+                    crls.add(crl);
+                    found = true;
+                }
+            }
+            if (!found) {
+                logger.log(Level.WARNING, "No current CRL for {0}, distribution points {1}",
+                        new Object[]{((X509Certificate) certificate).getSubjectX500Principal(), urls});
+                return null;
+            }
+        }
+        return crls;
+    }
+
+    /**
+     * @return a CertStore holding the CRLs, to add to the PKIXParameters
+     */
+    public static CertStore getCertStore(Collection<X509CRL> crls) throws GeneralSecurityException {
+        return CertStore.getInstance("Collection", new CollectionCertStoreParameters(crls));
+    }
+
+    /**
+     * Loads the CRLs kept on disk the first time it runs, then downloads
+     * again the CRLs that are expired, in the last tenth of their validity or
+     * without nextUpdate, and the distribution points that failed
+     */
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries.values()) {
+            X509CRL crl = entry.crl;
+            if (crl == null || crl.getNextUpdate() == null) {
+                download(entry);
+                continue;
+            }
+            long thisUpdate = crl.getThisUpdate().getTime();
+            long nextUpdate = crl.getNextUpdate().getTime();
+            if (now >= nextUpdate - (nextUpdate - thisUpdate) / 10) {
+                download(entry);
+            }
+        }
+    }
+
+    /**
+     * @return cache statistics, for logging
+     */
+    public String getStatistics() {
+        long bytes = 0L;
+        int current = 0;
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries.values()) {
+            bytes += entry.size;
+            if (isCurrent(entry.crl, now)) {
+                current++;
+            }
+        }
+        return "distribution points=" + entries.size() + " current=" + current + " bytes=" + bytes;
+    }
+
+    private X509CRL getCRL(String url, long now) {
+        Entry entry = entries.get(url);
+        if (entry == null) {
+            entry = entries.computeIfAbsent(url, Entry::new);
+            entry.lastUsed = now;
+            evict();
+        }
+        entry.lastUsed = now;
+        X509CRL crl = entry.crl;
+        if (isCurrent(crl, now)) {
+            return crl;
+        }
+        synchronized (entry) {
+            crl = entry.crl;
+            if (isCurrent(crl, now)) {
+                return crl;
+            }
+            if (now - entry.failedAt < retryMillis) {
+                return null;
+            }
+            download(entry);
+            crl = entry.crl;
+            return isCurrent(crl, now) ? crl : null;
+        }
+    }
+
+    private static boolean isCurrent(X509CRL crl, long now) {
+        return crl != null && (crl.getNextUpdate() == null || now < crl.getNextUpdate().getTime());
+    }
+
+    private void download(Entry entry) {
+        synchronized (entry) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(entry.url).openConnection();
+                connection.setConnectTimeout(timeoutMillis);
+                connection.setReadTimeout(timeoutMillis);
+                byte[] der;
+                try {
+                    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("HTTP " + connection.getResponseCode());
+                    }
+                    try (InputStream in = connection.getInputStream()) {
+                        der = readBounded(in, maxBytes);
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+                X509CRL crl = parse(der);
+                X509CRL current = entry.crl;
+                if (current == null || !crl.getThisUpdate().before(current.getThisUpdate())) {
+                    entry.crl = crl;
+                    entry.size = der.length;
+                    save(entry.url, der);
+                }
+                entry.failedAt = 0L;
+                entry.failures = 0;
+            } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+                entry.failedAt = System.currentTimeMillis();
+                logger.log(Level.WARNING, "Cannot download CRL {0}: {1}", new Object[]{entry.url, ex.toString()});
+                if (++entry.failures >= maxFailures && !isCurrent(entry.crl, entry.failedAt)) {
+                    logger.log(Level.WARNING, "Forgetting CRL distribution point {0} after {1} failures",
+                            new Object[]{entry.url, entry.failures});
+                    remove(entry);
+                }
+            }
+        }
+    }
+
+    private static X509CRL parse(byte[] der) throws GeneralSecurityException {
+        return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(der));
+    }
+
+    private static byte[] readBounded(InputStream in, long max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            if (out.size() > max) {
+                throw new IOException("CRL larger than " + max + " bytes");
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * File name: base64url SHA-256 of the URL. Content: the URL (writeUTF)
+     * followed by the DER CRL
+     */
+    private Path file(String url) throws GeneralSecurityException {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + SUFFIX);
+    }
+
+    private void save(String url, byte[] der) {
+        try {
+            Path file = file(url);
+            Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeUTF(url);
+                out.write(der);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            evict();
+        } catch (IOException | GeneralSecurityException ex) {
+            logger.log(Level.WARNING, "Cannot save CRL " + url, ex);
+        }
+    }
+
+    private void load() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                    String url = in.readUTF();
+                    byte[] der = readBounded(in, maxBytes);
+                    Entry entry = entries.computeIfAbsent(url, Entry::new);
+                    synchronized (entry) {
+                        if (entry.crl == null) {
+                            entry.crl = parse(der);
+                            entry.size = der.length;
+                            entry.lastUsed = Files.getLastModifiedTime(file).toMillis();
+                        }
+                    }
+                } catch (IOException | GeneralSecurityException ex) {
+                    logger.log(Level.WARNING, "Deleting unreadable CRL file " + file, ex);
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot read CRL cache directory " + directory, ex);
+        }
+        evict();
+        logger.log(Level.INFO, "CRL cache loaded: {0}", getStatistics());
+    }
+
+    /**
+     * Drops the least recently used distribution points until the CRLs fit in
+     * maxBytes and at most maxEntries are tracked
+     */
+    private void evict() {
+        long total = 0L;
+        for (Entry entry : entries.values()) {
+            total += entry.size;
+        }
+        int count = entries.size();
+        if (total <= maxBytes && count <= maxEntries) {
+            return;
+        }
+        List<Entry> lru = new ArrayList<>(entries.values());
+        lru.sort(Comparator.comparingLong(e -> e.lastUsed));
+        for (Entry entry : lru) {
+            if (total <= maxBytes && count <= maxEntries) {
+                break;
+            }
+            //  an entry without a CRL only counts against maxEntries
+            if (entry.size == 0 && count <= maxEntries) {
+                continue;
+            }
+            total -= entry.size;
+            count--;
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.url);
+        if (entry.size > 0) {
+            try {
+                Files.deleteIfExists(file(entry.url));
+            } catch (IOException | GeneralSecurityException ex) {
+                logger.log(Level.WARNING, "Cannot delete CRL " + entry.url, ex);
+            }
+        }
+    }
+
+    /**
+     * @return the http(s) URIs of the CRL distribution points of the
+     * certificate
+     */
+    static List<String> distributionPoints(X509Certificate certificate) {
+        List<String> urls = new ArrayList<>();
+        byte[] extension = certificate.getExtensionValue(Extension.cRLDistributionPoints.getId());
+        if (extension == null) {
+            return urls;
+        }
+        try {
+            CRLDistPoint crldp = CRLDistPoint.getInstance(
+                    ASN1Primitive.fromByteArray(ASN1OctetString.getInstance(extension).getOctets()));
+            for (DistributionPoint dp : crldp.getDistributionPoints()) {
+                DistributionPointName name = dp.getDistributionPoint();
+                if (name == null || name.getType() != DistributionPointName.FULL_NAME) {
+                    continue;
+                }
+                for (GeneralName gn : GeneralNames.getInstance(name.getName()).getNames()) {
+                    if (gn.getTagNo() == GeneralName.uniformResourceIdentifier) {
+                        String url = DERIA5String.getInstance(gn.getName()).getString();
+                        if (url.startsWith("http://") || url.startsWith("https://")) {
+                            urls.add(url);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.WARNING, "Invalid CRL distribution points in " + certificate.getSubjectX500Principal(), ex);
+        }
+        return urls;
+    }
+}
@@ -48,6 +48,7 @@ import javax.xml.bind.annotation.XmlTransient;
 //    @NamedQuery(name = "FidoKeys.findBySidDidFkid", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.sid = :sid and f.fidoKeysPK.did = :did and f.fidoKeysPK.fkid = :fkid"),
     @NamedQuery(name = "FidoKeys.findBySidDidFkid", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.sid = :sid and f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username and f.fidoKeysPK.fkid = :fkid"),
     @NamedQuery(name = "FidoKeys.findByUsername", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username"),
+    @NamedQuery(name = "FidoKeys.findByUsernames", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username IN :usernames"),
     @NamedQuery(name = "FidoKeys.findByFkid", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.fkid = :fkid"),
     @NamedQuery(name = "FidoKeys.findByKeyhandle", query = "SELECT f FROM FidoKeys f WHERE f.keyhandle = :keyhandle"),
     @NamedQuery(name = "FidoKeys.findByAppid", query = "SELECT f FROM FidoKeys f WHERE f.appid = :appid"),
@@ -69,7 +70,16 @@ import javax.xml.bind.annotation.XmlTransient;
 //    @NamedQuery(name = "FidoKeys.maxpk", query = "SELECT max(f.fidoKeysPK.fkid) FROM FidoKeys f where f.fidoKeysPK.sid = :sid and f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username"),
     @NamedQuery(name = "FidoKeys.maxpk", query = "SELECT max(f.fidoKeysPK.fkid) FROM FidoKeys f where f.fidoKeysPK.sid = :sid"),
     @NamedQuery(name = "FidoKeys.findNewestKeyByUsernameStatus", query = "SELECT f FROM FidoKeys f where f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username and f.status = :status ORDER BY f.createDate DESC"),
-    @NamedQuery(name = "FidoKeys.findByUsernameKH", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username and f.keyhandle = :keyhandle")})
+    @NamedQuery(name = "FidoKeys.findByUsernameKH", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username and f.keyhandle = :keyhandle"),
+    @NamedQuery(name = "FidoKeys.findArchivableInactive", query = "SELECT f FROM FidoKeys f WHERE f.status = :inactive and f.modifyDate < :inactivebefore"),
+    @NamedQuery(name = "FidoKeys.findArchivableUnused", query = "SELECT f FROM FidoKeys f WHERE f.status IN :statuses and (f.modifyDate < :unusedbefore or (f.modifyDate IS NULL and f.createDate < :unusedbefore))"),
+    @NamedQuery(name = "FidoKeys.usernamesAfter", query = "SELECT DISTINCT f.fidoKeysPK.username FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username > :username ORDER BY f.fidoKeysPK.username"),
+    @NamedQuery(name = "FidoKeys.scanAfter", query = "SELECT f FROM FidoKeys f WHERE (f.fidoKeysPK.sid = :sid and f.fidoKeysPK.fkid > :fkid) or f.fidoKeysPK.sid > :sid ORDER BY f.fidoKeysPK.sid, f.fidoKeysPK.fkid"),
+    @NamedQuery(name = "FidoKeys.findByAaguidStatusAfter", query = "SELECT f FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.aaguid = :aaguid and f.status = :status and ((f.fidoKeysPK.sid = :sid and f.fidoKeysPK.fkid > :fkid) or f.fidoKeysPK.sid > :sid) ORDER BY f.fidoKeysPK.sid, f.fidoKeysPK.fkid"),
+    @NamedQuery(name = "FidoKeys.countByAaguidStatus", query = "SELECT COUNT(f) FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.aaguid = :aaguid and f.status = :status"),
+    @NamedQuery(name = "FidoKeys.findByAttestationCertificatesStatusAfter", query = "SELECT f FROM FidoKeys f WHERE f.attsid = :attsid and f.attdid = :did and f.attcid IN :attcids and f.fidoKeysPK.did = :did and f.status = :status and ((f.fidoKeysPK.sid = :sid and f.fidoKeysPK.fkid > :fkid) or f.fidoKeysPK.sid > :sid) ORDER BY f.fidoKeysPK.sid, f.fidoKeysPK.fkid"),
+    @NamedQuery(name = "FidoKeys.countByAttestationCertificatesStatus", query = "SELECT COUNT(f) FROM FidoKeys f WHERE f.attsid = :attsid and f.attdid = :did and f.attcid IN :attcids and f.fidoKeysPK.did = :did and f.status = :status"),
+    @NamedQuery(name = "FidoKeys.usernamesWithStatus", query = "SELECT DISTINCT f.fidoKeysPK.username FROM FidoKeys f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username IN :usernames and f.status = :status")})
 public class FidoKeys implements Serializable {
 
     private static final long serialVersionUID = 1L;
@@ -170,6 +180,39 @@ public class FidoKeys implements Serializable {
         this.fidoKeysPK = new FidoKeysPK(sid, did, username, fkid);
     }
 
+    /**
+     * A key restored from FIDO_KEYS_ARCHIVE, columns as stored; the key handle
+     * is not encrypted again as setKeyhandle would
+     *
+     * @param archived - the archived row
+     */
+    public FidoKeys(FidoKeysArchive archived) {
+        FidoKeysPK pk = archived.getFidoKeysPK();
+        this.fidoKeysPK = new FidoKeysPK(pk.getSid(), pk.getDid(), pk.getUsername(), pk.getFkid());
+        this.userid = archived.getUserid();
+        this.keyhandle = archived.getKeyhandle();
+        this.appid = archived.getAppid();
+        this.publickey = archived.getPublickey();
+        this.khdigest = archived.getKhdigest();
+        this.khdigestType = archived.getKhdigestType();
+        this.transports = archived.getTransports();
+        this.attsid = archived.getAttsid();
+        this.attdid = archived.getAttdid();
+        this.attcid = archived.getAttcid();
+        this.counter = archived.getCounter();
+        this.fidoVersion = archived.getFidoVersion();
+        this.fidoProtocol = archived.getFidoProtocol();
+        this.aaguid = archived.getAaguid();
+        this.registrationSettings = archived.getRegistrationSettings();
+        this.registrationSettingsVersion = archived.getRegistrationSettingsVersion();
+        this.createDate = archived.getCreateDate();
+        this.createLocation = archived.getCreateLocation();
+        this.modifyDate = archived.getModifyDate();
+        this.modifyLocation = archived.getModifyLocation();
+        this.status = archived.getStatus();
+        this.signature = archived.getSignature();
+    }
+
     public FidoKeysPK getFidoKeysPK() {
         return fidoKeysPK;
     }
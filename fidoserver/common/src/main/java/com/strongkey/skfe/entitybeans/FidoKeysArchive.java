@@ -0,0 +1,274 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfe.entitybeans;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ * A FIDO_KEYS row moved out of the hot table by the archiver. The columns
+ * are copied verbatim, signature included, so an archived key verifies (or
+ * fails to) exactly as it did in FIDO_KEYS; see FidoKeys(FidoKeysArchive).
+ */
+@Entity
+@Table(name = "fido_keys_archive")
+@NamedQueries({
+    @NamedQuery(name = "FidoKeysArchive.findByUsername", query = "SELECT f FROM FidoKeysArchive f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username"),
+    @NamedQuery(name = "FidoKeysArchive.findByUsernames", query = "SELECT f FROM FidoKeysArchive f WHERE f.fidoKeysPK.did = :did and f.fidoKeysPK.username IN :usernames"),
+    @NamedQuery(name = "FidoKeysArchive.findBySidDidFkid", query = "SELECT f FROM FidoKeysArchive f WHERE f.fidoKeysPK.sid = :sid and f.fidoKeysPK.did = :did and f.fidoKeysPK.username = :username and f.fidoKeysPK.fkid = :fkid"),
+    @NamedQuery(name = "FidoKeysArchive.maxpk", query = "SELECT max(f.fidoKeysPK.fkid) FROM FidoKeysArchive f where f.fidoKeysPK.sid = :sid")})
+public class FidoKeysArchive implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    @EmbeddedId
+    protected FidoKeysPK fidoKeysPK;
+    @Size(max = 128)
+    @Column(name = "userid")
+    private String userid;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 512)
+    @Column(name = "keyhandle")
+    private String keyhandle;
+    @Size(max = 512)
+    @Column(name = "appid")
+    private String appid;
+    @Size(max = 512)
+    @Column(name = "publickey")
+    private String publickey;
+    @Size(max = 512)
+    @Column(name = "khdigest")
+    private String khdigest;
+    @Size(max = 7)
+    @Column(name = "khdigest_type")
+    private String khdigestType;
+    @Column(name = "transports")
+    private Short transports;
+    @Column(name = "attsid")
+    private Short attsid;
+    @Column(name = "attdid")
+    private Short attdid;
+    @Column(name = "attcid")
+    private Integer attcid;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "counter")
+    private int counter;
+    @Size(max = 45)
+    @Column(name = "fido_version")
+    private String fidoVersion;
+    @Size(max = 7)
+    @Column(name = "fido_protocol")
+    private String fidoProtocol;
+    @Size(max = 36)
+    @Column(name = "aaguid")
+    private String aaguid;
+    @Lob
+    @Size(max = 2147483647)
+    @Column(name = "registration_settings")
+    private String registrationSettings;
+    @Column(name = "registration_settings_version")
+    private Integer registrationSettingsVersion;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "create_date")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date createDate;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 256)
+    @Column(name = "create_location")
+    private String createLocation;
+    @Column(name = "modify_date")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date modifyDate;
+    @Size(max = 256)
+    @Column(name = "modify_location")
+    private String modifyLocation;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 8)
+    @Column(name = "status")
+    private String status;
+    @Size(max = 2048)
+    @Column(name = "signature")
+    private String signature;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "archive_date")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date archiveDate;
+
+    public FidoKeysArchive() {
+    }
+
+    /**
+     * @param fk - the key being archived; the key handle is copied as stored,
+     * not through FidoKeys.setKeyhandle, so it is not encrypted again
+     * @param archiveDate - when it was archived
+     */
+    public FidoKeysArchive(FidoKeys fk, Date archiveDate) {
+        FidoKeysPK pk = fk.getFidoKeysPK();
+        this.fidoKeysPK = new FidoKeysPK(pk.getSid(), pk.getDid(), pk.getUsername(), pk.getFkid());
+        this.userid = fk.getUserid();
+        this.keyhandle = fk.getKeyhandle();
+        this.appid = fk.getAppid();
+        this.publickey = fk.getPublickey();
+        this.khdigest = fk.getKhdigest();
+        this.khdigestType = fk.getKhdigestType();
+        this.transports = fk.getTransports();
+        this.attsid = fk.getAttsid();
+        this.attdid = fk.getAttdid();
+        this.attcid = fk.getAttcid();
+        this.counter = fk.getCounter();
+        this.fidoVersion = fk.getFidoVersion();
+        this.fidoProtocol = fk.getFidoProtocol();
+        this.aaguid = fk.getAaguid();
+        this.registrationSettings = fk.getRegistrationSettings();
+        this.registrationSettingsVersion = fk.getRegistrationSettingsVersion();
+        this.createDate = fk.getCreateDate();
+        this.createLocation = fk.getCreateLocation();
+        this.modifyDate = fk.getModifyDate();
+        this.modifyLocation = fk.getModifyLocation();
+        this.status = fk.getStatus();
+        this.signature = fk.getSignature();
+        this.archiveDate = archiveDate;
+    }
+
+    public FidoKeysPK getFidoKeysPK() {
+        return fidoKeysPK;
+    }
+
+    public String getUserid() {
+        return userid;
+    }
+
+    public String getKeyhandle() {
+        return keyhandle;
+    }
+
+    public String getAppid() {
+        return appid;
+    }
+
+    public String getPublickey() {
+        return publickey;
+    }
+
+    public String getKhdigest() {
+        return khdigest;
+    }
+
+    public String getKhdigestType() {
+        return khdigestType;
+    }
+
+    public Short getTransports() {
+        return transports;
+    }
+
+    public Short getAttsid() {
+        return attsid;
+    }
+
+    public Short getAttdid() {
+        return attdid;
+    }
+
+    public Integer getAttcid() {
+        return attcid;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public String getFidoVersion() {
+        return fidoVersion;
+    }
+
+    public String getFidoProtocol() {
+        return fidoProtocol;
+    }
+
+    public String getAaguid() {
+        return aaguid;
+    }
+
+    public String getRegistrationSettings() {
+        return registrationSettings;
+    }
+
+    public Integer getRegistrationSettingsVersion() {
+        return registrationSettingsVersion;
+    }
+
+    public Date getCreateDate() {
+        return createDate;
+    }
+
+    public String getCreateLocation() {
+        return createLocation;
+    }
+
+    public Date getModifyDate() {
+        return modifyDate;
+    }
+
+    public String getModifyLocation() {
+        return modifyLocation;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getSignature() {
+        return signature;
+    }
+
+    public Date getArchiveDate() {
+        return archiveDate;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (fidoKeysPK != null ? fidoKeysPK.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof FidoKeysArchive)) {
+            return false;
+        }
+        FidoKeysArchive other = (FidoKeysArchive) object;
+        if ((this.fidoKeysPK == null && other.fidoKeysPK != null) || (this.fidoKeysPK != null && !this.fidoKeysPK.equals(other.fidoKeysPK))) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "com.strongauth.skce.entitybeans.FidoKeysArchive[ fidoKeysPK=" + fidoKeysPK + " ]";
+    }
+}
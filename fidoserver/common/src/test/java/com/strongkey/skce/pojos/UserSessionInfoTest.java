@@ -0,0 +1,81 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skce.pojos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import org.junit.Test;
+
+public class UserSessionInfoTest {
+
+    private static final String[] VALUES = {
+        "",
+        "johndoe",
+        "john.doe@example.com",
+        "ab=c",
+        "=abc",
+        "a===",
+        "abc=",
+        "ab==",
+        "abcd",
+        "abc",
+        "ab",
+        "a",
+        "QUJDRA==",
+        "QUJDRA",
+        "QUJDRB==",
+        "QUJDRB",
+        "q83v_-8",
+        "+/+/",
+        "dXNlcg==dXNlcg==",
+        "ユーザー"
+    };
+
+    @Test
+    public void packedValuesRoundTrip() {
+        for (String value : VALUES) {
+            UserSessionInfo session = new UserSessionInfo(value, value, "appid", "reg", value, value);
+            session.setUserId(value);
+            session.setDisplayName(value);
+            session.setUserIcon(value);
+            assertEquals(value, session.getUsername());
+            assertEquals(value, session.getNonce());
+            assertEquals(value, session.getUserPublicKey());
+            assertEquals(value, session.getSessionid());
+            assertEquals(value, session.getUserId());
+            assertEquals(value, session.getDisplayName());
+            assertEquals(value, session.getUserIcon());
+        }
+    }
+
+    @Test
+    public void serializedSessionRoundTrip() throws IOException {
+        for (String value : VALUES) {
+            UserSessionInfo session = new UserSessionInfo(value, value, "appid", "reg", value, value);
+            session.setUserId(value);
+            session.setPolicyMapKey("1-1-1");
+            UserSessionInfo copy = UserSessionInfo.fromBytes(session.toBytes());
+            assertEquals(value, copy.getUsername());
+            assertEquals(value, copy.getNonce());
+            assertEquals(value, copy.getUserPublicKey());
+            assertEquals(value, copy.getSessionid());
+            assertEquals(value, copy.getUserId());
+            assertEquals("1-1-1", copy.getPolicyMapKey());
+        }
+    }
+
+    @Test
+    public void nullValuesRoundTrip() throws IOException {
+        UserSessionInfo copy = UserSessionInfo.fromBytes(new UserSessionInfo(null, null, null, null, null, null).toBytes());
+        assertNull(copy.getUsername());
+        assertNull(copy.getNonce());
+        assertNull(copy.getUserId());
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skce.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertPath;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevocationCacheTest {
+
+    private static final long HOUR = 3600L * 1000L;
+    private static final X500Principal ISSUER = new X500Principal("CN=Test CA");
+
+    private HttpServer server;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private volatile byte[] served;
+
+    private Path directory;
+    private RevocationCache cache;
+    private KeyPair keys;
+    private CertPath path;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ca.crl", exchange -> {
+            downloads.incrementAndGet();
+            byte[] body = served;
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        keys = generator.generateKeyPair();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl";
+        path = CertificateFactory.getInstance("X.509").generateCertPath(Collections.singletonList(certificate(url)));
+
+        directory = Files.createTempDirectory("crlcache");
+        cache = new RevocationCache();
+        cache.start(directory, 1024 * 1024, 100, 5000, 3600, 3, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void currentCrlIsDownloadedOnce() throws Exception {
+        long now = System.currentTimeMillis();
+        served = crl(now - HOUR, now + HOUR);
+
+        assertEquals(1, cache.getCRLs(path).size());
+        assertEquals(1, cache.getCRLs(path).size());
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void expiredCrlIsDownloadedAgain() throws Exception {
+        long now = System.currentTimeMillis();
+        served = crl(now - 2 * HOUR, now - 1000L);
+        //  an expired CRL is no CRL
+        assertNull(cache.getCRLs(path));
+        assertEquals(1, downloads.get());
+
+        served = crl(now - 1000L, now + HOUR);
+        cache.refresh();
+        List<X509CRL> crls = cache.getCRLs(path);
+        assertNotNull(crls);
+        assertEquals(now + HOUR, crls.get(0).getNextUpdate().getTime(), 1000L);
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void crlExpiringOnTheRequestPathIsReplaced() throws Exception {
+        long now = System.currentTimeMillis();
+        served = crl(now - HOUR, now + 1500L);
+        assertNotNull(cache.getCRLs(path));
+
+        served = crl(now, now + HOUR);
+        Thread.sleep(2000L);
+        List<X509CRL> crls = cache.getCRLs(path);
+        assertNotNull(crls);
+        assertEquals(now + HOUR, crls.get(0).getNextUpdate().getTime(), 1000L);
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void refreshRenewsCrlsInTheLastTenthOfTheirValidity() throws Exception {
+        long now = System.currentTimeMillis();
+        served = crl(now - 10 * HOUR, now + HOUR / 2);
+        assertNotNull(cache.getCRLs(path));
+        served = crl(now, now + 10 * HOUR);
+
+        cache.refresh();
+        assertEquals(2, downloads.get());
+        assertEquals(now + 10 * HOUR, cache.getCRLs(path).get(0).getNextUpdate().getTime(), 1000L);
+
+        //  the new one is far from its nextUpdate
+        cache.refresh();
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void failedDistributionPointIsNotRetriedOnTheRequestPath() throws Exception {
+        served = null;
+        assertNull(cache.getCRLs(path));
+        assertNull(cache.getCRLs(path));
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void crlsOnDiskAreLoadedAfterARestart() throws Exception {
+        long now = System.currentTimeMillis();
+        served = crl(now - HOUR, now + 10 * HOUR);
+        assertNotNull(cache.getCRLs(path));
+
+        RevocationCache restarted = new RevocationCache();
+        restarted.start(directory, 1024 * 1024, 100, 5000, 3600, 3, false);
+        restarted.refresh();
+        assertNotNull(restarted.getCRLs(path));
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    public void failingDistributionPointIsForgotten() throws Exception {
+        served = null;
+        assertNull(cache.getCRLs(path));
+        cache.refresh();
+        assertTrue(cache.getStatistics().startsWith("distribution points=1 "));
+        //  third failure in a row
+        cache.refresh();
+        assertTrue(cache.getStatistics().startsWith("distribution points=0 "));
+        assertEquals(3, downloads.get());
+    }
+
+    @Test
+    public void failedDistributionPointsCountAgainstTheCap() throws Exception {
+        served = null;
+        RevocationCache small = new RevocationCache();
+        small.start(directory, 1024 * 1024, 2, 5000, 3600, 3, false);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ca.crl";
+        for (int i = 0; i < 5; i++) {
+            assertNull(small.getCRLs(CertificateFactory.getInstance("X.509")
+                    .generateCertPath(Collections.singletonList(certificate(url + "?" + i)))));
+        }
+        assertTrue(small.getStatistics().startsWith("distribution points=2 "));
+    }
+
+    @Test
+    public void crlsAreNotFetchedForUntrustedChains() throws Exception {
+        long now = System.currentTimeMillis();
+        served = crl(now - HOUR, now + HOUR);
+        RevocationCache.getInstance().start(directory, 1024 * 1024, 100, 5000, 3600, 3, false);
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        TrustAnchor other = new TrustAnchor(ISSUER, generator.generateKeyPair().getPublic(), null);
+
+        assertFalse(PKIXChainValidation.pkixvalidate(path, Collections.singleton(other), true, false));
+        assertEquals(0, downloads.get());
+    }
+
+    private X509Certificate certificate(String url) throws Exception {
+        long now = System.currentTimeMillis();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(ISSUER, BigInteger.ONE,
+                new Date(now - HOUR), new Date(now + 24 * HOUR), new X500Principal("CN=Test"), keys.getPublic());
+        GeneralNames names = new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url));
+        builder.addExtension(Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[]{
+            new DistributionPoint(new DistributionPointName(names), null, null)}));
+        byte[] der = builder.build(signer()).getEncoded();
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der));
+    }
+
+    private byte[] crl(long thisUpdate, long nextUpdate) throws Exception {
+        JcaX509v2CRLBuilder builder = new JcaX509v2CRLBuilder(ISSUER, new Date(thisUpdate));
+        builder.setNextUpdate(new Date(nextUpdate));
+        return builder.build(signer()).getEncoded();
+    }
+
+    private ContentSigner signer() throws Exception {
+        return new JcaContentSignerBuilder("SHA256withECDSA").build(keys.getPrivate());
+    }
+}
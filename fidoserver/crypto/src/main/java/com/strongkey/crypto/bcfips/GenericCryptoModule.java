@@ -14,10 +14,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
@@ -29,9 +31,18 @@ import java.security.SignatureException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.crypto.CryptoServicesRegistrar;
 import org.bouncycastle.jcajce.provider.BouncyCastleFipsProvider;
@@ -56,6 +67,18 @@ public class GenericCryptoModule {
     private final SecureRandom FIPS_DRBG = cryptoCommon.getSecureRandom();
     private final Provider BC_FIPS_PROVIDER = Security.getProvider("BCFIPS");
 
+    /**
+     * Secret keys used to seal or MAC data, keyed by their alias in the
+     * keystore, so the keystore is only opened the first time an alias is used
+     */
+    private final Map<String, SecretKey> secretkeys = new ConcurrentHashMap<>();
+
+    /**
+     * Length in bytes of the IV and in bits of the tag used when sealing data
+     */
+    private static final int SEAL_IV_LENGTH = 12;
+    private static final int SEAL_TAG_LENGTH = 128;
+
     /**
      * Constructor for the class.
      *
@@ -149,6 +172,56 @@ public class GenericCryptoModule {
         return verified;
     }
 
+    /**
+     * Computes a MAC over a database row with a secret key from the signing
+     * keystore. Cheaper than signDBRow, but only the holders of the key can
+     * verify it, so it is only suitable when the signer and the verifier are
+     * the same party.
+     *
+     * @param password - Password of the signing keystore
+     * @param alias - Alias of the secret key in the signing keystore
+     * @param algorithm - MAC algorithm, e.g. HmacSHA256
+     * @param input - The canonical encoding of the row
+     * @return String containing the base64 encoded MAC
+     * @throws CryptoException
+     */
+    public String macDBRow(String password, String alias, String algorithm, String input) throws CryptoException {
+        SecretKey key = getSecretKey(password, alias);
+        try {
+            Mac mac = Mac.getInstance(algorithm, BC_FIPS_PROVIDER);
+            mac.init(key);
+            return Base64.toBase64String(mac.doFinal(input.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | InvalidKeyException | UnsupportedEncodingException ex) {
+            cryptoCommon.logp(Level.SEVERE, classname, "macDBRow", "CRYPTO-ERR-1000", ex.toString());
+            throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-1000", ex.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Verifies a MAC computed by macDBRow, in constant time
+     *
+     * @param password - Password of the signing keystore
+     * @param alias - Alias of the secret key in the signing keystore
+     * @param algorithm - MAC algorithm the row was MACed with
+     * @param input - The canonical encoding of the row
+     * @param currentMac - The base64 encoded MAC stored with the row
+     * @return Boolean true if the MAC matches
+     * @throws CryptoException
+     */
+    public Boolean verifyDBRowMac(String password, String alias, String algorithm, String input, String currentMac) throws CryptoException {
+        if (currentMac == null) {
+            return false;
+        }
+        byte[] expected;
+        try {
+            expected = Base64.decode(currentMac);
+        } catch (RuntimeException ex) {
+            cryptoCommon.logp(Level.FINE, classname, "verifyDBRowMac", "CRYPTO-MSG-1000", ex.toString());
+            return false;
+        }
+        return MessageDigest.isEqual(expected, Base64.decode(macDBRow(password, alias, algorithm, input)));
+    }
+
     private PrivateKey getXMLSignatureSigningKey(String signingdn) throws CryptoException {
         return cryptomodule.getXMLSignatureSigningKey("", signingdn);
     }
@@ -193,6 +266,109 @@ public class GenericCryptoModule {
         return Base64.toBase64String(cryptoCommon.calculateHmac(key, request.getBytes(), "HmacSHA256"));
     }
 
+    /**
+     * Encrypts and authenticates the input with a secret key from the signing
+     * keystore, using the configured encryption transform (AES/GCM).
+     *
+     * @param password - Password of the signing keystore
+     * @param alias - Alias of the secret key in the signing keystore
+     * @param input - The data to be sealed
+     * @param aad - Additional data authenticated along with the input, but
+     * not included in the output; may be null
+     * @return byte[] containing the IV followed by the ciphertext and tag
+     * @throws CryptoException
+     */
+    public byte[] sealData(String password, String alias, byte[] input, byte[] aad) throws CryptoException {
+        SecretKey key = getSecretKey(password, alias);
+        try {
+            byte[] iv = new byte[SEAL_IV_LENGTH];
+            FIPS_DRBG.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(cryptoCommon.getConfigurationProperty("crypto.cfg.property.enctransform"), BC_FIPS_PROVIDER);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(SEAL_TAG_LENGTH, iv), FIPS_DRBG);
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            byte[] ciphertext = cipher.doFinal(input);
+            byte[] sealed = new byte[iv.length + ciphertext.length];
+            System.arraycopy(iv, 0, sealed, 0, iv.length);
+            System.arraycopy(ciphertext, 0, sealed, iv.length, ciphertext.length);
+            return sealed;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
+            cryptoCommon.logp(Level.SEVERE, classname, "sealData", "CRYPTO-ERR-1000", ex.toString());
+            throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-1000", ex.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Reverses sealData: decrypts the input and verifies its tag.
+     *
+     * @param password - Password of the signing keystore
+     * @param alias - Alias of the secret key in the signing keystore
+     * @param input - The output of sealData
+     * @param aad - The additional data that was supplied to sealData
+     * @return byte[] containing the original data, or null if the input was
+     * not sealed with this key and additional data, or has been modified
+     * @throws CryptoException
+     */
+    public byte[] unsealData(String password, String alias, byte[] input, byte[] aad) throws CryptoException {
+        if (input == null || input.length <= SEAL_IV_LENGTH + SEAL_TAG_LENGTH / 8) {
+            return null;
+        }
+        SecretKey key = getSecretKey(password, alias);
+        try {
+            Cipher cipher = Cipher.getInstance(cryptoCommon.getConfigurationProperty("crypto.cfg.property.enctransform"), BC_FIPS_PROVIDER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(SEAL_TAG_LENGTH, Arrays.copyOf(input, SEAL_IV_LENGTH)));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            return cipher.doFinal(input, SEAL_IV_LENGTH, input.length - SEAL_IV_LENGTH);
+        } catch (BadPaddingException ex) {
+            cryptoCommon.logp(Level.FINE, classname, "unsealData", "CRYPTO-MSG-1000", ex.toString());
+            return null;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                | InvalidAlgorithmParameterException | IllegalBlockSizeException ex) {
+            cryptoCommon.logp(Level.SEVERE, classname, "unsealData", "CRYPTO-ERR-1000", ex.toString());
+            throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-1000", ex.getLocalizedMessage()));
+        }
+    }
+
+    private SecretKey getSecretKey(String password, String alias) throws CryptoException {
+        SecretKey key = secretkeys.get(alias);
+        if (key != null) {
+            return key;
+        }
+
+        // Keystore location
+        String keystoreurl;
+        try {
+            if ((keystoreurl = cryptoCommon.getConfigurationProperty("crypto.cfg.property.signing.keystorelocation")) == null) {
+                cryptoCommon.logp(Level.SEVERE, classname, "getSecretKey", "CRYPTO-ERR-2505", "crypto.cfg.property.signing.keystorelocation");
+                throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-2505", "crypto.cfg.property.signing.keystorelocation"));
+            }
+        } catch (java.util.MissingResourceException e) {
+            cryptoCommon.logp(Level.SEVERE, classname, "getSecretKey", "CRYPTO-ERR-2505", "crypto.cfg.property.signing.keystorelocation");
+            throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-2505", "crypto.cfg.property.signing.keystorelocation"));
+        }
+
+        Key sk;
+        try (FileInputStream fis = new FileInputStream(keystoreurl)) {
+            KeyStore keystore = KeyStore.getInstance("BCFKS", BC_FIPS_PROVIDER);
+            keystore.load(fis, password.toCharArray());
+            sk = keystore.getKey(alias, password.toCharArray());
+        } catch (KeyStoreException | UnrecoverableEntryException | CertificateException | NoSuchAlgorithmException | IOException ex) {
+            cryptoCommon.logp(Level.SEVERE, classname, "getSecretKey", "CRYPTO-ERR-2510", ex.getLocalizedMessage());
+            throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-2510", ex.getLocalizedMessage()));
+        }
+        if (!(sk instanceof SecretKey)) {
+            cryptoCommon.logp(Level.SEVERE, classname, "getSecretKey", "CRYPTO-ERR-2511", alias);
+            throw new CryptoException(cryptoCommon.getMessageWithParam("CRYPTO-ERR-2511", alias));
+        }
+        secretkeys.put(alias, (SecretKey) sk);
+        cryptoCommon.logp(Level.FINE, classname, "getSecretKey", "CRYPTO-MSG-2525", alias);
+        return (SecretKey) sk;
+    }
+
     public PrivateKey getXMLSignatureSigningKey(String secret, String signingdn) throws CryptoException {
         // Local variables
         X509Certificate cert;               // X509 Certificate object
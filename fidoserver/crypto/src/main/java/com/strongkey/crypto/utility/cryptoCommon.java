@@ -441,6 +441,17 @@ public final class cryptoCommon {
         return null;
     }
 
+    public static String calculateHash(byte[] contentToEncode, String hash) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(hash);
+            digest.update(contentToEncode);
+            return Base64.toBase64String(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            logp(Level.SEVERE, classname, "calculateHash", "CRYPTO-MSG-1000", printStackTrace(ex));
+        }
+        return null;
+    }
+
     /**
      * Prints the source-class and method names to the application logger upon
      * entering the class method
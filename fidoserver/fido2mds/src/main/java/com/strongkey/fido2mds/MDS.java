@@ -7,20 +7,26 @@
 
 package com.strongkey.fido2mds;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.strongkey.skce.pojos.MDSAuthenticator;
 import com.strongkey.skce.pojos.MDSClient;
 import com.strongkey.skce.pojos.MDSEndpoint;
+import com.strongkey.skce.pojos.MDSStatusListener;
 import com.strongkey.fido2mds.data.MemoryStorage;
 import com.strongkey.fido2mds.data.Storage;
-import com.strongkey.fido2mds.structures.AuthenticatorStatus;
 import com.strongkey.fido2mds.structures.EcdaaTrustAnchor;
 import com.strongkey.fido2mds.structures.MetadataStatement;
 import com.strongkey.fido2mds.structures.MetadataTOCPayloadEntry;
 import com.strongkey.fido2mds.structures.StatusReport;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -34,19 +40,105 @@ import javax.json.JsonObjectBuilder;
 
 public class MDS implements MDSClient {
 
-    private List<MDSService> mdsList;
+    private static final Logger logger = Logger.getLogger(MDS.class.getName());
+
+    /**
+     * Refreshes the endpoints that were started from a snapshot, off the
+     * startup path
+     */
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "MDS-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile List<MDSService> mdsList;
     private ObjectMapper objectMapper;
     private Storage storage;
     
     public MDS(List<MDSEndpoint> endpoints){
+        this(endpoints, null, 0L, 0L);
+    }
+
+    /**
+     * Endpoints with a local snapshot start from it and are refreshed in the
+     * background; the others are refreshed before the constructor returns,
+     * and their snapshot written.
+     *
+     * @param endpoints - MDS endpoints
+     * @param snapshotDirectory - directory of the local snapshots, null to
+     * keep none
+     * @param maxAgeSeconds - age of the data (time since the TOC was last
+     * downloaded) beyond which it is flagged as stale, 0 for no limit
+     * @param refreshSeconds - interval between background refreshes, 0 to
+     * only refresh at startup
+     */
+    public MDS(List<MDSEndpoint> endpoints, String snapshotDirectory, long maxAgeSeconds, long refreshSeconds){
+        this(endpoints, snapshotDirectory, maxAgeSeconds, refreshSeconds, null);
+    }
+
+    /**
+     * @param statusListener - told when a refresh finds that the status of
+     * an authenticator model changed since the data loaded before it (the
+     * snapshot, or the previous refresh), null for none
+     */
+    public MDS(List<MDSEndpoint> endpoints, String snapshotDirectory, long maxAgeSeconds, long refreshSeconds,
+            MDSStatusListener statusListener){
         storage = new MemoryStorage();
         objectMapper = new ObjectMapper();
         objectMapper.registerModule(new JavaTimeModule());
-        mdsList = endpoints.stream()
-                .map(x -> new MDSUrlService(x.getUrl(), x.getToken(), objectMapper, storage))
+        long maxAgeMillis = TimeUnit.SECONDS.toMillis(Math.max(0L, maxAgeSeconds));
+        Path snapshots = (snapshotDirectory == null) ? null : Paths.get(snapshotDirectory);
+        List<MDSUrlService> urlServices = endpoints.stream()
+                .map(x -> new MDSUrlService(x.getUrl(), x.getToken(), objectMapper, storage, snapshots))
                 .collect(Collectors.toList());
-        mdsList.add(new MDSResourceMetadataService(objectMapper));
-        refresh();
+        MDSService resources = new MDSResourceMetadataService(objectMapper);
+        urlServices.forEach(x -> x.setMaxAge(maxAgeMillis));
+        urlServices.forEach(x -> x.setStatusListener(statusListener));
+        mdsList = new ArrayList<>(urlServices);
+        mdsList.add(resources);
+
+        if (snapshots == null) {
+            refresh();
+        } else {
+            List<MDSService> initial = new ArrayList<>();
+            List<MDSService> background = new ArrayList<>();
+            for (MDSUrlService service : urlServices) {
+                (service.loadSnapshot() ? background : initial).add(service);
+            }
+            resources.refresh();
+            for (MDSService service : initial) {
+                service.refresh();
+            }
+            if (!background.isEmpty()) {
+                refresher.execute(() -> background.forEach(MDS::refreshQuietly));
+            }
+        }
+        if (refreshSeconds > 0) {
+            scheduleRefresh(new WeakReference<>(this), urlServices, Math.max(60L, refreshSeconds));
+        }
+    }
+
+    /**
+     * Schedules the next background refresh for as long as the MDS is in
+     * use, i.e. until its policy is replaced or deleted
+     */
+    private static void scheduleRefresh(WeakReference<MDS> mds, List<MDSUrlService> services, long seconds) {
+        refresher.schedule(() -> {
+            if (mds.get() == null) {
+                return;
+            }
+            services.forEach(MDS::refreshQuietly);
+            scheduleRefresh(mds, services, seconds);
+        }, seconds, TimeUnit.SECONDS);
+    }
+
+    private static void refreshQuietly(MDSService service) {
+        try {
+            service.refresh();
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "MDS refresh failed", ex);
+        }
     }
 
 //    private void initCommon() {
@@ -92,64 +184,77 @@ public class MDS implements MDSClient {
     }
 
     @Override
-    @Lock(LockType.READ)
     public JsonObject getTrustAnchors(String aaguid) {
         JsonObjectBuilder ret = Json.createObjectBuilder();
         JsonArrayBuilder errors = Json.createArrayBuilder();
-        JsonObjectBuilder error = Json.createObjectBuilder();
-        MetadataTOCPayloadEntry entry = null;
-        MetadataStatement st = null;
-        
-        for (MDSService service : mdsList) {
-            entry = service.getTOCEntry(aaguid);
-            if (entry!=null) {
-                for (StatusReport status : entry.getStatusReports()) {
-                    if (status.getStatus()==AuthenticatorStatus.ATTESTATION_KEY_COMPROMISE || 
-                            status.getStatus()==AuthenticatorStatus.REVOKED || 
-                            status.getStatus()==AuthenticatorStatus.USER_KEY_PHYSICAL_COMPROMISE ||
-                            status.getStatus()==AuthenticatorStatus.USER_KEY_REMOTE_COMPROMISE || 
-                            status.getStatus()==AuthenticatorStatus.USER_VERIFICATION_BYPASS 
-                            ) {
-                        error.add("message", "Authenticator status = "+status.getStatus().name());
-                        errors.add(error);
-                    }
-                }
+        MDSAuthenticator authenticator = getAuthenticator(aaguid);
+        if (authenticator == null) {
+            errors.add(Json.createObjectBuilder().add("message", "Could not find metadata for aaguid " + aaguid));
+        } else {
+            if (authenticator.isCompromised()) {
+                errors.add(Json.createObjectBuilder().add("message", "Authenticator status = " + authenticator.getCompromisedStatus()));
             }
+            if (!authenticator.getAttestationRootCertificates().isEmpty()) {
+                JsonArrayBuilder certs = Json.createArrayBuilder();
+                authenticator.getAttestationRootCertificates().forEach(certs::add);
+                ret.add("attestationRootCertificates", certs);
+            }
+            if (!authenticator.getEcdaaTrustAnchors().isEmpty()) {
+                JsonArrayBuilder trustAnchors = Json.createArrayBuilder();
+                authenticator.getEcdaaTrustAnchors().forEach(trustAnchors::add);
+                ret.add("ecdaaTrustAnchors", trustAnchors);
+            }
+            ret.add("stale", authenticator.isStale());
+            if (authenticator.isStale()) {
+                ret.add("age", TimeUnit.MILLISECONDS.toSeconds(authenticator.getAge()));
+            }
+        }
+        ret.add("errors", errors);
+        return ret.build();
+    }
 
-            st = service.getMetadataStatement(aaguid);
-            if (st != null) {
-                List<String> attestationRootCertificates = st.getAttestationRootCertificates();
-                if (attestationRootCertificates != null) {
-                    JsonArrayBuilder certs = Json.createArrayBuilder();
-                    for (String c : attestationRootCertificates) {
-                        certs.add(c);
-                        System.out.println("Certificate found : " + c);
-                    }
-
-                    ret.add("attestationRootCertificates", certs);
+    /**
+     * The first service with a metadata statement for the AAGUID wins,
+     * otherwise the first one with a TOC entry for it
+     */
+    @Override
+    public MDSAuthenticator getAuthenticator(String aaguid) {
+        MDSAuthenticator found = null;
+        for (MDSService service : mdsList) {
+            MDSIndex index = service.getIndex();
+            MDSAuthenticator authenticator = index.getByAaguid(aaguid);
+            if (authenticator != null) {
+                if (index.hasStatement(aaguid)) {
+                    return authenticator;
                 }
-
-                List<EcdaaTrustAnchor> ecdaaTrustAnchors = st.getEcdaaTrustAnchors();
-                if (ecdaaTrustAnchors != null) {
-                    JsonArrayBuilder trustAnchors = Json.createArrayBuilder();
-                    for (EcdaaTrustAnchor t : ecdaaTrustAnchors) {
-                        try {
-                            trustAnchors.add(objectMapper.writeValueAsString(t));
-                        } catch (JsonProcessingException ex) {
-                            Logger.getLogger(MDS.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                    }
-                    ret.add("ecdaaTrustAnchors", trustAnchors);
+                if (found == null) {
+                    found = authenticator;
                 }
-                break;
             }
         }
-        if (entry==null && st==null) {
-            error.add("message", "Could not find metadata for aaguid "+aaguid);
-            errors.add(error);
+        return found;
+    }
+
+    @Override
+    public MDSAuthenticator getAuthenticatorByAaid(String aaid) {
+        for (MDSService service : mdsList) {
+            MDSAuthenticator authenticator = service.getIndex().getByAaid(aaid);
+            if (authenticator != null) {
+                return authenticator;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public MDSAuthenticator getAuthenticatorByKeyIdentifier(String keyIdentifier) {
+        for (MDSService service : mdsList) {
+            MDSAuthenticator authenticator = service.getIndex().getByKeyIdentifier(keyIdentifier);
+            if (authenticator != null) {
+                return authenticator;
+            }
         }
-        ret.add("errors", errors);
-        return ret.build();
+        return null;
     }
     
     protected void doMain() {
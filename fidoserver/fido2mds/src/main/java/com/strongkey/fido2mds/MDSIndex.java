@@ -0,0 +1,234 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.fido2mds;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.strongkey.crypto.utility.cryptoCommon;
+import com.strongkey.fido2mds.structures.AuthenticatorStatus;
+import com.strongkey.fido2mds.structures.EcdaaTrustAnchor;
+import com.strongkey.fido2mds.structures.MetadataStatement;
+import com.strongkey.fido2mds.structures.MetadataTOCPayloadEntry;
+import com.strongkey.fido2mds.structures.StatusReport;
+import com.strongkey.skce.pojos.MDSAuthenticator;
+import java.security.cert.TrustAnchor;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The metadata of one MDSService as immutable MDSAuthenticator views,
+ * indexed by AAGUID, AAID and attestation certificate key identifier.
+ *
+ * An index is built once per refresh and published by swapping a volatile
+ * reference, so a lookup sees either the old or the new metadata, never a
+ * mix of both.
+ */
+final class MDSIndex {
+
+    private static final Logger logger = Logger.getLogger(MDSIndex.class.getName());
+
+    private static final Set<AuthenticatorStatus> COMPROMISED = EnumSet.of(
+            AuthenticatorStatus.ATTESTATION_KEY_COMPROMISE,
+            AuthenticatorStatus.REVOKED,
+            AuthenticatorStatus.USER_KEY_PHYSICAL_COMPROMISE,
+            AuthenticatorStatus.USER_KEY_REMOTE_COMPROMISE,
+            AuthenticatorStatus.USER_VERIFICATION_BYPASS);
+
+    static final MDSIndex EMPTY = new MDSIndex(Collections.emptyMap(), Collections.emptyMap(),
+            Collections.emptyMap(), Collections.emptySet());
+
+    private final Map<String, MDSAuthenticator> byAaguid;
+    private final Map<String, MDSAuthenticator> byAaid;
+    private final Map<String, MDSAuthenticator> byKeyIdentifier;
+    private final Set<String> withStatement;
+
+    private MDSIndex(Map<String, MDSAuthenticator> byAaguid, Map<String, MDSAuthenticator> byAaid,
+            Map<String, MDSAuthenticator> byKeyIdentifier, Set<String> withStatement) {
+        this.byAaguid = byAaguid;
+        this.byAaid = byAaid;
+        this.byKeyIdentifier = byKeyIdentifier;
+        this.withStatement = withStatement;
+    }
+
+    /**
+     * @return true if there is a metadata statement for the AAGUID, not
+     * only a TOC entry
+     */
+    boolean hasStatement(String aaguid) {
+        return aaguid != null && withStatement.contains(aaguid);
+    }
+
+    MDSAuthenticator getByAaguid(String aaguid) {
+        return (aaguid == null) ? null : byAaguid.get(aaguid);
+    }
+
+    MDSAuthenticator getByAaid(String aaid) {
+        return (aaid == null) ? null : byAaid.get(aaid);
+    }
+
+    MDSAuthenticator getByKeyIdentifier(String keyIdentifier) {
+        return (keyIdentifier == null) ? null : byKeyIdentifier.get(keyIdentifier.toLowerCase());
+    }
+
+    /**
+     * @param tocEntries - TOC entries, by key
+     * @param statements - metadata statements, by the same keys
+     * @param objectMapper - to write the ECDAA trust anchors as JSON
+     * @param verified - when the metadata was verified, 0 if never stale
+     * @param maxAgeMillis - age beyond which the metadata is stale
+     */
+    static MDSIndex build(Map<String, MetadataTOCPayloadEntry> tocEntries, Map<String, MetadataStatement> statements,
+            ObjectMapper objectMapper, long verified, long maxAgeMillis) {
+        Set<String> keys = new HashSet<>();
+        if (tocEntries != null) {
+            keys.addAll(tocEntries.keySet());
+        }
+        if (statements != null) {
+            keys.addAll(statements.keySet());
+        }
+
+        Map<String, MDSAuthenticator> byAaguid = new HashMap<>();
+        Map<String, MDSAuthenticator> byAaid = new HashMap<>();
+        Map<String, MDSAuthenticator> byKeyIdentifier = new HashMap<>();
+        Set<String> withStatement = new HashSet<>();
+        for (String key : keys) {
+            MetadataTOCPayloadEntry entry = (tocEntries == null) ? null : tocEntries.get(key);
+            MetadataStatement st = (statements == null) ? null : statements.get(key);
+            MDSAuthenticator authenticator = view(entry, st, objectMapper, verified, maxAgeMillis);
+            byAaguid.put(key, authenticator);
+            if (st != null) {
+                withStatement.add(key);
+            }
+            if (authenticator.getAaid() != null) {
+                byAaid.putIfAbsent(authenticator.getAaid(), authenticator);
+            }
+            for (String keyIdentifier : authenticator.getAttestationCertificateKeyIdentifiers()) {
+                byKeyIdentifier.putIfAbsent(keyIdentifier.toLowerCase(), authenticator);
+            }
+        }
+        return new MDSIndex(byAaguid, byAaid, byKeyIdentifier, withStatement);
+    }
+
+    /**
+     * @return the same index, its metadata verified at the given time
+     */
+    MDSIndex withVerified(long verified) {
+        Map<MDSAuthenticator, MDSAuthenticator> copies = new IdentityHashMap<>();
+        return new MDSIndex(copy(byAaguid, copies, verified), copy(byAaid, copies, verified),
+                copy(byKeyIdentifier, copies, verified), withStatement);
+    }
+
+    private static Map<String, MDSAuthenticator> copy(Map<String, MDSAuthenticator> map,
+            Map<MDSAuthenticator, MDSAuthenticator> copies, long verified) {
+        Map<String, MDSAuthenticator> result = new HashMap<>();
+        for (Map.Entry<String, MDSAuthenticator> e : map.entrySet()) {
+            result.put(e.getKey(), copies.computeIfAbsent(e.getValue(), a -> a.withVerified(verified)));
+        }
+        return result;
+    }
+
+    private static MDSAuthenticator view(MetadataTOCPayloadEntry entry, MetadataStatement st,
+            ObjectMapper objectMapper, long verified, long maxAgeMillis) {
+        String aaguid = null;
+        String aaid = null;
+        List<String> keyIdentifiers = new ArrayList<>();
+        String description = null;
+        List<String> rootCertificates = new ArrayList<>();
+        Set<TrustAnchor> roots = new HashSet<>();
+        List<String> ecdaaTrustAnchors = new ArrayList<>();
+
+        if (st != null) {
+            aaguid = (st.getAaguid() == null) ? null : st.getAaguid().getAAGUID();
+            aaid = (st.getAaid() == null) ? null : st.getAaid().getAAID();
+            if (st.getAttestationCertificateKeyIdentifiers() != null) {
+                keyIdentifiers.addAll(st.getAttestationCertificateKeyIdentifiers());
+            }
+            description = st.getDescription();
+            if (st.getAttestationRootCertificates() != null) {
+                for (String c : st.getAttestationRootCertificates()) {
+                    try {
+                        roots.add(new TrustAnchor(cryptoCommon.generateX509FromBytes(Base64.getMimeDecoder().decode(c)), null));
+                        rootCertificates.add(c);
+                    } catch (Exception ex) {
+                        logger.log(Level.WARNING, "Invalid attestation root certificate for {0}: {1}",
+                                new Object[]{aaguid, ex.getMessage()});
+                    }
+                }
+            }
+            if (st.getEcdaaTrustAnchors() != null) {
+                for (EcdaaTrustAnchor t : st.getEcdaaTrustAnchors()) {
+                    try {
+                        ecdaaTrustAnchors.add(objectMapper.writeValueAsString(t));
+                    } catch (JsonProcessingException ex) {
+                        logger.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+
+        String status = null;
+        String statusEffectiveDate = null;
+        String compromisedStatus = null;
+        if (entry != null) {
+            if (aaguid == null && entry.getAaguid() != null) {
+                aaguid = entry.getAaguid().getAAGUID();
+            }
+            if (aaid == null && entry.getAaid() != null) {
+                aaid = entry.getAaid().getAAID();
+            }
+            if (entry.getAttestationCertificateKeyIdentifiers() != null) {
+                for (String keyIdentifier : entry.getAttestationCertificateKeyIdentifiers()) {
+                    if (!keyIdentifiers.contains(keyIdentifier)) {
+                        keyIdentifiers.add(keyIdentifier);
+                    }
+                }
+            }
+            StatusReport latest = null;
+            StatusReport latestCompromised = null;
+            if (entry.getStatusReports() != null) {
+                for (StatusReport report : entry.getStatusReports()) {
+                    if (report.getStatus() == null) {
+                        continue;
+                    }
+                    if (COMPROMISED.contains(report.getStatus())
+                            && (latestCompromised == null || effectiveDate(report).compareTo(effectiveDate(latestCompromised)) >= 0)) {
+                        latestCompromised = report;
+                    }
+                    // Latest effective date wins, the last one listed on a tie
+                    if (latest == null || effectiveDate(report).compareTo(effectiveDate(latest)) >= 0) {
+                        latest = report;
+                    }
+                }
+            }
+            if (latest != null) {
+                status = latest.getStatus().name();
+                statusEffectiveDate = latest.getEffectiveDate();
+            }
+            if (latestCompromised != null) {
+                compromisedStatus = latestCompromised.getStatus().name();
+            }
+        }
+
+        return new MDSAuthenticator(aaguid, aaid, keyIdentifiers, description, status, statusEffectiveDate,
+                compromisedStatus, rootCertificates, roots, ecdaaTrustAnchors, verified, maxAgeMillis);
+    }
+
+    private static String effectiveDate(StatusReport report) {
+        return (report.getEffectiveDate() == null) ? "" : report.getEffectiveDate();
+    }
+}
@@ -76,6 +76,7 @@ class MDSResourceMetadataService extends MDSService {
             logger.log(Level.SEVERE, "Metadata Service exception: {0}", ex);
         } finally {
             metadataStatementMap = localMetadataStatementMap;
+            publish(objectMapper, 0L);
         }
     }
 
@@ -7,6 +7,8 @@
 
 package com.strongkey.fido2mds;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.strongkey.skce.pojos.MDSStatusListener;
 import com.strongkey.fido2mds.structures.MetadataStatement;
 import com.strongkey.fido2mds.structures.MetadataTOCPayloadEntry;
 import java.util.HashSet;
@@ -18,10 +20,47 @@ import java.util.Set;
  * @author dpatterson
  */
 public abstract class MDSService {
-    protected Map<String,MetadataTOCPayloadEntry> tocEntryMap;
-    protected Map<String,MetadataStatement> metadataStatementMap;
+    protected volatile Map<String,MetadataTOCPayloadEntry> tocEntryMap;
+    protected volatile Map<String,MetadataStatement> metadataStatementMap;
+
+    /**
+     * Views of the maps above, published after each refresh
+     */
+    protected volatile MDSIndex index = MDSIndex.EMPTY;
+    protected long maxAgeMillis = 0L;
+    protected MDSStatusListener statusListener;
 
     public abstract void refresh();
+
+    /**
+     * @param maxAgeMillis - age beyond which the metadata is stale, 0 for no
+     * limit
+     */
+    public void setMaxAge(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param statusListener - told of the status changes found by refresh,
+     * null for none
+     */
+    public void setStatusListener(MDSStatusListener statusListener) {
+        this.statusListener = statusListener;
+    }
+
+    MDSIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Builds the index of the current maps and publishes it
+     *
+     * @param verified - when the maps were verified against their source, 0
+     * if they cannot become stale
+     */
+    protected void publish(ObjectMapper objectMapper, long verified) {
+        index = MDSIndex.build(tocEntryMap, metadataStatementMap, objectMapper, verified, maxAgeMillis);
+    }
     
     public MetadataTOCPayloadEntry getTOCEntry(String key) {
         return tocEntryMap.get(key);   
@@ -10,19 +10,23 @@ package com.strongkey.fido2mds;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.strongkey.appliance.objects.JWT;
 import com.strongkey.crypto.utility.cryptoCommon;
+import com.strongkey.fido2mds.data.MDSSnapshot;
 import com.strongkey.fido2mds.data.Storage;
 import com.strongkey.fido2mds.jws.MDSJwtVerifier;
 import com.strongkey.fido2mds.structures.MetadataStatement;
 import com.strongkey.fido2mds.structures.MetadataTOC;
 import com.strongkey.fido2mds.structures.MetadataTOCPayload;
 import com.strongkey.fido2mds.structures.MetadataTOCPayloadEntry;
+import com.strongkey.skce.pojos.MDSStatusListener;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -31,9 +35,13 @@ import java.security.cert.X509Certificate;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.ResolverStyle;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.springframework.core.io.DefaultResourceLoader;
@@ -59,12 +67,33 @@ class MDSUrlService extends MDSService {
     private final MDSJwtVerifier jwtVerifier;
     private ObjectMapper objectMapper;
     private Storage storage;
+    private final Path snapshotFile;
+
+    /**
+     * When the data was last verified against the endpoint (or the snapshot
+     * was), and the serial number of its TOC
+     */
+    private volatile long verified = 0L;
+    private volatile BigInteger number;
+
+    /**
+     * Metadata statements currently loaded, as downloaded, by file name
+     */
+    private volatile Map<String,String> statementData = new HashMap<>();
 
     private static final String TOC_FILE = "mds_toc.ser";
     private static final String DEFAULT_FIDO_METADATA_SERVICE_ROOT_CERTIFICATE_CLASSPATH = "classpath:metadata/certs/FAKERootFAKE.crt";
     private static final String PRODUCTION_FIDO_METADATA_SERVICE_ROOT_CERTIFICATE_CLASSPATH = "classpath:metadata/certs/FIDOMetadataService.cer";
     
     public MDSUrlService(String url, String token, ObjectMapper objectMapper, Storage storage) {
+        this(url, token, objectMapper, storage, null);
+    }
+
+    /**
+     * @param snapshotDirectory - directory holding the local snapshots of the
+     * endpoints, null not to keep a snapshot
+     */
+    public MDSUrlService(String url, String token, ObjectMapper objectMapper, Storage storage, Path snapshotDirectory) {
         super();
         
         this.url = url;
@@ -80,6 +109,7 @@ class MDSUrlService extends MDSService {
             logger.log(Level.SEVERE, null, ex);
         }
         namespace = Base64.getUrlEncoder().withoutPadding().encodeToString(unique.getBytes());
+        snapshotFile = (snapshotDirectory == null) ? null : snapshotDirectory.resolve(namespace + MDSSnapshot.SUFFIX);
 
         HttpComponentsClientHttpRequestFactory httpComponentsClientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory();
         restTemplate = new RestTemplate(httpComponentsClientHttpRequestFactory);
@@ -96,13 +126,31 @@ class MDSUrlService extends MDSService {
     @Override
     public void refresh() {
         try{
-            MetadataTOC toc = retrieveMetadataTOC(false);
+            // With a snapshot, its age is the time since the TOC was last
+            // downloaded, so the TOC is downloaded on every refresh
+            boolean download = (snapshotFile != null);
+            MetadataTOC toc = retrieveMetadataTOC(download);
             LocalDate update = LocalDate.parse(toc.getPayload().getNextUpdate(), 
                     DateTimeFormatter.ofPattern("y-M-d").withResolverStyle(ResolverStyle.LENIENT));
             // TODO: Could make this happen sooner or more frequent
-            if (update.isEqual(LocalDate.now())||update.isBefore(LocalDate.now()))
+            if (!download && (update.isEqual(LocalDate.now())||update.isBefore(LocalDate.now())))
                 toc = retrieveMetadataTOC(true);
 
+            BigInteger no = toc.getPayload().getNo();
+            if (number != null && no != null && no.compareTo(number) < 0) {
+                logger.log(Level.WARNING, "Ignoring MDS TOC {0} from {1}, older than TOC {2} already loaded",
+                        new Object[]{no, url, number});
+                return;
+            }
+            // Same serial number, same content: only the verification time moves
+            if (number != null && no != null && no.equals(number) && tocEntryMap != null) {
+                logger.log(Level.FINE, "MDS TOC {0} from {1} unchanged", new Object[]{no, url});
+                verified = System.currentTimeMillis();
+                index = index.withVerified(verified);
+                saveSnapshot(statementData);
+                return;
+            }
+
             // TODO: Other algorithms will be needed
             String algo = toc.getJwt().getHeader().getString("alg", null);
             if ("ES256".compareTo(algo) != 0) {
@@ -118,33 +166,188 @@ class MDSUrlService extends MDSService {
                 return;
             }
 
+            TocDiff diff = diff(toc.getPayload().getEntries(), tocEntryMap, metadataStatementMap, statementData,
+                    (uri, entryHash, downloaded) -> retrieveMetadataStatement(uri, entryHash, digest, false, downloaded));
+
+            metadataStatementMap = diff.statements;
+            tocEntryMap = diff.entries;
+            statementData = diff.data;
+            number = no;
+            verified = System.currentTimeMillis();
+            publish(objectMapper, verified);
+            logger.log(Level.INFO, "MDS TOC {0} from {1}: {2} statements unchanged, {3} retrieved, {4} status changes",
+                    new Object[]{no, url, diff.unchanged, diff.retrieved, diff.statusChanges.size()});
+            saveSnapshot(diff.data);
+            notifyStatusChanges(diff.statusChanges);
+        }
+        catch(Exception ex){
+            logger.log(Level.SEVERE, "Metadata Service exception", ex);
+            // Keep serving the last verified data (e.g. a snapshot) if any
+            if (tocEntryMap == null || metadataStatementMap == null) {
+                metadataStatementMap = new HashMap<>();
+                tocEntryMap = new HashMap<>();
+            }
+        }
+    }
+
+    /**
+     * Retrieves a metadata statement whose TOC entry is new or changed
+     */
+    interface StatementSource {
+        /**
+         * @param downloaded - the statement, as downloaded, is added to it
+         * by file name
+         */
+        MetadataStatement retrieve(URI uri, String entryHash, Map<String,String> downloaded) throws Exception;
+    }
+
+    /**
+     * Outcome of the diff of a TOC against the data loaded
+     */
+    static final class TocDiff {
+        final Map<String,MetadataTOCPayloadEntry> entries = new HashMap<>();
+        final Map<String,MetadataStatement> statements = new HashMap<>();
+        final Map<String,String> data = new LinkedHashMap<>();
+        final List<String> statusChanges = new ArrayList<>();
+        int unchanged = 0;
+        int retrieved = 0;
+    }
+
+    /**
+     * Diffs the FIDO2 entries of a TOC against the data loaded: statements
+     * whose hash did not change are carried over as they are, the others
+     * are retrieved from source; the new TOC entries replace the old ones
+     * along with their status reports. Entries whose statement cannot be
+     * retrieved are left out.
+     *
+     * @param currentEntries - TOC entries loaded, by AAGUID, null if none
+     * @param currentStatements - statements loaded, by AAGUID, null if none
+     * @param currentData - statements loaded, as downloaded, by file name
+     * @return the entries, statements and raw statements to load
+     */
+    static TocDiff diff(List<MetadataTOCPayloadEntry> entries,
+            Map<String,MetadataTOCPayloadEntry> currentEntries,
+            Map<String,MetadataStatement> currentStatements,
+            Map<String,String> currentData, StatementSource source) {
+        TocDiff diff = new TocDiff();
+        for (MetadataTOCPayloadEntry entry : entries) {
+            if (entry.getAaguid() == null) {
+                // TODO: not a fido 2 entry...should we worry about uaf entries?
+                continue;
+            }
+            String aaguid = entry.getAaguid().getAAGUID();
+            MetadataTOCPayloadEntry previous = (currentEntries == null) ? null : currentEntries.get(aaguid);
+            MetadataStatement st = (currentStatements == null) ? null : currentStatements.get(aaguid);
+            try {
+                URI uri = new URI(entry.getUrl());
+                String filename = filenameFromURI(uri);
+                String data = currentData.get(filename);
+                if (previous != null && st != null && data != null && entry.getHash() != null
+                        && entry.getHash().equals(previous.getHash())) {
+                    diff.data.put(filename, data);
+                    diff.unchanged++;
+                } else {
+                    st = source.retrieve(uri, entry.getHash(), diff.data);
+                    diff.retrieved++;
+                }
+            } catch (Exception e) {
+                logger.severe("Error: " + e.getMessage());
+                continue;
+            }
+            if (previous != null && !Objects.equals(previous.getTimeOfLastStatusChange(), entry.getTimeOfLastStatusChange())) {
+                logger.log(Level.INFO, "MDS status of {0} changed on {1}",
+                        new Object[]{aaguid, entry.getTimeOfLastStatusChange()});
+                diff.statusChanges.add(aaguid);
+            }
+            diff.statements.put(aaguid, st);
+            diff.entries.put(aaguid, entry);
+        }
+        return diff;
+    }
+
+    private void notifyStatusChanges(List<String> aaguids) {
+        MDSStatusListener listener = statusListener;
+        if (listener == null) {
+            return;
+        }
+        for (String aaguid : aaguids) {
+            try {
+                listener.statusChanged(index.getByAaguid(aaguid));
+            } catch (RuntimeException ex) {
+                logger.log(Level.SEVERE, "MDS status change listener failed for " + aaguid, ex);
+            }
+        }
+    }
+
+    private long getAge() {
+        long v = verified;
+        return (v == 0L) ? Long.MAX_VALUE : System.currentTimeMillis() - v;
+    }
+
+    /**
+     * Loads the TOC and metadata statements of the local snapshot of this
+     * endpoint, if there is one. The TOC signature and the hash of each
+     * statement are verified again, but not the revocation status of the TOC
+     * signing chain, which needs the network and was checked when the TOC was
+     * downloaded.
+     *
+     * @return true if a snapshot was loaded
+     */
+    public boolean loadSnapshot() {
+        if (snapshotFile == null) {
+            return false;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            MDSSnapshot snapshot = MDSSnapshot.load(snapshotFile);
+            if (snapshot == null) {
+                return false;
+            }
+            JWT jwt = new JWT(snapshot.getToc());
+            jwtVerifier.verify(jwt, false);
+            MetadataTOCPayload payload = objectMapper.readValue(jwt.getBody().toString(), MetadataTOCPayload.class);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
             Map<String,MetadataTOCPayloadEntry> localTocEntryMap = new HashMap<>();
             Map<String,MetadataStatement> localMetadataStatementMap = new HashMap<>();
-
-            for (MetadataTOCPayloadEntry entry : toc.getPayload().getEntries()) {
+            Map<String,String> loaded = new LinkedHashMap<>();
+            for (MetadataTOCPayloadEntry entry : payload.getEntries()) {
                 if (entry.getAaguid() == null) {
-                    // TODO: not a fido 2 entry...should we worry about uaf entries?
                     continue;
                 }
-                MetadataStatement st;
-                try {
-                    st = retrieveMetadataStatement(new URI(entry.getUrl()), entry.getHash(), digest, false);
-                } catch (Exception e) {
-                    logger.severe("Error: " + e.getMessage());
+                String filename = filenameFromURI(new URI(entry.getUrl()));
+                String data = snapshot.getStatements().get(filename);
+                if (data == null || !hash(digest, data).equals(entry.getHash())) {
                     continue;
                 }
-                logger.fine(entry.getAaguid()+" "+entry.getStatusReports().get(0).getStatus().name());
-                localMetadataStatementMap.put(entry.getAaguid().getAAGUID(), st);
+                localMetadataStatementMap.put(entry.getAaguid().getAAGUID(), parseMetadataStatement(data));
                 localTocEntryMap.put(entry.getAaguid().getAAGUID(), entry);
+                loaded.put(filename, data);
             }
 
             metadataStatementMap = localMetadataStatementMap;
             tocEntryMap = localTocEntryMap;
+            statementData = loaded;
+            number = snapshot.getNumber();
+            verified = snapshot.getCreated();
+            publish(objectMapper, verified);
+            logger.log(Level.INFO, "Loaded MDS snapshot of {0}: TOC {1}, {2} entries, {3} seconds old, in {4}ms",
+                    new Object[]{url, number, localTocEntryMap.size(), getAge() / 1000L, System.currentTimeMillis() - start});
+            return true;
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Could not load MDS snapshot " + snapshotFile, ex);
+            return false;
         }
-        catch(Exception ex){
-            logger.log(Level.SEVERE, "Metadata Service exception", ex);
-            metadataStatementMap = new HashMap<>();
-            tocEntryMap = new HashMap<>();
+    }
+
+    private void saveSnapshot(Map<String,String> statements) {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            new MDSSnapshot(verified, number, storage.loadData(namespace, TOC_FILE), statements).save(snapshotFile);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not save MDS snapshot " + snapshotFile, ex);
         }
     }
     
@@ -195,12 +398,17 @@ class MDSUrlService extends MDSService {
         return toc;
     }
 
-    private MetadataStatement retrieveMetadataStatement(URI uri, String entryHash, MessageDigest digest, boolean forceUpdate) throws Exception {
+    private MetadataStatement retrieveMetadataStatement(URI uri, String entryHash, MessageDigest digest,
+            boolean forceUpdate, Map<String,String> downloaded) throws Exception {
         String filename = filenameFromURI(uri);
         String data = null;
 
         if (!forceUpdate) {
             data = storage.loadData(namespace, filename);
+            // The statement may have changed since it was stored
+            if (data != null && !hash(digest, data).equals(entryHash)) {
+                data = null;
+            }
         }
 
         if (data == null) {
@@ -216,14 +424,18 @@ class MDSUrlService extends MDSService {
                 throw new Exception("Null hash");
             }
 
-            String hash = Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest(data.getBytes()));
+            String hash = hash(digest, data);
             if (!hash.equals(entryHash)) {
                 logger.log(Level.SEVERE, "Bad hash. {0} != {1}  Skipping ", new Object[]{hash, entryHash});
                 throw new Exception("Bad hash");
             }
             storage.saveData(namespace, filename, data);
         }
+        downloaded.put(filename, data);
+        return parseMetadataStatement(data);
+    }
 
+    private MetadataStatement parseMetadataStatement(String data) throws IOException {
         String decoded;
         try {
             decoded = new String(Base64Utils.decodeFromUrlSafeString(data), StandardCharsets.UTF_8);
@@ -232,10 +444,13 @@ class MDSUrlService extends MDSService {
             decoded = data;
         }
         return objectMapper.readValue(decoded, MetadataStatement.class);
+    }
 
+    private static String hash(MessageDigest digest, String data) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest(data.getBytes()));
     }
 
-    private String filenameFromURI(URI uri) {
+    private static String filenameFromURI(URI uri) {
         String path = uri.getPath();
         int index = path.lastIndexOf("/");
         if (index > -1) {
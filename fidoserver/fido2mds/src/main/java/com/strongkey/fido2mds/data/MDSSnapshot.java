@@ -0,0 +1,198 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.fido2mds.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A verified metadata TOC and the metadata statements it lists, as they were
+ * downloaded from one MDS endpoint, persisted so that a node can start from
+ * it without the network.
+ *
+ * File layout (big-endian):
+ *
+ * magic (int) | format version (short) | created, epoch millis (long) |
+ * TOC number (int length + bytes) | TOC JWT (int length + UTF-8) |
+ * statement count (int) | { file name (int length + UTF-8) |
+ * statement as downloaded (int length + UTF-8) } | SHA-256 of all of the above
+ *
+ * Files are written to a temporary file and atomically moved in place, so a
+ * reader only ever sees a complete snapshot; the digest catches corruption
+ * on disk.
+ */
+public final class MDSSnapshot {
+
+    private static final int MAGIC = 0x534b4d44;    // "SKMD"
+    private static final short VERSION = 1;
+    private static final int DIGEST_LENGTH = 32;
+    public static final String SUFFIX = ".mds";
+
+    private final long created;
+    private final BigInteger number;
+    private final String toc;
+    private final Map<String, String> statements;
+
+    /**
+     * @param created - when the TOC was downloaded and verified
+     * @param number - serial number (no) of the TOC
+     * @param toc - the TOC JWT as downloaded
+     * @param statements - metadata statements as downloaded, by file name
+     */
+    public MDSSnapshot(long created, BigInteger number, String toc, Map<String, String> statements) {
+        this.created = created;
+        this.number = (number == null) ? BigInteger.ZERO : number;
+        this.toc = toc;
+        this.statements = Collections.unmodifiableMap(new LinkedHashMap<>(statements));
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public BigInteger getNumber() {
+        return number;
+    }
+
+    public String getToc() {
+        return toc;
+    }
+
+    public Map<String, String> getStatements() {
+        return statements;
+    }
+
+    /**
+     * @param file - snapshot file
+     * @return the snapshot, or null if there is no such file
+     * @throws IOException - if the file cannot be read, is of an unknown
+     * version or fails its integrity check
+     */
+    public static MDSSnapshot load(Path file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        if (bytes.length < DIGEST_LENGTH + 14) {
+            throw new IOException("Truncated MDS snapshot " + file);
+        }
+        int length = bytes.length - DIGEST_LENGTH;
+        byte[] digest = sha256().digest(Arrays.copyOf(bytes, length));
+        if (!MessageDigest.isEqual(digest, Arrays.copyOfRange(bytes, length, bytes.length))) {
+            throw new IOException("MDS snapshot " + file + " failed its integrity check");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an MDS snapshot " + file);
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported MDS snapshot version " + version + " in " + file);
+        }
+        long created = in.readLong();
+        BigInteger number = new BigInteger(readBytes(in));
+        String toc = readString(in);
+        int count = in.readInt();
+        Map<String, String> statements = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(in);
+            statements.put(name, readString(in));
+        }
+        return new MDSSnapshot(created, number, toc, statements);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file in the same directory, forces
+     * it to disk and moves it over the given file
+     */
+    public void save(Path file) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(toc.length() * 2);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(created);
+        writeBytes(out, number.toByteArray());
+        writeString(out, toc);
+        out.writeInt(statements.size());
+        for (Map.Entry<String, String> e : statements.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        out.flush();
+        byte[] body = baos.toByteArray();
+        byte[] digest = sha256().digest(body);
+
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer[] buffers = {ByteBuffer.wrap(body), ByteBuffer.wrap(digest)};
+                while (buffers[1].hasRemaining()) {
+                    ch.write(buffers);
+                }
+                ch.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt MDS snapshot");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -34,6 +34,16 @@ public class MDSJwtVerifier {
     }
     
     public void verify(JWT jwt) throws CertificateException, NoSuchProviderException, UnsupportedEncodingException {
+        verify(jwt, true);
+    }
+
+    /**
+     * @param jwt - the TOC to verify
+     * @param isRevocationChecked - false when re-verifying a TOC that was
+     * already checked for revocation when it was downloaded (a local snapshot),
+     * so that it can be loaded without network access
+     */
+    public void verify(JWT jwt, boolean isRevocationChecked) throws CertificateException, NoSuchProviderException, UnsupportedEncodingException {
         Set<TrustAnchor> trustAnchor = new HashSet<>();
         trustAnchor.add(new TrustAnchor(rootCert, null));
 
@@ -48,7 +58,7 @@ public class MDSJwtVerifier {
             throw new IllegalArgumentException("MDS JWT certificate chain missing");
         }
 
-        if (!PKIXChainValidation.pkixvalidate(certPath, trustAnchor, true, true)) {
+        if (!PKIXChainValidation.pkixvalidate(certPath, trustAnchor, isRevocationChecked, true)) {
             throw new IllegalArgumentException("MDS JWT certificate could not be validated");
         }
 
@@ -0,0 +1,163 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.fido2mds;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.strongkey.fido2mds.structures.AAGUID;
+import com.strongkey.fido2mds.structures.MetadataStatement;
+import com.strongkey.fido2mds.structures.MetadataTOCPayloadEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MDSUrlServiceTest {
+
+    private static final String A = "00000000-0000-0000-0000-00000000000a";
+    private static final String B = "00000000-0000-0000-0000-00000000000b";
+    private static final String C = "00000000-0000-0000-0000-00000000000c";
+
+    private final List<String> retrieved = new ArrayList<>();
+    private final Map<String, MetadataStatement> served = new HashMap<>();
+
+    private final MDSUrlService.StatementSource source = (uri, entryHash, downloaded) -> {
+        String filename = uri.getPath().substring(uri.getPath().lastIndexOf('/') + 1);
+        retrieved.add(filename);
+        MetadataStatement st = served.get(filename);
+        if (st == null) {
+            throw new Exception("not found");
+        }
+        downloaded.put(filename, "new " + entryHash);
+        return st;
+    };
+
+    private Map<String, MetadataTOCPayloadEntry> entries;
+    private Map<String, MetadataStatement> statements;
+    private Map<String, String> data;
+
+    @Before
+    public void load() {
+        served.put("a", new MetadataStatement());
+        served.put("b", new MetadataStatement());
+        served.put("c", new MetadataStatement());
+        MDSUrlService.TocDiff loaded = MDSUrlService.diff(
+                Arrays.asList(entry(A, "a", "hashA", "2019-01-01"), entry(B, "b", "hashB", "2019-01-01")),
+                null, null, Collections.<String, String>emptyMap(), source);
+        entries = loaded.entries;
+        statements = loaded.statements;
+        data = loaded.data;
+        retrieved.clear();
+    }
+
+    @Test
+    public void firstLoadRetrievesEverything() {
+        assertEquals(2, entries.size());
+        assertEquals(2, statements.size());
+        assertEquals("new hashA", data.get("a"));
+        assertEquals("new hashB", data.get("b"));
+    }
+
+    @Test
+    public void unchangedStatementsAreCarriedOver() {
+        MetadataTOCPayloadEntry a = entry(A, "a", "hashA", "2019-01-01");
+        MDSUrlService.TocDiff diff = MDSUrlService.diff(
+                Arrays.asList(a, entry(B, "b", "hashB", "2019-01-01")), entries, statements, data, source);
+
+        assertTrue(retrieved.isEmpty());
+        assertEquals(2, diff.unchanged);
+        assertEquals(0, diff.retrieved);
+        assertSame(statements.get(A), diff.statements.get(A));
+        assertSame(data.get("a"), diff.data.get("a"));
+        assertSame(a, diff.entries.get(A));
+        assertTrue(diff.statusChanges.isEmpty());
+    }
+
+    @Test
+    public void changedAndNewStatementsAreRetrieved() {
+        MetadataStatement b = new MetadataStatement();
+        served.put("b", b);
+        MDSUrlService.TocDiff diff = MDSUrlService.diff(
+                Arrays.asList(entry(A, "a", "hashA", "2019-01-01"), entry(B, "b", "hashB2", "2019-01-01"),
+                        entry(C, "c", "hashC", "2019-01-01")),
+                entries, statements, data, source);
+
+        assertEquals(Arrays.asList("b", "c"), retrieved);
+        assertEquals(1, diff.unchanged);
+        assertEquals(2, diff.retrieved);
+        assertNotSame(statements.get(B), diff.statements.get(B));
+        assertSame(b, diff.statements.get(B));
+        assertEquals("new hashB2", diff.data.get("b"));
+        assertEquals("new hashC", diff.data.get("c"));
+        assertEquals(3, diff.entries.size());
+    }
+
+    @Test
+    public void removedEntriesAreDropped() {
+        MDSUrlService.TocDiff diff = MDSUrlService.diff(
+                Collections.singletonList(entry(A, "a", "hashA", "2019-01-01")), entries, statements, data, source);
+
+        assertEquals(Collections.singleton(A), diff.entries.keySet());
+        assertEquals(Collections.singleton(A), diff.statements.keySet());
+        assertEquals(Collections.singleton("a"), diff.data.keySet());
+    }
+
+    @Test
+    public void statusChangesAreReported() {
+        MDSUrlService.TocDiff diff = MDSUrlService.diff(
+                Arrays.asList(entry(A, "a", "hashA", "2019-06-01"), entry(B, "b", "hashB", "2019-01-01"),
+                        entry(C, "c", "hashC", "2019-06-01")),
+                entries, statements, data, source);
+
+        //  a new entry is not a status change
+        assertEquals(Collections.singletonList(A), diff.statusChanges);
+        assertEquals("2019-06-01", diff.entries.get(A).getTimeOfLastStatusChange());
+        assertEquals(Collections.singletonList("c"), retrieved);
+    }
+
+    @Test
+    public void statementsThatCannotBeRetrievedAreLeftOut() {
+        served.remove("b");
+        MDSUrlService.TocDiff diff = MDSUrlService.diff(
+                Arrays.asList(entry(A, "a", "hashA", "2019-01-01"), entry(B, "b", "hashB2", "2019-01-01")),
+                entries, statements, data, source);
+
+        assertFalse(diff.entries.containsKey(B));
+        assertFalse(diff.statements.containsKey(B));
+        assertFalse(diff.data.containsKey("b"));
+        assertTrue(diff.entries.containsKey(A));
+    }
+
+    @Test
+    public void entriesWithoutAaguidAreSkipped() {
+        MetadataTOCPayloadEntry uaf = entry(null, "u", "hashU", "2019-01-01");
+        MDSUrlService.TocDiff diff = MDSUrlService.diff(Collections.singletonList(uaf), entries, statements, data, source);
+
+        assertTrue(diff.entries.isEmpty());
+        assertTrue(retrieved.isEmpty());
+    }
+
+    private static MetadataTOCPayloadEntry entry(String aaguid, String filename, String hash, String statusChange) {
+        MetadataTOCPayloadEntry entry = new MetadataTOCPayloadEntry();
+        if (aaguid != null) {
+            entry.setAaguid(new AAGUID(aaguid));
+        }
+        entry.setUrl("https://mds.example.com/metadata/" + filename);
+        entry.setHash(hash);
+        entry.setTimeOfLastStatusChange(statusChange);
+        return entry;
+    }
+}
@@ -41,8 +41,17 @@ create table IF NOT EXISTS attestation_certificates (
         subject_dn      varchar(1024) NOT NULL,
         serial_number   varchar(512) NOT NULL,
         signature       varchar(2048) NULL,
-                primary key(sid, did, attcid)
+                primary key(sid, did, attcid),
+                unique index attestation_certificates_issuer_serial (issuer_dn, serial_number)
         )
         engine=innodb;
 
+/*
+ * Unique key added since the table was first released, for databases created
+ * before it; run this file again to add it. It fails if the table already
+ * holds the same certificate twice, which must then be removed first.
+ */
+ALTER TABLE attestation_certificates
+        ADD UNIQUE INDEX IF NOT EXISTS attestation_certificates_issuer_serial (issuer_dn, serial_number);
+
 /* EOF */
@@ -58,8 +58,20 @@ CREATE TABLE IF NOT EXISTS fido_keys (
         status                          ENUM('Active','Inactive') NOT NULL,
         signature                       VARCHAR(2048) NULL,
                 PRIMARY KEY (sid,did,username,fkid),
-                index (did, username, keyhandle)
+                index (did, username, keyhandle),
+                index fido_keys_status_modify_date (status, modify_date),
+                index fido_keys_did_aaguid_status (did, aaguid, status),
+                index fido_keys_attestation (attsid, attdid, attcid)
         )
         ENGINE = InnoDB;
 
+/*
+ * Indexes added since the table was first released, for databases created
+ * before them; run this file again to add them.
+ */
+ALTER TABLE fido_keys
+        ADD INDEX IF NOT EXISTS fido_keys_status_modify_date (status, modify_date),
+        ADD INDEX IF NOT EXISTS fido_keys_did_aaguid_status (did, aaguid, status),
+        ADD INDEX IF NOT EXISTS fido_keys_attestation (attsid, attdid, attcid);
+
 /* EOF */
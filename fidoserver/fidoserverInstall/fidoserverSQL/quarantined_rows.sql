@@ -0,0 +1,39 @@
+/*
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License, as published by the Free Software Foundation and
+ * available at http://www.fsf.org/licensing/licenses/lgpl.html,
+ * version 2.1 or above.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2001-2019 StrongAuth, Inc.  
+ *
+ * QUARANTINED_ROWS table for MariaDB
+ *
+ * FIDO_KEYS and FIDO_USERS rows that failed row level signature
+ * verification in the background scan (rowIntegrityScanner), identified by
+ * table (fido_keys or fido_users) and sid-did-username[-fkid]. Every server
+ * loads the table at startup and as it scans, so a quarantined row is
+ * rejected by the whole cluster, also after restarts. Deleting a row here
+ * releases it once the row has been repaired and re-signed.
+ *
+ * $Date$
+ * $Revision$
+ * $Author$
+ * $URL$
+ *
+ */
+
+create table IF NOT EXISTS QUARANTINED_ROWS (
+        tablename                       varchar(16) not null,
+        rowid                           varchar(300) not null,
+        detected                        datetime not null,
+                primary key (tablename, rowid)
+        )
+        engine=innodb;
+
+/* EOF */
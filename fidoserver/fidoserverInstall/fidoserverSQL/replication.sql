@@ -0,0 +1,47 @@
+/*
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License, as published by the Free Software Foundation and
+ * available at http://www.fsf.org/licensing/licenses/lgpl.html,
+ * version 2.1 or above.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2001-2019 StrongAuth, Inc.  
+ *
+ * REPLICATION table for MariaDB
+ *
+ * Transactional outbox of changes to FIDO keys, users, policies and
+ * attestation certificates. Each row is written in the same transaction as
+ * the change it describes; rpid is a sequence per source server (ssid),
+ * with holes where transactions rolled back. seqno is assigned by the source
+ * server to committed rows, without holes, when it publishes them; peers
+ * apply the rows of other servers in seqno order to keep their caches
+ * coherent. Rows are deleted once they are older than the retention period.
+ *
+ * $Date$
+ * $Revision$
+ * $Author$
+ * $URL$
+ *
+ */
+
+create table IF NOT EXISTS REPLICATION (
+        ssid                            tinyint unsigned not null,
+        rpid                            bigint unsigned not null,
+        objectype                       smallint unsigned not null,
+        objectop                        smallint unsigned not null,
+        objectpk                        varchar(1024) not null,
+        objectdata                      varchar(4096),
+        create_date                     DATETIME not null,
+        seqno                           bigint unsigned,
+                primary key (ssid, rpid),
+                unique index (ssid, seqno),
+                index (create_date)
+        )
+        engine=innodb;
+
+/* EOF */
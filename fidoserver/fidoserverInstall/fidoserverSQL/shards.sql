@@ -0,0 +1,46 @@
+/*
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License, as published by the Free Software Foundation and
+ * available at http://www.fsf.org/licensing/licenses/lgpl.html,
+ * version 2.1 or above.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2001-2019 StrongAuth, Inc.  
+ *
+ * SHARDS table for MariaDB
+ *
+ * Shard map of FIDO_USERS and FIDO_KEYS, kept in the primary database only.
+ * The users of a domain are spread over databases by a 16 bit hash of the
+ * username; each row maps the hash range [hash_start, hash_end] of a domain
+ * to the JDBC resource of the database holding those users and their keys.
+ * Domains without rows stay in the primary database. Shard databases are
+ * created with the same scripts as the primary. Writes to a user read the
+ * row of the user's hash with a share lock, which the shard splitter waits
+ * for before freezing or switching the range; progress records the step of
+ * the last split of the domain for every server.
+ *
+ * $Date$
+ * $Revision$
+ * $Author$
+ * $URL$
+ *
+ */
+
+create table IF NOT EXISTS SHARDS (
+        did                             smallint unsigned not null,
+        hash_start                      int unsigned not null,
+        hash_end                        int unsigned not null,
+        jndiname                        varchar(64) not null,
+        status                          enum('Active', 'Frozen') not null,
+        modify_date                     DATETIME not null,
+        progress                        varchar(256),
+                primary key (did, hash_start)
+        )
+        engine=innodb;
+
+/* EOF */
@@ -0,0 +1,38 @@
+/*
+ * This program is free software; you can redistribute it and/or 
+ * modify it under the terms of the GNU Lesser General Public 
+ * License, as published by the Free Software Foundation and
+ * available at http://www.fsf.org/licensing/licenses/lgpl.html,
+ * version 2.1 or above.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * Copyright (c) 2001-2019 StrongAuth, Inc.  
+ *
+ * USED_CHALLENGES table for MariaDB
+ *
+ * Sealed FIDO2 challenges that have been answered, so that a challenge is
+ * accepted once by the whole cluster, also across restarts. A row is only
+ * needed until the challenge expires (expiry, in milliseconds since the
+ * epoch); expired rows are deleted by the servers as they go.
+ *
+ * $Date$
+ * $Revision$
+ * $Author$
+ * $URL$
+ *
+ */
+
+create table IF NOT EXISTS USED_CHALLENGES (
+        did                             smallint unsigned not null,
+        fingerprint                     bigint not null,
+        expiry                          bigint unsigned not null,
+                primary key (did, fingerprint),
+                index (expiry)
+        )
+        engine=innodb;
+
+/* EOF */
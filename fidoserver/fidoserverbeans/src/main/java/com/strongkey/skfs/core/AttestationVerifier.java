@@ -0,0 +1,256 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.core;
+
+import com.strongkey.skfs.fido2.FIDO2AttestationStatement;
+import com.strongkey.skfs.fido2.FIDO2AuthenticatorData;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Runs the verification of FIDO2 attestation statements on a dedicated,
+ * bounded pool of threads, so that bursts of registrations (TPM structure
+ * parsing, SafetyNet JWS and PKIX validation, ...) cannot take the CPU from
+ * the request threads serving authentications.
+ *
+ * Each attestation format may only have a configured number of verifications
+ * queued or running; past that, or when the queue of the pool is full, the
+ * registration fails immediately with FIDO-ERR-0043. A verification that does
+ * not complete within the configured time fails with FIDO-ERR-0044. The
+ * format's permit is only released once its verification really ends, so
+ * timed out verifications still count against the limit.
+ */
+public final class AttestationVerifier {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = AttestationVerifier.class.getName();
+
+    private static final String PROPERTY_PREFIX = "skfs.cfg.property.fido2.attestation.verify.";
+
+    private static final AttestationVerifier INSTANCE = new AttestationVerifier();
+
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+    private final int defaultMaxConcurrent;
+    private final Map<String, FormatStatistics> formats = new ConcurrentHashMap<>();
+
+    private AttestationVerifier() {
+        int threads = getIntProperty("threads", 4);
+        int queuesize = getIntProperty("queuesize", 32);
+        timeout = getIntProperty("timeout.millis", 2000);
+        defaultMaxConcurrent = getIntProperty("maxconcurrent", 4);
+
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queuesize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "skfs-attestation-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static AttestationVerifier getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Verifies the signature of an attestation statement
+     *
+     * @param format - attestation format (fmt) of the attestation object
+     * @param attStmt - decoded attestation statement
+     * @param browserDataBase64 - clientDataJSON as received
+     * @param authData - authenticator data of the attestation object
+     * @return the result of FIDO2AttestationStatement.verifySignature
+     * @throws SKFEException - if the verification could not be run or did not
+     * complete in time
+     */
+    public Boolean verify(String format, FIDO2AttestationStatement attStmt,
+            String browserDataBase64, FIDO2AuthenticatorData authData) throws SKFEException {
+        //  Nothing to verify, not worth a thread switch
+        if ("none".equals(format)) {
+            return attStmt.verifySignature(browserDataBase64, authData);
+        }
+
+        FormatStatistics stats = getFormatStatistics(format);
+        if (!stats.permits.tryAcquire()) {
+            stats.rejected.incrementAndGet();
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "verify", "FIDO-ERR-0043", format + " concurrency limit reached");
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0043") + format + " concurrency limit reached");
+        }
+
+        Verification task = new Verification(stats, attStmt, browserDataBase64, authData);
+        Future<Boolean> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            task.release();
+            stats.rejected.incrementAndGet();
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "verify", "FIDO-ERR-0043", format + " queue full");
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0043") + format + " queue full");
+        }
+
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            cancel(future, task);
+            stats.timeouts.incrementAndGet();
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "verify", "FIDO-ERR-0044", format + " after " + timeout + "ms");
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0044") + format + " after " + timeout + "ms");
+        } catch (InterruptedException ex) {
+            cancel(future, task);
+            Thread.currentThread().interrupt();
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0044") + format + " interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-2001") + cause);
+        }
+    }
+
+    /**
+     * Cancels a verification; if it never started its permit is given back
+     * here since the task will not run.
+     */
+    private static void cancel(Future<Boolean> future, Verification task) {
+        if (future.cancel(true) && !task.started) {
+            task.release();
+        }
+    }
+
+    /**
+     * @return number of verifications waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return queue depth, active threads and, per format, the number of
+     * verifications, their average and maximum latency, rejections and
+     * timeouts
+     */
+    public String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("queue=").append(getQueueDepth()).append(" active=").append(executor.getActiveCount());
+        for (Map.Entry<String, FormatStatistics> e : formats.entrySet()) {
+            sb.append(' ').append(e.getKey()).append("=[").append(e.getValue()).append(']');
+        }
+        return sb.toString();
+    }
+
+    private FormatStatistics getFormatStatistics(String format) {
+        FormatStatistics stats = formats.get(format);
+        if (stats == null) {
+            int max = getIntProperty("maxconcurrent." + format, defaultMaxConcurrent);
+            FormatStatistics existing = formats.putIfAbsent(format, new FormatStatistics(max));
+            stats = (existing == null) ? formats.get(format) : existing;
+        }
+        return stats;
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        int value = ConfigurationSnapshot.get().getInt(PROPERTY_PREFIX + name, defaultValue);
+        return (value > 0) ? value : defaultValue;
+    }
+
+    private static final class Verification implements Callable<Boolean> {
+
+        private final FormatStatistics stats;
+        private final FIDO2AttestationStatement attStmt;
+        private final String browserDataBase64;
+        private final FIDO2AuthenticatorData authData;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean started = false;
+
+        Verification(FormatStatistics stats, FIDO2AttestationStatement attStmt,
+                String browserDataBase64, FIDO2AuthenticatorData authData) {
+            this.stats = stats;
+            this.attStmt = attStmt;
+            this.browserDataBase64 = browserDataBase64;
+            this.authData = authData;
+        }
+
+        @Override
+        public Boolean call() {
+            started = true;
+            long start = System.nanoTime();
+            try {
+                return attStmt.verifySignature(browserDataBase64, authData);
+            } finally {
+                stats.record(System.nanoTime() - start);
+                release();
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                stats.permits.release();
+            }
+        }
+    }
+
+    private static final class FormatStatistics {
+
+        private final Semaphore permits;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+
+        FormatStatistics(int maxconcurrent) {
+            permits = new Semaphore(maxconcurrent);
+        }
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            return "count=" + n
+                    + " avgms=" + ((n == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / n))
+                    + " maxms=" + TimeUnit.NANOSECONDS.toMillis(maxNanos.get())
+                    + " rejected=" + rejected.get()
+                    + " timeouts=" + timeouts.get();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.core;
+
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limits on the issuance of challenges (preregister and
+ * preauthenticate), per client address, per domain, per username within a
+ * domain and per access key, plus a cap on the number of outstanding
+ * challenges in the session map.
+ *
+ * Only the cap and the client address are checked before the request is
+ * authenticated (tryAdmit); the domain, username and access key named by the
+ * request are charged once it is authenticated (tryAcquire), so an anonymous
+ * client cannot spend the tokens of a relying party or of its users. Both
+ * only cost a few map lookups. Buckets of idle clients, users and access
+ * keys are evicted least recently used first, bounding the memory used; an
+ * evicted bucket comes back full.
+ *
+ * Limits are read from the current ConfigurationSnapshot on every request,
+ * so a configuration reload applies them to the existing buckets.
+ *
+ * The number of outstanding challenges is estimated from the size of the
+ * session map, taken by the session flush job, plus the challenges admitted
+ * since, as counting the map on every request would be too expensive.
+ */
+public final class ChallengeRateLimiter {
+
+    public static final String LIMIT_GLOBAL = "outstanding";
+    public static final String LIMIT_ADDRESS = "address";
+    public static final String LIMIT_DOMAIN = "domain";
+    public static final String LIMIT_USERNAME = "username";
+    public static final String LIMIT_ACCESSKEY = "accesskey";
+
+    private static final String PROPERTY_PREFIX = "skfs.cfg.property.fido2.ratelimit.";
+
+    private static final ChallengeRateLimiter INSTANCE = new ChallengeRateLimiter();
+
+    private final Buckets addresses = new Buckets("address", "address.maxtracked");
+    private final Buckets domains = new Buckets("domain", null);
+    private final Buckets usernames = new Buckets("username", "username.maxtracked");
+    private final Buckets accesskeys = new Buckets("accesskey", null);
+
+    private volatile long outstandingSnapshot = 0;
+    private final AtomicLong admittedSinceSnapshot = new AtomicLong();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedGlobal = new AtomicLong();
+
+    private ChallengeRateLimiter() {
+    }
+
+    public static ChallengeRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Checks the limits that apply before the request is authenticated: the
+     * cap on outstanding challenges and the bucket of the client address
+     *
+     * @param address - address of the client
+     * @return null if the request may go on, otherwise the name of the limit
+     * it exceeded
+     */
+    public String tryAdmit(String address) {
+        if (!isEnabled()) {
+            return null;
+        }
+        long maxOutstanding = getLong("outstanding.max", 0L);
+        if (maxOutstanding > 0 && outstandingSnapshot + admittedSinceSnapshot.get() >= maxOutstanding) {
+            rejectedGlobal.incrementAndGet();
+            return LIMIT_GLOBAL;
+        }
+        if (address != null && !addresses.tryTake(address)) {
+            return LIMIT_ADDRESS;
+        }
+        return null;
+    }
+
+    /**
+     * Takes a token from each bucket an authenticated request belongs to
+     *
+     * @param did - domain of the request
+     * @param username - username from the request, may be null
+     * @param accesskey - access key the request was authenticated with, may
+     * be null
+     * @return null if the request may go on, otherwise the name of the limit
+     * it exceeded
+     */
+    public String tryAcquire(Long did, String username, String accesskey) {
+        if (!isEnabled()) {
+            return null;
+        }
+        if (accesskey != null && !accesskeys.tryTake(accesskey)) {
+            return LIMIT_ACCESSKEY;
+        }
+        String domainkey = String.valueOf(did);
+        if (!domains.tryTake(domainkey)) {
+            if (accesskey != null) {
+                accesskeys.refund(accesskey);
+            }
+            return LIMIT_DOMAIN;
+        }
+        if (username != null && !usernames.tryTake(did + "-" + username)) {
+            if (accesskey != null) {
+                accesskeys.refund(accesskey);
+            }
+            domains.refund(domainkey);
+            return LIMIT_USERNAME;
+        }
+        admittedSinceSnapshot.incrementAndGet();
+        admitted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records the current number of challenges in the session map
+     *
+     * @param outstanding - size of the session map
+     */
+    public void setOutstanding(long outstanding) {
+        outstandingSnapshot = outstanding;
+        admittedSinceSnapshot.set(0);
+    }
+
+    public String getStatistics() {
+        return "enabled=" + isEnabled()
+                + " outstanding~" + (outstandingSnapshot + admittedSinceSnapshot.get())
+                + " admitted=" + admitted.get()
+                + " rejected[outstanding=" + rejectedGlobal.get()
+                + " " + addresses + " " + domains + " " + usernames + " " + accesskeys + "]";
+    }
+
+    private static boolean isEnabled() {
+        return ConfigurationSnapshot.get().getBoolean(PROPERTY_PREFIX + "enabled");
+    }
+
+    private static long getLong(String name, long defaultValue) {
+        return ConfigurationSnapshot.get().getLong(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    /**
+     * Bounded LRU of token buckets sharing the same rate and burst
+     */
+    private static final class Buckets {
+
+        private final String name;
+        private final Map<String, double[]> buckets;
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * @param name - prefix of the rate and burst properties
+         * @param maxtracked - property holding the number of buckets kept,
+         * null for 1000
+         */
+        Buckets(String name, final String maxtracked) {
+            this.name = name;
+            this.buckets = new LinkedHashMap<String, double[]>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+                    return size() > ((maxtracked == null) ? 1000L : getLong(maxtracked, 10000L));
+                }
+            };
+        }
+
+        /**
+         * @return true if a token was taken, always true when the rate is 0
+         */
+        boolean tryTake(String key) {
+            long rate = getLong(name + ".rate", 0L);
+            if (rate <= 0) {
+                return true;
+            }
+            double burst = Math.max(1L, getLong(name + ".burst", 1L));
+            long now = System.nanoTime();
+            synchronized (this) {
+                //  [0] tokens, [1] time of the last refill
+                double[] bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new double[]{burst, now};
+                    buckets.put(key, bucket);
+                } else {
+                    bucket[0] = Math.min(burst, bucket[0] + (now - bucket[1]) * rate / 1e9);
+                    bucket[1] = now;
+                }
+                if (bucket[0] >= 1) {
+                    bucket[0] -= 1;
+                    return true;
+                }
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        void refund(String key) {
+            if (getLong(name + ".rate", 0L) <= 0) {
+                return;
+            }
+            double burst = Math.max(1L, getLong(name + ".burst", 1L));
+            synchronized (this) {
+                double[] bucket = buckets.get(key);
+                if (bucket != null) {
+                    bucket[0] = Math.min(burst, bucket[0] + 1);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            int size;
+            synchronized (this) {
+                size = buckets.size();
+            }
+            return name + "=" + rejected.get() + " (tracked " + size + ")";
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.core;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which sealed challenges have already been used on this server
+ * since it started, until they expire. It is only a fast first check: it is
+ * not shared with other servers nor kept across restarts, which is what
+ * usedChallengeBean is for.
+ *
+ * Used tokens are recorded as a 64-bit fingerprint in a ring of buckets, one
+ * per BUCKET_MILLIS slice of expiry time. A bucket is recycled as soon as every
+ * token it could hold has expired, so memory only grows with the number of
+ * tokens consumed within one validity period (8 to 16 bytes each) and no
+ * sweeper job is needed. The ring covers the longest validity that can be
+ * configured, so it stays correct when the validity is raised by a
+ * configuration reload.
+ */
+public final class ChallengeReplayFilter {
+
+    private static final long BUCKET_MILLIS = 10000L;
+
+    private static final ChallengeReplayFilter INSTANCE = new ChallengeReplayFilter(SealedChallenge.MAX_VALIDITY * 1000L);
+
+    private final Bucket[] buckets;
+
+    ChallengeReplayFilter(long validityMillis) {
+        // One bucket per slice of the validity period, plus one for the slice
+        // being filled and one for the slice that is expiring.
+        buckets = new Bucket[(int) (validityMillis / BUCKET_MILLIS) + 2];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    public static ChallengeReplayFilter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a token as used.
+     *
+     * @param expiry - expiry time of the token in milliseconds
+     * @param fingerprint - random 64-bit value identifying the token
+     * @return true if the token had not been used before
+     */
+    public boolean markUsed(long expiry, long fingerprint) {
+        long slice = expiry / BUCKET_MILLIS;
+        Bucket bucket = buckets[(int) (slice % buckets.length)];
+        synchronized (bucket) {
+            if (bucket.slice != slice) {
+                bucket.reset(slice);
+            }
+            return bucket.add(fingerprint);
+        }
+    }
+
+    /**
+     * @return number of fingerprints currently remembered
+     */
+    public int size() {
+        int size = 0;
+        for (Bucket bucket : buckets) {
+            synchronized (bucket) {
+                size += bucket.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Open addressing set of longs; 0 marks an empty slot, so a fingerprint of
+     * 0 is kept in its own flag.
+     */
+    private static final class Bucket {
+
+        private long slice = -1;
+        private long[] table = new long[64];
+        private int size = 0;
+        private boolean zero = false;
+
+        void reset(long newslice) {
+            slice = newslice;
+            if (table.length > 64) {
+                table = new long[64];
+            } else {
+                Arrays.fill(table, 0L);
+            }
+            size = 0;
+            zero = false;
+        }
+
+        boolean add(long fingerprint) {
+            if (fingerprint == 0) {
+                if (zero) {
+                    return false;
+                }
+                zero = true;
+                size++;
+                return true;
+            }
+            if ((size + 1) * 2 > table.length) {
+                grow();
+            }
+            int mask = table.length - 1;
+            int i = mix(fingerprint) & mask;
+            while (table[i] != 0) {
+                if (table[i] == fingerprint) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = fingerprint;
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            int mask = table.length - 1;
+            for (long fingerprint : old) {
+                if (fingerprint != 0) {
+                    int i = mix(fingerprint) & mask;
+                    while (table[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = fingerprint;
+                }
+            }
+        }
+
+        private static int mix(long value) {
+            return (int) (value ^ (value >>> 32));
+        }
+    }
+}
@@ -7,6 +7,7 @@
 
 package com.strongkey.skfs.core;
 
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
@@ -39,8 +40,8 @@ public class FIDO2RegistrationChallenge extends U2FChallenge implements Serializ
      */
    public FIDO2RegistrationChallenge(String u2fversion, String username) throws SKFEException {
         super(u2fversion, username);
-        nonce = U2FUtility.getRandom(Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.entropylength")));
-        userID = U2FUtility.getRandom(Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido.userid.length")));   //TODO this should not be randomized if a user already exists
+        nonce = U2FUtility.getRandom(ConfigurationSnapshot.get().getInt("skfs.cfg.property.entropylength", 512));
+        userID = U2FUtility.getRandom(ConfigurationSnapshot.get().getInt("skfs.cfg.property.fido.userid.length", 32));   //TODO this should not be randomized if a user already exists
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "U2FRegistrationChallenge", skfsCommon.getMessageProperty("FIDO-MSG-5003"), "");
    }
 
@@ -0,0 +1,330 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.core;
+
+import com.strongkey.crypto.interfaces.initCryptoModule;
+import com.strongkey.crypto.utility.CryptoException;
+import com.strongkey.skce.pojos.UserSessionInfo;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * A FIDO2 challenge that carries its own session state.
+ *
+ * When skfs.cfg.property.fido2.challenge.sealed is true, the data that would
+ * otherwise be kept in a UserSessionInfo in the session map (username, policy,
+ * user verification requirement, allowed credentials, ...) is encrypted and
+ * authenticated with a secret key from the signing keystore, and the result is
+ * handed to the relying party as the challenge itself. The browser echoes it
+ * back in clientDataJSON, so register and authenticate can rebuild the session
+ * on any node without a map lookup. Tokens expire after
+ * skfs.cfg.property.fido2.challenge.sealed.validity.seconds and can only be
+ * used once, see ChallengeReplayFilter and usedChallengeBean.
+ */
+public final class SealedChallenge {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = SealedChallenge.class.getName();
+
+    private static final byte VERSION = 1;
+
+    /**
+     * Longest validity that can be configured, in seconds
+     */
+    public static final int MAX_VALIDITY = 600;
+
+    private final Long did;
+    private final long expiry;
+    private final String rpId;
+    private final UserSessionInfo session;
+    private final List<byte[]> credentials;
+    private long fingerprint;
+
+    private SealedChallenge(Long did, long expiry, String rpId, UserSessionInfo session, List<byte[]> credentials) {
+        this.did = did;
+        this.expiry = expiry;
+        this.rpId = rpId;
+        this.session = session;
+        this.credentials = credentials;
+    }
+
+    /**
+     * @return true if challenges should be sealed instead of being stored in
+     * the session map
+     */
+    public static boolean isEnabled() {
+        return ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.fido2.challenge.sealed");
+    }
+
+    /**
+     * Builds a sealed challenge for a registration session
+     *
+     * @param did - domain the challenge is issued for
+     * @param session - the session that would have been stored in the map
+     * @param rpId - rpId from the policy, may be null
+     * @return SealedChallenge
+     */
+    public static SealedChallenge forRegistration(Long did, UserSessionInfo session, String rpId) {
+        return new SealedChallenge(did, newExpiry(), rpId, session, new ArrayList<>());
+    }
+
+    /**
+     * Builds a sealed challenge for an authentication session
+     *
+     * @param did - domain the challenge is issued for
+     * @param session - the session that would have been stored in the map
+     * @param rpId - rpId from the policy, may be null
+     * @param keyhandles - keyhandles of the credentials allowed to answer the
+     * challenge
+     * @return SealedChallenge
+     * @throws SKFEException
+     */
+    public static SealedChallenge forAuthentication(Long did, UserSessionInfo session, String rpId, Collection<String> keyhandles) throws SKFEException {
+        List<byte[]> credentials = new ArrayList<>(keyhandles.size());
+        for (String keyhandle : keyhandles) {
+            credentials.add(digest(keyhandle));
+        }
+        return new SealedChallenge(did, newExpiry(), rpId, session, credentials);
+    }
+
+    /**
+     * Encrypts the challenge data
+     *
+     * @return base64url encoded token to be used as the WebAuthn challenge
+     * @throws SKFEException
+     */
+    public String seal() throws SKFEException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeByte(VERSION);
+            out.writeLong(did);
+            out.writeLong(expiry);
+            out.writeUTF(session.getSessiontype());
+            writeString(out, session.getNonce());
+            writeString(out, session.getUsername());
+            writeString(out, session.getAppid());
+            writeString(out, rpId);
+            writeString(out, session.getUserVerificationReq());
+            writeString(out, session.getPolicyMapKey());
+            out.writeShort(session.getSid());
+            if (session.getSessiontype().equals(skfsConstants.FIDO_USERSESSION_REG)) {
+                writeString(out, session.getUserId());
+                writeString(out, session.getDisplayName());
+                writeString(out, session.getRpName());
+                writeString(out, session.getAttestationPreferance());
+            } else {
+                out.writeShort(credentials.size());
+                for (byte[] credential : credentials) {
+                    out.write(credential);
+                }
+            }
+        } catch (IOException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "seal", "FIDO-ERR-0039", ex.getLocalizedMessage());
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0039") + ex.getLocalizedMessage());
+        }
+
+        try {
+            byte[] sealed = initCryptoModule.getCryptoModule().sealData(getKeystorePassword(),
+                    skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.challenge.sealed.keyalias"),
+                    baos.toByteArray(), aad(did));
+            return Base64.encodeBase64URLSafeString(sealed);
+        } catch (CryptoException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "seal", "FIDO-ERR-0039", ex.getLocalizedMessage());
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0039") + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Decrypts a token produced by seal() and verifies it was issued for the
+     * domain and has not expired. The returned session's nonce is the token.
+     *
+     * @param did - domain of the request
+     * @param token - challenge received in clientDataJSON
+     * @return SealedChallenge
+     * @throws SKFEException - if the token is invalid, from another domain or
+     * has expired
+     */
+    public static SealedChallenge open(Long did, String token) throws SKFEException {
+        byte[] sealed = Base64.decodeBase64(token);
+        byte[] plain;
+        try {
+            plain = initCryptoModule.getCryptoModule().unsealData(getKeystorePassword(),
+                    skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.challenge.sealed.keyalias"),
+                    sealed, aad(did));
+        } catch (CryptoException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "open", "FIDO-ERR-0040", ex.getLocalizedMessage());
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0040") + ex.getLocalizedMessage());
+        }
+        if (plain == null) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "open", "FIDO-ERR-0040", "invalid token");
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0040") + "invalid token");
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+            if (in.readByte() != VERSION || in.readLong() != did) {
+                throw new IOException("invalid token");
+            }
+            long expiry = in.readLong();
+            if (expiry < System.currentTimeMillis()) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "open", "FIDO-ERR-0040", "token expired");
+                throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0040") + "token expired");
+            }
+            String sessiontype = in.readUTF();
+            readString(in);     // nonce from the policy, only there for entropy
+            String username = readString(in);
+            String appid = readString(in);
+            String rpId = readString(in);
+            UserSessionInfo session = new UserSessionInfo(username, token, appid, sessiontype, "", "");
+            session.setuserVerificationReq(readString(in));
+            session.setPolicyMapKey(readString(in));
+            session.setSid(in.readShort());
+
+            List<byte[]> credentials = new ArrayList<>();
+            if (sessiontype.equals(skfsConstants.FIDO_USERSESSION_REG)) {
+                session.setSkid(session.getSid());
+                session.setUserId(readString(in));
+                session.setDisplayName(readString(in));
+                session.setRpName(readString(in));
+                session.setAttestationPreferance(readString(in));
+            } else {
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    byte[] credential = new byte[32];
+                    in.readFully(credential);
+                    credentials.add(credential);
+                }
+            }
+            SealedChallenge challenge = new SealedChallenge(did, expiry, rpId, session, credentials);
+            // The random IV at the start of the token identifies it
+            challenge.fingerprint = ByteBuffer.wrap(sealed, 0, 8).getLong();
+            return challenge;
+        } catch (IOException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "open", "FIDO-ERR-0040", ex.getLocalizedMessage());
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0040") + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @param keyhandle - keyhandle (credential id) received from the client
+     * @return true if the credential was in the allow list of the challenge
+     * @throws SKFEException
+     */
+    public boolean allowsCredential(String keyhandle) throws SKFEException {
+        byte[] kh = digest(keyhandle);
+        for (byte[] credential : credentials) {
+            if (Arrays.equals(credential, kh)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the token as used on this server; usedChallengeBean marks it for
+     * the cluster.
+     *
+     * @return false if the token has already been used
+     */
+    public boolean consume() {
+        return ChallengeReplayFilter.getInstance().markUsed(expiry, fingerprint);
+    }
+
+    public Long getDid() {
+        return did;
+    }
+
+    public long getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * @return random 64-bit value identifying the token
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getRpId() {
+        return rpId;
+    }
+
+    /**
+     * @return the session rebuilt from the token; for authentication the key
+     * related fields (fkid, skid, public key, appid) still have to be filled
+     * in from the credential
+     */
+    public UserSessionInfo getSession() {
+        return session;
+    }
+
+    private static long newExpiry() {
+        return System.currentTimeMillis() + getValidity() * 1000L;
+    }
+
+    /**
+     * @return number of seconds a sealed challenge stays valid
+     */
+    public static int getValidity() {
+        int validity = ConfigurationSnapshot.get().getInt("skfs.cfg.property.fido2.challenge.sealed.validity.seconds", 300);
+        if (validity < 5 || validity > MAX_VALIDITY) {
+            validity = 300;
+        }
+        return validity;
+    }
+
+    private static String getKeystorePassword() {
+        if (ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.standalone.fidoengine")) {
+            return skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
+        }
+        return "";
+    }
+
+    private static byte[] aad(Long did) {
+        return ByteBuffer.allocate(9).put(VERSION).putLong(did).array();
+    }
+
+    private static byte[] digest(String keyhandle) throws SKFEException {
+        try {
+            return skfsCommon.getDigestBytes(keyhandle, "SHA-256");
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "digest", "FIDO-ERR-0039", ex.getLocalizedMessage());
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0039") + ex.getLocalizedMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
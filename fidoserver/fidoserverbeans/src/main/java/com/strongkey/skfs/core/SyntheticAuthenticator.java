@@ -0,0 +1,231 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.core;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.Date;
+import javax.json.Json;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * A software FIDO2 authenticator, used to exercise the registration and
+ * authentication code paths without a real device (see warmupServices).
+ *
+ * Its keys and certificates are generated when it is created and never
+ * leave the JVM: a self-signed root, an attestation certificate issued by
+ * the root for "packed" attestations, and one ES256 credential.
+ */
+public final class SyntheticAuthenticator {
+
+    private static final int COSE_ALG_ES256 = -7;
+    private static final byte FLAGS_UP_UV = 0x05;
+    private static final byte FLAG_AT = 0x40;
+
+    private final String rpId;
+    private final SecureRandom random = new SecureRandom();
+    private final X509Certificate rootCertificate;
+    private final X509Certificate attestationCertificate;
+    private final PrivateKey attestationKey;
+    private final KeyPair credential;
+    private final byte[] credentialId = new byte[32];
+    private int counter = 0;
+
+    /**
+     * @param rpId - relying party id the credential is scoped to
+     * @throws GeneralSecurityException - if the keys or certificates cannot
+     * be generated
+     */
+    public SyntheticAuthenticator(String rpId) throws GeneralSecurityException {
+        this.rpId = rpId;
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC", "BCFIPS");
+        kpg.initialize(new ECGenParameterSpec("secp256r1"), random);
+
+        KeyPair root = kpg.generateKeyPair();
+        KeyPair attestation = kpg.generateKeyPair();
+        credential = kpg.generateKeyPair();
+        random.nextBytes(credentialId);
+
+        X500Name rootName = new X500Name("CN=SKFS Warmup Root,O=StrongKey,C=US");
+        rootCertificate = certificate(rootName, rootName, root.getPublic(), root.getPrivate(), true);
+        attestationCertificate = certificate(rootName,
+                new X500Name("CN=SKFS Warmup Authenticator,OU=Authenticator Attestation,O=StrongKey,C=US"),
+                attestation.getPublic(), root.getPrivate(), false);
+        attestationKey = attestation.getPrivate();
+    }
+
+    public String getRpId() {
+        return rpId;
+    }
+
+    public X509Certificate getRootCertificate() {
+        return rootCertificate;
+    }
+
+    public X509Certificate getAttestationCertificate() {
+        return attestationCertificate;
+    }
+
+    public PublicKey getCredentialPublicKey() {
+        return credential.getPublic();
+    }
+
+    /**
+     * @param type - webauthn.create or webauthn.get
+     * @param challenge - base64url challenge
+     * @param origin - origin of the relying party
+     * @return the clientDataJSON, base64url encoded
+     */
+    public String clientData(String type, String challenge, String origin) {
+        String json = Json.createObjectBuilder()
+                .add("type", type)
+                .add("challenge", challenge)
+                .add("origin", origin)
+                .build().toString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return a base64url "packed" attestation object with an x5c chain, for
+     * the given clientDataJSON
+     */
+    public String attestationObject(String clientDataBase64) throws GeneralSecurityException, IOException {
+        ECPublicKey pub = (ECPublicKey) credential.getPublic();
+        ByteArrayOutputStream cose = new ByteArrayOutputStream();
+        try (CBORGenerator gen = new CBORFactory().createGenerator(cose)) {
+            gen.writeStartObject();
+            gen.writeFieldId(1);
+            gen.writeNumber(2);
+            gen.writeFieldId(3);
+            gen.writeNumber(COSE_ALG_ES256);
+            gen.writeFieldId(-1);
+            gen.writeNumber(1);
+            gen.writeFieldId(-2);
+            gen.writeBinary(unsigned32(pub.getW().getAffineX()));
+            gen.writeFieldId(-3);
+            gen.writeBinary(unsigned32(pub.getW().getAffineY()));
+            gen.writeEndObject();
+        }
+        byte[] coseKey = cose.toByteArray();
+
+        ByteBuffer authData = ByteBuffer.allocate(37 + 16 + 2 + credentialId.length + coseKey.length);
+        authData.put(rpIdHash());
+        authData.put((byte) (FLAGS_UP_UV | FLAG_AT));
+        authData.putInt(++counter);
+        authData.put(new byte[16]);
+        authData.putShort((short) credentialId.length);
+        authData.put(credentialId);
+        authData.put(coseKey);
+        byte[] authDataBytes = authData.array();
+
+        byte[] sig = sign(attestationKey, authDataBytes, clientDataBase64);
+
+        ByteArrayOutputStream attObj = new ByteArrayOutputStream();
+        try (CBORGenerator gen = new CBORFactory().createGenerator(attObj)) {
+            gen.writeStartObject();
+            gen.writeStringField("fmt", "packed");
+            gen.writeFieldName("attStmt");
+            gen.writeStartObject();
+            gen.writeNumberField("alg", COSE_ALG_ES256);
+            gen.writeBinaryField("sig", sig);
+            gen.writeFieldName("x5c");
+            gen.writeStartArray();
+            gen.writeBinary(attestationCertificate.getEncoded());
+            gen.writeEndArray();
+            gen.writeEndObject();
+            gen.writeBinaryField("authData", authDataBytes);
+            gen.writeEndObject();
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(attObj.toByteArray());
+    }
+
+    /**
+     * @return authenticator data of an assertion (user present and verified)
+     */
+    public byte[] assertionAuthData() throws GeneralSecurityException {
+        ByteBuffer authData = ByteBuffer.allocate(37);
+        authData.put(rpIdHash());
+        authData.put(FLAGS_UP_UV);
+        authData.putInt(++counter);
+        return authData.array();
+    }
+
+    /**
+     * @return ES256 signature of the credential over authData and the hash of
+     * the clientDataJSON
+     */
+    public byte[] assertionSignature(byte[] authData, String clientDataBase64) throws GeneralSecurityException {
+        return sign(credential.getPrivate(), authData, clientDataBase64);
+    }
+
+    private byte[] rpIdHash() throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256", "BCFIPS").digest(rpId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] authData, String clientDataBase64) throws GeneralSecurityException {
+        byte[] clientDataHash = MessageDigest.getInstance("SHA-256", "BCFIPS").digest(Base64.getUrlDecoder().decode(clientDataBase64));
+        Signature s = Signature.getInstance("SHA256withECDSA", "BCFIPS");
+        s.initSign(key);
+        s.update(authData);
+        s.update(clientDataHash);
+        return s.sign();
+    }
+
+    private X509Certificate certificate(X500Name issuer, X500Name subject, PublicKey publicKey,
+            PrivateKey signingKey, boolean ca) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        try {
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer,
+                    new BigInteger(64, random).abs().add(BigInteger.ONE),
+                    new Date(now - 3600000L), new Date(now + 86400000L * 365), subject, publicKey);
+            if (ca) {
+                builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            }
+            return new JcaX509CertificateConverter().setProvider("BCFIPS").getCertificate(
+                    builder.build(new JcaContentSignerBuilder("SHA256withECDSA").setProvider("BCFIPS").build(signingKey)));
+        } catch (CertIOException | OperatorCreationException ex) {
+            throw new GeneralSecurityException(ex);
+        }
+    }
+
+    /**
+     * @return the 32 byte big-endian unsigned representation of a P-256
+     * coordinate
+     */
+    private static byte[] unsigned32(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] out = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, out, 32 - length, length);
+        return out;
+    }
+}
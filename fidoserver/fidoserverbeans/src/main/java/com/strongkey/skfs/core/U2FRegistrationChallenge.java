@@ -7,6 +7,7 @@
 
 package com.strongkey.skfs.core;
 
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
@@ -39,7 +40,7 @@ public class U2FRegistrationChallenge extends U2FChallenge implements Serializab
      */
    public U2FRegistrationChallenge(String u2fversion, String username) throws SKFEException {
         super(u2fversion, username);
-        nonce = U2FUtility.getRandom(Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.entropylength")));
+        nonce = U2FUtility.getRandom(ConfigurationSnapshot.get().getInt("skfs.cfg.property.entropylength", 512));
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "U2FRegistrationChallenge", skfsCommon.getMessageProperty("FIDO-MSG-5003"), "");
    }
 
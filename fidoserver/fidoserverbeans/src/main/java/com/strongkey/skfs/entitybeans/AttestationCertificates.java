@@ -37,7 +37,8 @@ import javax.xml.bind.annotation.XmlRootElement;
     @NamedQuery(name = "AttestationCertificates.findBySerialNumber", query = "SELECT a FROM AttestationCertificates a WHERE a.serialNumber = :serialNumber"),
     @NamedQuery(name = "AttestationCertificates.findByIssuerDnSerialNumber", query = "SELECT a FROM AttestationCertificates a WHERE a.issuerDn = :issuerDn and a.serialNumber = :serialNumber"),
     @NamedQuery(name = "AttestationCertificates.maxattcid", query = "SELECT max(a.attestationCertificatesPK.attcid) FROM AttestationCertificates a where a.attestationCertificatesPK.sid = :sid"),
-    @NamedQuery(name = "AttestationCertificates.findBySignature", query = "SELECT a FROM AttestationCertificates a WHERE a.signature = :signature")})
+    @NamedQuery(name = "AttestationCertificates.findBySignature", query = "SELECT a FROM AttestationCertificates a WHERE a.signature = :signature"),
+    @NamedQuery(name = "AttestationCertificates.scanByDidAfter", query = "SELECT a FROM AttestationCertificates a WHERE a.attestationCertificatesPK.did = :did and ((a.attestationCertificatesPK.sid = :sid and a.attestationCertificatesPK.attcid > :attcid) or a.attestationCertificatesPK.sid > :sid) ORDER BY a.attestationCertificatesPK.sid, a.attestationCertificatesPK.attcid")})
 public class AttestationCertificates implements Serializable {
 
     private static final long serialVersionUID = 1L;
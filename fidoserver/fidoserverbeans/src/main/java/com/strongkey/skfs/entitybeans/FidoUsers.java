@@ -41,7 +41,9 @@ import javax.xml.bind.annotation.XmlTransient;
     @NamedQuery(name = "FidoUsers.findByRegisteredPhoneNumbers", query = "SELECT f FROM FidoUsers f WHERE f.registeredPhoneNumbers = :registeredPhoneNumbers"),
     @NamedQuery(name = "FidoUsers.findByTwoStepTarget", query = "SELECT f FROM FidoUsers f WHERE f.twoStepTarget = :twoStepTarget"),
     @NamedQuery(name = "FidoUsers.findByStatus", query = "SELECT f FROM FidoUsers f WHERE f.status = :status"),
-    @NamedQuery(name = "FidoUsers.findBySignature", query = "SELECT f FROM FidoUsers f WHERE f.signature = :signature")})
+    @NamedQuery(name = "FidoUsers.findBySignature", query = "SELECT f FROM FidoUsers f WHERE f.signature = :signature"),
+    @NamedQuery(name = "FidoUsers.usernamesAfter", query = "SELECT f.fidoUsersPK.username FROM FidoUsers f WHERE f.fidoUsersPK.did = :did and f.fidoUsersPK.username > :username ORDER BY f.fidoUsersPK.username"),
+    @NamedQuery(name = "FidoUsers.scanAfter", query = "SELECT f FROM FidoUsers f WHERE (f.fidoUsersPK.sid = :sid and f.fidoUsersPK.did = :did and f.fidoUsersPK.username > :username) or (f.fidoUsersPK.sid = :sid and f.fidoUsersPK.did > :did) or f.fidoUsersPK.sid > :sid ORDER BY f.fidoUsersPK.sid, f.fidoUsersPK.did, f.fidoUsersPK.username")})
 public class FidoUsers implements Serializable {
 
     private static final long serialVersionUID = 1L;
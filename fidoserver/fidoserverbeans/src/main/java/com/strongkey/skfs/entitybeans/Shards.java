@@ -0,0 +1,148 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.entitybeans;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ * Shard map: the database (JDBC resource) holding the FIDO_USERS and
+ * FIDO_KEYS rows of the users of a domain whose username hash falls in
+ * [hashStart, hashEnd]. Domains without rows are kept in the primary
+ * database. A Frozen range is being moved to another shard and does not
+ * accept writes. progress is the step reached by the last split of the
+ * domain, on the row of the range it moves; it is null on the other rows.
+ */
+@Entity
+@Table(name = "shards")
+@NamedQueries({
+    @NamedQuery(name = "Shards.findAll", query = "SELECT s FROM Shards s ORDER BY s.shardsPK.did, s.shardsPK.hashStart"),
+    @NamedQuery(name = "Shards.findByDid", query = "SELECT s FROM Shards s WHERE s.shardsPK.did = :did ORDER BY s.shardsPK.hashStart")})
+public class Shards implements Serializable {
+
+    public static final String STATUS_ACTIVE = "Active";
+    public static final String STATUS_FROZEN = "Frozen";
+
+    private static final long serialVersionUID = 1L;
+    @EmbeddedId
+    protected ShardsPK shardsPK;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "hash_end")
+    private int hashEnd;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 64)
+    @Column(name = "jndiname")
+    private String jndiname;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 6)
+    @Column(name = "status")
+    private String status;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "modify_date")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date modifyDate;
+    @Size(max = 256)
+    @Column(name = "progress")
+    private String progress;
+
+    public Shards() {
+    }
+
+    public Shards(ShardsPK shardsPK, int hashEnd, String jndiname, String status, Date modifyDate) {
+        this.shardsPK = shardsPK;
+        this.hashEnd = hashEnd;
+        this.jndiname = jndiname;
+        this.status = status;
+        this.modifyDate = modifyDate;
+    }
+
+    public ShardsPK getShardsPK() {
+        return shardsPK;
+    }
+
+    public void setShardsPK(ShardsPK shardsPK) {
+        this.shardsPK = shardsPK;
+    }
+
+    public int getHashEnd() {
+        return hashEnd;
+    }
+
+    public void setHashEnd(int hashEnd) {
+        this.hashEnd = hashEnd;
+    }
+
+    public String getJndiname() {
+        return jndiname;
+    }
+
+    public void setJndiname(String jndiname) {
+        this.jndiname = jndiname;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Date getModifyDate() {
+        return modifyDate;
+    }
+
+    public void setModifyDate(Date modifyDate) {
+        this.modifyDate = modifyDate;
+    }
+
+    public String getProgress() {
+        return progress;
+    }
+
+    public void setProgress(String progress) {
+        this.progress = progress;
+    }
+
+    @Override
+    public int hashCode() {
+        return (shardsPK != null ? shardsPK.hashCode() : 0);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof Shards)) {
+            return false;
+        }
+        Shards other = (Shards) object;
+        return (this.shardsPK != null || other.shardsPK == null)
+                && (this.shardsPK == null || this.shardsPK.equals(other.shardsPK));
+    }
+
+    @Override
+    public String toString() {
+        return "com.strongkey.skfs.entitybeans.Shards[ shardsPK=" + shardsPK
+                + ", hashEnd=" + hashEnd + ", jndiname=" + jndiname + ", status=" + status + " ]";
+    }
+
+}
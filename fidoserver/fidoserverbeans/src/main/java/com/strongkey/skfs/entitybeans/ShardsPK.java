@@ -0,0 +1,73 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.entitybeans;
+
+import java.io.Serializable;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.validation.constraints.NotNull;
+
+@Embeddable
+public class ShardsPK implements Serializable {
+
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "did")
+    private short did;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "hash_start")
+    private int hashStart;
+
+    public ShardsPK() {
+    }
+
+    public ShardsPK(short did, int hashStart) {
+        this.did = did;
+        this.hashStart = hashStart;
+    }
+
+    public short getDid() {
+        return did;
+    }
+
+    public void setDid(short did) {
+        this.did = did;
+    }
+
+    public int getHashStart() {
+        return hashStart;
+    }
+
+    public void setHashStart(int hashStart) {
+        this.hashStart = hashStart;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (int) did;
+        hash += hashStart;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof ShardsPK)) {
+            return false;
+        }
+        ShardsPK other = (ShardsPK) object;
+        return this.did == other.did && this.hashStart == other.hashStart;
+    }
+
+    @Override
+    public String toString() {
+        return "com.strongkey.skfs.entitybeans.ShardsPK[ did=" + did + ", hashStart=" + hashStart + " ]";
+    }
+}
@@ -43,8 +43,6 @@ public class PackedAttestationStatement implements FIDO2AttestationStatement {
     private byte[] ecdaaKeyId;
     private ArrayList x5c = null;
     private String attestationType = "self";
-    String validataPkix = skfsCommon.getConfigurationProperty("skfs.cfg.property.pkix.validate");
-    String validataPkixMethod = skfsCommon.getConfigurationProperty("skfs.cfg.property.pkix.validate.method");
     
     static {
         Security.addProvider(new BouncyCastleFipsProvider());
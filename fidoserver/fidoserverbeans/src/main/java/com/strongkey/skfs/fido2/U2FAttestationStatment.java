@@ -36,8 +36,6 @@ public class U2FAttestationStatment implements FIDO2AttestationStatement {
     byte[] signature;
     ArrayList x5c = null;
     private final String attestationType = "basic";     //TODO support attca
-    String validataPkix = skfsCommon.getConfigurationProperty("skfs.cfg.property.pkix.validate");
-    String validataPkixMethod = skfsCommon.getConfigurationProperty("skfs.cfg.property.pkix.validate.method");
 
     @Override
     public void decodeAttestationStatement(Object attestationStmt) {
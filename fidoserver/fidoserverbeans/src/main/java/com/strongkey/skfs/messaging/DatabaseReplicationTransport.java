@@ -0,0 +1,75 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.messaging;
+
+import com.strongkey.replication.entitybeans.Replication;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * Default transport, for nodes sharing a database: the outbox rows are the
+ * delivery, so publishing is a no-op and receiving reads the published rows
+ * of the other nodes after the last applied one.
+ */
+public class DatabaseReplicationTransport implements ReplicationTransport {
+
+    private final EntityManager em;
+    private final short ssid;
+
+    /**
+     * @param em - entity manager of the caller; only used from its
+     * transactions
+     * @param ssid - server id of this node
+     */
+    public DatabaseReplicationTransport(EntityManager em, short ssid) {
+        this.em = em;
+        this.ssid = ssid;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void setPeers(Collection<String> peers) {
+    }
+
+    @Override
+    public long publish(List<Replication> events, long delivered) {
+        return events.isEmpty() ? delivered : events.get(events.size() - 1).getSeqno();
+    }
+
+    @Override
+    public List<Replication> receive(Map<Short, Long> applied, int max) {
+        List<Replication> events = new ArrayList<>();
+        List<Short> sources = em.createNamedQuery("Replication.findSources", Short.class)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .getResultList();
+        for (Short source : sources) {
+            if (source == ssid) {
+                continue;
+            }
+            Long seqno = applied.get(source);
+            TypedQuery<Replication> q = em.createNamedQuery("Replication.findAfter", Replication.class);
+            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+            q.setParameter("ssid", source);
+            q.setParameter("seqno", (seqno == null) ? 0L : seqno);
+            q.setMaxResults(max);
+            events.addAll(q.getResultList());
+        }
+        return events;
+    }
+
+    @Override
+    public void stop() {
+    }
+}
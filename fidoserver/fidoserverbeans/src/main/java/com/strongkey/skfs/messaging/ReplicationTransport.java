@@ -0,0 +1,53 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.messaging;
+
+import com.strongkey.replication.entitybeans.Replication;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How replicationService moves outbox rows between nodes. Delivery is at
+ * least once; the service drops events it has already applied, so a
+ * transport may deliver an event more than once.
+ */
+public interface ReplicationTransport {
+
+    /**
+     * Called once, before any other method
+     */
+    void start() throws IOException;
+
+    /**
+     * Called from time to time with the active subscribers in SERVERS
+     *
+     * @param peers - fqdns of the other nodes
+     */
+    void setPeers(Collection<String> peers);
+
+    /**
+     * Delivers the events of this node to the other nodes
+     *
+     * @param events - consecutive events of this node, in seqno order
+     * @param delivered - seqno up to which events were already delivered
+     * @return seqno up to which events have now been delivered to every peer
+     */
+    long publish(List<Replication> events, long delivered);
+
+    /**
+     * @param applied - seqno up to which the events of each other node have
+     * been applied here
+     * @param max - maximum number of events to return per node
+     * @return events of other nodes received since the last call
+     */
+    List<Replication> receive(Map<Short, Long> applied, int max);
+
+    void stop();
+}
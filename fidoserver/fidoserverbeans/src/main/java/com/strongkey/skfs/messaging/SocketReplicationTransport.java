@@ -0,0 +1,393 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.messaging;
+
+import com.strongkey.crypto.interfaces.initCryptoModule;
+import com.strongkey.crypto.utility.CryptoException;
+import com.strongkey.replication.entitybeans.Replication;
+import com.strongkey.replication.entitybeans.ReplicationPK;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Pushes the events of this node straight to the other nodes over TCP, so
+ * peers see changes as soon as they are published instead of at their next
+ * database poll, and do not query the outbox at all.
+ *
+ * A connection starts with a challenge: the receiver sends a random nonce
+ * and the sender must answer with its HMAC-SHA256 under a secret key from the
+ * signing keystore, which every node must hold, within the timeout; nothing
+ * else is read from a connection until then. A batch is then sent as frames
+ * of at most MAX_FRAME bytes: the length of the body, the body (JSON: the
+ * source ssid and its events) and an HMAC-SHA256 of the body. The receiver
+ * answers with one byte once the events are queued. At most MAX_CONNECTIONS
+ * connections are served at a time; others are closed at once.
+ *
+ * Each peer has its own delivery position; a peer that cannot be reached gets
+ * the events again when it comes back, as long as they are still in the
+ * outbox.
+ */
+public class SocketReplicationTransport implements ReplicationTransport {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = SocketReplicationTransport.class.getName();
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAX_FRAME = 1024 * 1024;
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int NONCE_LENGTH = 32;
+    private static final byte ACK = 1;
+
+    private final short ssid;
+    private final int port;
+    private final String keyalias;
+    private final String password;
+    private final int timeout;
+
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final ConcurrentLinkedQueue<Replication> received = new ConcurrentLinkedQueue<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile ServerSocket server;
+    private volatile ThreadPoolExecutor readers;
+
+    /**
+     * @param ssid - server id of this node
+     * @param port - port to listen on, and of the peers
+     * @param keyalias - alias of the HMAC key in the signing keystore
+     * @param password - password of the signing keystore
+     * @param timeout - connect and read timeout in milliseconds
+     */
+    public SocketReplicationTransport(short ssid, int port, String keyalias, String password, int timeout) {
+        this.ssid = ssid;
+        this.port = port;
+        this.keyalias = keyalias;
+        this.password = password;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void start() throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        readers = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "SKFS-replication-read");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "SKFS-replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public synchronized void setPeers(Collection<String> fqdns) {
+        for (Peer p : peers.values()) {
+            if (!fqdns.contains(p.fqdn)) {
+                p.close();
+            }
+        }
+        peers.keySet().retainAll(fqdns);
+        for (String fqdn : fqdns) {
+            if (!peers.containsKey(fqdn)) {
+                peers.put(fqdn, new Peer(fqdn));
+            }
+        }
+    }
+
+    @Override
+    public synchronized long publish(List<Replication> events, long delivered) {
+        if (events.isEmpty()) {
+            return delivered;
+        }
+        long last = events.get(events.size() - 1).getSeqno();
+        long min = last;
+        for (Peer p : peers.values()) {
+            if (p.delivered < 0) {
+                p.delivered = delivered;
+            }
+            if (p.delivered < last) {
+                List<Replication> pending = new ArrayList<>();
+                for (Replication r : events) {
+                    if (r.getSeqno() > p.delivered) {
+                        pending.add(r);
+                    }
+                }
+                try {
+                    send(p, pending);
+                } catch (IOException | CryptoException ex) {
+                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "publish", "FIDO-ERR-0050",
+                            p.fqdn + ":" + port + " " + ex.getLocalizedMessage());
+                    p.close();
+                }
+            }
+            min = Math.min(min, p.delivered);
+        }
+        return min;
+    }
+
+    @Override
+    public List<Replication> receive(Map<Short, Long> applied, int max) {
+        List<Replication> events = new ArrayList<>();
+        Replication r;
+        while ((r = received.poll()) != null) {
+            events.add(r);
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void stop() {
+        for (Peer p : peers.values()) {
+            p.close();
+        }
+        peers.clear();
+        if (readers != null) {
+            readers.shutdownNow();
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "stop", "FIDO-MSG-0063", ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Sends the events in as many frames as needed to keep each under
+     * MAX_FRAME, advancing the delivery position of the peer after each
+     */
+    private void send(Peer p, List<Replication> events) throws IOException, CryptoException {
+        byte[] frame = frame(events);
+        if (frame.length > MAX_FRAME) {
+            if (events.size() == 1) {
+                throw new IOException("event " + events.get(0).getSeqno() + " larger than " + MAX_FRAME + " bytes");
+            }
+            int half = events.size() / 2;
+            send(p, events.subList(0, half));
+            send(p, events.subList(half, events.size()));
+            return;
+        }
+        p.send(frame);
+        p.delivered = events.get(events.size() - 1).getSeqno();
+    }
+
+    private byte[] frame(List<Replication> events) throws IOException, CryptoException {
+        JsonArrayBuilder jab = Json.createArrayBuilder();
+        for (Replication r : events) {
+            jab.add(Json.createObjectBuilder()
+                    .add("rpid", r.getReplicationPK().getRpid())
+                    .add("seqno", r.getSeqno())
+                    .add("objectype", r.getObjectype())
+                    .add("objectop", r.getObjectop())
+                    .add("objectpk", r.getObjectpk())
+                    .add("objectdata", (r.getObjectdata() == null) ? "" : r.getObjectdata())
+                    .add("created", r.getCreateDate().getTime()));
+        }
+        String body = Json.createObjectBuilder().add("ssid", ssid).add("events", jab).build().toString();
+        String mac = initCryptoModule.getCryptoModule().macDBRow(password, keyalias, MAC_ALGORITHM, body);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length() + 64);
+        DataOutputStream out = new DataOutputStream(baos);
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeUTF(mac);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                if (!server.isClosed()) {
+                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "accept", "FIDO-ERR-0050", ex.getLocalizedMessage());
+                }
+                continue;
+            }
+            try {
+                readers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        read(socket);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "accept", "FIDO-ERR-0050",
+                        "too many connections, closing " + socket.getInetAddress().getHostAddress());
+                try {
+                    socket.close();
+                } catch (IOException ioe) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Challenges the peer, then reads frames from it until it disconnects or
+     * sends a frame that fails verification
+     */
+    private void read(Socket socket) {
+        try (Socket s = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+            s.setSoTimeout(timeout);
+            byte[] nonce = new byte[NONCE_LENGTH];
+            random.nextBytes(nonce);
+            out.write(nonce);
+            out.flush();
+            if (!initCryptoModule.getCryptoModule().verifyDBRowMac(password, keyalias, MAC_ALGORITHM, challenge(nonce), in.readUTF())) {
+                throw new IOException("invalid challenge answer from " + s.getInetAddress().getHostAddress());
+            }
+            //  authenticated peers keep their connection open between batches
+            s.setSoTimeout(0);
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                String mac = in.readUTF();
+                String body = new String(bytes, StandardCharsets.UTF_8);
+                if (!initCryptoModule.getCryptoModule().verifyDBRowMac(password, keyalias, MAC_ALGORITHM, body, mac)) {
+                    throw new IOException("invalid frame mac from " + s.getInetAddress().getHostAddress());
+                }
+                received.addAll(parse(body));
+                out.writeByte(ACK);
+                out.flush();
+            }
+        } catch (EOFException | SocketException ex) {
+            // Peer went away
+        } catch (IOException | CryptoException | JsonException | ClassCastException | NullPointerException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "read", "FIDO-ERR-0050", ex.getLocalizedMessage());
+        }
+    }
+
+    private static String challenge(byte[] nonce) {
+        return "replication " + Base64.getEncoder().encodeToString(nonce);
+    }
+
+    private static List<Replication> parse(String body) {
+        JsonObject frame;
+        try (JsonReader reader = Json.createReader(new StringReader(body))) {
+            frame = reader.readObject();
+        }
+        short source = (short) frame.getInt("ssid");
+        JsonArray array = frame.getJsonArray("events");
+        List<Replication> events = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            JsonObject e = array.getJsonObject(i);
+            Replication r = new Replication(new ReplicationPK(source, e.getJsonNumber("rpid").longValue()),
+                    e.getInt("objectype"), e.getInt("objectop"), e.getString("objectpk"),
+                    e.getString("objectdata"), new Date(e.getJsonNumber("created").longValue()));
+            r.setSeqno(e.getJsonNumber("seqno").longValue());
+            events.add(r);
+        }
+        return events;
+    }
+
+    /**
+     * Connection to one peer and the seqno up to which it has acknowledged
+     * this node's events, -1 until the first publish
+     */
+    private class Peer {
+
+        private final String fqdn;
+        private long delivered = -1;
+        private Socket socket;
+        private DataInputStream in;
+        private BufferedOutputStream out;
+
+        Peer(String fqdn) {
+            this.fqdn = fqdn;
+        }
+
+        void send(byte[] frame) throws IOException, CryptoException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(fqdn, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+                byte[] nonce = new byte[NONCE_LENGTH];
+                in.readFully(nonce);
+                DataOutputStream answer = new DataOutputStream(out);
+                answer.writeUTF(initCryptoModule.getCryptoModule().macDBRow(password, keyalias, MAC_ALGORITHM, challenge(nonce)));
+                answer.flush();
+            }
+            out.write(frame);
+            out.flush();
+            if (in.readByte() != ACK) {
+                throw new IOException("unexpected answer");
+            }
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // Already closed
+                }
+                socket = null;
+            }
+        }
+    }
+}
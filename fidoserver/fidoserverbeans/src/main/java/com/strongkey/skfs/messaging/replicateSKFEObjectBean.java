@@ -0,0 +1,105 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.messaging;
+
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.replication.entitybeans.Replication;
+import com.strongkey.replication.entitybeans.ReplicationPK;
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.entitybeans.AttestationCertificates;
+import com.strongkey.skfs.txbeans.SequenceGeneratorBeanLocal;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.Date;
+import java.util.logging.Level;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Writes changes to replicated objects to the REPLICATION outbox, in the
+ * transaction of the caller, so a change and its replication event are
+ * committed or rolled back together. replicationService delivers the events
+ * to the other nodes.
+ *
+ * Session map operations are not written: sessions are local to the node
+ * that issued the challenge, or carried in sealed challenges.
+ */
+@Stateless
+public class replicateSKFEObjectBean implements replicateSKFEObjectBeanLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EJB
+    SequenceGeneratorBeanLocal seqgenejb;
+
+    /**
+     * @return null if the change was written to the outbox or is not
+     * replicated, an error message otherwise
+     */
+    @Override
+    public String execute(Integer entityType, Integer replicationOperation, String primarykey, Object obj) {
+        switch (entityType) {
+            case applianceConstants.ENTITY_TYPE_FIDO_KEYS:
+            case applianceConstants.ENTITY_TYPE_FIDO_USERS:
+            case applianceConstants.ENTITY_TYPE_FIDO_POLICIES:
+            case applianceConstants.ENTITY_TYPE_ATTESTATION_CERTIFICATES:
+            case applianceConstants.ENTITY_TYPE_DOMAINS:
+                break;
+            default:
+                return null;
+        }
+
+        try {
+            Long rpid = seqgenejb.nextReplicationID();
+            if (rpid == null) {
+                return "no replication id";
+            }
+            ReplicationPK pk = new ReplicationPK(applianceCommon.getServerId().shortValue(), rpid);
+            em.persist(new Replication(pk, entityType, replicationOperation, primarykey, objectdata(obj), new Date()));
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDO-MSG-0063",
+                    applianceCommon.getEntityName(entityType) + " " + applianceCommon.getRepop(replicationOperation)
+                    + " pk=" + primarykey + " rpid=" + rpid);
+            return null;
+        } catch (RuntimeException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDO-ERR-0050", ex.getLocalizedMessage());
+            return ex.getLocalizedMessage();
+        }
+    }
+
+    /**
+     * The fields peers need to update their caches that are not in the
+     * primary key
+     */
+    private static String objectdata(Object obj) {
+        JsonObjectBuilder job = Json.createObjectBuilder();
+        if (obj instanceof FidoKeys) {
+            FidoKeys fk = (FidoKeys) obj;
+            if (fk.getKeyhandle() != null) {
+                job.add("keyhandle", fk.getKeyhandle());
+            }
+        } else if (obj instanceof AttestationCertificates) {
+            AttestationCertificates ac = (AttestationCertificates) obj;
+            if (ac.getIssuerDn() != null && ac.getSerialNumber() != null) {
+                job.add("issuerdn", ac.getIssuerDn()).add("serialnumber", ac.getSerialNumber());
+            }
+        }
+        return job.build().toString();
+    }
+}
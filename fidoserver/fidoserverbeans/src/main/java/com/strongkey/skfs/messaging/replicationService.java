@@ -0,0 +1,470 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.messaging;
+
+import com.strongkey.appliance.entitybeans.Domains;
+import com.strongkey.appliance.entitybeans.Servers;
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.appliance.utilities.applianceMaps;
+import com.strongkey.replication.entitybeans.Replication;
+import com.strongkey.skce.pojos.MDSClient;
+import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.entitybeans.FidoPolicies;
+import com.strongkey.skfs.fido.policyobjects.FidoPolicyObject;
+import com.strongkey.skfs.policybeans.getFidoPolicyLocal;
+import com.strongkey.skfs.pojos.FidoPolicyMDSObject;
+import com.strongkey.skfs.txbeans.getDomainsBeanLocal;
+import com.strongkey.skfs.txbeans.getServerBeanLocal;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.RelyingPartyContext;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+/**
+ * Delivers the REPLICATION outbox between nodes and applies the changes of
+ * the other nodes to the local caches, so they stay coherent without being
+ * re-read from the database on every request.
+ *
+ * Each run numbers this node's newly committed events (seqno), in a
+ * transaction of its own, publishes the next batch of them through the
+ * configured transport (skfs.cfg.property.replication.transport: database,
+ * the default, or socket) and applies the events received from the others,
+ * per source node in seqno order. Events of transactions in flight or rolled
+ * back are not numbered, so they never hold back the others; a missing seqno
+ * only means a lost delivery, and events after it are held back until it
+ * shows up, or until skfs.cfg.property.replication.gap.timeout.seconds.
+ * Applying an event only invalidates or reloads cache entries, so an event
+ * delivered twice is harmless; an event that fails to apply is logged and
+ * skipped rather than holding back its source.
+ *
+ * The timer runs outside any transaction, as applying a policy may fetch MDS
+ * metadata over the network; numbering and pruning run in transactions of
+ * their own.
+ *
+ * Nothing runs while replication is off, which is always the case on a
+ * standalone FIDO engine (see startServices).
+ */
+@Singleton
+@Startup
+public class replicationService {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    private static final long PEERS_REFRESH_MILLIS = 60000L;
+    private static final long PRUNE_MILLIS = 3600000L;
+
+    @Resource
+    private TimerService timerService;
+    @Resource
+    private SessionContext sc;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EJB
+    getFidoPolicyLocal getpolicyejb;
+    @EJB
+    getDomainsBeanLocal getdomejb;
+    @EJB
+    getServerBeanLocal getserverejb;
+
+    private ReplicationTransport transport;
+    private short ssid;
+    private int batchsize;
+    private long gapTimeoutMillis;
+    private long retentionMillis;
+
+    //  last seqno given to an event of this node
+    private long numbered;
+    //  seqno up to which this node's events have been delivered
+    private long published;
+    //  seqno up to which the events of each other node have been applied
+    private final Map<Short, Long> applied = new HashMap<>();
+    //  events received ahead of a missing seqno, per source
+    private final Map<Short, TreeMap<Long, Replication>> pending = new HashMap<>();
+    //  when a missing seqno was first noticed, per source
+    private final Map<Short, Long> gapSince = new HashMap<>();
+
+    private long lastPeersRefresh = 0L;
+    private long lastPrune = 0L;
+    private long appliedCount = 0L;
+
+    @PostConstruct
+    public void initialize() {
+        long frequency;
+        try {
+            frequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.frequency.millis"));
+            batchsize = Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.batchsize"));
+            gapTimeoutMillis = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.gap.timeout.seconds")) * 1000L;
+            retentionMillis = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.retention.hours")) * 3600000L;
+        } catch (NumberFormatException ex) {
+            frequency = 1000L;
+            batchsize = 500;
+            gapTimeoutMillis = 60000L;
+            retentionMillis = 86400000L;
+        }
+        if (frequency < 100L) {
+            frequency = 100L;
+        }
+        if (batchsize < 1) {
+            batchsize = 500;
+        }
+        timerService.createIntervalTimer(frequency, frequency, new TimerConfig(null, false));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (transport != null) {
+            transport.stop();
+        }
+    }
+
+    @Timeout
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void run() {
+        if (!applianceCommon.replicate()) {
+            return;
+        }
+        try {
+            if (transport == null) {
+                start();
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastPeersRefresh >= PEERS_REFRESH_MILLIS) {
+                refreshPeers();
+                lastPeersRefresh = now;
+            }
+            try {
+                sc.getBusinessObject(replicationService.class).number();
+            } catch (EJBException ex) {
+                //  rolled back; number the same events again next run
+                numbered = maxseqno(ssid);
+                throw ex;
+            }
+            publish();
+            receive(now);
+            if (now - lastPrune >= PRUNE_MILLIS) {
+                sc.getBusinessObject(replicationService.class).prune(now);
+                lastPrune = now;
+            }
+        } catch (IOException | RuntimeException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "run", "FIDO-ERR-0050", ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Starts from the current end of the outbox: the caches of a starting
+     * node are loaded from the database, which already has every change
+     */
+    private void start() throws IOException {
+        ssid = applianceCommon.getServerId().shortValue();
+        numbered = maxseqno(ssid);
+        published = numbered;
+        for (Short source : em.createNamedQuery("Replication.findSources", Short.class).getResultList()) {
+            if (source != ssid) {
+                applied.put(source, maxseqno(source));
+            }
+        }
+
+        ReplicationTransport t;
+        if ("socket".equalsIgnoreCase(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.transport"))) {
+            String password = "";
+            if (skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine").equalsIgnoreCase("true")) {
+                password = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
+            }
+            t = new SocketReplicationTransport(ssid,
+                    Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.socket.port")),
+                    skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.socket.keyalias"),
+                    password,
+                    Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.replication.socket.timeout.millis")));
+        } else {
+            t = new DatabaseReplicationTransport(em, ssid);
+        }
+        t.start();
+        transport = t;
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "start", "FIDO-MSG-0063",
+                t.getClass().getSimpleName() + " ssid=" + ssid + " published=" + published + " applied=" + applied);
+    }
+
+    private void refreshPeers() {
+        List<String> fqdns = new ArrayList<>();
+        try {
+            Collection<Servers> servers = getserverejb.byActiveSubscribers(applianceCommon.getHostname());
+            if (servers != null) {
+                for (Servers s : servers) {
+                    if (s.getSid().shortValue() != ssid) {
+                        fqdns.add(s.getFqdn());
+                    }
+                }
+            }
+        } catch (SKFEException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "refreshPeers", "FIDO-ERR-0050", ex.getLocalizedMessage());
+            return;
+        }
+        transport.setPeers(fqdns);
+    }
+
+    /**
+     * Numbers the committed events of this node that have no seqno yet, in
+     * rpid order, and commits the numbers before any is published. Rows of
+     * transactions still in flight are not visible yet and are numbered when
+     * they commit; rows of rolled back transactions never exist.
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void number() {
+        TypedQuery<Replication> q = em.createNamedQuery("Replication.findUnpublished", Replication.class);
+        q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        q.setParameter("ssid", ssid);
+        q.setMaxResults(batchsize);
+        long next = numbered;
+        for (Replication r : q.getResultList()) {
+            r.setSeqno(++next);
+        }
+        em.flush();
+        numbered = next;
+    }
+
+    private void publish() {
+        if (published >= numbered) {
+            return;
+        }
+        TypedQuery<Replication> q = em.createNamedQuery("Replication.findAfter", Replication.class);
+        q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        q.setParameter("ssid", ssid);
+        q.setParameter("seqno", published);
+        q.setMaxResults(batchsize);
+        published = transport.publish(q.getResultList(), published);
+    }
+
+    private void receive(long now) {
+        for (Replication r : transport.receive(applied, batchsize)) {
+            short source = r.getReplicationPK().getSsid();
+            Long last = applied.get(source);
+            if (source == ssid || r.getSeqno() == null || (last != null && r.getSeqno() <= last)) {
+                continue;
+            }
+            TreeMap<Long, Replication> queue = pending.get(source);
+            if (queue == null) {
+                queue = new TreeMap<>();
+                pending.put(source, queue);
+            }
+            queue.put(r.getSeqno(), r);
+        }
+
+        for (Map.Entry<Short, TreeMap<Long, Replication>> e : pending.entrySet()) {
+            Short source = e.getKey();
+            TreeMap<Long, Replication> queue = e.getValue();
+            Long last = applied.get(source);
+            long next = (last == null) ? 1L : last + 1;
+            Iterator<Map.Entry<Long, Replication>> it = queue.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Replication> q = it.next();
+                if (q.getKey() != next) {
+                    Long since = gapSince.get(source);
+                    if (since == null) {
+                        gapSince.put(source, now);
+                        break;
+                    }
+                    if (now - since < gapTimeoutMillis) {
+                        break;
+                    }
+                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "receive", "FIDO-ERR-0050",
+                            "skipping seqnos " + next + " to " + (q.getKey() - 1) + " of ssid " + source);
+                }
+                gapSince.remove(source);
+                try {
+                    apply(q.getValue());
+                } catch (RuntimeException ex) {
+                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "receive", "FIDO-ERR-0050",
+                            "cannot apply seqno " + q.getKey() + " of ssid " + source + ", skipped: " + ex);
+                }
+                applied.put(source, q.getKey());
+                next = q.getKey() + 1;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Updates the caches of this node for one change made on another node
+     */
+    private void apply(Replication r) {
+        String objectpk = r.getObjectpk();
+        String[] pk = objectpk.split("-");
+        JsonObject data = objectdata(r.getObjectdata());
+        appliedCount++;
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "apply", "FIDO-MSG-0063",
+                applianceCommon.getEntityName(r.getObjectype()) + " " + applianceCommon.getRepop(r.getObjectop())
+                + " pk=" + objectpk + " from " + r.getReplicationPK().getSsid() + "-" + r.getSeqno()
+                + " applied=" + appliedCount);
+        replicaWrite(r.getObjectype(), pk);
+
+        switch (r.getObjectype()) {
+            case applianceConstants.ENTITY_TYPE_FIDO_KEYS:
+                //  sid-did-username-fkid; the username may contain dashes
+                skceMaps.getMapObj().remove(skfsConstants.MAP_FIDO_KEYS, objectpk);
+                if (data.containsKey("keyhandle")) {
+                    CredentialCache.getInstance().invalidate(Long.parseLong(pk[1]), data.getString("keyhandle"));
+                }
+                break;
+
+            case applianceConstants.ENTITY_TYPE_FIDO_POLICIES:
+                applyPolicy(r.getObjectop(), objectpk, Long.parseLong(pk[0]), Long.parseLong(pk[1]), Long.parseLong(pk[2]));
+                break;
+
+            case applianceConstants.ENTITY_TYPE_DOMAINS:
+                Long did = Long.parseLong(pk[pk.length - 1]);
+                Domains d = (r.getObjectop() == applianceConstants.REPLICATION_OPERATION_DELETE) ? null : getdomejb.byDid(did);
+                if (d == null) {
+                    applianceMaps.removeDomain(did);
+                    RelyingPartyContext.remove(did);
+                } else {
+                    applianceMaps.putDomain(did, d);
+                    RelyingPartyContext.refresh(d);
+                }
+                break;
+
+            default:
+                //  FIDO_USERS rows are not cached
+                break;
+        }
+    }
+
+    /**
+     * Keeps lookups of what another node changed on the primary for the
+     * read-your-writes window, in case the read replica is behind
+     */
+    private static void replicaWrite(int objectype, String[] pk) {
+        switch (objectype) {
+            case applianceConstants.ENTITY_TYPE_FIDO_KEYS:
+                //  sid-did-username-fkid
+                ReadReplica.recordWrite(Long.parseLong(pk[1]), String.join("-", Arrays.copyOfRange(pk, 2, pk.length - 1)));
+                break;
+            case applianceConstants.ENTITY_TYPE_FIDO_USERS:
+                //  sid-did-username
+                ReadReplica.recordWrite(Long.parseLong(pk[1]), String.join("-", Arrays.copyOfRange(pk, 2, pk.length)));
+                break;
+            default:
+                ReadReplica.recordWrite(Long.parseLong(pk[(objectype == applianceConstants.ENTITY_TYPE_DOMAINS) ? pk.length - 1 : 1]), null);
+                break;
+        }
+    }
+
+    private void applyPolicy(int op, String mapkey, Long sid, Long did, Long pid) {
+        FidoPolicies fp = (op == applianceConstants.REPLICATION_OPERATION_DELETE) ? null : getpolicyejb.getbyPK(did, sid, pid);
+        if (fp == null || !"Active".equalsIgnoreCase(fp.getStatus())) {
+            skceMaps.getMapObj().remove(skfsConstants.MAP_FIDO_POLICIES, mapkey);
+            return;
+        }
+        try {
+            FidoPolicyObject fidoPolicyObject = FidoPolicyObject.parse(
+                    fp.getPolicy(),
+                    fp.getVersion(),
+                    did,
+                    sid,
+                    pid,
+                    fp.getStartDate(),
+                    fp.getEndDate());
+            MDSClient mds = null;
+            if (fidoPolicyObject.getMdsOptions() != null) {
+                mds = skfsCommon.newMDS(did, fidoPolicyObject.getMdsOptions().getEndpoints());
+            }
+            skceMaps.getMapObj().put(skfsConstants.MAP_FIDO_POLICIES, mapkey, new FidoPolicyMDSObject(fidoPolicyObject, mds));
+        } catch (SKFEException ex) {
+            skceMaps.getMapObj().remove(skfsConstants.MAP_FIDO_POLICIES, mapkey);
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "applyPolicy", "FIDO-ERR-0050", "policy " + mapkey + ": " + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Deletes published events older than the retention period, keeping the
+     * last event of each node so that its rpid and seqno sequences resume
+     * after it
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void prune(long now) {
+        Date cutoff = new Date(now - retentionMillis);
+        int deleted = 0;
+        for (Short source : em.createNamedQuery("Replication.findSources", Short.class).getResultList()) {
+            deleted += em.createNamedQuery("Replication.deleteBefore")
+                    .setParameter("ssid", source)
+                    .setParameter("rpid", maxrpid(source))
+                    .setParameter("seqno", maxseqno(source))
+                    .setParameter("createDate", cutoff)
+                    .executeUpdate();
+        }
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "prune", "FIDO-MSG-0063", "pruned=" + deleted);
+    }
+
+    private long maxrpid(Short source) {
+        Long max = em.createNamedQuery("Replication.maxrpid", Long.class)
+                .setParameter("ssid", source)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .getSingleResult();
+        return (max == null) ? 0L : max;
+    }
+
+    private long maxseqno(Short source) {
+        Long max = em.createNamedQuery("Replication.maxseqno", Long.class)
+                .setParameter("ssid", source)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .getSingleResult();
+        return (max == null) ? 0L : max;
+    }
+
+    private static JsonObject objectdata(String objectdata) {
+        if (objectdata == null || objectdata.isEmpty()) {
+            return Json.createObjectBuilder().build();
+        }
+        try (JsonReader reader = Json.createReader(new StringReader(objectdata))) {
+            return reader.readObject();
+        } catch (JsonException ex) {
+            return Json.createObjectBuilder().build();
+        }
+    }
+}
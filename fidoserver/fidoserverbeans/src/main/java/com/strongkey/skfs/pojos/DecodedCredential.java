@@ -0,0 +1,66 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.pojos;
+
+import java.security.PublicKey;
+
+/**
+ * A FIDO key with its public key and registration settings already decoded,
+ * ready to verify an assertion.
+ */
+public class DecodedCredential {
+    private final Short sid;
+    private final Long fkid;
+    private final PublicKey publicKey;
+    private final String signatureAlgorithm;
+    private final Short transports;
+    private final RegistrationSettings registrationSettings;
+    private final int size;
+
+    public DecodedCredential(Short sid, Long fkid, PublicKey publicKey, String signatureAlgorithm,
+            Short transports, RegistrationSettings registrationSettings, int size) {
+        this.sid = sid;
+        this.fkid = fkid;
+        this.publicKey = publicKey;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.transports = transports;
+        this.registrationSettings = registrationSettings;
+        this.size = size;
+    }
+
+    public Short getSid() {
+        return sid;
+    }
+
+    public Long getFkid() {
+        return fkid;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public Short getTransports() {
+        return transports;
+    }
+
+    public RegistrationSettings getRegistrationSettings() {
+        return registrationSettings;
+    }
+
+    /**
+     * @return approximate number of bytes held by this object
+     */
+    public int getSize() {
+        return size;
+    }
+}
@@ -8,71 +8,114 @@
 package com.strongkey.skfs.pojos;
 
 import com.strongkey.skfs.utilities.skfsConstants;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import javax.json.Json;
-import javax.json.JsonObject;
+import javax.json.JsonStructure;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 
 /**
  * POJO to bind the fido web services' response being sent back to the calling
  * application.
+ *
+ * The response is either a message or a Json structure, kept as built; the
+ * REST layer writes it straight to the HTTP output stream with writeTo, so the
+ * structure is serialized once and never embedded as a string.
  */
 public class FIDOReturnObject {
-      
+
+    // Json.createGenerator looks the provider up on every call
+    private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+
     /**
      * Local variables
      */
     private String response = "";
-       
+    private JsonStructure json = null;
+
     /**
      * Constructor of this class.
-     * 
+     *
      * @param response
      */
     public FIDOReturnObject(String response) {
-        
+
         if (response != null) {
             this.response = response;
         }
     }
 
+    /**
+     * @param json - Json object or array returned as the value of the
+     * response key
+     */
+    public FIDOReturnObject(JsonStructure json) {
+        this.json = json;
+    }
+
     public String getResponse() {
         return response;
     }
 
     public void setResponse(String response) {
         this.response = response;
+        this.json = null;
+    }
+
+    public JsonStructure getJson() {
+        return json;
     }
-            
+
     /**
-     * Over-ridden toString method to print the object content in a readable 
+     * Over-ridden toString method to print the object content in a readable
      * manner
-     * @return  String with object content laid in a readable manner. 
+     * @return  String with object content laid in a readable manner.
      */
     @Override
     public String toString() {
-        return "\n\tresponse    = " + this.response;
+        return "\n\tresponse    = " + ((json == null) ? this.response : json.toString());
+    }
+
+    /**
+     * Writes this object as a Json; the caller flushes or closes the
+     * generator.
+     *
+     * @param generator
+     */
+    public void writeTo(JsonGenerator generator) {
+        generator.writeStartObject();
+        if (json == null) {
+            generator.write(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, (response == null) ? "" : response);
+        } else {
+            generator.write(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, json);
+        }
+        generator.writeEnd();
     }
-    
+
+    /**
+     * Writes this object as a Json in UTF-8 and flushes it; the stream is
+     * left open for the caller.
+     *
+     * @param out
+     */
+    public void writeTo(OutputStream out) {
+        JsonGenerator generator = GENERATORS.createGenerator(out, StandardCharsets.UTF_8);
+        writeTo(generator);
+        generator.flush();
+    }
+
     /**
      * Constructs this class object as a Json to be passed back to the client.
-     * 
+     *
      * @return  - String object of the Json representation of this object
      */
     public String toJsonString() {
-        
-        if ( response == null ) {
-            response = "";
+        StringWriter sw = new StringWriter();
+        try (JsonGenerator generator = GENERATORS.createGenerator(sw)) {
+            writeTo(generator);
         }
-        
-        // Build the output json object
-        JsonObject responseJSON = null;
-        
-        responseJSON = Json.createObjectBuilder()
-        .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, response)
-        .build();   
-        
-        if ( responseJSON != null )
-            return responseJSON.toString();
-        else
-            return null;
+        return sw.toString();
     }
 }
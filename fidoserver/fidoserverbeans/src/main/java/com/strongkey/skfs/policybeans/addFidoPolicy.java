@@ -9,6 +9,7 @@ package com.strongkey.skfs.policybeans;
 
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skce.pojos.MDSClient;
 import com.strongkey.skfs.fido.policyobjects.FidoPolicyObject;
@@ -21,7 +22,6 @@ import com.strongkey.skfs.entitybeans.FidoPoliciesPK;
 import com.strongkey.skfs.txbeans.SequenceGeneratorBeanLocal;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
 import com.strongkey.skfs.pojos.FidoPolicyMDSObject;
-import com.strongkey.fido2mds.MDS;
 import java.util.Base64;
 import java.util.Date;
 import java.util.logging.Level;
@@ -83,6 +83,7 @@ public class addFidoPolicy implements addFidoPolicyLocal {
         try {
             em.persist(fidopolicy);
             em.flush();
+            ReadReplica.recordWrite(did, null);
             em.clear();
         } catch (PersistenceException ex) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDOJPA-ERR-2006", ex.getLocalizedMessage());
@@ -117,7 +118,7 @@ public class addFidoPolicy implements addFidoPolicyLocal {
                 endDate);
         MDSClient mds = null;
         if (fidoPolicyObject.getMdsOptions() != null) {
-            mds = new MDS(fidoPolicyObject.getMdsOptions().getEndpoints());
+            mds = skfsCommon.newMDS(did, fidoPolicyObject.getMdsOptions().getEndpoints());
         }
         skceMaps.getMapObj().put(skfsConstants.MAP_FIDO_POLICIES, fpMapkey, new FidoPolicyMDSObject(fidoPolicyObject, mds));
 
@@ -13,10 +13,10 @@ import com.strongkey.skfs.entitybeans.FidoPolicies;
 import com.strongkey.skfs.entitybeans.FidoPoliciesPK;
 import com.strongkey.skfs.fido.policyobjects.FidoPolicyObject;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
 import com.strongkey.skfs.pojos.FidoPolicyMDSObject;
-import com.strongkey.fido2mds.MDS;
 import java.util.Collection;
 import java.util.logging.Level;
 import javax.annotation.PostConstruct;
@@ -48,7 +48,7 @@ public class cachePolicies {
                 
                 MDSClient mds = null;
                 if(fidoPolicyObject.getMdsOptions() != null){
-                    mds = new MDS(fidoPolicyObject.getMdsOptions().getEndpoints());
+                    mds = skfsCommon.newMDS((long) fpPK.getDid(), fidoPolicyObject.getMdsOptions().getEndpoints());
                 }
                  
                 String mapkey = fpPK.getSid() + "-" + fpPK.getDid() + "-" + fpPK.getPid();
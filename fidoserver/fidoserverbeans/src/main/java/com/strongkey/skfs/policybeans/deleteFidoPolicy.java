@@ -9,6 +9,7 @@ package com.strongkey.skfs.policybeans;
 
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.SKFEException;
 import com.strongkey.skfs.utilities.skfsCommon;
@@ -52,6 +53,7 @@ public class deleteFidoPolicy implements deleteFidoPolicyLocal {
 
         em.remove(policy);
         em.flush();
+        ReadReplica.recordWrite(did, null);
 
         //Replicate
         String primarykey = sid + "-" + did + "-" + pid;
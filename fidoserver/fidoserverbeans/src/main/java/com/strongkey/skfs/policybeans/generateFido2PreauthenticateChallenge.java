@@ -16,6 +16,7 @@ import com.strongkey.skfs.utilities.SKFEException;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.core.SealedChallenge;
 import com.strongkey.skfs.core.U2FUtility;
 import com.strongkey.skfs.fido.policyobjects.AuthenticationPolicyOptions;
 import com.strongkey.skfs.fido.policyobjects.CryptographyPolicyOptions;
@@ -30,6 +31,7 @@ import com.strongkey.skfs.txbeans.getFidoKeysLocal;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.logging.Level;
 import javax.ejb.EJB;
@@ -100,22 +102,37 @@ public class generateFido2PreauthenticateChallenge implements generateFido2Preau
                 returnObjectBuilder.add(skfsConstants.FIDO2_PREAUTH_ATTR_EXTENSIONS, extensionsJson);
             }
 
-            //Place challenge in map.
-            for(FidoKeys fk : fks){
-                String KHHash = skfsCommon.getDigest(fk.getKeyhandle(), "SHA-256");
+            if (SealedChallenge.isEnabled()) {
+                //Seal the session into the challenge instead of placing one per key in the map.
                 UserSessionInfo session = new UserSessionInfo(username,
-                        challenge, fk.getAppid(), skfsConstants.FIDO_USERSESSION_AUTH, fk.getPublickey(), "");
-                session.setFkid(fk.getFidoKeysPK().getFkid());
-                session.setSkid(fk.getFidoKeysPK().getSid());
+                        challenge, null, skfsConstants.FIDO_USERSESSION_AUTH, "", "");
                 session.setSid(applianceCommon.getServerId().shortValue());
                 session.setuserVerificationReq(userVerificationPref);
                 session.setPolicyMapKey(fidoPolicy.getPolicyMapKey());
-                skceMaps.getMapObj().put(skfsConstants.MAP_USER_SESSION_INFO, KHHash, session);
+                Collection<String> keyhandles = new ArrayList<>();
+                for (FidoKeys fk : fks) {
+                    keyhandles.add(fk.getKeyhandle());
+                }
+                returnObjectBuilder.add(skfsConstants.FIDO2_PREAUTH_ATTR_CHALLENGE,
+                        SealedChallenge.forAuthentication(did, session, rpId, keyhandles).seal());
+            } else {
+                //Place challenge in map.
+                for(FidoKeys fk : fks){
+                    String KHHash = skfsCommon.getDigest(fk.getKeyhandle(), "SHA-256");
+                    UserSessionInfo session = new UserSessionInfo(username,
+                            challenge, fk.getAppid(), skfsConstants.FIDO_USERSESSION_AUTH, fk.getPublickey(), "");
+                    session.setFkid(fk.getFidoKeysPK().getFkid());
+                    session.setSkid(fk.getFidoKeysPK().getSid());
+                    session.setSid(applianceCommon.getServerId().shortValue());
+                    session.setuserVerificationReq(userVerificationPref);
+                    session.setPolicyMapKey(fidoPolicy.getPolicyMapKey());
+                    skceMaps.getMapObj().put(skfsConstants.MAP_USER_SESSION_INFO, KHHash, session);
 
-                //replicate map to other server
-                session.setMapkey(KHHash);
-                if (applianceCommon.replicate()) {
-                    replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO, applianceConstants.REPLICATION_OPERATION_HASHMAP_ADD, applianceCommon.getServerId().toString(), session);
+                    //replicate map to other server
+                    session.setMapkey(KHHash);
+                    if (applianceCommon.replicate()) {
+                        replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO, applianceConstants.REPLICATION_OPERATION_HASHMAP_ADD, applianceCommon.getServerId().toString(), session);
+                    }
                 }
             }
 
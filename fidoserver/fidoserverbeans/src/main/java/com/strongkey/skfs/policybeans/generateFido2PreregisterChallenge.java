@@ -9,7 +9,7 @@ package com.strongkey.skfs.policybeans;
 
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
-import com.strongkey.appliance.utilities.applianceMaps;
+import com.strongkey.skfs.utilities.RelyingPartyContext;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfe.entitybeans.FidoKeys;
 import com.strongkey.skfs.fido.policyobjects.AuthenticatorSelection;
@@ -22,6 +22,7 @@ import com.strongkey.skfs.utilities.SKFEException;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.core.SealedChallenge;
 import com.strongkey.skfs.core.U2FUtility;
 import com.strongkey.skfs.fido.policyobjects.ExtensionsPolicyOptions;
 import com.strongkey.skfs.fido.policyobjects.extensions.Fido2Extension;
@@ -78,7 +79,7 @@ public class generateFido2PreregisterChallenge implements generateFido2Preregist
         RegistrationPolicyOptions regOp = fidoPolicy.getRegistrationOptions();
         String userId = getUserId(did, username, regOp.getUseridLength());
         String challenge = generateChallenge(fidoPolicy.getCryptographyOptions());
-        String origin = applianceMaps.getDomain(Long.parseLong(String.valueOf(did))).getSkfeAppid();    //TODO verify this origin (https://demo.strongkey.com) == appid (https://demo.strongkey.com/app.json from config file) in all our logic. 
+        String origin = RelyingPartyContext.get(did).getAppid();    //TODO verify this origin (https://demo.strongkey.com) == appid (https://demo.strongkey.com/app.json from config file) in all our logic. 
                                                                                                         //Issue: webauthn specifies origin == rpid (demo.strongkey.com, https://demo.strongkey.com:8181, https://demo.strongkey.com are all valid)
                                                                                                         //However rpid is optional and is stored in the policy file, defaulting to the rp's "effective domain"
                                                                                                         //if not supplied.
@@ -120,8 +121,6 @@ public class generateFido2PreregisterChallenge implements generateFido2Preregist
             returnObjectBuilder.add(skfsConstants.FIDO2_PREAUTH_ATTR_EXTENSIONS, extensionsJson);
         }
         
-        JsonObject returnObject = returnObjectBuilder.build();
-        
         //Store registration challenge info (TODO change UserSessionInfo to builder pattern)
         String userVerificationReq = (authSelect != null) ? authSelect.getString(skfsConstants.FIDO2_ATTR_USERVERIFICATION, null) : null;
         UserSessionInfo session = new UserSessionInfo(username, challenge, 
@@ -134,17 +133,29 @@ public class generateFido2PreregisterChallenge implements generateFido2Preregist
         session.setuserVerificationReq(userVerificationReq);
         session.setAttestationPreferance(attestPref);
         session.setPolicyMapKey(fidoPolicy.getPolicyMapKey());
-        skceMaps.getMapObj().put(skfsConstants.MAP_USER_SESSION_INFO, nonceHash, session);
-        session.setMapkey(nonceHash);
-        
-        //Replicate stored registration info
-        try {
-            if (applianceCommon.replicate()) {
-                replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO, applianceConstants.REPLICATION_OPERATION_HASHMAP_ADD, applianceCommon.getServerId().toString(), session);
+        if (SealedChallenge.isEnabled()) {
+            //Seal the session into the challenge instead of storing it
+            try {
+                String sealedChallenge = SealedChallenge.forRegistration(did, session, fidoPolicy.getRpOptions().getId()).seal();
+                returnObjectBuilder.add(skfsConstants.FIDO2_PREREG_ATTR_CHALLENGE, sealedChallenge);
+            } catch (SKFEException ex) {
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0003", ex.getLocalizedMessage());
+                throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0003") + ex.getLocalizedMessage()));
+            }
+        } else {
+            skceMaps.getMapObj().put(skfsConstants.MAP_USER_SESSION_INFO, nonceHash, session);
+            session.setMapkey(nonceHash);
+
+            //Replicate stored registration info
+            try {
+                if (applianceCommon.replicate()) {
+                    replObj.execute(applianceConstants.ENTITY_TYPE_MAP_USER_SESSION_INFO, applianceConstants.REPLICATION_OPERATION_HASHMAP_ADD, applianceCommon.getServerId().toString(), session);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e.getLocalizedMessage());
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e.getLocalizedMessage());
         }
+        JsonObject returnObject = returnObjectBuilder.build();
         
         skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, skfsCommon.getMessageProperty("FIDO-MSG-0021"), " username=" + username);
         
@@ -8,6 +8,7 @@
 package com.strongkey.skfs.policybeans;
 
 import com.strongkey.skfs.entitybeans.FidoPolicies;
+import com.strongkey.skfs.utilities.ReadReplica;
 import java.util.Collection;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
@@ -45,10 +46,12 @@ public class getFidoPolicy implements getFidoPolicyLocal {
     @Override
     public Collection<FidoPolicies> getAllActive() {
         try {
-            Query q = em.createNamedQuery("FidoPolicies.findByStatus");
-            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
-            q.setParameter("status", "Active");
-            Collection<FidoPolicies> fidoPoliciesColl = q.getResultList();
+            Collection<FidoPolicies> fidoPoliciesColl = ReadReplica.lookup(em, 0L, null, rem -> {
+                Query q = rem.createNamedQuery("FidoPolicies.findByStatus");
+                q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+                q.setParameter("status", "Active");
+                return (Collection<FidoPolicies>) q.getResultList();
+            });
             Collection<FidoPolicies> validPoliciesColl = fidoPoliciesColl;
 //            if(!fidoPoliciesColl.isEmpty()){      //TODO verify signature
 //                for (FidoPolicies fp : fidoPoliciesColl) {
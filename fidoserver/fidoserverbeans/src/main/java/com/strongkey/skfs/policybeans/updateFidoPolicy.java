@@ -9,6 +9,7 @@ package com.strongkey.skfs.policybeans;
 
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skce.pojos.MDSClient;
 import com.strongkey.skfs.fido.policyobjects.FidoPolicyObject;
@@ -19,7 +20,6 @@ import com.strongkey.skce.utilities.skceMaps;
 import com.strongkey.skfs.entitybeans.FidoPolicies;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
 import com.strongkey.skfs.pojos.FidoPolicyMDSObject;
-import com.strongkey.fido2mds.MDS;
 import java.util.Base64;
 import java.util.Date;
 import java.util.logging.Level;
@@ -85,6 +85,7 @@ public class updateFidoPolicy implements updateFidoPolicyLocal {
         //TODO sign object
         em.merge(fidopolicy);
         em.flush();
+        ReadReplica.recordWrite(did, null);
         
         //Replicate
         String primarykey = sid + "-" + did + "-" + pid;
@@ -113,7 +114,7 @@ public class updateFidoPolicy implements updateFidoPolicyLocal {
                 fidopolicy.getEndDate());
         MDSClient mds = null;
         if (fidoPolicyObject.getMdsOptions() != null) {
-            mds = new MDS(fidoPolicyObject.getMdsOptions().getEndpoints());
+            mds = skfsCommon.newMDS((long) fidopolicy.getFidoPoliciesPK().getDid(), fidoPolicyObject.getMdsOptions().getEndpoints());
         }
         skceMaps.getMapObj().put(skfsConstants.MAP_FIDO_POLICIES, fpMapkey, new FidoPolicyMDSObject(fidoPolicyObject, mds));
     }
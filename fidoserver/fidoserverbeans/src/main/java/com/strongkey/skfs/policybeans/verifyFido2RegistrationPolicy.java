@@ -8,8 +8,10 @@
 package com.strongkey.skfs.policybeans;
 
 import com.google.common.primitives.Longs;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.crypto.utility.cryptoCommon;
+import com.strongkey.skce.pojos.MDSAuthenticator;
 import com.strongkey.skce.pojos.MDSClient;
 import com.strongkey.skfs.fido.policyobjects.CounterPolicyOptions;
 import com.strongkey.skfs.fido.policyobjects.CryptographyPolicyOptions;
@@ -35,14 +37,12 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import javax.json.JsonArray;
 import javax.json.JsonObject;
 
 @Stateless
@@ -170,7 +170,14 @@ public class verifyFido2RegistrationPolicy implements verifyFido2RegistrationPol
         System.arraycopy(aaguidbytes, 8, aaguidbytes2, 0, 8);
         UUID uuid = new UUID(Longs.fromByteArray(aaguidbytes1),
                 Longs.fromByteArray(aaguidbytes2));
-        JsonObject trustAnchors = mds.getTrustAnchors(uuid.toString());
+        MDSAuthenticator authenticator = mds.getAuthenticator(uuid.toString());
+        if (authenticator != null && authenticator.isStale()) {
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0048",
+                    "MDS data for " + uuid + " is stale, age in seconds: " + authenticator.getAge() / 1000L);
+            if (ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.fido2.mds.snapshot.rejectstale")) {
+                throw new IllegalArgumentException("MDS data is stale");
+            }
+        }
         
         FIDO2AttestationStatement attStmt = attObject.getAttStmt();
         //TODO check that none attestation is supported.
@@ -215,24 +222,20 @@ public class verifyFido2RegistrationPolicy implements verifyFido2RegistrationPol
         }
         CertPath certPath = CertificateFactory.getInstance("X.509", "BCFIPS").generateCertPath(certchain);
         
-        //Create list of possible roots from MDS
-        Set<TrustAnchor> rootAnchors = new HashSet<>();
-        JsonArray roots = trustAnchors.getJsonArray("attestationRootCertificates");
-        
+        //Possible roots from MDS, decoded when the MDS was loaded
         //TODO perform comprehensive checks on errors
-        JsonArray errors = trustAnchors.getJsonArray("errors");
-        if(!errors.isEmpty()){
-            throw new IllegalArgumentException("MDS error(s): " + errors.toString());
+        if (authenticator == null) {
+            throw new IllegalArgumentException("MDS error(s): Could not find metadata for aaguid " + uuid);
+        }
+        if (authenticator.isCompromised()) {
+            throw new IllegalArgumentException("MDS error(s): Authenticator status = " + authenticator.getCompromisedStatus());
         }
         
         //TODO handle case where aaguid is not in MDS
-        if(roots == null){
+        Set<TrustAnchor> rootAnchors = authenticator.getAttestationRoots();
+        if(rootAnchors.isEmpty()){
             throw new IllegalArgumentException("Root certificates not found in MDS");
         }
-        for(int rootIndex = 0; rootIndex < roots.size(); rootIndex++) {
-            byte[] certBytes = java.util.Base64.getDecoder().decode(roots.getString(rootIndex));
-            rootAnchors.add(new TrustAnchor(cryptoCommon.generateX509FromBytes(certBytes), null));
-        }
         
         //Verify chain chains up to one of the roots.
         if(!PKIXChainValidation.pkixvalidate(certPath, rootAnchors, false, isPolicyQualifiersRejected)){    //TODO check CRLs if they exist, otherwise don't
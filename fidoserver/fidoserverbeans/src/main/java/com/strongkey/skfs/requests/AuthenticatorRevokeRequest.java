@@ -0,0 +1,54 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.requests;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import java.util.List;
+
+@JsonInclude(Include.NON_NULL)
+public class AuthenticatorRevokeRequest {
+
+    private String aaguid;
+    private List<String> keyidentifiers;
+    private String action;
+    private String reason;
+
+    public String getAaguid() {
+        return aaguid;
+    }
+
+    public void setAaguid(String aaguid) {
+        this.aaguid = aaguid;
+    }
+
+    public List<String> getKeyidentifiers() {
+        return keyidentifiers;
+    }
+
+    public void setKeyidentifiers(List<String> keyidentifiers) {
+        this.keyidentifiers = keyidentifiers;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.requests;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * One operation of a BatchRequest: getkeysinfo (username), patchkey (keyid,
+ * status and modify_location) or deregister (keyid).
+ */
+@JsonInclude(Include.NON_NULL)
+public class BatchOperation {
+
+    private String operation;
+    private String username;
+    private String keyid;
+    private String status;
+    private String modify_location;
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getKeyid() {
+        return keyid;
+    }
+
+    public void setKeyid(String keyid) {
+        this.keyid = keyid;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getModify_location() {
+        return modify_location;
+    }
+
+    public void setModify_location(String modify_location) {
+        this.modify_location = modify_location;
+    }
+
+}
@@ -9,6 +9,8 @@ package com.strongkey.skfs.txbeans;
 
 import com.google.common.primitives.Bytes;
 import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.RelyingPartyContext;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.crypto.utility.cryptoCommon;
 import com.strongkey.skfe.entitybeans.FidoKeys;
@@ -17,14 +19,12 @@ import com.strongkey.skce.pojos.UserSessionInfo;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.core.SealedChallenge;
 import com.strongkey.skfs.fido2.FIDO2AuthenticatorData;
-import com.strongkey.skfs.pojos.RegistrationSettings;
+import com.strongkey.skfs.pojos.DecodedCredential;
 import com.strongkey.skfs.policybeans.verifyFido2AuthenticationPolicyLocal;
 import java.io.StringReader;
 import java.net.URI;
-import java.security.KeyFactory;
-import java.security.PublicKey;
-import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -50,6 +50,8 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
     updateFidoKeysLocal updatekeybean;
     @EJB
     verifyFido2AuthenticationPolicyLocal verifyPolicyBean;
+    @EJB
+    usedChallengeBeanLocal usedchallengebean;
 
     @Override
     public String execute(Long did, String authresponse, String authmetadata, String method) {
@@ -217,7 +219,8 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
             authenticatorData.decodeAuthData(authData);
 
             String rpidServletExtracted = originURI.getHost();
-            if (!Base64.toBase64String(authenticatorData.getRpIdHash()).equals(Base64.toBase64String(skfsCommon.getDigestBytes(rpidServletExtracted, "SHA256")))) {
+            RelyingPartyContext rpContext = RelyingPartyContext.get(did);
+            if (rpContext == null || !rpContext.matchesRpIdHash(rpidServletExtracted, authenticatorData.getRpIdHash())) {
                 skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-2001", " RPID Hash invalid");
                 throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-2001")
                         + " RPID Hash invalid'"));
@@ -271,7 +274,33 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
             KHhash = skfsCommon.getDigest(kh, "SHA-256");
 
             //  Look for the sessionid in the sessionmap and retrieve the username
-            UserSessionInfo user = (UserSessionInfo) skceMaps.getMapObj().get(skfsConstants.MAP_USER_SESSION_INFO, KHhash);
+            UserSessionInfo user;
+            SealedChallenge sealedChallenge = null;
+            if (SealedChallenge.isEnabled()) {
+                //  The session travels in the challenge; rebuild it from the credential
+                sealedChallenge = SealedChallenge.open(did, bdnonce);
+                user = sealedChallenge.getSession();
+                if (!user.getSessiontype().equals(skfsConstants.FIDO_USERSESSION_AUTH) || !sealedChallenge.allowsCredential(kh)) {
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0006", " credential not allowed by challenge");
+                    throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0006")));
+                }
+                if (sealedChallenge.getRpId() != null && !sealedChallenge.getRpId().equals(rpidServletExtracted)) {
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-2001", " RPID does not match challenge");
+                    throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-2001")
+                            + " RPID does not match challenge"));
+                }
+                FidoKeys fk = getkeybean.getByUsernameKH(did, user.getUsername(), kh);
+                if (fk == null) {
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0006", " unknown credential");
+                    throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0006")));
+                }
+                user.setAppid(fk.getAppid());
+                user.setUserPublicKey(fk.getPublickey());
+                user.setFkid(fk.getFidoKeysPK().getFkid());
+                user.setSkid(fk.getFidoKeysPK().getSid());
+            } else {
+                user = (UserSessionInfo) skceMaps.getMapObj().get(skfsConstants.MAP_USER_SESSION_INFO, KHhash);
+            }
             if (user == null) {
                 skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0006", "");
                 throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0006")));
@@ -290,8 +319,7 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
             }
 
             //  3. Do processing
-            //  fetch the user public key from the session map.
-            String userpublickey = user.getUserPublicKey();
+            //  fetch the key identifiers from the session map.
             regkeyid = user.getFkid();
             serverid = user.getSkid();
 
@@ -304,17 +332,13 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
                 key = getkeybean.getByfkid(serverid, did, username, regkeyid);
             }
             if (key != null) {
-                RegistrationSettings rs = RegistrationSettings.parse(key.getRegistrationSettings(), key.getRegistrationSettingsVersion());
-                String signingKeyType = getKeyTypeFromRegSettings(rs);
-                byte[] publickeyBytes = org.apache.commons.codec.binary.Base64.decodeBase64(userpublickey);
+                //  decoded public key and registration settings, cached per credential
+                DecodedCredential credential = CredentialCache.getInstance().get(did, KHhash, key);
                 Boolean isSignatureValid;
-                KeyFactory kf = KeyFactory.getInstance(signingKeyType, "BCFIPS");
-                X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(publickeyBytes);
-                PublicKey pub = kf.generatePublic(pubKeySpec);
                 isSignatureValid = cryptoCommon.verifySignature(org.apache.commons.codec.binary.Base64.decodeBase64(signature),
-                        pub, 
+                        credential.getPublicKey(),
                         signedBytes,
-                        skfsCommon.getAlgFromIANACOSEAlg(rs.getAlg()));
+                        credential.getSignatureAlgorithm());
 
                 if (!isSignatureValid) {
                     skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDO-MSG-2001", "Authentication Signature verification : " + isSignatureValid);
@@ -322,15 +346,17 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
                             + "Authentication Signature verification : " + isSignatureValid));
                 }
 
+                //  A sealed challenge can only be used once
+                if (sealedChallenge != null && (!sealedChallenge.consume() || !usedchallengebean.markUsed(sealedChallenge))) {
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0041", "");
+                    throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0041")));
+                }
+
                 //Check authentication against policy
                 verifyPolicyBean.execute(user, did, json, authenticatorData, key);
                 
                 //  update the sign counter value in the database with the new counter value.
-                String jparesult = updatekeybean.execute(serverid, did, username, regkeyid, authenticatorData.getCounterValueAsInt(), modifyloc);
-                JsonObject jo;
-                try (JsonReader jr = Json.createReader(new StringReader(jparesult))) {
-                    jo = jr.readObject();
-                }
+                JsonObject jo = updatekeybean.execute(serverid, did, username, regkeyid, authenticatorData.getCounterValueAsInt(), modifyloc);
                 Boolean status = jo.getBoolean(skfsConstants.JSON_KEY_FIDOJPA_RETURN_STATUS);
                 if (status) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0027", "");
@@ -339,7 +365,9 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
                 }
                 
                 //  Remove the sessionid from the sessionmap
-                skceMaps.getMapObj().remove(skfsConstants.MAP_USER_SESSION_INFO, KHhash);
+                if (sealedChallenge == null) {
+                    skceMaps.getMapObj().remove(skfsConstants.MAP_USER_SESSION_INFO, KHhash);
+                }
                 skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", " username=" + username);
 
                 switch (method) {
@@ -364,16 +392,4 @@ public class FIDO2AuthenticateBean implements FIDO2AuthenticateBeanLocal {
         String responseJSON = skfsCommon.buildReturn(wsresponse);
         return responseJSON;
     }
-    
-    private String getKeyTypeFromRegSettings(RegistrationSettings rs){
-        if(rs.getKty() == 2){
-            return "ECDSA";
-        }
-        else if(rs.getKty() == 3){
-            return "RSA";
-        }
-        else{
-            throw new IllegalArgumentException("Unknown Key Type");
-        }
-    }
 }
@@ -10,14 +10,18 @@ package com.strongkey.skfs.txbeans;
 import com.google.common.primitives.Longs;
 import com.strongkey.crypto.utility.cryptoCommon;
 import com.strongkey.skce.pojos.UserSessionInfo;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.core.AttestationVerifier;
+import com.strongkey.skfs.core.SealedChallenge;
 import com.strongkey.skfs.entitybeans.AttestationCertificates;
 import com.strongkey.skfs.entitybeans.AttestationCertificatesPK;
 import com.strongkey.skfs.fido2.FIDO2AttestationObject;
 import com.strongkey.skfs.fido2.FIDO2AttestationStatement;
 import com.strongkey.skfs.fido2.FIDO2AuthenticatorData;
 import com.strongkey.skfs.policybeans.verifyFido2RegistrationPolicyLocal;
+import com.strongkey.skfs.utilities.AttestationCertificateIndex;
 import com.strongkey.skfs.utilities.SKFEException;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsLogger;
@@ -53,7 +57,7 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
      */
     private final String classname = this.getClass().getName();
     
-    private final Integer RSV = Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.user.settings.version"));
+    private final Integer RSV = ConfigurationSnapshot.get().getInt("skfs.cfg.property.fido2.user.settings.version", 1);
 
     @EJB
     addFidoKeysLocal addkeybean;
@@ -63,6 +67,8 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
     addFidoAttestationCertificateLocal addAttCertBean;
     @EJB
     verifyFido2RegistrationPolicyLocal verifyRegistrationPolicyBean;
+    @EJB
+    usedChallengeBeanLocal usedchallengebean;
     
 //    @EJB 
 //    verifyMDSCertificateChainBeanLocal verifyMDSCertificateChainBean;
@@ -86,8 +92,21 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
             String origin = metadataJson.getString(skfsConstants.FIDO_METADATA_KEY_ORIGIN, "");
             
             //Additional input checks
-            String challengeDigest = calculateChallengeDigest(clientDataJson.getString(skfsConstants.JSON_KEY_NONCE));
-            UserSessionInfo userInfo = (UserSessionInfo) skceMaps.getMapObj().get(skfsConstants.MAP_USER_SESSION_INFO, challengeDigest);
+            String challenge = clientDataJson.getString(skfsConstants.JSON_KEY_NONCE);
+            SealedChallenge sealedChallenge = null;
+            String challengeDigest = null;
+            UserSessionInfo userInfo;
+            if (SealedChallenge.isEnabled()) {
+                sealedChallenge = SealedChallenge.open(did, challenge);
+                userInfo = sealedChallenge.getSession();
+                if (!userInfo.getSessiontype().equals(skfsConstants.FIDO_USERSESSION_REG)) {
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0040", " not a registration challenge");
+                    throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0040") + " not a registration challenge");
+                }
+            } else {
+                challengeDigest = calculateChallengeDigest(challenge);
+                userInfo = (UserSessionInfo) skceMaps.getMapObj().get(skfsConstants.MAP_USER_SESSION_INFO, challengeDigest);
+            }
             String sessionUsername = retrieveUsernameFromSessionMap(userInfo, challengeDigest);
             verifyUsernameMatch(metadataJson.getString(skfsConstants.FIDO_METADATA_KEY_USERNAME), sessionUsername);
             verifyOrigin(clientDataJson.getString(skfsConstants.JSON_KEY_SERVERORIGIN), origin);
@@ -103,8 +122,9 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
             //Perform Policy Verification
             verifyRegistrationPolicyBean.execute(userInfo, clientDataJson, attObject);
             
-            //Verify Signature
-            Boolean isSignatureValid = attObject.getAttStmt().verifySignature(browserdataBase64, attObject.getAuthData());
+            //Verify Signature, on the attestation verification threads
+            Boolean isSignatureValid = AttestationVerifier.getInstance().verify(attObject.getAttFormat(),
+                    attObject.getAttStmt(), browserdataBase64, attObject.getAuthData());
             if (!isSignatureValid) {
                 skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDO-MSG-2001", "Registration Signature verification : " + isSignatureValid);
                 throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-2001")
@@ -116,8 +136,15 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
             //Save userId
             String userId = userInfo.getUserId();
             
-            //Remove challenge from map
-            skceMaps.getMapObj().remove(skfsConstants.MAP_USER_SESSION_INFO, challengeDigest);
+            //Remove challenge from map, or mark the sealed challenge as used
+            if (sealedChallenge != null) {
+                if (!sealedChallenge.consume() || !usedchallengebean.markUsed(sealedChallenge)) {
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0041", "");
+                    throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0041"));
+                }
+            } else {
+                skceMaps.getMapObj().remove(skfsConstants.MAP_USER_SESSION_INFO, challengeDigest);
+            }
             
             //Store FIDO key in database 
             addkeybean.execute(did,
@@ -327,7 +354,6 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
         return uuid.toString();
     }
     
-    //TODO rollback added certificates if something goes wrong
     //TODO add root certificate from MDS.
     private AttestationCertificatesPK storeAttestationStatement(Long did, FIDO2AttestationStatement attStmt) throws CertificateException, NoSuchProviderException, CertificateEncodingException, SKFEException{
         AttestationCertificatesPK parentPk = null;
@@ -338,16 +364,24 @@ public class FIDO2RegistrationBean implements FIDO2RegistrationBeanLocal {
                 byte[] certBytes = (byte[]) attestationCerts.get(i);
                 X509Certificate attCert = cryptoCommon.generateX509FromBytes(certBytes);
                 
-                //Add if attestation certificate not already added
-                AttestationCertificates dbcert = getAttCertbean.getByIssuerDnSerialNumber(
-                        attCert.getIssuerDN().getName(), attCert.getSerialNumber().toString());
-                if(dbcert == null){
-                    parentPk = addAttCertBean.execute(did, attCert, parentPk);
-                }
-                //Otherwise save parent certificate information
-                else{
-                    parentPk = dbcert.getAttestationCertificatesPK();
+                String issuerDn = attCert.getIssuerDN().getName();
+                String serialNumber = attCert.getSerialNumber().toString();
+                AttestationCertificateIndex index = AttestationCertificateIndex.getInstance();
+                AttestationCertificatesPK certPk = index.get(issuerDn, serialNumber);
+                if(certPk == null){
+                    //Add if attestation certificate not already added
+                    AttestationCertificates dbcert = getAttCertbean.getByIssuerDnSerialNumber(issuerDn, serialNumber);
+                    if(dbcert == null){
+                        //Not indexed until a later registration finds it committed
+                        certPk = addAttCertBean.execute(did, attCert, parentPk);
+                    }
+                    else{
+                        certPk = dbcert.getAttestationCertificatesPK();
+                        index.put(issuerDn, serialNumber, certPk);
+                    }
                 }
+                //Save parent certificate information
+                parentPk = certPk;
             }
         }
         return parentPk;
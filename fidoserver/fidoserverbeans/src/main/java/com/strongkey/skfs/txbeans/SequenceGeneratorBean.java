@@ -8,9 +8,12 @@
 package com.strongkey.skfs.txbeans;
 
 import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -42,6 +45,8 @@ public class SequenceGeneratorBean implements SequenceGeneratorBeanLocal {
     
     private static ConcurrentMap<Short, AttestationCertificateID> attcidmap = new ConcurrentSkipListMap<>();
 
+    private static ConcurrentMap<Short, ReplicationID> rpidmap = new ConcurrentSkipListMap<>();
+
     /**
      * The server id of the server executing this code.
      */
@@ -95,6 +100,20 @@ public class SequenceGeneratorBean implements SequenceGeneratorBeanLocal {
         }
     }
 
+    @Override
+    synchronized public Long nextReplicationID() {
+        // Check if rpid is in the idmap; if so return it
+        if (rpidmap.containsKey(ssid)) {
+            return rpidmap.get(ssid).nextRpid();
+        } else {
+            // Populate the map and return rpid
+            if (populateReplicationIDMap() == null) {
+                return null;
+            }
+            return rpidmap.get(ssid).nextRpid();
+        }
+    }
+
     /**
      ** A method to initialize the RequestID maps in memory so that * requests
      * after the first one will get their ID value quickly. * Since access to
@@ -109,13 +128,23 @@ public class SequenceGeneratorBean implements SequenceGeneratorBeanLocal {
         Long fkid;
         FIDOKeyID Keyid = new FIDOKeyID();
 
-        try {
-            fkid = (Long) em.createNamedQuery("FidoKeys.maxpk")
+        //  fkids are unique per server across the primary, all shards and
+        //  the archive, as archived keys may be restored
+        fkid = 1L;
+        List<Long> maxes = new ArrayList<>();
+        for (EntityManager sem : ShardRouter.allEntityManagers(em)) {
+            maxes.add((Long) sem.createNamedQuery("FidoKeys.maxpk")
                     .setParameter("sid", ssid)
                     .setHint("javax.persistence.cache.storeMode", "REFRESH")
-                    .getSingleResult() + 1;
-        } catch (NullPointerException ex) { // First request for the server
-            fkid = 1L;
+                    .getSingleResult());
+        }
+        maxes.add((Long) em.createNamedQuery("FidoKeysArchive.maxpk")
+                .setParameter("sid", ssid)
+                .getSingleResult());
+        for (Long max : maxes) {
+            if (max != null && max + 1 > fkid) { // null on the first request for the server
+                fkid = max + 1;
+            }
         }
 
         Keyid.setFKid(fkid);
@@ -185,6 +214,33 @@ public class SequenceGeneratorBean implements SequenceGeneratorBeanLocal {
         attcidmap.put(ssid, Certid);
         return attcidmap.get(ssid);
     }
+
+    /**
+     ** A method to initialize the replication ID map in memory; rows of the
+     * replication outbox must be numbered without going back, so after a
+     * restart numbering resumes after the last row in the database.
+     *
+     */
+    synchronized private ReplicationID populateReplicationIDMap() {
+        // Initialize local variables
+        Long rpid;
+        ReplicationID Replid = new ReplicationID();
+
+        try {
+            rpid = (Long) em.createNamedQuery("Replication.maxrpid")
+                    .setParameter("ssid", ssid)
+                    .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                    .getSingleResult() + 1;
+        } catch (NullPointerException ex) { // First request for the server
+            rpid = 1L;
+        }
+
+        Replid.setRpid(rpid);
+        skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.INFO, skfsCommon.getMessageProperty("SKCE-MSG-1085"), "SID-RPID=" + ssid + "-" + rpid);
+
+        rpidmap.put(ssid, Replid);
+        return rpidmap.get(ssid);
+    }
 }
 
 /**
@@ -251,4 +307,23 @@ class AttestationCertificateID {
         this.attcid.set(attcid);
     }
 
+}
+
+/**
+ ** Local class to maintain the replication ID value in a map that can be
+ * retrieved rapidly.
+ */
+@SuppressWarnings("FieldMayBeFinal")
+class ReplicationID {
+
+    private AtomicLong rpid = new AtomicLong();
+
+    Long nextRpid() {
+        return this.rpid.getAndIncrement();
+    }
+
+    void setRpid(Long rpid) {
+        this.rpid.set(rpid);
+    }
+
 }
\ No newline at end of file
@@ -14,4 +14,5 @@ public interface SequenceGeneratorBeanLocal {
  public Long nextFIDOKeyID();
  public Integer nextPolicyID();
  public Integer nextAttestationCertificateID();
+ public Long nextReplicationID();
 }
@@ -140,7 +140,7 @@ public class U2FRegistrationBean implements U2FRegistrationBeanLocal {
         //  6. Verify appid
         String appid = user.getAppid();
         String origin = skfsCommon.getOriginfromBrowserdata(browserdata);
-        if (!originverifierbean.execute(appid, origin)) {
+        if (!originverifierbean.execute(did, appid, origin)) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0032", "");
             throw new IllegalArgumentException(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0032")
                     + " : " + appid + "-" + origin));
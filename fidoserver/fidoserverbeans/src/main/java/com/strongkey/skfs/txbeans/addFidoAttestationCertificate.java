@@ -9,6 +9,7 @@ package com.strongkey.skfs.txbeans;
 
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.SKFEException;
 import com.strongkey.skfs.utilities.skfsCommon;
@@ -19,14 +20,13 @@ import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Base64;
-import java.util.logging.Level;
 import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
-import javax.validation.ConstraintViolationException;
 
 @Stateless
 public class addFidoAttestationCertificate implements addFidoAttestationCertificateLocal {
@@ -42,6 +42,15 @@ public class addFidoAttestationCertificate implements addFidoAttestationCertific
     @EJB
     SequenceGeneratorBeanLocal seqgenejb;
     
+    /**
+     * Adds an attestation certificate in the caller's transaction, or returns
+     * the one already stored with the same issuer DN and serial number.
+     *
+     * The insert is ignored on the unique key of (issuer_dn, serial_number),
+     * and the stored row is then read with a lock, so concurrent first
+     * registrations with the same certificate wait for each other in the
+     * database and the certificate goes away with a registration that fails.
+     */
     @Override
     public AttestationCertificatesPK execute(Long did, X509Certificate attCert, 
             AttestationCertificatesPK parentPK) throws CertificateEncodingException, SKFEException{
@@ -70,16 +79,33 @@ public class addFidoAttestationCertificate implements addFidoAttestationCertific
         
 
         //TODO add signing code(?)
-        try {
-            em.persist(attestationCertificate);
-            em.flush();
-            em.clear();
-        } catch (ConstraintViolationException ex) {
-            ex.getConstraintViolations().stream().forEach(x -> skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-2001",
-                    x.toString()));
-            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDOJPA-ERR-2006", ex.getLocalizedMessage());
-            throw new SKFEException(skfsCommon.getMessageProperty("FIDOJPA-ERR-2006") + "Check server logs for details.");
+        em.createNativeQuery("INSERT INTO attestation_certificates (sid, did, attcid, parent_sid, parent_did, parent_attcid, "
+                + "certificate, issuer_dn, subject_dn, serial_number) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE attcid = attcid")
+                .setParameter(1, attestationCertificatePK.getSid())
+                .setParameter(2, attestationCertificatePK.getDid())
+                .setParameter(3, attestationCertificatePK.getAttcid())
+                .setParameter(4, attestationCertificate.getParentSid())
+                .setParameter(5, attestationCertificate.getParentDid())
+                .setParameter(6, attestationCertificate.getParentAttcid())
+                .setParameter(7, attestationCertificate.getCertificate())
+                .setParameter(8, attestationCertificate.getIssuerDn())
+                .setParameter(9, attestationCertificate.getSubjectDn())
+                .setParameter(10, attestationCertificate.getSerialNumber())
+                .executeUpdate();
+
+        AttestationCertificates stored = (AttestationCertificates) em.createNamedQuery("AttestationCertificates.findByIssuerDnSerialNumber")
+                .setParameter("issuerDn", attestationCertificate.getIssuerDn())
+                .setParameter("serialNumber", attestationCertificate.getSerialNumber())
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getSingleResult();
+        if (!attestationCertificatePK.equals(stored.getAttestationCertificatesPK())) {
+            //  added by another registration
+            skfsLogger.exiting(skfsConstants.SKFE_LOGGER, classname, "execute");
+            return stored.getAttestationCertificatesPK();
         }
+        ReadReplica.recordWrite(did, null);
 
         //TODO Replicate
         String primarykey = sid + "-" + did + "-" + attcid;
@@ -10,12 +10,14 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.appliance.entitybeans.Domains;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
-import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
 import com.strongkey.skfe.entitybeans.FidoKeys;
 import com.strongkey.skfe.entitybeans.FidoKeysPK;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.RowIntegrity;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skfs.utilities.skfsLogger;
@@ -333,11 +335,6 @@ public class addFidoKeys implements addFidoKeysLocal {
 
         if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.add")
                 .equalsIgnoreCase("true")) {
-            String standalone = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine");
-            String signingKeystorePassword = "";
-            if (standalone.equalsIgnoreCase("true")) {
-                signingKeystorePassword = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
-            }
             //  convert the java object into xml to get it signed.
             StringWriter writer = new StringWriter();
             JAXBContext jaxbContext;
@@ -363,7 +360,7 @@ public class addFidoKeys implements addFidoKeysLocal {
             //  get signature for the xml    
             String signedxml = null;
             try {
-                signedxml = initCryptoModule.getCryptoModule().signDBRow(did.toString(), d.getSkceSigningdn(), efsXml, Boolean.valueOf(standalone), signingKeystorePassword);
+                signedxml = RowIntegrity.sign(RowIntegrity.TABLE_FIDO_KEYS, did, d.getSkceSigningdn(), efsXml);
             } catch (CryptoException ex) {
                 Logger.getLogger(addFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -379,9 +376,19 @@ public class addFidoKeys implements addFidoKeysLocal {
             }
         }
         
-        em.persist(newKey);
-        em.flush();
-        em.clear();
+        //  the user's range may be moving to another shard
+        try {
+            ShardRouter.checkWritable(em, did, username);
+        } catch (SKFEException ex) {
+            status = false;
+            retObj = Json.createObjectBuilder().add("status", status).add("message", ex.getLocalizedMessage()).build();
+            return retObj.toString();
+        }
+        EntityManager sem = ShardRouter.entityManager(em, did, username);
+        sem.persist(newKey);
+        sem.flush();
+        ReadReplica.recordWrite(did, username);
+        sem.clear();
         
         //add fido keys transport - RFE
         try {
@@ -10,13 +10,15 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.appliance.entitybeans.Domains;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
-import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skfs.entitybeans.FidoUsers;
 import com.strongkey.skfs.entitybeans.FidoUsersPK;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.RowIntegrity;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsLogger;
 import java.io.StringWriter;
@@ -135,11 +137,6 @@ public class addFidoUserBean implements addFidoUserBeanLocal {
         if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.add")
                 .equalsIgnoreCase("true")) {
             
-            String standalone = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine");
-            String signingKeystorePassword = "";
-            if (standalone.equalsIgnoreCase("true")) {
-                signingKeystorePassword = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
-            }
             //  convert the java object into xml to get it signed.
             StringWriter writer = new StringWriter();
             JAXBContext jaxbContext;
@@ -164,7 +161,7 @@ public class addFidoUserBean implements addFidoUserBeanLocal {
             //  get signature for the xml    
             String signedxml = null;
             try {
-                signedxml = initCryptoModule.getCryptoModule().signDBRow(did.toString(), d.getSkceSigningdn(), efsXml, Boolean.valueOf(standalone), signingKeystorePassword);
+                signedxml = RowIntegrity.sign(RowIntegrity.TABLE_FIDO_USERS, did, d.getSkceSigningdn(), efsXml);
             } catch (CryptoException ex) {
                 Logger.getLogger(addFidoUserBean.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -180,9 +177,13 @@ public class addFidoUserBean implements addFidoUserBeanLocal {
             }
         }
         
-        em.persist(fidoUser);
-        em.flush();
-        em.clear();
+        //  the user's range may be moving to another shard
+        ShardRouter.checkWritable(em, did, username);
+        EntityManager sem = ShardRouter.entityManager(em, did, username);
+        sem.persist(fidoUser);
+        sem.flush();
+        ReadReplica.recordWrite(did, username);
+        sem.clear();
         
         try {
             if(applianceCommon.replicate()){
@@ -0,0 +1,132 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfe.entitybeans.FidoKeysArchive;
+import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.logging.Level;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+/**
+ * Lookups of keys moved to FIDO_KEYS_ARCHIVE by fidoKeysArchiver, and their
+ * move back to FIDO_KEYS when they are reactivated or deleted. The archive is
+ * in the primary database; restored keys go to the shard of the user.
+ */
+@Stateless
+public class archivedFidoKeys implements archivedFidoKeysLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EJB
+    getFidoKeysLocal getkeysejb;
+    @EJB
+    replicateSKFEObjectBeanLocal replObj;
+
+    /**
+     * @param did
+     * @param username - Name of the user whose archived keys are fetched
+     * @return - archived keys of the user whose row level signature verifies
+     */
+    @Override
+    public Collection<FidoKeys> getByUsername(Long did, String username) {
+        TypedQuery<FidoKeysArchive> q = em.createNamedQuery("FidoKeysArchive.findByUsername", FidoKeysArchive.class);
+        q.setParameter("did", did.shortValue());
+        q.setParameter("username", username);
+        Collection<FidoKeys> keys = new ArrayList<>();
+        for (FidoKeysArchive archived : q.getResultList()) {
+            FidoKeys fk = new FidoKeys(archived);
+            if (getkeysejb.verifySignature(fk)) {
+                keys.add(fk);
+            } else {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "getByUsername",
+                        "SKCE-ERR-5001", "archived fk sid-did-username-fkid=" + fk.getId());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Moves an archived key back to FIDO_KEYS
+     *
+     * @param sid
+     * @param did
+     * @param username
+     * @param fkid
+     * @return - the restored key, managed in the current transaction; null if
+     * the key is not archived
+     * @throws SKFEException - if the row level signature does not verify or
+     * the user's range is moving to another shard
+     */
+    @Override
+    public FidoKeys restore(Short sid, Long did, String username, Long fkid) throws SKFEException {
+        FidoKeysArchive archived;
+        try {
+            archived = em.createNamedQuery("FidoKeysArchive.findBySidDidFkid", FidoKeysArchive.class)
+                    .setParameter("sid", sid)
+                    .setParameter("did", did.shortValue())
+                    .setParameter("username", username)
+                    .setParameter("fkid", fkid)
+                    .getSingleResult();
+        } catch (NoResultException ex) {
+            return null;
+        }
+
+        FidoKeys restored = new FidoKeys(archived);
+        if (!getkeysejb.verifySignature(restored)) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "restore",
+                    "SKCE-ERR-5001", "archived fk sid-did-username-fkid=" + restored.getId());
+            throw new SKFEException(skfsCommon.getMessageProperty("SKCE-ERR-5001")
+                    + "fk sid-did-erqid=" + restored.getId());
+        }
+        ShardRouter.checkWritable(em, did, username);
+
+        String primarykey = sid + "-" + did + "-" + username + "-" + fkid;
+        EntityManager sem = ShardRouter.entityManager(em, did, username);
+        FidoKeys fk = sem.find(FidoKeys.class, restored.getFidoKeysPK());
+        if (fk == null) {
+            sem.persist(restored);
+            fk = restored;
+        }
+        em.remove(archived);
+        sem.flush();
+        em.flush();
+        ReadReplica.recordWrite(did, username);
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "restore", "FIDO-MSG-0066", "restored " + primarykey);
+
+        if (applianceCommon.replicate()) {
+            String response = replObj.execute(applianceConstants.ENTITY_TYPE_FIDO_KEYS, applianceConstants.REPLICATION_OPERATION_ADD, primarykey, fk);
+            if (response != null) {
+                throw new SKFEException(response);
+            }
+        }
+        return fk;
+    }
+}
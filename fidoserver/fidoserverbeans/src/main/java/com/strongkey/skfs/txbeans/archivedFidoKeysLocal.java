@@ -0,0 +1,21 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.utilities.SKFEException;
+import java.util.Collection;
+import javax.ejb.Local;
+
+@Local
+public interface archivedFidoKeysLocal {
+
+    Collection<FidoKeys> getByUsername(Long did, String username);
+
+    FidoKeys restore(Short sid, Long did, String username, Long fkid) throws SKFEException;
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skce.pojos.MDSAuthenticator;
+import com.strongkey.skfs.utilities.MDSStatusChanges;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+
+/**
+ * Acts on the status changes of authenticator models found by the MDS
+ * refresh of the policies (see MDSStatusChanges): when the new status is one
+ * of skfs.cfg.property.fido2.mds.statuschange.statuses, the active keys of
+ * the policy's domain made by the model are flagged or deactivated, as
+ * skfs.cfg.property.fido2.mds.statuschange.action says, by fidoKeysRevoker.
+ * A change for a domain whose revocation is still running waits for the
+ * next run.
+ *
+ * When servers share a database, the first server to act changes the keys
+ * and the others find none left to change.
+ */
+@Singleton
+@Startup
+public class authenticatorStatusMonitor {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    @Resource
+    private TimerService timerService;
+
+    @EJB
+    fidoKeysRevokerLocal revoker;
+
+    private final Deque<MDSStatusChanges.Change> pending = new ArrayDeque<>();
+
+    private String action;
+    private Set<String> statuses;
+
+    @PostConstruct
+    public void initialize() {
+        action = MDSStatusChanges.getAction();
+        if (action == null) {
+            String configured = skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.mds.statuschange.action").trim();
+            if (!"none".equalsIgnoreCase(configured)) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "initialize", "FIDO-ERR-0055",
+                        "skfs.cfg.property.fido2.mds.statuschange.action=" + configured + ", treated as none");
+            }
+            return;
+        }
+        statuses = new HashSet<>(Arrays.asList(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.mds.statuschange.statuses").trim().split("\\s*,\\s*")));
+        long frequency;
+        try {
+            frequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.mds.statuschange.frequency.seconds"));
+        } catch (NumberFormatException ex) {
+            frequency = 60L;
+        }
+        if (frequency < 1L) {
+            frequency = 60L;
+        }
+        timerService.createIntervalTimer(frequency * 1000L, frequency * 1000L, new TimerConfig(null, false));
+    }
+
+    @Timeout
+    public void check() {
+        MDSStatusChanges.Change change;
+        while ((change = MDSStatusChanges.poll()) != null) {
+            pending.add(change);
+        }
+        //  revoke returns before the revocation is running
+        Set<Long> started = new HashSet<>();
+        int waiting = pending.size();
+        for (int i = 0; i < waiting; i++) {
+            change = pending.poll();
+            MDSAuthenticator authenticator = change.getAuthenticator();
+            if (authenticator.getStatus() == null || !statuses.contains(authenticator.getStatus())) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "check", "FIDO-MSG-0069",
+                        "did=" + change.getDid() + " aaguid=" + authenticator.getAaguid() + " status " + authenticator.getStatus() + " ignored");
+                continue;
+            }
+            if (started.contains(change.getDid()) || revoker.isRunning(change.getDid())) {
+                pending.add(change);
+                continue;
+            }
+            String error = revoker.validate(change.getDid(), authenticator.getAaguid(),
+                    authenticator.getAttestationCertificateKeyIdentifiers(), action);
+            if (error != null) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "check", "FIDO-ERR-0057",
+                        "did=" + change.getDid() + " aaguid=" + authenticator.getAaguid() + ": " + error);
+                continue;
+            }
+            revoker.revoke(change.getDid(), authenticator.getAaguid(),
+                    authenticator.getAttestationCertificateKeyIdentifiers(), action,
+                    "MDS " + authenticator.getStatus() + " " + authenticator.getStatusEffectiveDate());
+            started.add(change.getDid());
+        }
+    }
+}
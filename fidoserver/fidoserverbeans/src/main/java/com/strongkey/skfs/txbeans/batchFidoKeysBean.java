@@ -0,0 +1,441 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.crypto.utility.CryptoException;
+import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfe.entitybeans.FidoKeysArchive;
+import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.requests.BatchOperation;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.RowIntegrity;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Executes a chunk of the operations of a batch request in one transaction.
+ *
+ * The keys of every user named in the chunk are read with one query per
+ * shard, and the archived ones with one query, instead of one query per
+ * operation; the operations then work on those entities and each shard is
+ * flushed once. Operations see the effect of the earlier ones of the chunk.
+ * Replication messages are queued once the chunk is flushed; if one cannot
+ * be, the chunk is rolled back and each of its patchkey and deregister
+ * operations reported failed with the replication error. A key changed or
+ * deleted is dropped from the caches as by the single key operations, and a
+ * user left without an active key gets FIDOKeysEnabled=false.
+ */
+@Stateless
+public class batchFidoKeysBean implements batchFidoKeysBeanLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    @Resource
+    private SessionContext sc;
+
+    private static final JAXBContext FIDO_KEYS_XML = jaxbContext();
+    private static final JsonBuilderFactory JSON = Json.createBuilderFactory(null);
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EJB
+    getFidoKeysLocal getkeysejb;
+    @EJB
+    archivedFidoKeysLocal archivedkeysejb;
+    @EJB
+    getDomainsBeanLocal getdomain;
+    @EJB
+    updateFidoUserBeanLocal updateldapbean;
+    @EJB
+    replicateSKFEObjectBeanLocal replObj;
+
+    /**
+     * Keys of the users of a chunk, by sid-did-username-fkid and by user
+     */
+    private static final class Keys {
+        private final Map<String, FidoKeys> hot = new HashMap<>();
+        private final Map<String, List<FidoKeys>> hotbyuser = new HashMap<>();
+        private final Set<String> unverified = new HashSet<>();
+        private final Map<String, FidoKeys> archived = new HashMap<>();
+        private final Map<String, List<FidoKeys>> archivedbyuser = new HashMap<>();
+        private final Map<String, EntityManager> ems = new HashMap<>();
+
+        private List<FidoKeys> hot(String username) {
+            return hotbyuser.computeIfAbsent(username, u -> new ArrayList<>());
+        }
+    }
+
+    /**
+     * sid-did-username-fkid of a key
+     */
+    private static final class KeyId {
+        private final Short sid;
+        private final String username;
+        private final Long fkid;
+        private final String primarykey;
+
+        private KeyId(Long did, String keyid) {
+            int first = keyid.indexOf('-');
+            int second = keyid.indexOf('-', first + 1);
+            int last = keyid.lastIndexOf('-');
+            sid = Short.valueOf(keyid.substring(0, first));
+            username = keyid.substring(second + 1, last);
+            fkid = Long.valueOf(keyid.substring(last + 1));
+            primarykey = sid + "-" + did + "-" + username + "-" + fkid;
+        }
+    }
+
+    private static final class Replication {
+        private final int index;
+        private final int operation;
+        private final String primarykey;
+        private final FidoKeys fk;
+
+        private Replication(int index, int operation, String primarykey, FidoKeys fk) {
+            this.index = index;
+            this.operation = operation;
+            this.primarykey = primarykey;
+            this.fk = fk;
+        }
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public List<JsonObject> execute(Long did, List<BatchOperation> operations) {
+        KeyId[] kids = new KeyId[operations.size()];
+        Set<String> usernames = new HashSet<>();
+        for (int i = 0; i < kids.length; i++) {
+            BatchOperation op = operations.get(i);
+            if (skfsConstants.FIDO_METHOD_GETKEYSINFO.equals(op.getOperation())) {
+                usernames.add(op.getUsername());
+            } else {
+                try {
+                    kids[i] = new KeyId(did, op.getKeyid());
+                    usernames.add(kids[i].username);
+                } catch (NumberFormatException ex) {
+                    kids[i] = null;
+                }
+            }
+        }
+        Keys keys = load(did, usernames);
+
+        List<JsonObject> results = new ArrayList<>(kids.length);
+        List<Replication> replications = new ArrayList<>();
+        Set<EntityManager> written = new LinkedHashSet<>();
+        Set<String> deletedfrom = new HashSet<>();
+        for (int i = 0; i < kids.length; i++) {
+            BatchOperation op = operations.get(i);
+            if (skfsConstants.FIDO_METHOD_GETKEYSINFO.equals(op.getOperation())) {
+                results.add(keysinfo(keys, op.getUsername()));
+            } else if (kids[i] == null) {
+                results.add(result(400, skfsCommon.getMessageProperty("FIDO-ERR-0023") + "Invalid keyid= " + op.getKeyid()));
+            } else {
+                KeyId kid = kids[i];
+                FidoKeys fk;
+                try {
+                    fk = find(did, keys, kid);
+                    if (fk != null) {
+                        ShardRouter.checkWritable(em, did, kid.username);
+                    }
+                } catch (SKFEException ex) {
+                    results.add(result(400, ex.getLocalizedMessage()));
+                    continue;
+                }
+                if (fk == null) {
+                    results.add(result(404, skfsCommon.getMessageProperty("FIDOJPA-ERR-2002")));
+                    continue;
+                }
+                EntityManager sem = keys.ems.get(kid.username);
+                if (skfsConstants.FIDO_METHOD_PATCHKEY.equals(op.getOperation())) {
+                    if (!patch(did, fk, kid, op, sem)) {
+                        results.add(result(500, skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " SignedXML"));
+                        continue;
+                    }
+                    replications.add(new Replication(i, applianceConstants.REPLICATION_OPERATION_UPDATE, kid.primarykey, fk));
+                    results.add(result(200, "Successfully updated user registered security key"));
+                } else {
+                    sem.remove(fk);
+                    keys.hot.remove(kid.primarykey);
+                    keys.hot(kid.username).remove(fk);
+                    deletedfrom.add(kid.username);
+                    replications.add(new Replication(i, applianceConstants.REPLICATION_OPERATION_DELETE, kid.primarykey, fk));
+                    results.add(result(200, "Successfully deleted user registered security key"));
+                }
+                written.add(sem);
+                ReadReplica.recordWrite(did, kid.username);
+                CredentialCache.getInstance().invalidate(did, fk.getKeyhandle());
+                skceMaps.getMapObj().remove(skfsConstants.MAP_FIDO_KEYS, kid.primarykey);
+            }
+        }
+
+        for (EntityManager sem : written) {
+            sem.flush();
+        }
+        if (applianceCommon.replicate()) {
+            for (Replication r : replications) {
+                String response = replObj.execute(applianceConstants.ENTITY_TYPE_FIDO_KEYS, r.operation, r.primarykey, r.fk);
+                if (response != null) {
+                    //  the changes would commit without their replication
+                    sc.setRollbackOnly();
+                    for (Replication failed : replications) {
+                        results.set(failed.index, result(500, response));
+                    }
+                    return results;
+                }
+            }
+        }
+        disable(did, keys, deletedfrom);
+        return results;
+    }
+
+    /**
+     * Reads the keys of the users, hot ones with one query per shard
+     */
+    private Keys load(Long did, Set<String> usernames) {
+        Keys keys = new Keys();
+        if (usernames.isEmpty()) {
+            return keys;
+        }
+        Map<String, Set<String>> shards = new HashMap<>();
+        for (String username : usernames) {
+            shards.computeIfAbsent(ShardRouter.getJndiname(did, username), j -> new HashSet<>()).add(username);
+        }
+        for (Map.Entry<String, Set<String>> shard : shards.entrySet()) {
+            EntityManager sem = ShardRouter.entityManager(em, shard.getKey());
+            TypedQuery<FidoKeys> q = sem.createNamedQuery("FidoKeys.findByUsernames", FidoKeys.class);
+            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+            q.setParameter("did", did);
+            q.setParameter("usernames", shard.getValue());
+            for (FidoKeys fk : q.getResultList()) {
+                String primarykey = primaryKey(fk);
+                keys.hot.put(primarykey, fk);
+                keys.hot(fk.getFidoKeysPK().getUsername()).add(fk);
+                if (!verified(fk, primarykey)) {
+                    keys.unverified.add(primarykey);
+                }
+            }
+            for (String username : shard.getValue()) {
+                keys.ems.put(username, sem);
+            }
+        }
+
+        TypedQuery<FidoKeysArchive> q = em.createNamedQuery("FidoKeysArchive.findByUsernames", FidoKeysArchive.class);
+        q.setParameter("did", did.shortValue());
+        q.setParameter("usernames", usernames);
+        for (FidoKeysArchive archived : q.getResultList()) {
+            FidoKeys fk = new FidoKeys(archived);
+            String primarykey = primaryKey(fk);
+            //  a key rewritten in FIDO_KEYS since (by replication) is listed once
+            if (keys.hot.containsKey(primarykey)) {
+                continue;
+            }
+            if (getkeysejb.verifySignature(fk)) {
+                keys.archived.put(primarykey, fk);
+                keys.archivedbyuser.computeIfAbsent(fk.getFidoKeysPK().getUsername(), u -> new ArrayList<>()).add(fk);
+            } else {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "load",
+                        "SKCE-ERR-5001", "archived fk sid-did-username-fkid=" + primarykey);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Row level signature check of getFidoKeys: quarantined rows are
+     * rejected, others verified as the row integrity mode asks
+     */
+    private boolean verified(FidoKeys fk, String primarykey) {
+        if (RowIntegrity.isQuarantined(RowIntegrity.TABLE_FIDO_KEYS, primarykey)
+                || (RowIntegrity.verifyOnRead(RowIntegrity.TABLE_FIDO_KEYS, fk.getModifyDate()) && !getkeysejb.verifySignature(fk))) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verified",
+                    "SKCE-ERR-5001", "fk sid-did-username-fkid=" + primarykey);
+            return false;
+        }
+        return true;
+    }
+
+    private JsonObject keysinfo(Keys keys, String username) {
+        JsonArrayBuilder keysArrayBuilder = JSON.createArrayBuilder();
+        int count = 0;
+        for (FidoKeys fk : keys.hot(username)) {
+            if (!keys.unverified.contains(primaryKey(fk))) {
+                keysArrayBuilder.add(u2fGetKeysInfoBean.keyInfo(fk, false));
+                count++;
+            }
+        }
+        for (FidoKeys fk : keys.archivedbyuser.getOrDefault(username, Collections.emptyList())) {
+            keysArrayBuilder.add(u2fGetKeysInfoBean.keyInfo(fk, true));
+            count++;
+        }
+        if (count == 0) {
+            return result(404, "");
+        }
+        return JSON.createObjectBuilder()
+                .add("status", 200)
+                .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, JSON.createObjectBuilder().add("keys", keysArrayBuilder))
+                .build();
+    }
+
+    /**
+     * @return the key, restored to FIDO_KEYS if it was archived; null if it
+     * does not exist
+     * @throws SKFEException - if its row level signature does not verify, or
+     * the user's range is moving to another shard
+     */
+    private FidoKeys find(Long did, Keys keys, KeyId kid) throws SKFEException {
+        FidoKeys fk = keys.hot.get(kid.primarykey);
+        if (fk != null) {
+            if (keys.unverified.contains(kid.primarykey)) {
+                throw new SKFEException(skfsCommon.getMessageProperty("SKCE-ERR-5001") + "fk sid-did-erqid=" + kid.primarykey);
+            }
+            return fk;
+        }
+        FidoKeys archived = keys.archived.remove(kid.primarykey);
+        if (archived == null) {
+            return null;
+        }
+        keys.archivedbyuser.get(kid.username).remove(archived);
+        fk = archivedkeysejb.restore(kid.sid, did, kid.username, kid.fkid);
+        if (fk != null) {
+            keys.hot.put(kid.primarykey, fk);
+            keys.hot(kid.username).add(fk);
+        }
+        return fk;
+    }
+
+    /**
+     * Updates the status of a key as updateFidoKeysStatus does
+     *
+     * @return false if the key could not be signed; it is then left
+     * unchanged
+     */
+    private boolean patch(Long did, FidoKeys fk, KeyId kid, BatchOperation op, EntityManager sem) {
+        String status = op.getStatus().trim().equalsIgnoreCase(applianceConstants.ACTIVE_STATUS)
+                ? applianceConstants.ACTIVE_STATUS : applianceConstants.INACTIVE_STATUS;
+        fk.setModifyLocation(op.getModify_location());
+        fk.setModifyDate(new Date(System.currentTimeMillis() / 1000L * 1000L));
+        fk.setStatus(status);
+        fk.setId(kid.primarykey);
+
+        if (ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.db.signature.rowlevel.add")) {
+            String signature = sign(did, fk);
+            if (signature == null) {
+                sem.refresh(fk);
+                return false;
+            }
+            fk.setSignature(signature);
+        }
+        return true;
+    }
+
+    private String sign(Long did, FidoKeys fk) {
+        return sign(did, getdomain.byDid(did).getSkceSigningdn(), fk);
+    }
+
+    /**
+     * Row level signature of a key changed in bulk, with the JAXB context
+     * and the signing DN of the domain looked up once
+     *
+     * @return the signature, null if the key could not be signed
+     */
+    static String sign(Long did, String signingdn, FidoKeys fk) {
+        StringWriter writer = new StringWriter();
+        try {
+            Marshaller marshaller = FIDO_KEYS_XML.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(fk, writer);
+            return RowIntegrity.sign(RowIntegrity.TABLE_FIDO_KEYS, did, signingdn, writer.toString());
+        } catch (JAXBException | CryptoException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, batchFidoKeysBean.class.getName(), "sign", "FIDOJPA-ERR-1001", "SignedXML " + ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sets FIDOKeysEnabled to false for the users left without an active key
+     */
+    private void disable(Long did, Keys keys, Set<String> usernames) {
+        for (String username : usernames) {
+            boolean active = false;
+            for (FidoKeys fk : keys.hot(username)) {
+                if (applianceConstants.ACTIVE_STATUS.equalsIgnoreCase(fk.getStatus())) {
+                    active = true;
+                    break;
+                }
+            }
+            if (active) {
+                continue;
+            }
+            try {
+                updateldapbean.execute(did, username, skfsConstants.LDAP_ATTR_KEY_FIDOENABLED, "false", false);
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0029", "false");
+            } catch (SKFEException ex) {
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0024", "false");
+            }
+        }
+    }
+
+    private static String primaryKey(FidoKeys fk) {
+        return fk.getFidoKeysPK().getSid() + "-" + fk.getFidoKeysPK().getDid() + "-" + fk.getFidoKeysPK().getUsername() + "-" + fk.getFidoKeysPK().getFkid();
+    }
+
+    private static JsonObject result(int status, String response) {
+        return JSON.createObjectBuilder()
+                .add("status", status)
+                .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, response)
+                .build();
+    }
+
+    private static JAXBContext jaxbContext() {
+        try {
+            return JAXBContext.newInstance(FidoKeys.class);
+        } catch (JAXBException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+}
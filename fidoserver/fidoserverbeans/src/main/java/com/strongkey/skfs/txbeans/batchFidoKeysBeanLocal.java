@@ -0,0 +1,28 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfs.requests.BatchOperation;
+import java.util.List;
+import javax.ejb.Local;
+import javax.json.JsonObject;
+
+@Local
+public interface batchFidoKeysBeanLocal {
+
+    /**
+     * Executes validated operations of a batch in one transaction
+     *
+     * @param did - FIDO domain id
+     * @param operations - getkeysinfo, patchkey and deregister operations
+     * whose inputs have been checked
+     * @return for each operation, in order, its 'status' (an HTTP status)
+     * and 'Response'
+     */
+    List<JsonObject> execute(Long did, List<BatchOperation> operations);
+}
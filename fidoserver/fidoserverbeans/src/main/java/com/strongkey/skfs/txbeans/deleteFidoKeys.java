@@ -10,9 +10,12 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.utilities.CredentialCache;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import java.util.logging.Level;
@@ -42,6 +45,8 @@ public class deleteFidoKeys implements deleteFidoKeysLocal {
     @EJB
     getFidoKeysLocal getregkeysejb;
     @EJB
+    archivedFidoKeysLocal archivedkeysejb;
+    @EJB
     replicateSKFEObjectBeanLocal replObj;
     
     /**
@@ -111,6 +116,10 @@ public class deleteFidoKeys implements deleteFidoKeysLocal {
         FidoKeys rk = null;
         try {
             rk = getregkeysejb.getByfkid(sid, did, username, fkid);
+            if (rk == null) {
+                //  moved out of the hot table by fidoKeysArchiver
+                rk = archivedkeysejb.restore(sid, did, username, fkid);
+            }
         } catch (SKFEException ex) {
             Logger.getLogger(deleteFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -122,9 +131,20 @@ public class deleteFidoKeys implements deleteFidoKeysLocal {
             return retObj.toString();
         }
         String primarykey = sid+"-"+did+"-"+rk.getFidoKeysPK().getUsername()+"-"+fkid;
+        //  the user's range may be moving to another shard
+        try {
+            ShardRouter.checkWritable(em, did, rk.getFidoKeysPK().getUsername());
+        } catch (SKFEException ex) {
+            status = false;
+            retObj = Json.createObjectBuilder().add("status", status).add("message", ex.getLocalizedMessage()).build();
+            return retObj.toString();
+        }
+        EntityManager sem = ShardRouter.entityManager(em, did, rk.getFidoKeysPK().getUsername());
         //delete the key
-        em.remove(rk);
-        em.flush();
+        sem.remove(rk);
+        sem.flush();
+        ReadReplica.recordWrite(did, rk.getFidoKeysPK().getUsername());
+        CredentialCache.getInstance().invalidate(did, rk.getKeyhandle());
 
         try {
             if(applianceCommon.replicate()){
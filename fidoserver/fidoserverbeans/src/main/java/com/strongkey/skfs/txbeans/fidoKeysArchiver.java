@@ -0,0 +1,210 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfe.entitybeans.FidoKeysArchive;
+import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.TypedQuery;
+
+/**
+ * Moves keys that can no longer authenticate out of FIDO_KEYS into
+ * FIDO_KEYS_ARCHIVE, so the hot table and its indexes only hold usable keys.
+ *
+ * A key is archived once it has been Inactive for
+ * skfs.cfg.property.db.archive.inactive.days, or, when
+ * skfs.cfg.property.db.archive.unused.days is not 0, once it has not been
+ * used (nor modified) for that many days. Each run moves at most batchsize
+ * keys from each database (primary and shards) in one transaction, so the
+ * job is throttled by batchsize and frequency.seconds. Rows are copied
+ * verbatim, signature included, and verified when read back; see
+ * archivedFidoKeys. Archiving is announced to the other servers as a delete
+ * so their caches drop the key.
+ *
+ * The keys of a batch are read with a write lock, so servers sharing a
+ * database may all run the job: a second server waits for the first one's
+ * batch to commit and then finds those keys gone; if it waits longer than
+ * the lock timeout, its run is skipped.
+ *
+ * FIDO_KEYS_ARCHIVE is only kept in the primary database, so a key of a
+ * shard is archived by a transaction that writes to both databases; this
+ * relies on shard resources being XA, as ShardRouter requires.
+ */
+@Singleton
+@Startup
+public class fidoKeysArchiver {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    private static final long DAY_MILLIS = 24L * 3600L * 1000L;
+
+    @Resource
+    private TimerService timerService;
+    @Resource
+    private SessionContext sc;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EJB
+    replicateSKFEObjectBeanLocal replObj;
+
+    private int batchsize;
+    private long archived = 0;
+
+    @PostConstruct
+    public void initialize() {
+        if (!skfsCommon.getConfigurationProperty("skfs.cfg.property.db.archive.enabled").equalsIgnoreCase("true")) {
+            return;
+        }
+        long frequency;
+        try {
+            batchsize = Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.archive.batchsize"));
+            frequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.archive.frequency.seconds"));
+        } catch (NumberFormatException ex) {
+            batchsize = 100;
+            frequency = 60L;
+        }
+        if (batchsize < 1) {
+            batchsize = 100;
+        }
+        if (frequency < 1L) {
+            frequency = 60L;
+        }
+        timerService.createIntervalTimer(frequency * 1000L, frequency * 1000L, new TimerConfig(null, false));
+    }
+
+    @Timeout
+    public void archive() {
+        long now = System.currentTimeMillis();
+        Date inactivebefore = before(now, "skfs.cfg.property.db.archive.inactive.days");
+        Date unusedbefore = before(now, "skfs.cfg.property.db.archive.unused.days");
+        int moved = 0;
+        try {
+            for (EntityManager sem : ShardRouter.allEntityManagers(em)) {
+                moved += archive(sem, inactivebefore, unusedbefore, new Date(now));
+            }
+            em.flush();
+        } catch (LockTimeoutException | PessimisticLockException ex) {
+            sc.setRollbackOnly();
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "archive", "FIDO-MSG-0066",
+                    "keys locked by another server, skipped: " + ex.getLocalizedMessage());
+            return;
+        } catch (PersistenceException | SKFEException ex) {
+            sc.setRollbackOnly();
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "archive", "FIDO-ERR-0054", ex.getLocalizedMessage());
+            return;
+        }
+        if (moved > 0) {
+            archived += moved;
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "archive", "FIDO-MSG-0066",
+                    "archived " + moved + " keys, " + archived + " since startup");
+        }
+    }
+
+    /**
+     * Archives up to batchsize keys of one database: Inactive keys first,
+     * then unused ones. Each query is a range of the (status, modify_date)
+     * index of FIDO_KEYS.
+     */
+    private int archive(EntityManager sem, Date inactivebefore, Date unusedbefore, Date now) throws SKFEException {
+        int moved = 0;
+        if (inactivebefore.getTime() > 0L) {
+            TypedQuery<FidoKeys> q = sem.createNamedQuery("FidoKeys.findArchivableInactive", FidoKeys.class);
+            q.setParameter("inactive", applianceConstants.INACTIVE_STATUS);
+            q.setParameter("inactivebefore", inactivebefore);
+            moved += archive(sem, q, batchsize, now);
+        }
+        if (unusedbefore.getTime() > 0L && moved < batchsize) {
+            TypedQuery<FidoKeys> q = sem.createNamedQuery("FidoKeys.findArchivableUnused", FidoKeys.class);
+            q.setParameter("statuses", Arrays.asList(applianceConstants.ACTIVE_STATUS, applianceConstants.INACTIVE_STATUS));
+            q.setParameter("unusedbefore", unusedbefore);
+            moved += archive(sem, q, batchsize - moved, now);
+        }
+        return moved;
+    }
+
+    private int archive(EntityManager sem, TypedQuery<FidoKeys> q, int max, Date now) throws SKFEException {
+        q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        q.setMaxResults(max);
+        q.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        List<FidoKeys> keys = q.getResultList();
+
+        int moved = 0;
+        for (FidoKeys fk : keys) {
+            Long did = (long) fk.getFidoKeysPK().getDid();
+            String username = fk.getFidoKeysPK().getUsername();
+            try {
+                ShardRouter.checkWritable(em, did, username);
+            } catch (SKFEException ex) {
+                //  being moved to another shard; archived on a later run
+                continue;
+            }
+            String primarykey = fk.getFidoKeysPK().getSid() + "-" + did + "-" + username + "-" + fk.getFidoKeysPK().getFkid();
+            em.merge(new FidoKeysArchive(fk, now));
+            sem.remove(fk);
+            skceMaps.getMapObj().remove(skfsConstants.MAP_FIDO_KEYS, primarykey);
+            CredentialCache.getInstance().invalidate(did, fk.getKeyhandle());
+            if (applianceCommon.replicate()) {
+                String response = replObj.execute(applianceConstants.ENTITY_TYPE_FIDO_KEYS, applianceConstants.REPLICATION_OPERATION_DELETE, primarykey, fk);
+                if (response != null) {
+                    throw new SKFEException(response);
+                }
+            }
+            moved++;
+        }
+        sem.flush();
+        return moved;
+    }
+
+    /**
+     * @return the cutoff date for the given number of days, or the epoch
+     * (nothing matches) when the property is 0 or not a number
+     */
+    private static Date before(long now, String property) {
+        long days;
+        try {
+            days = Long.parseLong(skfsCommon.getConfigurationProperty(property));
+        } catch (NumberFormatException ex) {
+            days = 0L;
+        }
+        return (days > 0L) ? new Date(now - days * DAY_MILLIS) : new Date(0L);
+    }
+}
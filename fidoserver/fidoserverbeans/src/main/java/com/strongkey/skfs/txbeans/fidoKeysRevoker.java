@@ -0,0 +1,464 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.crypto.utility.cryptoCommon;
+import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.entitybeans.AttestationCertificates;
+import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.RowIntegrity;
+import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Acts on the active keys of a domain made by an authenticator model that is
+ * no longer trusted, identified by its AAGUID and/or the key identifiers of
+ * its attestation certificates (as listed by the MDS).
+ *
+ * flag counts the keys and logs the count; deactivate makes them Inactive.
+ * The keys are found with indexed queries on (did, aaguid, status) and
+ * (attsid, attdid, attcid), in primary key order from a cursor, and changed
+ * skfs.cfg.property.fido2.mds.statuschange.batchsize at a time, each batch
+ * in its own transaction, pause.millis apart so live traffic keeps the
+ * database. A batch re-signs its rows with the JAXB context and signing DN
+ * looked up once, flushes once, and then replicates, drops the keys from the
+ * caches and sets FIDOKeysEnabled=false for the users left without an active
+ * key. Keys whose row level signature does not verify (as getFidoKeys checks
+ * it), or whose user is being moved to another shard, are left unchanged and
+ * counted as skipped.
+ *
+ * Attestation key identifiers are resolved by walking the domain's
+ * attestation certificates once, computing the SHA-1 of each public key.
+ */
+@Stateless
+public class fidoKeysRevoker implements fidoKeysRevokerLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    private static final Pattern AAGUID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final Pattern KEY_IDENTIFIER = Pattern.compile("[0-9a-fA-F]{40}");
+    private static final int MODIFY_LOCATION_MAXLEN = 256;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Resource
+    private SessionContext sc;
+
+    @EJB
+    getFidoKeysLocal getkeysejb;
+    @EJB
+    getDomainsBeanLocal getdomain;
+    @EJB
+    updateFidoUserBeanLocal updateldapbean;
+    @EJB
+    replicateSKFEObjectBeanLocal replObj;
+
+    /**
+     * Progress of the last revocation of each domain on this server
+     */
+    private static final ConcurrentMap<Long, String> progress = new ConcurrentHashMap<>();
+
+    private static final String QUEUED = "queued";
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    /**
+     * Claims the domain for a revocation when the request is valid and no
+     * revocation of the domain is running on this server; the caller must
+     * then call revoke
+     *
+     * @return null if the revocation can start, the reason otherwise
+     */
+    @Override
+    public String validate(Long did, String aaguid, List<String> keyIdentifiers, String action) {
+        if (!ACTION_FLAG.equals(action) && !ACTION_DEACTIVATE.equals(action)) {
+            return "action must be " + ACTION_FLAG + " or " + ACTION_DEACTIVATE;
+        }
+        if (aaguid == null && (keyIdentifiers == null || keyIdentifiers.isEmpty())) {
+            return "aaguid or keyidentifiers is required";
+        }
+        if (aaguid != null && !AAGUID.matcher(aaguid).matches()) {
+            return "invalid aaguid " + aaguid;
+        }
+        if (keyIdentifiers != null) {
+            for (String keyIdentifier : keyIdentifiers) {
+                if (keyIdentifier == null || !KEY_IDENTIFIER.matcher(keyIdentifier).matches()) {
+                    return "invalid key identifier " + keyIdentifier;
+                }
+            }
+        }
+        String[] running = new String[1];
+        progress.compute(did, (d, current) -> {
+            if (isRunning(current)) {
+                running[0] = current;
+                return current;
+            }
+            return QUEUED;
+        });
+        if (running[0] != null) {
+            return "a revocation of the domain is in progress: " + running[0];
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isRunning(Long did) {
+        return isRunning(progress.get(did));
+    }
+
+    private static boolean isRunning(String current) {
+        return current != null && !current.startsWith(DONE) && !current.startsWith(FAILED);
+    }
+
+    @Override
+    public String getStatus(Long did) {
+        return progress.get(did);
+    }
+
+    @Override
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void revoke(Long did, String aaguid, List<String> keyIdentifiers, String action, String reason) {
+        fidoKeysRevokerLocal self = sc.getBusinessObject(fidoKeysRevokerLocal.class);
+        String target = "did=" + did + (aaguid == null ? "" : " aaguid=" + aaguid)
+                + (keyIdentifiers == null || keyIdentifiers.isEmpty() ? "" : " keyidentifiers=" + keyIdentifiers)
+                + " (" + reason + ")";
+        long start = System.currentTimeMillis();
+        try {
+            Map<Short, List<Integer>> certificates = new LinkedHashMap<>();
+            if (keyIdentifiers != null && !keyIdentifiers.isEmpty()) {
+                step(did, "resolving attestation certificates", target);
+                Set<String> lowercase = new HashSet<>();
+                for (String keyIdentifier : keyIdentifiers) {
+                    lowercase.add(keyIdentifier.toLowerCase());
+                }
+                String after = "";
+                while ((after = self.attestationCertificatesBatch(did, lowercase, after, certificates)) != null) {
+                }
+            }
+
+            int batchsize = getBatchsize();
+            long matched = 0;
+            int deactivated = 0;
+            int skipped = 0;
+            step(did, ACTION_FLAG.equals(action) ? "counting" : "deactivating", target);
+            for (String jndiname : ShardRouter.jndinames(did)) {
+                List<Pass> passes = new ArrayList<>();
+                if (aaguid != null) {
+                    passes.add(new Pass(aaguid, null, null));
+                }
+                for (Map.Entry<Short, List<Integer>> e : certificates.entrySet()) {
+                    List<Integer> attcids = e.getValue();
+                    for (int i = 0; i < attcids.size(); i += batchsize) {
+                        passes.add(new Pass(null, e.getKey(), new ArrayList<>(attcids.subList(i, Math.min(attcids.size(), i + batchsize)))));
+                    }
+                }
+                for (Pass pass : passes) {
+                    if (ACTION_FLAG.equals(action)) {
+                        matched += self.count(did, jndiname, pass.aaguid, pass.attsid, pass.attcids);
+                        continue;
+                    }
+                    String after = "";
+                    do {
+                        Batch b = self.revokeBatch(did, jndiname, pass.aaguid, pass.attsid, pass.attcids, reason, after);
+                        deactivated += b.deactivated;
+                        skipped += b.skipped;
+                        after = b.after;
+                        progress.put(did, "deactivating " + target + ": " + deactivated + " deactivated, " + skipped + " skipped");
+                        if (after != null) {
+                            Thread.sleep(getPause());
+                        }
+                    } while (after != null);
+                }
+            }
+            String result = ACTION_FLAG.equals(action)
+                    ? matched + " active keys"
+                    : deactivated + " keys deactivated, " + skipped + " skipped";
+            step(did, DONE + ": " + result, target + " in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (RuntimeException | InterruptedException ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            progress.put(did, FAILED + ": " + ex.getLocalizedMessage());
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "revoke", "FIDO-ERR-0057",
+                    target + ": " + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Adds the attestation certificates of the next batch of the domain whose
+     * public key has one of the key identifiers to matches, by sid
+     *
+     * @return the cursor (sid-attcid) of the batch, null when done
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public String attestationCertificatesBatch(Long did, Set<String> keyIdentifiers, String after, Map<Short, List<Integer>> matches) {
+        Cursor cursor = new Cursor(after);
+        TypedQuery<AttestationCertificates> q = em.createNamedQuery("AttestationCertificates.scanByDidAfter", AttestationCertificates.class);
+        q.setParameter("did", did.shortValue());
+        q.setParameter("sid", cursor.sid);
+        q.setParameter("attcid", (int) cursor.id);
+        q.setMaxResults(getBatchsize());
+        List<AttestationCertificates> certificates = q.getResultList();
+
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new EJBException(ex);
+        }
+        for (AttestationCertificates ac : certificates) {
+            X509Certificate certificate = cryptoCommon.generateX509FromBytes(Base64.getUrlDecoder().decode(ac.getCertificate()));
+            if (certificate == null) {
+                continue;
+            }
+            byte[] publickey = SubjectPublicKeyInfo.getInstance(certificate.getPublicKey().getEncoded()).getPublicKeyData().getBytes();
+            if (keyIdentifiers.contains(Hex.toHexString(sha1.digest(publickey)))) {
+                matches.computeIfAbsent(ac.getAttestationCertificatesPK().getSid(), s -> new ArrayList<>())
+                        .add(ac.getAttestationCertificatesPK().getAttcid());
+            }
+        }
+        if (certificates.isEmpty()) {
+            return null;
+        }
+        AttestationCertificates last = certificates.get(certificates.size() - 1);
+        return last.getAttestationCertificatesPK().getSid() + "-" + last.getAttestationCertificatesPK().getAttcid();
+    }
+
+    /**
+     * @return the number of active keys of the domain in jndiname made by
+     * the authenticator model (aaguid, or attestation certificates attcids
+     * of server attsid)
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public long count(Long did, String jndiname, String aaguid, Short attsid, List<Integer> attcids) {
+        EntityManager sem = ShardRouter.entityManager(em, jndiname);
+        TypedQuery<Long> q;
+        if (aaguid != null) {
+            q = sem.createNamedQuery("FidoKeys.countByAaguidStatus", Long.class);
+            q.setParameter("aaguid", aaguid);
+        } else {
+            q = sem.createNamedQuery("FidoKeys.countByAttestationCertificatesStatus", Long.class);
+            q.setParameter("attsid", attsid);
+            q.setParameter("attcids", attcids);
+        }
+        q.setParameter("did", did.shortValue());
+        q.setParameter("status", applianceConstants.ACTIVE_STATUS);
+        return q.getSingleResult();
+    }
+
+    /**
+     * Deactivates the next batch of active keys of the domain in jndiname
+     * made by the authenticator model
+     *
+     * @param reason - modify_location of the keys deactivated
+     * @param after - cursor (sid-fkid) of the previous batch, "" to start
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Batch revokeBatch(Long did, String jndiname, String aaguid, Short attsid, List<Integer> attcids, String reason, String after) {
+        EntityManager sem = ShardRouter.entityManager(em, jndiname);
+        Cursor cursor = new Cursor(after);
+        TypedQuery<FidoKeys> q;
+        if (aaguid != null) {
+            q = sem.createNamedQuery("FidoKeys.findByAaguidStatusAfter", FidoKeys.class);
+            q.setParameter("aaguid", aaguid);
+        } else {
+            q = sem.createNamedQuery("FidoKeys.findByAttestationCertificatesStatusAfter", FidoKeys.class);
+            q.setParameter("attsid", attsid);
+            q.setParameter("attcids", attcids);
+        }
+        q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        q.setParameter("did", did.shortValue());
+        q.setParameter("status", applianceConstants.ACTIVE_STATUS);
+        q.setParameter("sid", cursor.sid);
+        q.setParameter("fkid", cursor.id);
+        int batchsize = getBatchsize();
+        q.setMaxResults(batchsize);
+        List<FidoKeys> keys = q.getResultList();
+        if (keys.isEmpty()) {
+            return new Batch(null, 0, 0);
+        }
+
+        boolean sign = ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.db.signature.rowlevel.add");
+        String signingdn = sign ? getdomain.byDid(did).getSkceSigningdn() : null;
+        String location = (reason.length() > MODIFY_LOCATION_MAXLEN) ? reason.substring(0, MODIFY_LOCATION_MAXLEN) : reason;
+        Date now = new Date(System.currentTimeMillis() / 1000L * 1000L);
+        Map<String, FidoKeys> changed = new LinkedHashMap<>();
+        int skipped = 0;
+        for (FidoKeys fk : keys) {
+            String username = fk.getFidoKeysPK().getUsername();
+            String primarykey = fk.getFidoKeysPK().getSid() + "-" + did + "-" + username + "-" + fk.getFidoKeysPK().getFkid();
+            try {
+                ShardRouter.checkWritable(em, did, username);
+            } catch (SKFEException ex) {
+                skipped++;
+                continue;
+            }
+            //  checked as getFidoKeys does, so a tampered row is not re-signed
+            if (RowIntegrity.isQuarantined(RowIntegrity.TABLE_FIDO_KEYS, primarykey)
+                    || (RowIntegrity.verifyOnRead(RowIntegrity.TABLE_FIDO_KEYS, fk.getModifyDate()) && !getkeysejb.verifySignature(fk))) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "revokeBatch",
+                        "SKCE-ERR-5001", "fk sid-did-username-fkid=" + primarykey);
+                skipped++;
+                continue;
+            }
+            fk.setStatus(applianceConstants.INACTIVE_STATUS);
+            fk.setModifyLocation(location);
+            fk.setModifyDate(now);
+            fk.setId(primarykey);
+            if (sign) {
+                String signature = batchFidoKeysBean.sign(did, signingdn, fk);
+                if (signature == null) {
+                    sem.refresh(fk);
+                    skipped++;
+                    continue;
+                }
+                fk.setSignature(signature);
+            }
+            changed.put(primarykey, fk);
+        }
+        sem.flush();
+
+        Set<String> usernames = new HashSet<>();
+        for (Map.Entry<String, FidoKeys> e : changed.entrySet()) {
+            FidoKeys fk = e.getValue();
+            String username = fk.getFidoKeysPK().getUsername();
+            usernames.add(username);
+            ReadReplica.recordWrite(did, username);
+            CredentialCache.getInstance().invalidate(did, fk.getKeyhandle());
+            skceMaps.getMapObj().remove(skfsConstants.MAP_FIDO_KEYS, e.getKey());
+            if (applianceCommon.replicate()) {
+                String response = replObj.execute(applianceConstants.ENTITY_TYPE_FIDO_KEYS, applianceConstants.REPLICATION_OPERATION_UPDATE, e.getKey(), fk);
+                if (response != null) {
+                    throw new EJBException(response);
+                }
+            }
+        }
+        disable(sem, did, usernames);
+
+        FidoKeys last = keys.get(keys.size() - 1);
+        String next = (keys.size() < batchsize) ? null : last.getFidoKeysPK().getSid() + "-" + last.getFidoKeysPK().getFkid();
+        return new Batch(next, changed.size(), skipped);
+    }
+
+    /**
+     * Sets FIDOKeysEnabled to false for the users left without an active key,
+     * found with one query
+     */
+    private void disable(EntityManager sem, Long did, Set<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        List<String> active = sem.createNamedQuery("FidoKeys.usernamesWithStatus", String.class)
+                .setParameter("did", did.shortValue())
+                .setParameter("usernames", usernames)
+                .setParameter("status", applianceConstants.ACTIVE_STATUS)
+                .getResultList();
+        usernames.removeAll(active);
+        for (String username : usernames) {
+            try {
+                updateldapbean.execute(did, username, skfsConstants.LDAP_ATTR_KEY_FIDOENABLED, "false", false);
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0029", "false");
+            } catch (SKFEException ex) {
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0024", "false");
+            }
+        }
+    }
+
+    private void step(Long did, String step, String target) {
+        progress.put(did, step);
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "revoke", "FIDO-MSG-0069", step + " " + target);
+    }
+
+    private static int getBatchsize() {
+        return Math.max(1, ConfigurationSnapshot.get().getInt("skfs.cfg.property.fido2.mds.statuschange.batchsize", 200));
+    }
+
+    private static long getPause() {
+        return Math.max(0L, ConfigurationSnapshot.get().getLong("skfs.cfg.property.fido2.mds.statuschange.pause.millis", 500L));
+    }
+
+    /**
+     * Keys of one query: by AAGUID, or by attestation certificates of a
+     * server (at most batchsize of them, to bound the IN list)
+     */
+    private static final class Pass {
+        private final String aaguid;
+        private final Short attsid;
+        private final List<Integer> attcids;
+
+        private Pass(String aaguid, Short attsid, List<Integer> attcids) {
+            this.aaguid = aaguid;
+            this.attsid = attsid;
+            this.attcids = attcids;
+        }
+    }
+
+    /**
+     * sid-id cursor of a walk in primary key order, "" before the first row
+     */
+    private static final class Cursor {
+        private final short sid;
+        private final long id;
+
+        private Cursor(String after) {
+            if (after == null || after.isEmpty()) {
+                sid = -1;
+                id = -1L;
+            } else {
+                int dash = after.indexOf('-');
+                sid = Short.parseShort(after.substring(0, dash));
+                id = Long.parseLong(after.substring(dash + 1));
+            }
+        }
+    }
+}
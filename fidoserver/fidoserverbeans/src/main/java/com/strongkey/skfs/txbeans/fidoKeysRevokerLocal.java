@@ -0,0 +1,52 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.ejb.Local;
+
+@Local
+public interface fidoKeysRevokerLocal {
+
+    String ACTION_FLAG = "flag";
+    String ACTION_DEACTIVATE = "deactivate";
+
+    /**
+     * Outcome of one batch: the cursor to continue from (null when done) and
+     * the keys changed and left unchanged
+     */
+    final class Batch {
+        public final String after;
+        public final int deactivated;
+        public final int skipped;
+
+        public Batch(String after, int deactivated, int skipped) {
+            this.after = after;
+            this.deactivated = deactivated;
+            this.skipped = skipped;
+        }
+    }
+
+    //  A successful validate claims the domain until revoke completes
+    String validate(Long did, String aaguid, List<String> keyIdentifiers, String action);
+
+    boolean isRunning(Long did);
+
+    void revoke(Long did, String aaguid, List<String> keyIdentifiers, String action, String reason);
+
+    String getStatus(Long did);
+
+    //  Steps of a revocation, each in its own transaction
+    String attestationCertificatesBatch(Long did, Set<String> keyIdentifiers, String after, Map<Short, List<Integer>> matches);
+
+    long count(Long did, String jndiname, String aaguid, Short attsid, List<Integer> attcids);
+
+    Batch revokeBatch(Long did, String jndiname, String aaguid, Short attsid, List<Integer> attcids, String reason, String after);
+}
@@ -45,7 +45,7 @@ public class getDBUserInfoBean implements getDBUserInfoBeanLocal {
 
         LDAPUserMetadata authres = null;
 
-        FidoUsers FIDOUser = getfidouserbean.GetByUsername(did, username);
+        FidoUsers FIDOUser = getfidouserbean.GetByUsernameReadOnly(did, username);
         if (FIDOUser == null) {
             addfidouserbean.execute(did, username);
             FIDOUser = getfidouserbean.GetByUsername(did, username);
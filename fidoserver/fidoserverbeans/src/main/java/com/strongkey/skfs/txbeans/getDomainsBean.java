@@ -8,6 +8,7 @@
 package com.strongkey.skfs.txbeans;
 
 import com.strongkey.appliance.entitybeans.Domains;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
@@ -57,7 +58,7 @@ public class getDomainsBean implements getDomainsBeanLocal {
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "getAll", skfsCommon.getMessageProperty("SKCE-MSG-1023"), 
                 "createNamedQuery(Domains.getAll)");
         try {
-            return (Collection<Domains>) em.createNamedQuery("Domains.findAll").getResultList();
+            return ReadReplica.lookup(em, 0L, null, rem -> (Collection<Domains>) rem.createNamedQuery("Domains.findAll").getResultList());
         } catch (NoResultException ex) {
             skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "findAll");
             return null;
@@ -92,8 +93,8 @@ public class getDomainsBean implements getDomainsBeanLocal {
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "byDid", skfsCommon.getMessageProperty("SKCE-MSG-1023"), 
                 "createNamedQuery(Domains.findByDid)");
         try {
-            return (Domains) em.createNamedQuery("Domains.findByDid")
-                    .setParameter("did", did).getSingleResult();
+            return ReadReplica.lookup(em, did, null, rem -> (Domains) rem.createNamedQuery("Domains.findByDid")
+                    .setParameter("did", did).getSingleResult());
         } catch (NoResultException ex) {
             skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "byDid");
             return null;
@@ -112,9 +113,9 @@ public class getDomainsBean implements getDomainsBeanLocal {
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "byDid", skfsCommon.getMessageProperty("SKCE-MSG-1023"), 
                 "createNamedQuery(Domains.findByDid)");
         try {
-            if(em.createNamedQuery("Domains.findByDid")
+            if(ReadReplica.lookup(em, did, null, rem -> rem.createNamedQuery("Domains.findByDid")
                     .setParameter("did", did)
-                    .getSingleResult() !=null){
+                    .getSingleResult()) !=null){
                 return true;
             }
         } catch (NoResultException ex) {
@@ -42,7 +42,7 @@ public class getFIDOUserinfoBean implements getFIDOUserinfoBeanLocal {
 
         FIDOUserMetadata authres = null;
 
-        FidoUsers FIDOUser = getfidouserbean.GetByUsername(did, username);
+        FidoUsers FIDOUser = getfidouserbean.GetByUsernameReadOnly(did, username);
         if (FIDOUser == null) {
             addfidouserbean.execute(did, username);
             FIDOUser = getfidouserbean.GetByUsername(did, username);
@@ -8,6 +8,7 @@
 package com.strongkey.skfs.txbeans;
 
 import com.strongkey.skfs.entitybeans.AttestationCertificates;
+import com.strongkey.skfs.utilities.ReadReplica;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -30,12 +31,14 @@ public class getFidoAttestationCertificate implements getFidoAttestationCertific
     @Override
     public AttestationCertificates getByPK(Long did, Long sid, Long attcid){
         try {
-            Query q = em.createNamedQuery("AttestationCertificates.findBySidDidAttcid");
-            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
-            q.setParameter("did", did);
-            q.setParameter("sid", sid);
-            q.setParameter("attcid", attcid);
-            AttestationCertificates ac = (AttestationCertificates) q.getSingleResult();
+            AttestationCertificates ac = ReadReplica.lookup(em, did, null, rem -> {
+                Query q = rem.createNamedQuery("AttestationCertificates.findBySidDidAttcid");
+                q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+                q.setParameter("did", did);
+                q.setParameter("sid", sid);
+                q.setParameter("attcid", attcid);
+                return (AttestationCertificates) q.getSingleResult();
+            });
 //            if (ac != null) {                       //TODO verify signature
 //                verifyDBRecordSignature(did, fp);
 //            }
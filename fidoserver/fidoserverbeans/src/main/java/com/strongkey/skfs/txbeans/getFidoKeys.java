@@ -8,10 +8,12 @@
 package com.strongkey.skfs.txbeans;
 
 import com.strongkey.appliance.entitybeans.Domains;
-import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
 import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.RowIntegrity;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skfs.utilities.skfsLogger;
@@ -59,28 +61,30 @@ public class getFidoKeys implements getFidoKeysLocal {
      */
     @Override
     public Collection<FidoKeys> getByUsername(Long did, String username) throws SKFEException {
-        try {
-            TypedQuery<FidoKeys> q = em.createNamedQuery("FidoKeys.findByUsername", FidoKeys.class);
-            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
-            q.setParameter("username", username);
-            q.setParameter("did", did);
-            Collection<FidoKeys> fidoKeysColl = q.getResultList();
-            Collection<FidoKeys> validFidoKeysColl = fidoKeysColl;
-            if (!fidoKeysColl.isEmpty()) {
-                for (FidoKeys fk : fidoKeysColl) {
-                    if (fk != null) {
-                        try {
-                            verifyDBRecordSignature(did, fk);
-                        } catch (SKFEException ex) {
-                            validFidoKeysColl.remove(fk);
+        return ReadReplica.lookup(ShardRouter.entityManager(em, did, username), did, username, rem -> {
+            try {
+                TypedQuery<FidoKeys> q = rem.createNamedQuery("FidoKeys.findByUsername", FidoKeys.class);
+                q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+                q.setParameter("username", username);
+                q.setParameter("did", did);
+                Collection<FidoKeys> fidoKeysColl = q.getResultList();
+                Collection<FidoKeys> validFidoKeysColl = fidoKeysColl;
+                if (!fidoKeysColl.isEmpty()) {
+                    for (FidoKeys fk : fidoKeysColl) {
+                        if (fk != null) {
+                            try {
+                                verifyDBRecordSignature(did, fk);
+                            } catch (SKFEException ex) {
+                                validFidoKeysColl.remove(fk);
+                            }
                         }
                     }
                 }
+                return validFidoKeysColl;
+            } catch (NoResultException ex) {
+                return null;
             }
-            return validFidoKeysColl;
-        } catch (NoResultException ex) {
-            return null;
-        }
+        });
     }
 
     /**
@@ -90,8 +94,22 @@ public class getFidoKeys implements getFidoKeysLocal {
      */
     @Override
     public Collection<FidoKeys> getAll(Long did) throws SKFEException {
+        if (ShardRouter.isSharded(did, null)) {
+            Collection<FidoKeys> all = new ArrayList<>();
+            for (EntityManager sem : ShardRouter.entityManagers(em, did)) {
+                Collection<FidoKeys> keys = getAll(sem, did);
+                if (keys != null) {
+                    all.addAll(keys);
+                }
+            }
+            return all;
+        }
+        return ReadReplica.lookup(em, did, null, rem -> getAll(rem, did));
+    }
+
+    private Collection<FidoKeys> getAll(EntityManager rem, Long did) {
         try {
-            TypedQuery<FidoKeys> q = em.createNamedQuery("FidoKeys.findAllbyDid", FidoKeys.class);
+            TypedQuery<FidoKeys> q = rem.createNamedQuery("FidoKeys.findAllbyDid", FidoKeys.class);
             q.setHint("javax.persistence.cache.storeMode", "REFRESH");
             q.setParameter("did", did);
             Collection<FidoKeys> fidoKeysColl = q.getResultList();
@@ -125,7 +143,7 @@ public class getFidoKeys implements getFidoKeysLocal {
     @Override
     public FidoKeys getByUsernameKH(Long did, String username, String KH) throws SKFEException {
         try {
-            Query q = em.createNamedQuery("FidoKeys.findByUsernameKH");
+            Query q = ShardRouter.entityManager(em, did, username).createNamedQuery("FidoKeys.findByUsernameKH");
             q.setHint("javax.persistence.cache.storeMode", "REFRESH");
             q.setParameter("username", username);
             q.setParameter("did", did);
@@ -151,7 +169,7 @@ public class getFidoKeys implements getFidoKeysLocal {
     @Override
     public FidoKeys getByfkid(Short sid, Long did, String username, Long fkid) throws SKFEException {
         try {
-            Query q = em.createNamedQuery("FidoKeys.findBySidDidFkid");
+            Query q = ShardRouter.entityManager(em, did, username).createNamedQuery("FidoKeys.findBySidDidFkid");
             q.setHint("javax.persistence.cache.storeMode", "REFRESH");
             q.setParameter("fkid", fkid);
             q.setParameter("did", did);
@@ -177,30 +195,32 @@ public class getFidoKeys implements getFidoKeysLocal {
      */
     @Override
     public Collection<FidoKeys> getByUsernameStatus(Long did, String username, String status) throws SKFEException {
-        try {
-            TypedQuery<FidoKeys> q = em.createNamedQuery("FidoKeys.findByUsernameStatus", FidoKeys.class);
-            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
-            q.setParameter("username", username);
-            q.setParameter("did", did);
-            q.setParameter("status", status);
-            Collection<FidoKeys> fidoKeysColl = q.getResultList();
-            Collection<FidoKeys> validFidoKeysColl = new ArrayList<>();
-            validFidoKeysColl.addAll(fidoKeysColl);
-            if (!fidoKeysColl.isEmpty()) {
-                for (FidoKeys fk : fidoKeysColl) {
-                    if (fk != null) {
-                        try {
-                            verifyDBRecordSignature(did, fk);
-                        } catch (SKFEException ex) {
-                            validFidoKeysColl.remove(fk);
+        return ReadReplica.lookup(ShardRouter.entityManager(em, did, username), did, username, rem -> {
+            try {
+                TypedQuery<FidoKeys> q = rem.createNamedQuery("FidoKeys.findByUsernameStatus", FidoKeys.class);
+                q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+                q.setParameter("username", username);
+                q.setParameter("did", did);
+                q.setParameter("status", status);
+                Collection<FidoKeys> fidoKeysColl = q.getResultList();
+                Collection<FidoKeys> validFidoKeysColl = new ArrayList<>();
+                validFidoKeysColl.addAll(fidoKeysColl);
+                if (!fidoKeysColl.isEmpty()) {
+                    for (FidoKeys fk : fidoKeysColl) {
+                        if (fk != null) {
+                            try {
+                                verifyDBRecordSignature(did, fk);
+                            } catch (SKFEException ex) {
+                                validFidoKeysColl.remove(fk);
+                            }
                         }
                     }
                 }
+                return validFidoKeysColl;
+            } catch (NoResultException ex) {
+                return null;
             }
-            return validFidoKeysColl;
-        } catch (NoResultException ex) {
-            return null;
-        }
+        });
     }
 
     /**
@@ -212,25 +232,27 @@ public class getFidoKeys implements getFidoKeysLocal {
      */
     @Override
     public FidoKeys getNewestKeyByUsernameStatus(Long did, String username, String status) throws SKFEException {
-        try {
-            Query q = em.createNamedQuery("FidoKeys.findNewestKeyByUsernameStatus", FidoKeys.class);
-            q.setHint("javax.persistence.cache.storeMode", "REFRESH");
-            q.setParameter("username", username);
-            q.setParameter("did", did);
-            q.setParameter("status", status);
+        return ReadReplica.lookup(ShardRouter.entityManager(em, did, username), did, username, rem -> {
+            try {
+                Query q = rem.createNamedQuery("FidoKeys.findNewestKeyByUsernameStatus", FidoKeys.class);
+                q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+                q.setParameter("username", username);
+                q.setParameter("did", did);
+                q.setParameter("status", status);
 
-            List<FidoKeys> fkList = q.getResultList();
-            if (fkList == null || fkList.isEmpty()) {
+                List<FidoKeys> fkList = q.getResultList();
+                if (fkList == null || fkList.isEmpty()) {
+                    return null;
+                }
+                FidoKeys rk = fkList.get(0);
+                if (rk != null) {
+                    verifyDBRecordSignature(did, rk);
+                }
+                return rk;
+            } catch (NoResultException ex) {
                 return null;
             }
-            FidoKeys rk = fkList.get(0);
-            if (rk != null) {
-                verifyDBRecordSignature(did, rk);
-            }
-            return rk;
-        } catch (NoResultException ex) {
-            return null;
-        }
+        });
     }
 
     @Override
@@ -256,7 +278,9 @@ public class getFidoKeys implements getFidoKeysLocal {
 
     /**
      * Verifies the database row level signature of the given object and returns
-     * successfully if verified and throws exception if not verified.
+     * successfully if verified and throws exception if not verified. Depending
+     * on the row integrity mode only a sample of the rows is verified here, the
+     * rest being covered by rowIntegrityScanner.
      *
      * @param did CDA domain id
      * @param er Object whose signature has to be verified
@@ -265,56 +289,16 @@ public class getFidoKeys implements getFidoKeysLocal {
     private void verifyDBRecordSignature(Long did, FidoKeys fk)
             throws SKFEException {
         if (fk != null) {
-            if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.verify")
-                    .equalsIgnoreCase("true")) {
-                Domains d = getdomejb.byDid(did);
-                String standalone = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine");
-                String signingKeystorePassword = "";
-                if (standalone.equalsIgnoreCase("true")) {
-                    signingKeystorePassword = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
-                }
-
-                String documentid = fk.getFidoKeysPK().getSid()
-                        + "-" + fk.getFidoKeysPK().getDid()
-                        + "-" + fk.getFidoKeysPK().getUsername()
-                        + "-" + fk.getFidoKeysPK().getFkid();
-                fk.setId(documentid);
-
-                //jaxB conversion
-                //converting the databean object to xml
-                StringWriter writer = new StringWriter();
-                JAXBContext jaxbContext;
-                Marshaller marshaller;
-                try {
-                    jaxbContext = JAXBContext.newInstance(FidoKeys.class);
-                    marshaller = jaxbContext.createMarshaller();
-                    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-                    marshaller.marshal(fk, writer);
-                } catch (JAXBException ex) {
-                    Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
-                }
-
-                //  verify row level signature
-                boolean verified = false;
-                try {
-                    verified = initCryptoModule.getCryptoModule().verifyDBRow(did.toString(), writer.toString(), d.getSkceSigningdn(), Boolean.valueOf(standalone), signingKeystorePassword, fk.getSignature());
-                } catch (CryptoException ex) {
-                    Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                if (!verified) {
-                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verifyDBRecordSignature",
-                            "SKCE-ERR-5001", "er sid-did-erqid="
-                            + fk.getFidoKeysPK().getSid()
-                            + "-" + fk.getFidoKeysPK().getDid()
-                            + "-" + fk.getFidoKeysPK().getUsername()
-                            + "-" + fk.getFidoKeysPK().getFkid());
-                    throw new SKFEException(skfsCommon.getMessageProperty("SKCE-ERR-5001")
-                            + "fk sid-did-erqid="
-                            + fk.getFidoKeysPK().getSid()
-                            + "-" + fk.getFidoKeysPK().getDid()
-                            + "-" + fk.getFidoKeysPK().getUsername()
-                            + "-" + fk.getFidoKeysPK().getFkid());
-                }
+            String documentid = fk.getFidoKeysPK().getSid()
+                    + "-" + fk.getFidoKeysPK().getDid()
+                    + "-" + fk.getFidoKeysPK().getUsername()
+                    + "-" + fk.getFidoKeysPK().getFkid();
+            if (RowIntegrity.isQuarantined(RowIntegrity.TABLE_FIDO_KEYS, documentid)
+                    || (RowIntegrity.verifyOnRead(RowIntegrity.TABLE_FIDO_KEYS, fk.getModifyDate()) && !verifySignature(fk))) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verifyDBRecordSignature",
+                        "SKCE-ERR-5001", "er sid-did-erqid=" + documentid);
+                throw new SKFEException(skfsCommon.getMessageProperty("SKCE-ERR-5001")
+                        + "fk sid-did-erqid=" + documentid);
             }
         } else {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verifyDBRecordSignature",
@@ -322,4 +306,44 @@ public class getFidoKeys implements getFidoKeysLocal {
             throw new SKFEException(skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " fk object");
         }
     }
+
+    /**
+     * Verifies the database row level signature of the given key
+     *
+     * @param fk - key whose signature has to be verified
+     * @return true if the signature is valid
+     */
+    @Override
+    public boolean verifySignature(FidoKeys fk) {
+        Long did = (long) fk.getFidoKeysPK().getDid();
+        Domains d = getdomejb.byDid(did);
+        String documentid = fk.getFidoKeysPK().getSid()
+                + "-" + fk.getFidoKeysPK().getDid()
+                + "-" + fk.getFidoKeysPK().getUsername()
+                + "-" + fk.getFidoKeysPK().getFkid();
+        fk.setId(documentid);
+
+        //jaxB conversion
+        //converting the databean object to xml
+        StringWriter writer = new StringWriter();
+        JAXBContext jaxbContext;
+        Marshaller marshaller;
+        try {
+            jaxbContext = JAXBContext.newInstance(FidoKeys.class);
+            marshaller = jaxbContext.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(fk, writer);
+        } catch (JAXBException ex) {
+            Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        //  verify row level signature
+        boolean verified = false;
+        try {
+            verified = RowIntegrity.verify(did, d.getSkceSigningdn(), writer.toString(), fk.getSignature());
+        } catch (CryptoException ex) {
+            Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return verified;
+    }
 }
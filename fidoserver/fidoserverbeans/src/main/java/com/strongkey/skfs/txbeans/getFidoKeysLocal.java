@@ -21,4 +21,5 @@ public interface getFidoKeysLocal {
     FidoKeys getByfkid(Short sid, Long did, String username,Long fkid)throws SKFEException;
     FidoKeys getNewestKeyByUsernameStatus(Long did, String username, String status) throws SKFEException;
     int nextfkid(Short sid, Long did, String username);
+    boolean verifySignature(FidoKeys fk);
 }
@@ -8,10 +8,12 @@
 package com.strongkey.skfs.txbeans;
 
 import com.strongkey.appliance.entitybeans.Domains;
-import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
 import com.strongkey.skfs.entitybeans.FidoUsers;
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.RowIntegrity;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skfs.utilities.skfsLogger;
@@ -54,6 +56,19 @@ public class getFidoUser implements getFidoUserLocal {
 
     @Override
     public FidoUsers GetByUsername(Long did, String username) throws SKFEException {
+        return getByUsername(ShardRouter.entityManager(em, did, username), did, username);
+    }
+
+    /**
+     * Same as GetByUsername, but may be served by the read replica (see
+     * ReadReplica); the user returned must not be modified
+     */
+    @Override
+    public FidoUsers GetByUsernameReadOnly(Long did, String username) throws SKFEException {
+        return ReadReplica.lookup(ShardRouter.entityManager(em, did, username), did, username, rem -> getByUsername(rem, did, username));
+    }
+
+    private FidoUsers getByUsername(EntityManager em, Long did, String username) throws SKFEException {
         try {
             TypedQuery<FidoUsers> q = em.createNamedQuery("FidoUsers.findByDidUsername", FidoUsers.class);
             q.setHint("javax.persistence.cache.storeMode", "REFRESH");
@@ -72,53 +87,17 @@ public class getFidoUser implements getFidoUserLocal {
     private void verifyDBRecordSignature(Long did, FidoUsers FidoUser)
             throws SKFEException {
         if (FidoUser != null) {
-            if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.verify")
-                    .equalsIgnoreCase("true")) {
-                Domains d = getdomejb.byDid(did);
-                String standalone = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine");
-                String signingKeystorePassword = "";
-                if (standalone.equalsIgnoreCase("true")) {
-                    signingKeystorePassword = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
-                }
-
-                String documentid = FidoUser.getFidoUsersPK().getSid()
-                        + "-" + FidoUser.getFidoUsersPK().getDid()
-                        + "-" + FidoUser.getFidoUsersPK().getUsername();
-                FidoUser.setId(documentid);
-
-                //jaxB conversion
-                //converting the databean object to xml
-                StringWriter writer = new StringWriter();
-                JAXBContext jaxbContext;
-                Marshaller marshaller;
-                try {
-                    jaxbContext = JAXBContext.newInstance(FidoUsers.class);
-                    marshaller = jaxbContext.createMarshaller();
-                    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-                    marshaller.marshal(FidoUser, writer);
-                } catch (JAXBException ex) {
-                    Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
-                }
-
-                //  verify row level signature
-                boolean verified = false;
-                try {
-                    verified = initCryptoModule.getCryptoModule().verifyDBRow(did.toString(), writer.toString(), d.getSkceSigningdn(), Boolean.valueOf(standalone), signingKeystorePassword, FidoUser.getSignature());
-                } catch (CryptoException ex) {
-                    Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
-                }
-                if (!verified) {
-                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verifyDBRecordSignature",
-                            "SKCE-ERR-5001", "er sid-did-erqid="
-                            + FidoUser.getFidoUsersPK().getSid()
-                            + "-" + FidoUser.getFidoUsersPK().getDid()
-                            + "-" + FidoUser.getFidoUsersPK().getUsername());
-                    throw new SKFEException(skfsCommon.getMessageProperty("SKCE-ERR-5001")
-                            + "FidoUser sid-did-erqid="
-                            + FidoUser.getFidoUsersPK().getSid()
-                            + "-" + FidoUser.getFidoUsersPK().getDid()
-                            + "-" + FidoUser.getFidoUsersPK().getUsername());
-                }
+            String documentid = FidoUser.getFidoUsersPK().getSid()
+                    + "-" + FidoUser.getFidoUsersPK().getDid()
+                    + "-" + FidoUser.getFidoUsersPK().getUsername();
+            //  users have no modify date, so outside inline mode only a
+            //  sample is verified here
+            if (RowIntegrity.isQuarantined(RowIntegrity.TABLE_FIDO_USERS, documentid)
+                    || (RowIntegrity.verifyOnRead(RowIntegrity.TABLE_FIDO_USERS, null) && !verifySignature(FidoUser))) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verifyDBRecordSignature",
+                        "SKCE-ERR-5001", "er sid-did-erqid=" + documentid);
+                throw new SKFEException(skfsCommon.getMessageProperty("SKCE-ERR-5001")
+                        + "FidoUser sid-did-erqid=" + documentid);
             }
         } else {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "verifyDBRecordSignature",
@@ -126,4 +105,43 @@ public class getFidoUser implements getFidoUserLocal {
             throw new SKFEException(skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " fk object");
         }
     }
+
+    /**
+     * Verifies the database row level signature of the given user
+     *
+     * @param FidoUser - user whose signature has to be verified
+     * @return true if the signature is valid
+     */
+    @Override
+    public boolean verifySignature(FidoUsers FidoUser) {
+        Long did = (long) FidoUser.getFidoUsersPK().getDid();
+        Domains d = getdomejb.byDid(did);
+        String documentid = FidoUser.getFidoUsersPK().getSid()
+                + "-" + FidoUser.getFidoUsersPK().getDid()
+                + "-" + FidoUser.getFidoUsersPK().getUsername();
+        FidoUser.setId(documentid);
+
+        //jaxB conversion
+        //converting the databean object to xml
+        StringWriter writer = new StringWriter();
+        JAXBContext jaxbContext;
+        Marshaller marshaller;
+        try {
+            jaxbContext = JAXBContext.newInstance(FidoUsers.class);
+            marshaller = jaxbContext.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+            marshaller.marshal(FidoUser, writer);
+        } catch (JAXBException ex) {
+            Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        //  verify row level signature
+        boolean verified = false;
+        try {
+            verified = RowIntegrity.verify(did, d.getSkceSigningdn(), writer.toString(), FidoUser.getSignature());
+        } catch (CryptoException ex) {
+            Logger.getLogger(getFidoKeys.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return verified;
+    }
 }
@@ -18,4 +18,6 @@ import javax.ejb.Local;
 @Local
 public interface getFidoUserLocal {
     FidoUsers GetByUsername(Long did, String username) throws SKFEException;
+    FidoUsers GetByUsernameReadOnly(Long did, String username) throws SKFEException;
+    boolean verifySignature(FidoUsers FidoUser);
 }
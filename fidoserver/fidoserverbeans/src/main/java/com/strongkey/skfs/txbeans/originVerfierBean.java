@@ -7,6 +7,7 @@
 
 package com.strongkey.skfs.txbeans;
 
+import com.strongkey.skfs.utilities.RelyingPartyContext;
 import com.strongkey.skfs.utilities.skfsCommon;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,13 +24,23 @@ import javax.json.JsonReader;
 @Stateless
 public class originVerfierBean implements originVerfierBeanLocal {
 
+    /**
+     * Checks the origin against the appid; when the appid is the domain's,
+     * its host and registrable domain come from the RelyingPartyContext
+     * instead of being derived on every request.
+     */
     @Override
-    public boolean execute(String appid, String origin) {
+    public boolean execute(Long did, String appid, String origin) {
         try {
+            RelyingPartyContext rpc = RelyingPartyContext.get(did);
+            boolean domainAppid = rpc != null && appid.equals(rpc.getAppid());
+            if (domainAppid && rpc.isAllowedOrigin(origin)) {
+                return true;
+            }
             URL originUrl = new URL(origin);
             String originFQDN = originUrl.getHost();
             URL appidUrl = new URL(appid);
-            String appidFQDN = appidUrl.getHost();
+            String appidFQDN = domainAppid ? rpc.getRpId() : appidUrl.getHost();
 
             //section 3.1.2.1 - appid not https URL
             if (appid.startsWith("http://")) {
@@ -43,10 +54,13 @@ public class originVerfierBean implements originVerfierBeanLocal {
                 }
 
                 //section 3.1.2.4 - fetch trusted facets
-                String domain = appidFQDN.startsWith("www.") ? appidFQDN.substring(4) : appidFQDN;
-                String allowedtld = domain;
-
-                allowedtld = skfsCommon.getTLdplusone(domain);
+                String allowedtld;
+                if (domainAppid) {
+                    allowedtld = rpc.getRegistrableDomain();
+                } else {
+                    String domain = appidFQDN.startsWith("www.") ? appidFQDN.substring(4) : appidFQDN;
+                    allowedtld = skfsCommon.getTLdplusone(domain);
+                }
 
                 JsonArray resJsonObj = null;
                 JsonReader rdr = null;
@@ -11,5 +11,5 @@ import javax.ejb.Local;
 
 @Local
 public interface originVerfierBeanLocal {
-public boolean execute(String appid, String origin);
+public boolean execute(Long did, String appid, String origin);
 }
@@ -0,0 +1,120 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfs.utilities.ReadReplica;
+import com.strongkey.skfs.utilities.skfsCommon;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.PersistenceException;
+import javax.sql.DataSource;
+
+/**
+ * Checks the read replica every skfs.cfg.property.db.replica.check.seconds
+ * and tells ReadReplica whether it may be used.
+ *
+ * The replica is usable when it answers skfs.cfg.property.db.replica.lag.query
+ * with a lag (column skfs.cfg.property.db.replica.lag.column, in seconds) of
+ * at most skfs.cfg.property.db.replica.maxlag.seconds. No row or a null lag
+ * means replication is not running. With an empty lag query only connectivity
+ * is checked, e.g. for two database instances kept in sync by other means.
+ */
+@Singleton
+@Startup
+public class replicaMonitor {
+
+    @Resource
+    private TimerService timerService;
+
+    private String jndiname;
+    private String lagquery;
+    private String lagcolumn;
+    private long maxlag;
+
+    @PostConstruct
+    public void initialize() {
+        if (!ReadReplica.isEnabled()) {
+            return;
+        }
+        jndiname = skfsCommon.getConfigurationProperty("skfs.cfg.property.db.replica.jndiname");
+        lagquery = skfsCommon.getConfigurationProperty("skfs.cfg.property.db.replica.lag.query").trim();
+        lagcolumn = skfsCommon.getConfigurationProperty("skfs.cfg.property.db.replica.lag.column");
+        long frequency;
+        try {
+            maxlag = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.replica.maxlag.seconds"));
+            frequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.replica.check.seconds"));
+        } catch (NumberFormatException ex) {
+            maxlag = 5L;
+            frequency = 5L;
+        }
+        if (frequency < 1L) {
+            frequency = 5L;
+        }
+        timerService.createIntervalTimer(0L, frequency * 1000L, new TimerConfig(null, false));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ReadReplica.close();
+    }
+
+    @Timeout
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void check() {
+        ReadReplica.expireWrites();
+        long lag;
+        try {
+            DataSource ds = (DataSource) new InitialContext().lookup(jndiname);
+            try (Connection c = ds.getConnection();
+                    Statement s = c.createStatement()) {
+                if (lagquery.isEmpty()) {
+                    s.executeQuery("SELECT 1").close();
+                    lag = 0L;
+                } else {
+                    try (ResultSet rs = s.executeQuery(lagquery)) {
+                        if (!rs.next()) {
+                            ReadReplica.setState(false, -1, jndiname + " is not replicating");
+                            return;
+                        }
+                        Object value = rs.getObject(lagcolumn);
+                        if (value == null) {
+                            ReadReplica.setState(false, -1, jndiname + " replication is stopped");
+                            return;
+                        }
+                        lag = Long.parseLong(value.toString());
+                    }
+                }
+            }
+            //  Build the replica unit now rather than on the first lookup
+            ReadReplica.getEntityManagerFactory();
+        } catch (NamingException | SQLException | NumberFormatException | PersistenceException ex) {
+            ReadReplica.setState(false, -1, jndiname + " " + ex.getLocalizedMessage());
+            return;
+        }
+
+        if (lag > maxlag) {
+            ReadReplica.setState(false, lag, jndiname + " lags " + lag + "s behind the primary");
+        } else {
+            ReadReplica.setState(true, lag, null);
+        }
+    }
+}
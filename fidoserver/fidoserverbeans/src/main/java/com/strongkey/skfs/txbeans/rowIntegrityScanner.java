@@ -0,0 +1,240 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.entitybeans.FidoUsers;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.RowIntegrity;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+/**
+ * Background verification of the row level signatures of FIDO_KEYS and
+ * FIDO_USERS, used when the row integrity mode is sample or changed (see
+ * RowIntegrity).
+ *
+ * Each run verifies the next batch of rows of each table in primary key order
+ * and remembers where it stopped; when a table has been walked to the end the
+ * scan start time is recorded and the scan starts over. Rows that fail
+ * verification are marked Inactive, recorded in QUARANTINED_ROWS and reported
+ * with FIDO-ERR-0042. They are not re-signed nor replicated, so the tampered
+ * row keeps failing verification and every node scanning its own database
+ * reports it.
+ *
+ * The timer is only created when the server starts in sample or changed
+ * mode, so servers in inline mode or without row verification neither scan
+ * nor need QUARANTINED_ROWS. A reload switching to inline mode stops the scan
+ * and one disabling verification also stops reloading QUARANTINED_ROWS (see
+ * RowIntegrity), which each run does first otherwise; starting the scan takes
+ * a restart.
+ */
+@Singleton
+@Startup
+public class rowIntegrityScanner {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    private static final String MODIFY_LOCATION = "rowIntegrityScanner";
+
+    @Resource
+    private TimerService timerService;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @EJB
+    getFidoKeysLocal getkeysejb;
+    @EJB
+    getFidoUserLocal getuserejb;
+
+    //  FIDO_KEYS cursor: fkid is unique within a sid
+    private short keySid = -1;
+    private long keyFkid = -1;
+    private long keyScanStart = System.currentTimeMillis();
+    private long keysScanned = 0;
+
+    //  FIDO_USERS cursor
+    private short userSid = -1;
+    private short userDid = -1;
+    private String userUsername = "";
+    private long userScanStart = System.currentTimeMillis();
+    private long usersScanned = 0;
+
+    private int batchsize;
+
+    @PostConstruct
+    public void initialize() {
+        long frequency;
+        try {
+            frequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.scanner.frequency.seconds"));
+        } catch (NumberFormatException ex) {
+            frequency = 10L;
+        }
+        if (frequency < 1L) {
+            frequency = 10L;
+        }
+        if (!RowIntegrity.isBackgroundScanEnabled()) {
+            return;
+        }
+        loadQuarantined();
+        timerService.createIntervalTimer(frequency * 1000L, frequency * 1000L, new TimerConfig(null, false));
+    }
+
+    @Timeout
+    public void scan() {
+        if (!RowIntegrity.isEnabled()) {
+            return;
+        }
+        loadQuarantined();
+        if (!RowIntegrity.isBackgroundScanEnabled()) {
+            return;
+        }
+        batchsize = ConfigurationSnapshot.get().getInt("skfs.cfg.property.db.signature.rowlevel.scanner.batchsize", 200);
+        if (batchsize < 1) {
+            batchsize = 200;
+        }
+        scanFidoKeys();
+        scanFidoUsers();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadQuarantined() {
+        RowIntegrity.setQuarantined(em.createNativeQuery("SELECT tablename, rowid FROM QUARANTINED_ROWS").getResultList());
+    }
+
+    private void scanFidoKeys() {
+        TypedQuery<FidoKeys> q = em.createNamedQuery("FidoKeys.scanAfter", FidoKeys.class);
+        q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        q.setParameter("sid", keySid);
+        q.setParameter("fkid", keyFkid);
+        q.setMaxResults(batchsize);
+        List<FidoKeys> keys = q.getResultList();
+
+        for (FidoKeys fk : keys) {
+            if (!getkeysejb.verifySignature(fk)) {
+                quarantine(fk);
+            }
+            keySid = fk.getFidoKeysPK().getSid();
+            keyFkid = fk.getFidoKeysPK().getFkid();
+        }
+        keysScanned += keys.size();
+
+        if (keys.size() < batchsize) {
+            RowIntegrity.scanCompleted(RowIntegrity.TABLE_FIDO_KEYS, keyScanStart);
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "scanFidoKeys", "FIDO-MSG-0056",
+                    RowIntegrity.TABLE_FIDO_KEYS + " rows=" + keysScanned + " started=" + new Date(keyScanStart));
+            keySid = -1;
+            keyFkid = -1;
+            keyScanStart = System.currentTimeMillis();
+            keysScanned = 0;
+        } else {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "scanFidoKeys", "FIDO-MSG-0055",
+                    RowIntegrity.TABLE_FIDO_KEYS + " rows=" + keysScanned + " sid-fkid=" + keySid + "-" + keyFkid);
+        }
+    }
+
+    private void scanFidoUsers() {
+        TypedQuery<FidoUsers> q = em.createNamedQuery("FidoUsers.scanAfter", FidoUsers.class);
+        q.setHint("javax.persistence.cache.storeMode", "REFRESH");
+        q.setParameter("sid", userSid);
+        q.setParameter("did", userDid);
+        q.setParameter("username", userUsername);
+        q.setMaxResults(batchsize);
+        List<FidoUsers> users = q.getResultList();
+
+        for (FidoUsers fu : users) {
+            if (!getuserejb.verifySignature(fu)) {
+                quarantine(fu);
+            }
+            userSid = fu.getFidoUsersPK().getSid();
+            userDid = fu.getFidoUsersPK().getDid();
+            userUsername = fu.getFidoUsersPK().getUsername();
+        }
+        usersScanned += users.size();
+
+        if (users.size() < batchsize) {
+            RowIntegrity.scanCompleted(RowIntegrity.TABLE_FIDO_USERS, userScanStart);
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "scanFidoUsers", "FIDO-MSG-0056",
+                    RowIntegrity.TABLE_FIDO_USERS + " rows=" + usersScanned + " started=" + new Date(userScanStart));
+            userSid = -1;
+            userDid = -1;
+            userUsername = "";
+            userScanStart = System.currentTimeMillis();
+            usersScanned = 0;
+        } else {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "scanFidoUsers", "FIDO-MSG-0055",
+                    RowIntegrity.TABLE_FIDO_USERS + " rows=" + usersScanned + " sid-did-username=" + userSid + "-" + userDid + "-" + userUsername);
+        }
+    }
+
+    private void quarantine(FidoKeys fk) {
+        String documentid = fk.getFidoKeysPK().getSid()
+                + "-" + fk.getFidoKeysPK().getDid()
+                + "-" + fk.getFidoKeysPK().getUsername()
+                + "-" + fk.getFidoKeysPK().getFkid();
+        if (!RowIntegrity.quarantine(RowIntegrity.TABLE_FIDO_KEYS, documentid)
+                && applianceConstants.INACTIVE_STATUS.equals(fk.getStatus())) {
+            return;
+        }
+        record(RowIntegrity.TABLE_FIDO_KEYS, documentid);
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "quarantine", "FIDO-ERR-0042",
+                RowIntegrity.TABLE_FIDO_KEYS + " sid-did-username-fkid=" + documentid);
+        fk.setStatus(applianceConstants.INACTIVE_STATUS);
+        fk.setModifyDate(new Date());
+        fk.setModifyLocation(MODIFY_LOCATION);
+        em.merge(fk);
+        em.flush();
+        CredentialCache.getInstance().invalidate((long) fk.getFidoKeysPK().getDid(), fk.getKeyhandle());
+    }
+
+    private void quarantine(FidoUsers fu) {
+        String documentid = fu.getFidoUsersPK().getSid()
+                + "-" + fu.getFidoUsersPK().getDid()
+                + "-" + fu.getFidoUsersPK().getUsername();
+        if (!RowIntegrity.quarantine(RowIntegrity.TABLE_FIDO_USERS, documentid)
+                && applianceConstants.INACTIVE_STATUS.equals(fu.getStatus())) {
+            return;
+        }
+        record(RowIntegrity.TABLE_FIDO_USERS, documentid);
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "quarantine", "FIDO-ERR-0042",
+                RowIntegrity.TABLE_FIDO_USERS + " sid-did-username=" + documentid);
+        fu.setStatus(applianceConstants.INACTIVE_STATUS);
+        em.merge(fu);
+        em.flush();
+    }
+
+    private void record(String table, String documentid) {
+        em.createNativeQuery("INSERT IGNORE INTO QUARANTINED_ROWS (tablename, rowid, detected) VALUES (?, ?, ?)")
+                .setParameter(1, table)
+                .setParameter(2, documentid)
+                .setParameter(3, new Date())
+                .executeUpdate();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfs.entitybeans.Shards;
+import com.strongkey.skfs.utilities.ShardRouter;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.List;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+
+/**
+ * Loads the shard map from SHARDS at startup and every
+ * skfs.cfg.property.db.shard.refresh.seconds, so the changes made by
+ * shardSplitter on any server reach every server within that time.
+ */
+@Singleton
+@Startup
+public class shardMapLoader {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    @Resource
+    private TimerService timerService;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private int loaded = -1;
+
+    @PostConstruct
+    public void initialize() {
+        if (!ShardRouter.isEnabled()) {
+            return;
+        }
+        load();
+        long refresh = getRefreshMillis();
+        timerService.createIntervalTimer(refresh, refresh, new TimerConfig(null, false));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ShardRouter.close();
+    }
+
+    @Timeout
+    public void load() {
+        try {
+            List<Shards> rows = em.createNamedQuery("Shards.findAll", Shards.class)
+                    .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                    .getResultList();
+            ShardRouter.load(rows);
+            int hash = rows.toString().hashCode();
+            if (hash != loaded) {
+                loaded = hash;
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "load", "FIDO-MSG-0065", "shard map: " + rows);
+            }
+        } catch (PersistenceException ex) {
+            //  keep the previous map
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "load", "FIDO-ERR-0053", ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return how often the shard map is reloaded
+     */
+    public static long getRefreshMillis() {
+        try {
+            long seconds = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.shard.refresh.seconds"));
+            return Math.max(seconds, 1L) * 1000L;
+        } catch (NumberFormatException ex) {
+            return 10000L;
+        }
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfe.entitybeans.FidoKeysPK;
+import com.strongkey.skfs.entitybeans.FidoUsers;
+import com.strongkey.skfs.entitybeans.Shards;
+import com.strongkey.skfs.entitybeans.ShardsPK;
+import com.strongkey.skfs.utilities.ShardRouter;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+
+/**
+ * Online split of a shard: moves the users of a domain whose username hash is
+ * in [at, end of the range containing at] and their keys to another shard,
+ * while the server keeps serving them.
+ *
+ * 1. the range is split at the hash, both halves still in the source
+ * 2. the rows of the moving half are copied to the target, in batches
+ * 3. the moving half is frozen: writes to its users fail with FIDO-ERR-0052
+ *    (retryable)
+ * 4. the rows are copied again and rows deleted meanwhile are deleted from
+ *    the target, so the target is exact
+ * 5. the moving half is switched to the target and unfrozen
+ * 6. the rows are deleted from the source once no server reads them there
+ *
+ * Writes are fenced in the database, not by timing: every write reads the
+ * SHARDS row of its user with a share lock (ShardRouter.checkWritable), and
+ * steps 3 and 5 update that row with an exclusive lock, so they wait for the
+ * writes in flight to commit and the writes after them see the new row.
+ * Steps 3 to 5 are the only time the users being moved cannot register,
+ * authenticate or be updated. A failed split before the switch unfreezes
+ * the range in the source and can be run again; rows already copied to the
+ * target are overwritten.
+ *
+ * The progress of the split is kept in the SHARDS row of the moving range,
+ * so every server reports it and only one split of a domain runs at a time.
+ */
+@Stateless
+public class shardSplitter implements shardSplitterLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Resource
+    private SessionContext sc;
+
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    /**
+     * @return null if the split can start, the reason otherwise
+     */
+    @Override
+    public String validate(Long did, int at, String target) {
+        if (!ShardRouter.isEnabled()) {
+            return "sharding is not enabled";
+        }
+        if (at < 0 || at > ShardRouter.HASH_MAX) {
+            return "hash must be 0 to " + ShardRouter.HASH_MAX;
+        }
+        if (target == null || !getDatasources().contains(target)) {
+            return "unknown shard " + target;
+        }
+        String current = getStatus(did);
+        if (isRunning(current)) {
+            return "a split of the domain is in progress: " + current;
+        }
+        ShardRouter.Range r = getRange(did, at);
+        if (r.isFrozen()) {
+            return "range " + r.getStart() + "-" + r.getEnd() + " is being moved";
+        }
+        if (r.getJndiname().equals(target)) {
+            return "range " + r.getStart() + "-" + r.getEnd() + " is already in " + target;
+        }
+        return null;
+    }
+
+    @Override
+    public String getStatus(Long did) {
+        for (Shards s : rows(did)) {
+            if (s.getProgress() != null) {
+                return s.getProgress();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @Asynchronous
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void split(Long did, int at, String target) {
+        ShardRouter.Range r = getRange(did, at);
+        String source = r.getJndiname();
+        int end = r.getEnd();
+        shardSplitterLocal self = sc.getBusinessObject(shardSplitterLocal.class);
+        String moving = "did=" + did + " hash " + at + "-" + end + " from " + source + " to " + target;
+        try {
+            String error = self.splitRange(did, r.getStart(), end, at, source);
+            if (error != null) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "split", "FIDO-ERR-0053", moving + ": " + error);
+                return;
+            }
+        } catch (EJBException | PersistenceException ex) {
+            //  another split of the domain may have claimed it
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "split", "FIDO-ERR-0053", moving + ": " + ex.getLocalizedMessage());
+            return;
+        }
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "split", "FIDO-MSG-0065", "splitting range " + moving);
+
+        boolean frozen = false;
+        boolean switched = false;
+        try {
+            step(self, did, at, "copying", moving);
+            copy(self, did, at, end, source, target);
+
+            step(self, did, at, "freezing", moving);
+            self.setRange(did, at, end, source, Shards.STATUS_FROZEN);
+            frozen = true;
+
+            step(self, did, at, "copying changes", moving);
+            copy(self, did, at, end, source, target);
+            for (boolean keys : new boolean[]{false, true}) {
+                String after = "";
+                while ((after = self.reconcileBatch(did, at, end, source, target, keys, after)) != null) {
+                }
+            }
+
+            step(self, did, at, "switching", moving);
+            self.setRange(did, at, end, target, Shards.STATUS_ACTIVE);
+            switched = true;
+            //  servers with the old map still read the source
+            waitForServers();
+
+            step(self, did, at, "deleting from source", moving);
+            for (boolean keys : new boolean[]{true, false}) {
+                String after = "";
+                while ((after = self.deleteBatch(did, at, end, source, keys, after)) != null) {
+                }
+            }
+            step(self, did, at, DONE, moving);
+        } catch (EJBException | PersistenceException | InterruptedException ex) {
+            if (frozen && !switched) {
+                try {
+                    self.setRange(did, at, end, source, Shards.STATUS_ACTIVE);
+                } catch (EJBException | PersistenceException ex2) {
+                    skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "split", "FIDO-ERR-0053",
+                            "could not unfreeze " + moving + ": " + ex2.getLocalizedMessage());
+                }
+            }
+            try {
+                self.setProgress(did, at, FAILED + ": " + ex.getLocalizedMessage());
+            } catch (EJBException | PersistenceException ex2) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "split", "FIDO-ERR-0053",
+                        "could not record the failure of " + moving + ": " + ex2.getLocalizedMessage());
+            }
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "split", "FIDO-ERR-0053",
+                    moving + (switched ? " (switched, source not cleaned up)" : "") + ": " + ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Claims the domain for the split, with the rows of the domain locked,
+     * and replaces the range [start, end] by [start, at - 1] and [at, end],
+     * both in jndiname; creates the range if the domain had none
+     *
+     * @return null if the split can go on, the reason otherwise
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public String splitRange(Long did, int start, int end, int at, String jndiname) {
+        List<Shards> rows = em.createNamedQuery("Shards.findByDid", Shards.class)
+                .setParameter("did", did.shortValue())
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
+        for (Shards s : rows) {
+            if (isRunning(s.getProgress())) {
+                return "a split of the domain is in progress: " + s.getProgress();
+            }
+        }
+        for (Shards s : rows) {
+            s.setProgress(null);
+        }
+        if (at > start) {
+            setRange(did, start, at - 1, jndiname, Shards.STATUS_ACTIVE);
+        }
+        setRange(did, at, end, jndiname, Shards.STATUS_ACTIVE);
+        em.find(Shards.class, new ShardsPK(did.shortValue(), at)).setProgress("splitting range");
+        em.flush();
+        return null;
+    }
+
+    /**
+     * Takes the lock the writes to the range wait for, see
+     * ShardRouter.checkWritable
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void setRange(Long did, int start, int end, String jndiname, String status) {
+        ShardsPK pk = new ShardsPK(did.shortValue(), start);
+        Shards s = em.find(Shards.class, pk, LockModeType.PESSIMISTIC_WRITE);
+        if (s == null) {
+            em.persist(new Shards(pk, end, jndiname, status, new Date()));
+        } else {
+            s.setHashEnd(end);
+            s.setJndiname(jndiname);
+            s.setStatus(status);
+            s.setModifyDate(new Date());
+        }
+        em.flush();
+    }
+
+    /**
+     * Copies the users (or keys) of the next batch of usernames of the
+     * domain in the range from source to target
+     *
+     * @return the last username of the batch, null when done
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public String copyBatch(Long did, int start, int end, String source, String target, boolean keys, String after) {
+        EntityManager s = ShardRouter.entityManager(em, source);
+        EntityManager t = ShardRouter.entityManager(em, target);
+        List<String> usernames = usernames(s, did, keys, after);
+        for (String username : usernames) {
+            if (!inRange(username, start, end)) {
+                continue;
+            }
+            if (keys) {
+                for (FidoKeys fk : keys(s, did, username)) {
+                    t.merge(fk);
+                }
+            } else {
+                for (FidoUsers fu : users(s, did, username)) {
+                    t.merge(fu);
+                }
+            }
+        }
+        t.flush();
+        return usernames.isEmpty() ? null : usernames.get(usernames.size() - 1);
+    }
+
+    /**
+     * Deletes from target the users (or keys) of the next batch of usernames
+     * in the range that are no longer in source
+     *
+     * @return the last username of the batch, null when done
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public String reconcileBatch(Long did, int start, int end, String source, String target, boolean keys, String after) {
+        EntityManager s = ShardRouter.entityManager(em, source);
+        EntityManager t = ShardRouter.entityManager(em, target);
+        List<String> usernames = usernames(t, did, keys, after);
+        for (String username : usernames) {
+            if (!inRange(username, start, end)) {
+                continue;
+            }
+            if (keys) {
+                Set<FidoKeysPK> present = new HashSet<>();
+                for (FidoKeys fk : keys(s, did, username)) {
+                    present.add(fk.getFidoKeysPK());
+                }
+                for (FidoKeys fk : keys(t, did, username)) {
+                    if (!present.contains(fk.getFidoKeysPK())) {
+                        t.remove(fk);
+                    }
+                }
+            } else if (users(s, did, username).isEmpty()) {
+                for (FidoUsers fu : users(t, did, username)) {
+                    t.remove(fu);
+                }
+            }
+        }
+        t.flush();
+        return usernames.isEmpty() ? null : usernames.get(usernames.size() - 1);
+    }
+
+    /**
+     * Deletes the users (or keys) of the next batch of usernames in the range
+     * from jndiname
+     *
+     * @return the last username of the batch, null when done
+     */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public String deleteBatch(Long did, int start, int end, String jndiname, boolean keys, String after) {
+        EntityManager s = ShardRouter.entityManager(em, jndiname);
+        List<String> usernames = usernames(s, did, keys, after);
+        for (String username : usernames) {
+            if (!inRange(username, start, end)) {
+                continue;
+            }
+            if (keys) {
+                for (FidoKeys fk : keys(s, did, username)) {
+                    s.remove(fk);
+                }
+            } else {
+                for (FidoUsers fu : users(s, did, username)) {
+                    s.remove(fu);
+                }
+            }
+        }
+        s.flush();
+        return usernames.isEmpty() ? null : usernames.get(usernames.size() - 1);
+    }
+
+    private void copy(shardSplitterLocal self, Long did, int start, int end, String source, String target) {
+        for (boolean keys : new boolean[]{false, true}) {
+            String after = "";
+            while ((after = self.copyBatch(did, start, end, source, target, keys, after)) != null) {
+            }
+        }
+    }
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void setProgress(Long did, int start, String progress) {
+        Shards s = em.find(Shards.class, new ShardsPK(did.shortValue(), start));
+        if (s != null) {
+            s.setProgress((progress.length() > 256) ? progress.substring(0, 256) : progress);
+            em.flush();
+        }
+    }
+
+    private void step(shardSplitterLocal self, Long did, int at, String step, String moving) {
+        self.setProgress(did, at, step);
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "split", "FIDO-MSG-0065", step + " " + moving);
+    }
+
+    /**
+     * Waits until every server has reloaded the shard map
+     */
+    private static void waitForServers() throws InterruptedException {
+        Thread.sleep(2 * shardMapLoader.getRefreshMillis() + 1000L);
+    }
+
+    private static boolean isRunning(String progress) {
+        return progress != null && !progress.equals(DONE) && !progress.startsWith(FAILED);
+    }
+
+    private List<Shards> rows(Long did) {
+        return em.createNamedQuery("Shards.findByDid", Shards.class)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .setParameter("did", did.shortValue())
+                .getResultList();
+    }
+
+    private static ShardRouter.Range getRange(Long did, int hash) {
+        for (ShardRouter.Range r : ShardRouter.getRanges(did)) {
+            if (hash >= r.getStart() && hash <= r.getEnd()) {
+                return r;
+            }
+        }
+        //  not mapped: the whole hash space of the domain is in the primary
+        int start = 0;
+        int end = ShardRouter.HASH_MAX;
+        for (ShardRouter.Range r : ShardRouter.getRanges(did)) {
+            if (r.getEnd() < hash) {
+                start = r.getEnd() + 1;
+            } else if (r.getStart() > hash && r.getStart() - 1 < end) {
+                end = r.getStart() - 1;
+            }
+        }
+        return new ShardRouter.Range(start, end, ShardRouter.getPrimaryJndiname(), false);
+    }
+
+    private static boolean inRange(String username, int start, int end) {
+        int h = ShardRouter.hash(username);
+        return h >= start && h <= end;
+    }
+
+    private int getBatchsize() {
+        try {
+            return Math.max(Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.shard.split.batchsize")), 1);
+        } catch (NumberFormatException ex) {
+            return 500;
+        }
+    }
+
+    private List<String> usernames(EntityManager e, Long did, boolean keys, String after) {
+        return e.createNamedQuery(keys ? "FidoKeys.usernamesAfter" : "FidoUsers.usernamesAfter", String.class)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .setParameter("did", did.shortValue())
+                .setParameter("username", after)
+                .setMaxResults(getBatchsize())
+                .getResultList();
+    }
+
+    private static List<FidoKeys> keys(EntityManager e, Long did, String username) {
+        return e.createNamedQuery("FidoKeys.findByUsername", FidoKeys.class)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .setParameter("did", did.shortValue())
+                .setParameter("username", username)
+                .getResultList();
+    }
+
+    private static List<FidoUsers> users(EntityManager e, Long did, String username) {
+        return e.createNamedQuery("FidoUsers.findByDidUsername", FidoUsers.class)
+                .setHint("javax.persistence.cache.storeMode", "REFRESH")
+                .setParameter("did", did.shortValue())
+                .setParameter("username", username)
+                .getResultList();
+    }
+
+    private static List<String> getDatasources() {
+        return Arrays.asList(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.shard.datasources").trim().split("\\s*,\\s*"));
+    }
+}
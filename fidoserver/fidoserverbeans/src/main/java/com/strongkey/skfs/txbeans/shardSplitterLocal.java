@@ -0,0 +1,33 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import javax.ejb.Local;
+
+@Local
+public interface shardSplitterLocal {
+
+    String validate(Long did, int at, String target);
+
+    void split(Long did, int at, String target);
+
+    String getStatus(Long did);
+
+    //  Steps of a split, each in its own transaction
+    String splitRange(Long did, int start, int end, int at, String jndiname);
+
+    void setRange(Long did, int start, int end, String jndiname, String status);
+
+    void setProgress(Long did, int start, String progress);
+
+    String copyBatch(Long did, int start, int end, String source, String target, boolean keys, String after);
+
+    String reconcileBatch(Long did, int start, int end, String source, String target, boolean keys, String after);
+
+    String deleteBatch(Long did, int start, int end, String jndiname, boolean keys, String after);
+}
@@ -10,6 +10,7 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.appliance.entitybeans.Domains;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceMaps;
+import com.strongkey.skfs.utilities.RelyingPartyContext;
 import com.strongkey.skfs.utilities.skfsCommon;
 import java.util.Collection;
 import javax.annotation.PostConstruct;
@@ -39,6 +40,7 @@ public class startServices {
 
                     // Cache domain objects
                     applianceMaps.putDomain(did, d);
+                    RelyingPartyContext.refresh(d);
 
 //                    cryptoCommon.putPublicKey(did + SIGN_SUFFIX, cryptoCommon.getPublicKeyFromCertificate(d.getSigningCertificate()));
                 }
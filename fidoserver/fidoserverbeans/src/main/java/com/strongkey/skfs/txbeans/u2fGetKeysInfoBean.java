@@ -15,6 +15,7 @@ import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
 import com.strongkey.skfs.utilities.SKCEReturnObject;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.logging.Level;
@@ -42,6 +43,7 @@ public class u2fGetKeysInfoBean implements u2fGetKeysInfoBeanLocal {
      * Enterprise Java Beans used in this EJB.
      */
     @EJB getFidoKeysLocal     getkeybean;
+    @EJB archivedFidoKeysLocal archivedkeysbean;
     
     /*************************************************************************
                                                  888             
@@ -100,7 +102,7 @@ public class u2fGetKeysInfoBean implements u2fGetKeysInfoBeanLocal {
             return skcero;
         }
         
-        if (username.trim().length() > Integer.parseInt(applianceCommon.getApplianceConfigurationProperty("appliance.cfg.maxlen.256charstring"))) {
+        if (username.trim().length() > applianceCommon.getMaxLenProperty("appliance.cfg.maxlen.256charstring")) {
             skcero.setErrorkey("FIDO-ERR-0027");
             skcero.setErrormsg(skfsCommon.getMessageProperty("FIDO-ERR-0027") + " username should be limited to 256 characters");
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0027", " username should be limited to 256 characters");
@@ -111,7 +113,15 @@ public class u2fGetKeysInfoBean implements u2fGetKeysInfoBeanLocal {
         //  With the username, fetch all the keys registered for the account.   
         JsonArrayBuilder keysArrayBuilder = Json.createArrayBuilder();
         try { 
-            Collection<FidoKeys> kh_coll = getkeybean.getByUsername(did, username);
+            Collection<FidoKeys> kh_coll = new ArrayList<>(getkeybean.getByUsername(did, username));
+            int hot = kh_coll.size();
+            //  keys moved out of the hot table by fidoKeysArchiver; a key
+            //  rewritten there since (by replication) is listed once
+            for (FidoKeys archived : archivedkeysbean.getByUsername(did, username)) {
+                if (!kh_coll.contains(archived)) {
+                    kh_coll.add(archived);
+                }
+            }
             if (!kh_coll.isEmpty()) {
                 Iterator it = kh_coll.iterator();
                 
@@ -119,45 +129,12 @@ public class u2fGetKeysInfoBean implements u2fGetKeysInfoBeanLocal {
 //                Map<String, String> userkeypointerMap = new ConcurrentSkipListMap<>();
                 
                 //  for every key registered,
+                int index = 0;
                 while ( it.hasNext() ) {
                     FidoKeys key = (FidoKeys) it.next();
+                    boolean archived = index++ >= hot;
                     if (key != null) {
-                        //  Create a json object out of this key information
-                        String mapkey = key.getFidoKeysPK().getSid() + "-" + key.getFidoKeysPK().getDid() + "-" + key.getFidoKeysPK().getUsername() + "-" + key.getFidoKeysPK().getFkid();
-                        FidoKeysInfo fkinfoObj = new FidoKeysInfo(key);
-                        skceMaps.getMapObj().put(skfsConstants.MAP_FIDO_KEYS, mapkey, fkinfoObj);
-                        long modifytime = 0L;
-                        if ( key.getModifyDate() != null ) {
-                            modifytime = key.getModifyDate().getTime();
-                        }
-                        
-                        String modifyloc = "Not used yet";
-                        if ( key.getModifyLocation() != null ) {
-                            modifyloc = key.getModifyLocation();
-                        }
-
-                        //  Generate a unique randomid for this key to be user
-                        //  as a pointer for the key data base index.
-//                          String randomid = Base64.encodeBase64String(new SecureRandom().generateSeed(64));
-                        String randomid = key.getFidoKeysPK().getSid() + "-" + key.getFidoKeysPK().getDid() + "-" + key.getFidoKeysPK().getUsername() + "-" + key.getFidoKeysPK().getFkid();
-//                        userkeypointerMap.put(randomid, String.valueOf(key.getFidoKeysPK().getSid()) + "-" + String.valueOf(key.getFidoKeysPK().getFkid()));
-                        String time_to_live = skfsCommon.getConfigurationProperty("skfs.cfg.property.userkeypointers.flush.cutofftime.seconds");
-                        if ( time_to_live == null || time_to_live.isEmpty() ) {
-                            time_to_live = "300";
-                        }
-                        
-                        JsonObject keyJson = Json.createObjectBuilder()
-                                .add("randomid", randomid)
-                                .add("randomid_ttl_seconds", time_to_live)
-                                .add("fidoProtocol", key.getFidoProtocol())
-                                .add("fidoVersion", key.getFidoVersion())
-                                .add("createLocation", key.getCreateLocation())
-                                .add("createDate", key.getCreateDate().getTime())
-                                .add("lastusedLocation", modifyloc)
-                                .add("modifyDate", modifytime)
-                                .add("status", key.getStatus())
-                                .build();
-                        keysArrayBuilder.add(keyJson);
+                        keysArrayBuilder.add(keyInfo(key, archived));
                     }
                     
                     //  Create a UserKeyPointers object that will bind the map 
@@ -194,12 +171,61 @@ public class u2fGetKeysInfoBean implements u2fGetKeysInfoBeanLocal {
             return skcero;
         }
         
-        //  on success, return the keys info as a json string.
-        skcero.setReturnval(keysJsonObject.toString());
+        //  on success, return the keys info as a json object; it is written
+        //  once, when the response is sent
+        skcero.setReturnval(keysJsonObject);
         
         //  log the exit and return
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", skfsCommon.getMessageProperty("FIDO-MSG-5002"), classname);
         skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "execute");
         return skcero;
     }
+
+    /**
+     * Builds the metadata of a key, and caches the key unless it is archived:
+     * archived keys are not cached so that a status change restores them
+     * from the archive.
+     *
+     * @param key
+     * @param archived - true if the key is in FIDO_KEYS_ARCHIVE
+     * @return the key metadata
+     */
+    static JsonObject keyInfo(FidoKeys key, boolean archived) {
+        //  Create a json object out of this key information
+        String mapkey = key.getFidoKeysPK().getSid() + "-" + key.getFidoKeysPK().getDid() + "-" + key.getFidoKeysPK().getUsername() + "-" + key.getFidoKeysPK().getFkid();
+        if (!archived) {
+            FidoKeysInfo fkinfoObj = new FidoKeysInfo(key);
+            skceMaps.getMapObj().put(skfsConstants.MAP_FIDO_KEYS, mapkey, fkinfoObj);
+        }
+        long modifytime = 0L;
+        if ( key.getModifyDate() != null ) {
+            modifytime = key.getModifyDate().getTime();
+        }
+
+        String modifyloc = "Not used yet";
+        if ( key.getModifyLocation() != null ) {
+            modifyloc = key.getModifyLocation();
+        }
+
+        //  Generate a unique randomid for this key to be user
+        //  as a pointer for the key data base index.
+        String randomid = mapkey;
+        String time_to_live = skfsCommon.getConfigurationProperty("skfs.cfg.property.userkeypointers.flush.cutofftime.seconds");
+        if ( time_to_live == null || time_to_live.isEmpty() ) {
+            time_to_live = "300";
+        }
+
+        return Json.createObjectBuilder()
+                .add("randomid", randomid)
+                .add("randomid_ttl_seconds", time_to_live)
+                .add("fidoProtocol", key.getFidoProtocol())
+                .add("fidoVersion", key.getFidoVersion())
+                .add("createLocation", key.getCreateLocation())
+                .add("createDate", key.getCreateDate().getTime())
+                .add("lastusedLocation", modifyloc)
+                .add("modifyDate", modifytime)
+                .add("status", key.getStatus())
+                .add("archived", archived)
+                .build();
+    }
 }
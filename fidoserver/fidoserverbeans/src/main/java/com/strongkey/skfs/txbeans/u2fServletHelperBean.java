@@ -17,6 +17,7 @@ import com.strongkey.skce.pojos.FidoKeysInfo;
 import com.strongkey.skce.pojos.UserSessionInfo;
 import com.strongkey.skce.utilities.SAKAConnector;
 import com.strongkey.skce.utilities.skceCommon;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
 import com.strongkey.skfs.core.U2FAuthenticationChallenge;
@@ -27,6 +28,7 @@ import com.strongkey.skfe.entitybeans.FidoKeys;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
 import com.strongkey.skfs.policybeans.generateFido2PreauthenticateChallengeLocal;
 import com.strongkey.skfs.policybeans.generateFido2PreregisterChallengeLocal;
+import com.strongkey.skfs.pojos.FIDOReturnObject;
 import com.strongkey.skfs.requests.AuthenticationRequest;
 import com.strongkey.skfs.requests.PatchFidoKeyRequest;
 import com.strongkey.skfs.requests.PreauthenticationRequest;
@@ -114,7 +116,6 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
     @EJB
     getDomainsBeanLocal getdomainejb;
 
-    String ldapusermetadata_loc = skfsCommon.getConfigurationProperty("skfs.cfg.property.fido.usermetadata");
 
     /**
      * Method that performs pre-registration process in FIDO U2F protocol. This
@@ -303,9 +304,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
             }
 
             // Build the output json object
-            String response = Json.createObjectBuilder()
-                    .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, combined_regresponse)
-                    .build().toString();
+            FIDOReturnObject response = new FIDOReturnObject(combined_regresponse);
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0035", "");
 
             out = new Date();
@@ -474,12 +473,12 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
         //  2. Input checks
         if (preauthentication.getProtocol() == null || preauthentication.getProtocol().isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0002", " protocol");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0002")
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0002")
                     + " protocol")).build();
         }
         if (!skfsCommon.isFIDOProtocolSupported(preauthentication.getProtocol())) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-5002", preauthentication.getProtocol());
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-5002")
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-5002")
                     + preauthentication.getProtocol())).build();
         }
 
@@ -502,7 +501,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
         
         if (preauthentication.getUsername() == null || preauthentication.getUsername().isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0002", " username");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0002")
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0002")
                     + " username")).build();
         }
         
@@ -516,7 +515,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
         JsonArray[] transports;
         Long[] regkeyids;
         Short[] serverids;
-        String responseJSON;
+        Object responseJSON;
         if (preauthentication.getProtocol().equalsIgnoreCase(skfsConstants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
             try {
                 skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0031", "");
@@ -524,7 +523,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         = getkeybean.getByUsernameStatus(did, preauthentication.getUsername(), applianceConstants.ACTIVE_STATUS);
                 if (kh_coll == null || kh_coll.size() <= 0) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0007", "");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0007"))).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0007"))).build();
                 }
 
                 keyhandles = new String[kh_coll.size()];
@@ -558,7 +557,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
             } catch (Exception ex) {
                 ex.printStackTrace();
                 skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0008", ex.getMessage());
-                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0008")
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0008")
                         + ex.getMessage())).build();
             }
 
@@ -579,7 +578,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         " key handles count = " + keyhandles.length);
 
                 if (authresponses != null) {
-                    String nonce = U2FUtility.getRandom(Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.entropylength")));
+                    String nonce = U2FUtility.getRandom(ConfigurationSnapshot.get().getInt("skfs.cfg.property.entropylength", 512));
 
                     JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
                     JsonArrayBuilder allowedCredBuilder = Json.createArrayBuilder();
@@ -635,12 +634,10 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                 }
             } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
                 skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", ex.getMessage());
-                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0001")
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0001")
                         + ex.getMessage())).build();
             }
-            responseJSON = Json.createObjectBuilder()
-                    .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, jsonObject)
-                    .build().toString();
+            responseJSON = new FIDOReturnObject(jsonObject);
         } else {
             try {
                 responseJSON = fido2preauthbean.execute(did, preauthentication.getUsername(), jsonOptions, jsonExtensions);
@@ -715,16 +712,16 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
         //  2. Input checks
         if (authentication.getResponse() == null || authentication.getResponse().isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0010", "");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0010"))).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0010"))).build();
         }
 
         if (authentication.getMetadata() == null || authentication.getMetadata().isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0017", "");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0017"))).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0017"))).build();
         }
 
         //  4. Finish authentication
-        String responseJSON;
+        Object responseJSON;
         try {
 
             if (authentication.getProtocol().equalsIgnoreCase(skfsConstants.FIDO_PROTOCOL_VERSION_U2F_V2)) {
@@ -733,7 +730,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         skfsConstants.JSON_KEY_CLIENTDATA, "String");
                 if (browserdata == null || browserdata.isEmpty()) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0011", " Missing 'clientData'");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0011")
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0011")
                             + " Missing 'clientData'")).build();
                 }
 
@@ -750,13 +747,13 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                     if (bdreqtype == null || bdnonce == null || bdorigin == null) {
                         skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE,
                                 skfsCommon.getMessageProperty("FIDO-ERR-5011"), " Missing 'registrationData'");
-                        return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-5011")
+                        return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-5011")
                                 + " Missing 'registrationData'")).build();
                     }
                 } catch (Exception ex) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE,
                             skfsCommon.getMessageProperty("FIDO-ERR-5011"), " Invalid 'clientDATA'");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-5011")
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-5011")
                             + " Invalid 'clientDATA'")).build();
                 }
 
@@ -764,7 +761,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         skfsConstants.JSON_KEY_SIGNATUREDATA, "String");
                 if (signdata == null || signdata.isEmpty()) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0011", " Missing 'signatureData'");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0011")
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0011")
                             + " Missing 'signatureData'")).build();
                 }
 
@@ -772,7 +769,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         skfsConstants.JSON_USER_KEY_HANDLE_SERVLET, "String");
                 if (keyhandle == null || keyhandle.isEmpty()) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0011", " Missing 'keyHandle'");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0011")
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0011")
                             + " Missing 'keyHandle'")).build();
                 }
 
@@ -781,21 +778,21 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         skfsConstants.FIDO_METADATA_KEY_VERSION, "String");
                 if (version == null || version.isEmpty()) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0019", " Missing metadata - version");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0019") + " Missing metadata - version")).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0019") + " Missing metadata - version")).build();
                 }
 
                 String modifyloc = (String) applianceCommon.getJsonValue(authentication.getMetadata(),
                         skfsConstants.FIDO_METADATA_KEY_MODIFY_LOC, "String");
                 if (modifyloc == null || modifyloc.isEmpty()) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0019", " Missing metadata - modifylocation");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0019") + " Missing metadata - modifylocation")).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0019") + " Missing metadata - modifylocation")).build();
                 }
 
                 String username_received = (String) applianceCommon.getJsonValue(authentication.getMetadata(),
                         skfsConstants.FIDO_METADATA_KEY_USERNAME, "String");
                 if (username_received == null || username_received.isEmpty()) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0019", " Missing metadata - username");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0019")
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0019")
                             + " Missing metadata - username")).build();
                 }
 
@@ -811,14 +808,14 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                     KHhash = skfsCommon.getDigest(keyhandle, "SHA-256");
                 } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", " Error generating hash");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0001") + " Error generating hash")).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0001") + " Error generating hash")).build();
                 }
 
                 //  Look for the sessionid in the sessionmap and retrieve the username
                 UserSessionInfo user = (UserSessionInfo) skceMaps.getMapObj().get(skfsConstants.MAP_USER_SESSION_INFO, KHhash);
                 if (user == null) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0006", "");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0006"))).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0006"))).build();
                 } else if (user.getSessiontype().equalsIgnoreCase(skfsConstants.FIDO_USERSESSION_AUTH)) {
                     username = user.getUsername();
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0022", " username=" + username);
@@ -831,14 +828,14 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                 //verify that the call is for the right user
                 if (!username.equalsIgnoreCase(username_received)) {
                     //throw erro saying wrong username sent
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0037"))).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0037"))).build();
                 }
 
                 //appid verifier
                 String origin = skfsCommon.getOriginfromBrowserdata(browserdata);
-                if (!originverifierbean.execute(appid_Received, origin)) {
+                if (!originverifierbean.execute(did, appid_Received, origin)) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0032", "");
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0032")
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0032")
                             + " : " + appid_Received + "-" + origin)).build();
                 }
 
@@ -855,7 +852,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                     fer = u2fauthbean.execute(did, authentication.getProtocol(), authentication.getResponse(), userpublickey, challenge, appid_Received);
                 } catch (SKFEException ex) {
                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0001", ex.getLocalizedMessage());
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0001") + ex.getLocalizedMessage())).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0001") + ex.getLocalizedMessage())).build();
                 }
 
                 if (fer != null) {
@@ -878,7 +875,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                             skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", "");
 
                             skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0031", "");
-                            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0031"))).build();
+                            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0031"))).build();
                         }
                         //  Persist sign counter info & the user presence bytes to the database - TBD
                         FidoKeys key = null;
@@ -904,15 +901,11 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", "");
 
                                     skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0030", "");
-                                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0030"))).build();
+                                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0030"))).build();
                                 }
                             }
                             //  update the sign counter value in the database with the new counter value.
-                            String jparesult = updatekeybean.execute(serverid, did, username, regkeyid, newCounter, modifyloc);
-                            JsonObject jo;
-                            try (JsonReader jr = Json.createReader(new StringReader(jparesult))) {
-                                jo = jr.readObject();
-                            }
+                            JsonObject jo = updatekeybean.execute(serverid, did, username, regkeyid, newCounter, modifyloc);
                             Boolean status = jo.getBoolean(skfsConstants.JSON_KEY_FIDOJPA_RETURN_STATUS);
                             if (status) {
                                 skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0027", "");
@@ -930,12 +923,12 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
                         skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0023", "");
 
                         skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.SEVERE, "FIDO-ERR-0015", "");
-                        return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0015") + "")).build();
+                        return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0015") + "")).build();
                     }
                 } else {
-                    return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("Failed to process authorization response") + "")).build();
+                    return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("Failed to process authorization response") + "")).build();
                 }
-                responseJSON = skfsCommon.buildReturn("Successfully processed authorization response");
+                responseJSON = new FIDOReturnObject("Successfully processed authorization response");
             } else {
                 try {
                     responseJSON = FIDO2Authejb.execute(did, authentication.getResponse(), authentication.getMetadata(), "authenticate");
@@ -948,7 +941,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
             skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.FINE, "FIDO-MSG-0038", "");
         } catch (SKFEException ex) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0034", "");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0034"))).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0034"))).build();
         }
 
         out = new Date();
@@ -1012,20 +1005,18 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
 
         if (keyid == null || keyid.trim().isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0020", " Missing 'keyid'");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0020") + " Missing 'keyid'")).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0020") + " Missing 'keyid'")).build();
         }
 
         //  5. handover the job to an ejb
-        String responseJSON;
+        FIDOReturnObject responseJSON;
         SKCEReturnObject skcero = u2fderegbean.execute(did, keyid);
         skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0046", skcero);
         if (skcero.getErrorkey() != null) {
-            responseJSON = skfsCommon.buildReturn(skcero.getErrormsg());
-            return Response.status(Response.Status.BAD_REQUEST).entity(responseJSON).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skcero.getErrormsg())).build();
         } else {
             // Build the output
-            String response = "Successfully deleted user registered security key";
-            responseJSON = skfsCommon.buildReturn(response);
+            responseJSON = new FIDOReturnObject("Successfully deleted user registered security key");
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0039", "");
         }
 
@@ -1083,20 +1074,18 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
         //  2. Input checks
         if (keyid == null || keyid.isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0002", " keyid");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0002") + " keyid")).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0002") + " keyid")).build();
         }
 
         //  6. handover job to an ejb
-        String responseJSON;
+        FIDOReturnObject responseJSON;
         SKCEReturnObject skcero = u2factbean.execute(did, keyid, fidokey);
         skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0046", skcero);
         if (skcero.getErrorkey() != null) {
-            responseJSON = skfsCommon.buildReturn(skcero.getErrormsg());
-            return Response.status(Response.Status.BAD_REQUEST).entity(responseJSON).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skcero.getErrormsg())).build();
         } else {
             // Build the output
-            String response = "Successfully updated user registered security key";
-            responseJSON = skfsCommon.buildReturn(response);
+            responseJSON = new FIDOReturnObject("Successfully updated user registered security key");
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0052", "");
         }
 
@@ -1143,29 +1132,22 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
         //  2. Input checks
         if (username == null || username.isEmpty()) {
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.SEVERE, "FIDO-ERR-0002", " username");
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skfsCommon.getMessageProperty("FIDO-ERR-0002") + " username")).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skfsCommon.getMessageProperty("FIDO-ERR-0002") + " username")).build();
         }
 
         //  3. Hand over the job to an ejb.
-        String responseJSON;
+        FIDOReturnObject responseJSON;
         SKCEReturnObject skcero = u2fgetkeysbean.execute(did, username);
         skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0046", skcero);
         if (skcero.getErrorkey() != null) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(skfsCommon.buildReturn(skcero.getErrormsg())).build();
+            return Response.status(Response.Status.BAD_REQUEST).entity(new FIDOReturnObject(skcero.getErrormsg())).build();
         } else {
             // Build the output
-            String keysJsonString = (String) skcero.getReturnval();
-            if (keysJsonString == null) {
+            JsonObject keys = (JsonObject) skcero.getReturnval();
+            if (keys == null) {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
-            JsonObject keysJsonObj;
-            try (JsonReader jr = Json.createReader(new StringReader(keysJsonString))) {
-                keysJsonObj = jr.readObject();
-            }
-
-            responseJSON = Json.createObjectBuilder()
-                    .add(skfsConstants.JSON_KEY_SERVLET_RETURN_RESPONSE, keysJsonObj)
-                    .build().toString();
+            responseJSON = new FIDOReturnObject(keys);
             skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0040", "");
         }
 
@@ -1178,7 +1160,7 @@ public class u2fServletHelperBean implements u2fServletHelperBeanLocal {
 
     private String decryptKH(String token) {
         String retvalue = token;
-        if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.keyhandle.encrypt").equalsIgnoreCase("true")) {
+        if (ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.db.keyhandle.encrypt")) {
             String clusterid = "1";
             String domainid = skceCommon.getConfigurationProperty("skfs.cfg.property.db.keyhandle.encrypt.saka.domainid");
             String sakausername = skceCommon.getClusterDomainProperty(Long.parseLong(clusterid), Long.parseLong(domainid), "username");
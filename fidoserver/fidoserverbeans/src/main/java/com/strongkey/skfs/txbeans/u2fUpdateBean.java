@@ -12,13 +12,9 @@ import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skfs.utilities.SKCEReturnObject;
-import java.io.StringReader;
 import java.util.logging.Level;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
 
 /**
  * This EJB is responsible for executing the activation process of a specific
@@ -151,11 +147,7 @@ public class u2fUpdateBean implements u2fUpdateBeanLocal {
                     skfsCommon.getMessageProperty("FIDO-MSG-5005"), "");
             try {
                 //  if the fkid_to_be_activated is valid, delete the entry from the database
-                String jparesult = updatekeystatusbean.execute(sid_to_be_activated, did, fidouser, fkid_to_be_activated, modifyloc, status);
-                JsonObject jo;
-                try (JsonReader jr = Json.createReader(new StringReader(jparesult))) {
-                    jo = jr.readObject();
-                }
+                updatekeystatusbean.execute(sid_to_be_activated, did, fidouser, fkid_to_be_activated, modifyloc, status);
 
             } catch (Exception ex) {
                 //  error activating user key
@@ -10,10 +10,12 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsLogger;
 import com.strongkey.skfe.entitybeans.FidoKeys;
 import com.strongkey.skce.pojos.FidoKeysInfo;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
@@ -65,11 +67,11 @@ public class updateFidoKeys implements updateFidoKeysLocal {
      * @param fkid - Unique identifier for the key in the DB
      * @param newCounter - New counter value for the key being used
      * @param modify_location - Location where the key was last used.
-     * @return - Returns a JSON string containing the status and the
+     * @return - Returns a JSON object containing the status and the
      * error/success message
      */
     @Override
-    public String execute(Short sid, Long did, String username, Long fkid, Integer newCounter, String modify_location) {
+    public JsonObject execute(Short sid, Long did, String username, Long fkid, Integer newCounter, String modify_location) {
         skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "execute");
 
         //Declaring variables
@@ -85,7 +87,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "sid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " sid";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // fkid is negative, zero or larger than max value (becomes negative)
@@ -94,7 +96,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "sid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " sid";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "sid=" + sid);
 
@@ -105,7 +107,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "did");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " did";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // fkid is negative, zero or larger than max value (becomes negative)
@@ -114,7 +116,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "did");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " did";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "did=" + did);
 
@@ -125,7 +127,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "fkid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " fkid";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // fkid is negative, zero or larger than max value (becomes negative)
@@ -134,7 +136,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "fkid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " fkid";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "fkid=" + fkid);
 
@@ -145,7 +147,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "COUNTER");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " COUNTER";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // Counter is negative, zero or larger than max value (becomes negative)
@@ -154,7 +156,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "COUNTER");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " COUNTER";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "COUNTER=" + newCounter);
 
@@ -164,19 +166,19 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "MODIFY LOCATION");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " MODIFY LOCATION";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         } else if (modify_location.trim().length() == 0) {
             status = false;
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1003", "MODIFY LOCATION");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1003") + " MODIFY LOCATION";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         } else if (modify_location.trim().length() > applianceCommon.getMaxLenProperty("appliance.cfg.maxlen.256charstring")) {
             status = false;
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "MODIFY LOCATION");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " MODIFY LOCATION";
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "MODIFY LOCATION=" + modify_location);
 
@@ -198,7 +200,7 @@ public class updateFidoKeys implements updateFidoKeysLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.SEVERE, classname, "execute", "FIDOJPA-ERR-2002", "");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-2002");
             retObj = Json.createObjectBuilder().add("status", status).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         //modify the DB
@@ -216,14 +218,24 @@ public class updateFidoKeys implements updateFidoKeysLocal {
         rk.setModifyDate(modifyDateFormat);
         rk.setId(primarykey);
 
-        em.merge(rk);
-        em.flush();
+        //  the user's range may be moving to another shard
+        try {
+            ShardRouter.checkWritable(em, did, username);
+        } catch (SKFEException ex) {
+            status = false;
+            retObj = Json.createObjectBuilder().add("status", status).add("message", ex.getLocalizedMessage()).build();
+            return retObj;
+        }
+        EntityManager sem = ShardRouter.entityManager(em, did, username);
+        sem.merge(rk);
+        sem.flush();
+        ReadReplica.recordWrite(did, username);
 
         try {
             if (applianceCommon.replicate()) {
                 String response = replObj.execute(applianceConstants.ENTITY_TYPE_FIDO_KEYS, applianceConstants.REPLICATION_OPERATION_UPDATE, primarykey, rk);
                 if(response != null){
-                    return response;
+                    return Json.createObjectBuilder().add("status", false).add("message", response).build();
                 }
             }
         } catch (Exception e) {
@@ -239,6 +251,6 @@ public class updateFidoKeys implements updateFidoKeysLocal {
         skfsLogger.logp(skfsConstants.SKFE_LOGGER,Level.FINE, classname, "execute", "FIDOJPA-MSG-2004", "");
         retObj = Json.createObjectBuilder().add("status", status).add("message", skfsCommon.getMessageProperty("FIDOJPA-MSG-2004")).build();
         skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "execute");
-        return retObj.toString();
+        return retObj;
     }
 }
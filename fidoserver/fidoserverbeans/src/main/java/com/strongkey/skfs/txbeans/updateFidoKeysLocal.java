@@ -8,11 +8,12 @@
 package com.strongkey.skfs.txbeans;
 
 import javax.ejb.Local;
+import javax.json.JsonObject;
 
 @Local
 public interface updateFidoKeysLocal {
 
-    public String execute(Short sid,Long did,
+    public JsonObject execute(Short sid,Long did,
             String username,Long fkid,
             Integer newCounter,
             String modify_location);
@@ -10,14 +10,17 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.appliance.entitybeans.Domains;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
-import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
 import com.strongkey.skce.pojos.FidoKeysInfo;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skce.utilities.skceMaps;
 import com.strongkey.skfe.entitybeans.FidoKeys;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.CredentialCache;
+import com.strongkey.skfs.utilities.RowIntegrity;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsLogger;
 import java.io.StringWriter;
@@ -53,6 +56,8 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
     @EJB
     getFidoKeysLocal getkeysejb;
     @EJB
+    archivedFidoKeysLocal archivedkeysejb;
+    @EJB
     replicateSKFEObjectBeanLocal replObj;
 
     @EJB
@@ -73,11 +78,11 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
      * @param fkid - Unique identifier for the key in the DB
      * @param modify_location - Location where the key was last used.
      * @param status - Updated status of the Key
-     * @return - Returns a JSON string containing the status and the
+     * @return - Returns a JSON object containing the status and the
      * error/success message
      */
     @Override
-    public String execute(Short sid, Long did, String username, Long fkid, String modify_location, String status) {
+    public JsonObject execute(Short sid, Long did, String username, Long fkid, String modify_location, String status) {
         //Declaring variables
         Boolean outputstatus = true;
         String errmsg;
@@ -91,7 +96,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "sid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " sid";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // fkid is negative, zero or larger than max value (becomes negative)
@@ -100,7 +105,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "sid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " sid";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "sid=" + sid);
 
@@ -111,7 +116,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "did");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " did";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // fkid is negative, zero or larger than max value (becomes negative)
@@ -120,7 +125,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "did");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " did";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "did=" + did);
 
@@ -131,7 +136,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "fkid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " fkid";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         // fkid is negative, zero or larger than max value (becomes negative)
@@ -140,7 +145,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "fkid");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " fkid";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "fkid=" + fkid);
 
@@ -150,19 +155,19 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "MODIFY LOCATION");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " MODIFY LOCATION";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         } else if (modify_location.trim().length() == 0) {
             outputstatus = false;
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1003", "MODIFY LOCATION");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1003") + " MODIFY LOCATION";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         } else if (modify_location.trim().length() > 255) {
             outputstatus = false;
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "MODIFY LOCATION");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " MODIFY LOCATION";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "MODIFY LOCATION=" + modify_location);
 
@@ -172,13 +177,13 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "STATUS");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " STATUS";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         } else if (status.trim().length() == 0) {
             outputstatus = false;
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1003", "STATUS");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1003") + " STATUS";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         if (status.trim().equalsIgnoreCase(applianceConstants.ACTIVE_STATUS)) {
@@ -188,7 +193,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1002", "STATUS");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1002") + " STATUS";
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
         skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDOJPA-MSG-2001", "STATUS=" + status);
 
@@ -202,6 +207,10 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             if (rk == null) {
                 rk = getkeysejb.getByfkid(sid, did, username, fkid);
             }
+            if (rk == null) {
+                //  moved out of the hot table by fidoKeysArchiver
+                rk = archivedkeysejb.restore(sid, did, username, fkid);
+            }
         } catch (SKFEException ex) {
             Logger.getLogger(updateFidoKeysStatus.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -210,7 +219,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
             skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-2002", "");
             errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-2002");
             retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-            return retObj.toString();
+            return retObj;
         }
 
         //modify the DB
@@ -231,11 +240,6 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
         if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.add")
                 .equalsIgnoreCase("true")) {
             
-            String standalone = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine");
-            String signingKeystorePassword = "";
-            if (standalone.equalsIgnoreCase("true")) {
-                signingKeystorePassword = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
-            }
             //  convert the java object into xml to get it signed.
             StringWriter writer = new StringWriter();
             JAXBContext jaxbContext;
@@ -254,7 +258,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
                 skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "FK Xml");
                 errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " FK Xml";
                 retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-                return retObj.toString();
+                return retObj;
             }
 
             //  get signature for the xml    
@@ -262,7 +266,7 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
 
             String signedxml = null;
             try {
-                signedxml = initCryptoModule.getCryptoModule().signDBRow(did.toString(), d.getSkceSigningdn(), efsXml, Boolean.valueOf(standalone), signingKeystorePassword);
+                signedxml = RowIntegrity.sign(RowIntegrity.TABLE_FIDO_KEYS, did, d.getSkceSigningdn(), efsXml);
             } catch (CryptoException ex) {
                 Logger.getLogger(updateFidoKeysStatus.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -272,21 +276,32 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
                 skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "execute", "FIDOJPA-ERR-1001", "SignedXML");
                 errmsg = skfsCommon.getMessageProperty("FIDOJPA-ERR-1001") + " SignedXML";
                 retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", errmsg).build();
-                return retObj.toString();
+                return retObj;
             } else {
                 String xmlsignature = new String(signedxml);
                 rk.setSignature(xmlsignature);
             }
         }
 
-        em.merge(rk);
-        em.flush();
+        //  the user's range may be moving to another shard
+        try {
+            ShardRouter.checkWritable(em, did, username);
+        } catch (SKFEException ex) {
+            outputstatus = false;
+            retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", ex.getLocalizedMessage()).build();
+            return retObj;
+        }
+        EntityManager sem = ShardRouter.entityManager(em, did, username);
+        sem.merge(rk);
+        sem.flush();
+        ReadReplica.recordWrite(did, username);
+        CredentialCache.getInstance().invalidate(did, rk.getKeyhandle());
 
         try {
             if (applianceCommon.replicate()) {
                 String response = replObj.execute(applianceConstants.ENTITY_TYPE_FIDO_KEYS, applianceConstants.REPLICATION_OPERATION_UPDATE, primarykey, rk);
                 if(response != null){
-                    return response;
+                    return Json.createObjectBuilder().add("status", false).add("message", response).build();
                 }
             }
         } catch (Exception e) {
@@ -299,6 +314,6 @@ public class updateFidoKeysStatus implements updateFidoKeysStatusLocal {
         skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "execute", "FIDOJPA-MSG-2004", "");
         retObj = Json.createObjectBuilder().add("status", outputstatus).add("message", skfsCommon.getMessageProperty("FIDOJPA-MSG-2004")).build();
         skfsLogger.exiting(skfsConstants.SKFE_LOGGER, classname, "execute");
-        return retObj.toString();
+        return retObj;
     }
 }
@@ -8,9 +8,10 @@
 package com.strongkey.skfs.txbeans;
 
 import javax.ejb.Local;
+import javax.json.JsonObject;
 
 @Local
 public interface updateFidoKeysStatusLocal {
 
-    public String execute(Short sid,Long did, String username, Long fkid, String modify_location, String status);
+    public JsonObject execute(Short sid,Long did, String username, Long fkid, String modify_location, String status);
 }
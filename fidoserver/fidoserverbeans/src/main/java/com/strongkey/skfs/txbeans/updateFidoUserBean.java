@@ -10,12 +10,14 @@ package com.strongkey.skfs.txbeans;
 import com.strongkey.appliance.entitybeans.Domains;
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceConstants;
-import com.strongkey.crypto.interfaces.initCryptoModule;
 import com.strongkey.crypto.utility.CryptoException;
+import com.strongkey.skfs.utilities.ReadReplica;
 import com.strongkey.skfs.utilities.skfsConstants;
 import com.strongkey.skfs.entitybeans.FidoUsers;
 import com.strongkey.skfs.messaging.replicateSKFEObjectBeanLocal;
+import com.strongkey.skfs.utilities.RowIntegrity;
 import com.strongkey.skfs.utilities.SKFEException;
+import com.strongkey.skfs.utilities.ShardRouter;
 import com.strongkey.skfs.utilities.skfsCommon;
 import com.strongkey.skfs.utilities.skfsLogger;
 import java.io.StringWriter;
@@ -221,11 +223,6 @@ public class updateFidoUserBean implements updateFidoUserBeanLocal {
         if (skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.add")
                 .equalsIgnoreCase("true")) {
             
-            String standalone = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.fidoengine");
-            String signingKeystorePassword = "";
-            if (standalone.equalsIgnoreCase("true")) {
-                signingKeystorePassword = skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
-            }
             //  convert the java object into xml to get it signed.
             StringWriter writer = new StringWriter();
             JAXBContext jaxbContext;
@@ -251,7 +248,7 @@ public class updateFidoUserBean implements updateFidoUserBeanLocal {
 
             String signedxml = null;
             try {
-                signedxml = initCryptoModule.getCryptoModule().signDBRow(did.toString(), d.getSkceSigningdn(), efsXml, Boolean.valueOf(standalone), signingKeystorePassword);
+                signedxml = RowIntegrity.sign(RowIntegrity.TABLE_FIDO_USERS, did, d.getSkceSigningdn(), efsXml);
             } catch (CryptoException ex) {
                 Logger.getLogger(updateFidoUserBean.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -267,8 +264,12 @@ public class updateFidoUserBean implements updateFidoUserBeanLocal {
             }
         }
 
-        em.merge(fidoUser);
-        em.flush();
+        //  the user's range may be moving to another shard
+        ShardRouter.checkWritable(em, did, username);
+        EntityManager sem = ShardRouter.entityManager(em, did, username);
+        sem.merge(fidoUser);
+        sem.flush();
+        ReadReplica.recordWrite(did, username);
 
         try {
             if (applianceCommon.replicate()) {
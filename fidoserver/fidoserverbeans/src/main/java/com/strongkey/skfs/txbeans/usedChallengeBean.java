@@ -0,0 +1,71 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfs.core.SealedChallenge;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * Single use of sealed challenges across the cluster. ChallengeReplayFilter
+ * only remembers the challenges used on this server since it started; when
+ * skfs.cfg.property.fido2.challenge.sealed.replay.database is true (the
+ * default) each used challenge is also inserted in USED_CHALLENGES, whose
+ * primary key lets one insert succeed per challenge. When it is false, a
+ * challenge can be answered once on each server, and again after a restart
+ * while it has not expired.
+ *
+ * The insert commits on its own, so a challenge stays used even when the
+ * rest of the request fails, as it does in the replay filter.
+ */
+@Stateless
+public class usedChallengeBean implements usedChallengeBeanLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    private static final long PURGE_MILLIS = 60000L;
+    private static final int PURGE_BATCHSIZE = 1000;
+
+    private static final AtomicLong lastPurge = new AtomicLong();
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public boolean markUsed(SealedChallenge challenge) {
+        if (!ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.fido2.challenge.sealed.replay.database")) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastPurge.get();
+        if (now - last >= PURGE_MILLIS && lastPurge.compareAndSet(last, now)) {
+            int purged = em.createNativeQuery("DELETE FROM USED_CHALLENGES WHERE expiry < ? LIMIT " + PURGE_BATCHSIZE)
+                    .setParameter(1, now)
+                    .executeUpdate();
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "markUsed", "FIDO-MSG-0070", "purged " + purged);
+        }
+        return em.createNativeQuery("INSERT IGNORE INTO USED_CHALLENGES (did, fingerprint, expiry) VALUES (?, ?, ?)")
+                .setParameter(1, challenge.getDid())
+                .setParameter(2, challenge.getFingerprint())
+                .setParameter(3, challenge.getExpiry())
+                .executeUpdate() == 1;
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.strongkey.skfs.core.SealedChallenge;
+import javax.ejb.Local;
+
+@Local
+public interface usedChallengeBeanLocal {
+
+    /**
+     * Records a sealed challenge as used by the cluster
+     *
+     * @param challenge - challenge being answered
+     * @return false if the challenge has already been used
+     */
+    boolean markUsed(SealedChallenge challenge);
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import com.google.common.primitives.Bytes;
+import com.strongkey.appliance.utilities.applianceMaps;
+import com.strongkey.crypto.utility.cryptoCommon;
+import com.strongkey.skce.pojos.UserSessionInfo;
+import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.core.AttestationVerifier;
+import com.strongkey.skfs.core.SealedChallenge;
+import com.strongkey.skfs.core.SyntheticAuthenticator;
+import com.strongkey.skfs.core.U2FUtility;
+import com.strongkey.skfs.fido2.FIDO2AttestationObject;
+import com.strongkey.skfs.fido2.FIDO2AuthenticatorData;
+import com.strongkey.skfs.pojos.FidoPolicyMDSObject;
+import com.strongkey.skfs.utilities.ConfigurationSnapshot;
+import com.strongkey.skfs.utilities.RelyingPartyContext;
+import com.strongkey.skfs.utilities.skfsCommon;
+import com.strongkey.skfs.utilities.skfsConstants;
+import com.strongkey.skfs.utilities.skfsLogger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.MissingResourceException;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * Warms up the server once the domains and policies are cached, before it
+ * reports itself ready (see isReady()).
+ *
+ * The registration and authentication code paths - CBOR decoding of the
+ * attestation object and authenticator data, attestation verification,
+ * certificate path validation, signature verification - are run in-process
+ * with a SyntheticAuthenticator, so the JIT compiles them before real
+ * requests arrive. Nothing is read from or written to the database. The
+ * relying party contexts, MDS trust anchor lookups and, if enabled, the
+ * sealed challenge key are touched as well. The warm-up runs outside any
+ * container transaction.
+ */
+@Singleton
+@Startup
+@DependsOn({"startServices", "cachePolicies"})
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class warmupServices implements warmupServicesLocal {
+
+    /**
+     ** This class's name - used for logging & not persisted
+     *
+     */
+    private final String classname = this.getClass().getName();
+
+    private static final String WARMUP_AAGUID = "00000000-0000-0000-0000-000000000000";
+
+    @Resource
+    private TimerService timerService;
+
+    private volatile boolean ready = false;
+    private volatile String status = "starting";
+
+    @PostConstruct
+    public void initialize() {
+        if (!Boolean.parseBoolean(getProperty("skfs.cfg.property.warmup.enabled", "true"))) {
+            ready = true;
+            status = "disabled";
+            return;
+        }
+        //  Run on a timer thread so that deployment is not held up
+        timerService.createSingleActionTimer(1L, new TimerConfig(null, false));
+    }
+
+    @Timeout
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void warmup() {
+        long start = System.currentTimeMillis();
+        int iterations;
+        try {
+            iterations = Integer.parseInt(getProperty("skfs.cfg.property.warmup.iterations", "300"));
+        } catch (NumberFormatException ex) {
+            iterations = 300;
+        }
+
+        try {
+            status = "caches";
+            String rpId = warmCaches();
+
+            SyntheticAuthenticator authenticator = new SyntheticAuthenticator(rpId);
+            String origin = "https://" + rpId;
+            for (int i = 1; i <= iterations; i++) {
+                status = "iteration " + i + "/" + iterations;
+                register(authenticator, origin);
+                authenticate(authenticator, origin);
+            }
+            status = "completed " + iterations + " iterations in " + (System.currentTimeMillis() - start) + "ms";
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "warmup", "FIDO-MSG-0061", status);
+        } catch (Exception ex) {
+            //  A failed warm-up only costs latency, never keep the server out.
+            //  The status is served unauthenticated: details only go to the log
+            status = "failed";
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "warmup", "FIDO-ERR-0047",
+                    "after " + (System.currentTimeMillis() - start) + "ms: " + ex);
+        }
+        ready = true;
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Builds the relying party contexts, queries the MDS of every cached
+     * policy and loads the sealed challenge key of every domain
+     *
+     * @return rpId of the first domain, used by the synthetic authenticator
+     */
+    private String warmCaches() throws Exception {
+        String rpId = null;
+        for (Long did : applianceMaps.getDomainKeyset()) {
+            RelyingPartyContext rpc = RelyingPartyContext.get(did);
+            if (rpId == null && rpc != null && rpc.getRpId() != null) {
+                rpId = rpc.getRpId();
+            }
+            if (SealedChallenge.isEnabled()) {
+                UserSessionInfo session = new UserSessionInfo("warmup", null, null, skfsConstants.FIDO_USERSESSION_REG, null, null);
+                SealedChallenge.open(did, SealedChallenge.forRegistration(did, session, null).seal());
+            }
+        }
+
+        for (Object policy : skceMaps.getMapObj().values(skfsConstants.MAP_FIDO_POLICIES)) {
+            FidoPolicyMDSObject fpmds = (FidoPolicyMDSObject) policy;
+            if (fpmds.getMds() != null) {
+                fpmds.getMds().getAuthenticator(WARMUP_AAGUID);
+            }
+        }
+        return (rpId == null) ? "localhost" : rpId;
+    }
+
+    /**
+     * What FIDO2RegistrationBean does with a response, short of the policy
+     * checks and the database
+     */
+    private void register(SyntheticAuthenticator authenticator, String origin) throws Exception {
+        String clientData = authenticator.clientData("webauthn.create", newChallenge(), origin);
+        skfsCommon.getJsonObjectFromString(new String(Base64.getUrlDecoder().decode(clientData), StandardCharsets.UTF_8));
+
+        FIDO2AttestationObject attObject = new FIDO2AttestationObject();
+        attObject.decodeAttestationObject(authenticator.attestationObject(clientData));
+        if (!AttestationVerifier.getInstance().verify(attObject.getAttFormat(), attObject.getAttStmt(), clientData, attObject.getAuthData())) {
+            throw new IllegalStateException("Synthetic attestation did not verify");
+        }
+
+        CertificateFactory cf = CertificateFactory.getInstance("X.509", "BCFIPS");
+        CertPath certPath = cf.generateCertPath(Collections.singletonList(authenticator.getAttestationCertificate()));
+        PKIXParameters pkix = new PKIXParameters(Collections.singleton(new TrustAnchor(authenticator.getRootCertificate(), null)));
+        pkix.setRevocationEnabled(false);
+        CertPathValidator.getInstance("PKIX").validate(certPath, pkix);
+    }
+
+    /**
+     * What FIDO2AuthenticateBean does with an assertion, short of the key
+     * lookup and counter update
+     */
+    private void authenticate(SyntheticAuthenticator authenticator, String origin) throws Exception {
+        String clientData = authenticator.clientData("webauthn.get", newChallenge(), origin);
+        skfsCommon.getJsonObjectFromString(new String(Base64.getUrlDecoder().decode(clientData), StandardCharsets.UTF_8));
+
+        byte[] authData = authenticator.assertionAuthData();
+        byte[] signature = authenticator.assertionSignature(authData, clientData);
+        FIDO2AuthenticatorData authenticatorData = new FIDO2AuthenticatorData();
+        authenticatorData.decodeAuthData(authData);
+
+        byte[] signedBytes = Bytes.concat(authData, skfsCommon.getDigestBytes(Base64.getUrlDecoder().decode(clientData), "SHA-256"));
+        PublicKey publicKey = KeyFactory.getInstance("EC", "BCFIPS")
+                .generatePublic(new X509EncodedKeySpec(authenticator.getCredentialPublicKey().getEncoded()));
+        if (!cryptoCommon.verifySignature(signature, publicKey, signedBytes, "SHA256withECDSA")) {
+            throw new IllegalStateException("Synthetic assertion did not verify");
+        }
+    }
+
+    private static String newChallenge() {
+        return U2FUtility.getRandom(ConfigurationSnapshot.get().getInt("skfs.cfg.property.entropylength", 512));
+    }
+
+    private static String getProperty(String name, String defaultValue) {
+        try {
+            return skfsCommon.getConfigurationProperty(name);
+        } catch (MissingResourceException ex) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.txbeans;
+
+import javax.ejb.Local;
+
+/**
+ * Local interface to warmupServices EJB
+ */
+@Local
+public interface warmupServicesLocal {
+
+    /**
+     * @return true once the warm-up has completed (or is disabled) and the
+     * server may be sent traffic
+     */
+    boolean isReady();
+
+    /**
+     * @return a short description of the warm-up progress, without error
+     * details as it is served unauthenticated
+     */
+    String getStatus();
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.skfs.entitybeans.AttestationCertificatesPK;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU index of the attestation certificates known to be stored in
+ * ATTESTATION_CERTIFICATES, keyed by issuer DN and serial number, so that
+ * registrations with the same model of authenticator do not look up the same
+ * x5c chain in the database every time.
+ *
+ * The index is only filled from lookups, so it never holds a certificate
+ * added by a registration that has not committed yet; concurrent inserts of
+ * the same certificate are resolved by the unique key of the table (see
+ * addFidoAttestationCertificate).
+ */
+public final class AttestationCertificateIndex {
+
+    private static final AttestationCertificateIndex INSTANCE = new AttestationCertificateIndex(
+            Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.attestationcertificate.index.maxentries")));
+
+    private final Map<String, AttestationCertificatesPK> index;
+
+    private AttestationCertificateIndex(final int maxentries) {
+        index = new LinkedHashMap<String, AttestationCertificatesPK>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AttestationCertificatesPK> eldest) {
+                return size() > maxentries;
+            }
+        };
+    }
+
+    public static AttestationCertificateIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param issuerDn - issuer DN of the certificate
+     * @param serialNumber - decimal serial number of the certificate
+     * @return the primary key of the stored certificate, null if not known
+     */
+    public synchronized AttestationCertificatesPK get(String issuerDn, String serialNumber) {
+        return index.get(key(issuerDn, serialNumber));
+    }
+
+    /**
+     * Records a certificate that is committed to the database
+     *
+     * @param issuerDn - issuer DN of the certificate
+     * @param serialNumber - decimal serial number of the certificate
+     * @param pk - primary key of the stored certificate
+     */
+    public synchronized void put(String issuerDn, String serialNumber, AttestationCertificatesPK pk) {
+        index.put(key(issuerDn, serialNumber), pk);
+    }
+
+    public synchronized void clear() {
+        index.clear();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    private static String key(String issuerDn, String serialNumber) {
+        return serialNumber + "/" + issuerDn;
+    }
+}
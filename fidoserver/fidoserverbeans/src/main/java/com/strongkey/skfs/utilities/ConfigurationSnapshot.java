@@ -0,0 +1,277 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Properties;
+import java.util.ResourceBundle;
+
+/**
+ * Immutable view of the SKFS configuration, resolved once: the built-in
+ * skfs-configuration.properties overlaid by SKFS_HOME/etc/skfs-configuration.properties,
+ * with SKFS_HOME substituted, and for each domain the properties of
+ * SKFS_HOME/etc/skfs-configuration-<did>.properties. Numeric and boolean
+ * values are parsed when the snapshot is built, so lookups are map reads.
+ *
+ * An override whose value does not parse as the type of the built-in value
+ * is reported and left out; on a reload such a file rejects the whole
+ * snapshot and the one in use is kept. skfsCron checks the
+ * files every skfs.cfg.property.configuration.reload.seconds and
+ * skfsCommon.reloadConfiguration swaps in a new snapshot when they changed.
+ */
+public final class ConfigurationSnapshot {
+
+    /**
+     * This class's name - used for logging
+     */
+    private static final String classname = ConfigurationSnapshot.class.getName();
+
+    private static final String fs = System.getProperty("file.separator");
+    private static final String FILE_PREFIX = "skfs-configuration";
+    private static final String FILE_SUFFIX = ".properties";
+
+    private static volatile ConfigurationSnapshot current;
+    // files of the last snapshot rejected, not read again until they change
+    private static volatile String rejected = "";
+
+    private final Map<String, String> values;
+    private final Map<String, Long> longs;
+    private final Map<String, Boolean> booleans;
+    private final Map<Long, Map<String, String>> domains;
+    private final String stamp;
+
+    private ConfigurationSnapshot(Map<String, String> values, Map<Long, Map<String, String>> domains, String stamp) {
+        this.values = values;
+        this.domains = domains;
+        this.stamp = stamp;
+        Map<String, Long> l = new HashMap<>();
+        Map<String, Boolean> b = new HashMap<>();
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            String v = e.getValue().trim();
+            if (isLong(v)) {
+                l.put(e.getKey(), Long.parseLong(v));
+            } else if (isBoolean(v)) {
+                b.put(e.getKey(), Boolean.parseBoolean(v));
+            }
+        }
+        this.longs = Collections.unmodifiableMap(l);
+        this.booleans = Collections.unmodifiableMap(b);
+    }
+
+    /**
+     * @return the snapshot in use
+     */
+    public static ConfigurationSnapshot get() {
+        return current;
+    }
+
+    static void install(ConfigurationSnapshot snapshot) {
+        current = snapshot;
+    }
+
+    static void reject(ConfigurationSnapshot snapshot) {
+        rejected = snapshot.stamp;
+    }
+
+    /**
+     * Reads and validates the configuration files
+     *
+     * @param defaults - the built-in skfs-configuration bundle
+     * @param overrides - the SKFS_HOME/etc/skfs-configuration.properties
+     * bundle, null if there is none
+     * @param skfshome - value substituted for a leading SKFS_HOME
+     * @param errors - receives the overrides left out because their values
+     * are not of the type of the built-in value, and the domain files that
+     * cannot be read
+     * @return a new snapshot
+     */
+    static ConfigurationSnapshot build(ResourceBundle defaults, ResourceBundle overrides, String skfshome, List<String> errors) {
+        String stamp = stamp(skfshome);
+
+        Map<String, String> values = new HashMap<>();
+        for (Enumeration<String> e = defaults.getKeys(); e.hasMoreElements();) {
+            String key = e.nextElement();
+            values.put(key, resolve(defaults.getString(key), skfshome));
+        }
+        if (overrides != null) {
+            for (Enumeration<String> e = overrides.getKeys(); e.hasMoreElements();) {
+                String key = e.nextElement();
+                String value = resolve(overrides.getString(key), skfshome);
+                if (check(values, key, value, "", errors)) {
+                    values.put(key, value);
+                }
+            }
+        }
+
+        Map<Long, Map<String, String>> domains = new HashMap<>();
+        for (File f : domainFiles(skfshome)) {
+            String name = f.getName();
+            Long did = Long.valueOf(name.substring(FILE_PREFIX.length() + 1, name.length() - FILE_SUFFIX.length()));
+            Properties props = new Properties();
+            try (FileInputStream fis = new FileInputStream(f)) {
+                props.load(fis);
+            } catch (IOException ex) {
+                errors.add(name + ": " + ex.getLocalizedMessage());
+                continue;
+            }
+            Map<String, String> domain = new HashMap<>();
+            for (String key : props.stringPropertyNames()) {
+                String value = resolve(props.getProperty(key), skfshome);
+                if (check(values, key, value, name + ": ", errors)) {
+                    domain.put(key, value);
+                }
+            }
+            domains.put(did, Collections.unmodifiableMap(domain));
+        }
+
+        return new ConfigurationSnapshot(Collections.unmodifiableMap(values), Collections.unmodifiableMap(domains), stamp);
+    }
+
+    /**
+     * @param skfshome
+     * @return true if a configuration file in SKFS_HOME/etc was added,
+     * removed or modified since this snapshot, or the last one rejected, was
+     * built
+     */
+    boolean isStale(String skfshome) {
+        String s = stamp(skfshome);
+        return !stamp.equals(s) && !rejected.equals(s);
+    }
+
+    /**
+     * @param key
+     * @return the value of the key
+     * @throws MissingResourceException - if the key is not configured
+     */
+    public String getString(String key) {
+        String s = values.get(key);
+        if (s == null) {
+            throw new MissingResourceException("Can't find resource for key " + key, classname, key);
+        }
+        return s;
+    }
+
+    /**
+     * @param did
+     * @param key
+     * @return the value of the key for the domain, the global value if the
+     * domain does not override it
+     * @throws MissingResourceException - if the key is not configured
+     */
+    public String getString(Long did, String key) {
+        Map<String, String> domain = domains.get(did);
+        if (domain != null) {
+            String s = domain.get(key);
+            if (s != null) {
+                return s;
+            }
+        }
+        return getString(key);
+    }
+
+    /**
+     * @param key
+     * @return true if the value of the key is true, ignoring case
+     */
+    public boolean getBoolean(String key) {
+        Boolean b = booleans.get(key);
+        return b != null && b;
+    }
+
+    /**
+     * @param key
+     * @param dflt
+     * @return the value of the key, dflt if it is not configured or is not a
+     * number
+     */
+    public long getLong(String key, long dflt) {
+        Long l = longs.get(key);
+        return (l == null) ? dflt : l;
+    }
+
+    /**
+     * @param key
+     * @param dflt
+     * @return the value of the key, dflt if it is not configured or is not an
+     * int
+     */
+    public int getInt(String key, int dflt) {
+        Long l = longs.get(key);
+        return (l == null || l.intValue() != l) ? dflt : l.intValue();
+    }
+
+    private static String resolve(String s, String skfshome) {
+        return s.startsWith("SKFS_HOME") ? s.replaceFirst("SKFS_HOME", skfshome) : s;
+    }
+
+    private static boolean check(Map<String, String> values, String key, String value, String prefix, List<String> errors) {
+        String dflt = values.get(key);
+        if (dflt == null) {
+            return true;
+        }
+        if (isLong(dflt.trim()) && !isLong(value.trim())) {
+            errors.add(prefix + key + "=" + value + " is not a number");
+            return false;
+        } else if (isBoolean(dflt.trim()) && !isBoolean(value.trim())) {
+            errors.add(prefix + key + "=" + value + " is not true or false");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isLong(String s) {
+        try {
+            Long.parseLong(s);
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isBoolean(String s) {
+        return s.equalsIgnoreCase("true") || s.equalsIgnoreCase("false");
+    }
+
+    private static List<File> domainFiles(String skfshome) {
+        File[] files = new File(skfshome + fs + "etc").listFiles((dir, name)
+                -> name.startsWith(FILE_PREFIX + "-") && name.endsWith(FILE_SUFFIX)
+                && isLong(name.substring(FILE_PREFIX.length() + 1, name.length() - FILE_SUFFIX.length())));
+        List<File> list = new ArrayList<>();
+        if (files != null) {
+            Collections.addAll(list, files);
+            Collections.sort(list);
+        }
+        return list;
+    }
+
+    /**
+     * @return names, sizes and modification times of the configuration files
+     * in SKFS_HOME/etc
+     */
+    private static String stamp(String skfshome) {
+        StringBuilder sb = new StringBuilder();
+        File global = new File(skfshome + fs + "etc" + fs + FILE_PREFIX + FILE_SUFFIX);
+        List<File> files = domainFiles(skfshome);
+        files.add(0, global);
+        for (File f : files) {
+            if (f.exists()) {
+                sb.append(f.getName()).append(':').append(f.length()).append(':').append(f.lastModified()).append(';');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.skfe.entitybeans.FidoKeys;
+import com.strongkey.skfs.pojos.DecodedCredential;
+import com.strongkey.skfs.pojos.RegistrationSettings;
+import java.io.UnsupportedEncodingException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Bounded LRU cache of decoded FIDO2 credentials, keyed by domain and the
+ * SHA-256 of the credential id (keyhandle), so frequently used keys are not
+ * base64 decoded, run through a KeyFactory and have their registration
+ * settings parsed on every authentication.
+ *
+ * The cache is limited both in entries and in the approximate number of bytes
+ * held. Entries must be invalidated when the status of the key changes or
+ * the key is deleted; counter updates do not affect the cached data.
+ */
+public final class CredentialCache {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = CredentialCache.class.getName();
+
+    /**
+     * Estimated fixed cost of an entry: map node, key string, the objects in
+     * DecodedCredential and RegistrationSettings
+     */
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private static final CredentialCache INSTANCE = new CredentialCache(
+            Integer.parseInt(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.credentialcache.maxentries")),
+            Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.credentialcache.maxbytes")));
+
+    private final int maxentries;
+    private final long maxbytes;
+    private final LinkedHashMap<String, DecodedCredential> cache = new LinkedHashMap<>(1024, 0.75f, true);
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private CredentialCache(int maxentries, long maxbytes) {
+        this.maxentries = maxentries;
+        this.maxbytes = maxbytes;
+    }
+
+    public static CredentialCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the decoded form of a key, decoding and caching it if needed
+     *
+     * @param did - domain of the key
+     * @param khdigest - SHA-256 of the keyhandle, as used for the session map
+     * @param key - the key as read from the map or the database
+     * @return DecodedCredential
+     * @throws SKFEException - if the key cannot be decoded
+     */
+    public DecodedCredential get(Long did, String khdigest, FidoKeys key) throws SKFEException {
+        String mapkey = did + "-" + khdigest;
+        DecodedCredential dc;
+        synchronized (this) {
+            dc = cache.get(mapkey);
+        }
+        // Make sure the entry still belongs to the same key
+        if (dc != null && dc.getFkid().equals(key.getFidoKeysPK().getFkid())
+                && dc.getSid().equals(key.getFidoKeysPK().getSid())) {
+            hits.incrementAndGet();
+            return dc;
+        }
+        misses.incrementAndGet();
+
+        dc = decode(key);
+        if (maxentries > 0) {
+            synchronized (this) {
+                DecodedCredential old = cache.put(mapkey, dc);
+                if (old != null) {
+                    bytes -= old.getSize();
+                }
+                bytes += dc.getSize();
+                evict();
+            }
+        }
+        return dc;
+    }
+
+    /**
+     * Removes a key from the cache
+     *
+     * @param did - domain of the key
+     * @param keyhandle - keyhandle of the key
+     */
+    public void invalidate(Long did, String keyhandle) {
+        try {
+            String mapkey = did + "-" + skfsCommon.getDigest(keyhandle, "SHA-256");
+            synchronized (this) {
+                DecodedCredential old = cache.remove(mapkey);
+                if (old != null) {
+                    bytes -= old.getSize();
+                }
+            }
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
+            // Cannot locate the entry; drop everything rather than keep a stale key
+            clear();
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return hits / (hits + misses) since startup, 0 if never used
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    public String getStatistics() {
+        return "entries=" + size() + " bytes=" + getBytes()
+                + " hits=" + hits.get() + " misses=" + misses.get()
+                + " hitratio=" + String.format("%.3f", getHitRatio());
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, DecodedCredential>> it = cache.entrySet().iterator();
+        while ((cache.size() > maxentries || bytes > maxbytes) && it.hasNext()) {
+            bytes -= it.next().getValue().getSize();
+            it.remove();
+        }
+    }
+
+    private static DecodedCredential decode(FidoKeys key) throws SKFEException {
+        try {
+            RegistrationSettings rs = RegistrationSettings.parse(key.getRegistrationSettings(), key.getRegistrationSettingsVersion());
+            byte[] publickeyBytes = Base64.decodeBase64(key.getPublickey());
+            KeyFactory kf = KeyFactory.getInstance(getKeyType(rs), "BCFIPS");
+            PublicKey pub = kf.generatePublic(new X509EncodedKeySpec(publickeyBytes));
+            int size = ENTRY_OVERHEAD + publickeyBytes.length
+                    + ((key.getRegistrationSettings() == null) ? 0 : key.getRegistrationSettings().length());
+            return new DecodedCredential(key.getFidoKeysPK().getSid(), key.getFidoKeysPK().getFkid(), pub,
+                    skfsCommon.getAlgFromIANACOSEAlg(rs.getAlg()), key.getTransports(), rs, size);
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidKeySpecException | IllegalArgumentException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "decode", "FIDO-ERR-2001", ex.getLocalizedMessage());
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-2001") + ex.getLocalizedMessage());
+        }
+    }
+
+    private static String getKeyType(RegistrationSettings rs) {
+        if (rs.getKty() == 2) {
+            return "ECDSA";
+        } else if (rs.getKty() == 3) {
+            return "RSA";
+        } else {
+            throw new IllegalArgumentException("Unknown Key Type");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.skce.pojos.MDSAuthenticator;
+import com.strongkey.skce.pojos.MDSStatusListener;
+import com.strongkey.skfs.txbeans.fidoKeysRevokerLocal;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Status changes of authenticator models found by the MDS refresh of the
+ * policies, queued on the refresh thread until authenticatorStatusMonitor
+ * acts on them.
+ */
+public final class MDSStatusChanges {
+
+    private static final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+
+    private MDSStatusChanges() {
+    }
+
+    public static final class Change {
+        private final Long did;
+        private final MDSAuthenticator authenticator;
+
+        private Change(Long did, MDSAuthenticator authenticator) {
+            this.did = did;
+            this.authenticator = authenticator;
+        }
+
+        public Long getDid() {
+            return did;
+        }
+
+        public MDSAuthenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    /**
+     * @return skfs.cfg.property.fido2.mds.statuschange.action in lower case,
+     * null if it is none or a value that is neither flag nor deactivate
+     */
+    public static String getAction() {
+        String action = skfsCommon.getConfigurationProperty("skfs.cfg.property.fido2.mds.statuschange.action").trim().toLowerCase();
+        if (fidoKeysRevokerLocal.ACTION_FLAG.equals(action) || fidoKeysRevokerLocal.ACTION_DEACTIVATE.equals(action)) {
+            return action;
+        }
+        return null;
+    }
+
+    /**
+     * @param did - domain of the policy whose MDS reports the changes
+     * @return the listener queuing the changes for the domain, null if no
+     * action is taken on them (see getAction), as nothing would drain them
+     */
+    public static MDSStatusListener listener(Long did) {
+        if (getAction() == null) {
+            return null;
+        }
+        return authenticator -> {
+            if (authenticator != null) {
+                changes.add(new Change(did, authenticator));
+            }
+        };
+    }
+
+    /**
+     * @return the oldest change not yet acted on, null if none
+     */
+    public static Change poll() {
+        return changes.poll();
+    }
+}
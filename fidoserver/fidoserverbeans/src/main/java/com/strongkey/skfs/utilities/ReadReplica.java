@@ -0,0 +1,217 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+import javax.persistence.NonUniqueResultException;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+/**
+ * Routes query-only lookups to a read-only replica of the database when
+ * skfs.cfg.property.db.replica.enabled is true.
+ *
+ * The replica unit is FIDOPU bootstrapped as RESOURCE_LOCAL on the replica
+ * datasource (skfs.cfg.property.db.replica.jndiname), without a shared cache;
+ * it is only built once replication is enabled, so servers without a replica
+ * do not need the datasource. Lookups whose results are modified and written
+ * back keep using the primary.
+ *
+ * A lookup goes to the primary instead when:
+ * - replicaMonitor found the replica unreachable or lagging by more than
+ *   skfs.cfg.property.db.replica.maxlag.seconds,
+ * - the same user (or, for domain wide objects, the same domain) was written
+ *   through this server within skfs.cfg.property.db.replica.readyourwrites.seconds,
+ * - the lookup fails on the replica; the replica is then considered
+ *   unhealthy until the next successful check,
+ * - the user is in a shard other than the primary (see ShardRouter).
+ */
+public final class ReadReplica {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = ReadReplica.class.getName();
+
+    private static final String PERSISTENCE_UNIT = "FIDOPU";
+
+    /**
+     * Last write time of did-username, or did- for domain wide objects
+     */
+    private static final Map<String, Long> writes = new ConcurrentHashMap<>();
+
+    private static volatile boolean healthy = false;
+    private static volatile long lag = -1;
+    private static EntityManagerFactory emf;
+
+    /**
+     * A lookup run against either the replica or the primary
+     *
+     * @param <T> - result
+     * @param <E> - checked exception thrown by the lookup, if any
+     */
+    public interface Lookup<T, E extends Exception> {
+
+        T run(EntityManager em) throws E;
+    }
+
+    private ReadReplica() {
+    }
+
+    public static boolean isEnabled() {
+        return ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.db.replica.enabled");
+    }
+
+    public static boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return last measured lag in seconds, -1 if unknown
+     */
+    public static long getLag() {
+        return lag;
+    }
+
+    /**
+     * Records a write made through this server, so lookups for the same user
+     * or domain are read from the primary for the read-your-writes window
+     *
+     * @param did - domain written to
+     * @param username - user written to, null for domain wide objects
+     * (policies, attestation certificates, domains)
+     */
+    public static void recordWrite(Long did, String username) {
+        if (isEnabled()) {
+            writes.put(did + "-" + ((username == null) ? "" : username), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Runs a lookup on the replica if allowed, otherwise (or if it fails
+     * there) on the primary
+     *
+     * @param primary - entity manager of the calling bean
+     * @param did - domain looked up
+     * @param username - user looked up, null for domain wide objects
+     * @param lookup - the query
+     * @return the result of the lookup
+     * @throws E - what the lookup throws
+     */
+    public static <T, E extends Exception> T lookup(EntityManager primary, Long did, String username, Lookup<T, E> lookup) throws E {
+        if (route(did, username)) {
+            EntityManager replica = null;
+            try {
+                replica = getEntityManagerFactory().createEntityManager();
+                return lookup.run(replica);
+            } catch (NoResultException | NonUniqueResultException ex) {
+                throw ex;
+            } catch (PersistenceException | IllegalStateException ex) {
+                setState(false, -1, ex.getLocalizedMessage());
+            } finally {
+                if (replica != null && replica.isOpen()) {
+                    replica.close();
+                }
+            }
+        }
+        return lookup.run(primary);
+    }
+
+    /**
+     * @return true if a lookup for this user (or domain) may run on the replica
+     */
+    static boolean route(Long did, String username) {
+        if (!healthy || !isEnabled()) {
+            return false;
+        }
+        //  the replica only mirrors the primary
+        if (username != null && ShardRouter.isSharded(did, username)) {
+            return false;
+        }
+        long since = System.currentTimeMillis() - getWindowMillis();
+        Long domainwrite = writes.get(did + "-");
+        if (domainwrite != null && domainwrite > since) {
+            return false;
+        }
+        if (username != null) {
+            Long userwrite = writes.get(did + "-" + username);
+            if (userwrite != null && userwrite > since) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by replicaMonitor with the outcome of each check, and when a
+     * lookup fails on the replica
+     *
+     * @param ok - true if the replica may be used
+     * @param seconds - lag in seconds, -1 if unknown
+     * @param reason - why the replica may not be used, logged on change
+     */
+    public static void setState(boolean ok, long seconds, String reason) {
+        lag = seconds;
+        if (ok != healthy) {
+            healthy = ok;
+            if (ok) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "setState", "FIDO-MSG-0064", "replica in use, lag=" + seconds + "s");
+            } else {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "setState", "FIDO-ERR-0051", reason);
+            }
+        }
+    }
+
+    /**
+     * Drops write records older than the read-your-writes window
+     */
+    public static void expireWrites() {
+        long since = System.currentTimeMillis() - getWindowMillis();
+        Iterator<Map.Entry<String, Long>> it = writes.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() <= since) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the replica unit, built on first use
+     */
+    public static synchronized EntityManagerFactory getEntityManagerFactory() {
+        if (emf == null || !emf.isOpen()) {
+            Map<String, Object> props = new HashMap<>();
+            props.put("javax.persistence.transactionType", "RESOURCE_LOCAL");
+            props.put("javax.persistence.jtaDataSource", "");
+            props.put("javax.persistence.nonJtaDataSource", skfsCommon.getConfigurationProperty("skfs.cfg.property.db.replica.jndiname"));
+            props.put("eclipselink.session-name", PERSISTENCE_UNIT + "-replica");
+            props.put("eclipselink.cache.shared.default", "false");
+            emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, props);
+        }
+        return emf;
+    }
+
+    public static synchronized void close() {
+        if (emf != null && emf.isOpen()) {
+            emf.close();
+        }
+        emf = null;
+        healthy = false;
+    }
+
+    private static long getWindowMillis() {
+        return ConfigurationSnapshot.get().getLong("skfs.cfg.property.db.replica.readyourwrites.seconds", 5L) * 1000L;
+    }
+}
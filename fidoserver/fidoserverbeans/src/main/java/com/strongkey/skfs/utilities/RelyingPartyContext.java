@@ -0,0 +1,185 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.appliance.entitybeans.Domains;
+import com.strongkey.appliance.utilities.applianceMaps;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Immutable, per-domain view of the relying party data that is needed on
+ * every request: the appid of the domain, its rpId (host of the appid), the
+ * SHA-256 of the rpId, the normalized allowed origins and the registrable
+ * domain (TLD+1).
+ *
+ * Contexts are built once per domain and replaced as a whole by refresh()
+ * when the domain configuration changes, so readers never see a partially
+ * updated context.
+ */
+public final class RelyingPartyContext {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = RelyingPartyContext.class.getName();
+
+    private static final Map<Long, RelyingPartyContext> contexts = new ConcurrentHashMap<>();
+
+    private final Long did;
+    private final String appid;
+    private final String rpId;
+    private final byte[] rpIdHash;
+    private final Set<String> origins;
+    private final String registrableDomain;
+
+    private RelyingPartyContext(Long did, String appid) {
+        this.did = did;
+        this.appid = appid;
+        String host = null;
+        String origin = null;
+        if (appid != null) {
+            try {
+                URI uri = new URI(appid);
+                host = (uri.getHost() == null) ? null : uri.getHost().toLowerCase(Locale.ROOT);
+                origin = normalizeOrigin(uri);
+            } catch (URISyntaxException ex) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "RelyingPartyContext", "FIDO-MSG-2001", "Invalid appid for did " + did + ": " + appid);
+            }
+        }
+        this.rpId = host;
+        this.rpIdHash = (host == null) ? null : digest(host);
+        this.origins = (origin == null) ? Collections.<String>emptySet() : Collections.singleton(origin);
+        this.registrableDomain = (host == null) ? null : skfsCommon.getTLdplusone(host);
+    }
+
+    /**
+     * Returns the context of a domain, building it from the cached domain on
+     * first use
+     *
+     * @param did - domain id
+     * @return RelyingPartyContext or null if the domain is unknown
+     */
+    public static RelyingPartyContext get(Long did) {
+        RelyingPartyContext rpc = contexts.get(did);
+        if (rpc == null) {
+            Domains d = applianceMaps.getDomain(did);
+            if (d == null) {
+                return null;
+            }
+            rpc = new RelyingPartyContext(did, d.getSkfeAppid());
+            RelyingPartyContext existing = contexts.putIfAbsent(did, rpc);
+            if (existing != null) {
+                rpc = existing;
+            }
+        }
+        return rpc;
+    }
+
+    /**
+     * Rebuilds the context of a domain and swaps it in
+     *
+     * @param d - the updated domain
+     */
+    public static void refresh(Domains d) {
+        contexts.put(d.getDid(), new RelyingPartyContext(d.getDid(), d.getSkfeAppid()));
+    }
+
+    /**
+     * Drops the context of a domain; it is rebuilt on next use
+     *
+     * @param did - domain id
+     */
+    public static void remove(Long did) {
+        contexts.remove(did);
+    }
+
+    public Long getDid() {
+        return did;
+    }
+
+    public String getAppid() {
+        return appid;
+    }
+
+    public String getRpId() {
+        return rpId;
+    }
+
+    public String getRegistrableDomain() {
+        return registrableDomain;
+    }
+
+    /**
+     * @param origin - origin received from the client
+     * @return true if the origin, once normalized, is one of the allowed
+     * origins of the domain
+     */
+    public boolean isAllowedOrigin(String origin) {
+        try {
+            return origins.contains(normalizeOrigin(new URI(origin)));
+        } catch (URISyntaxException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Compares the rpIdHash from the authenticator data with the SHA-256 of
+     * the rpId, using the precomputed hash when the rpId is the domain's;
+     * other rpIds come from the client and are hashed on each call rather
+     * than remembered.
+     *
+     * @param rpid - the rpId the client should have used
+     * @param received - rpIdHash from the authenticator data
+     * @return true if they match
+     */
+    public boolean matchesRpIdHash(String rpid, byte[] received) {
+        byte[] expected;
+        String host = rpid.toLowerCase(Locale.ROOT);
+        if (host.equals(rpId)) {
+            expected = rpIdHash;
+        } else {
+            expected = digest(host);
+        }
+        return MessageDigest.isEqual(expected, received);
+    }
+
+    /**
+     * Normalizes an origin to lowercase scheme://host[:port], dropping the
+     * default port of the scheme
+     */
+    private static String normalizeOrigin(URI uri) {
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return null;
+        }
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        int port = uri.getPort();
+        if ((port == 443 && scheme.equals("https")) || (port == 80 && scheme.equals("http"))) {
+            port = -1;
+        }
+        return scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + ((port == -1) ? "" : ":" + port);
+    }
+
+    private static byte[] digest(String host) {
+        try {
+            return skfsCommon.getDigestBytes(host, "SHA-256");
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
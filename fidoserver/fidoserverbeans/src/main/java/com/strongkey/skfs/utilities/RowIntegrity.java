@@ -0,0 +1,252 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.crypto.interfaces.initCryptoModule;
+import com.strongkey.crypto.utility.CryptoException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which row signatures are verified on the request path when
+ * skfs.cfg.property.db.signature.rowlevel.verify is true.
+ *
+ * Modes (skfs.cfg.property.db.signature.rowlevel.verify.mode):
+ * inline  - every row read is verified (the historical behavior)
+ * sample  - a percentage of reads is verified, the background scanner
+ *           (rowIntegrityScanner) verifies every row
+ * changed - rows modified since the start of the last completed full scan
+ *           are verified, plus the sample of the remaining reads
+ *
+ * Rows found tampered by the scanner are remembered here so reads reject
+ * them whatever the mode. The scanner also records them in QUARANTINED_ROWS
+ * and reloads that table into this set as it runs, so the set follows the
+ * rows quarantined by every server, across restarts.
+ *
+ * The integrity value of a row is either a signature with the domain's
+ * signing key (the historical format, plain base64) or, when
+ * skfs.cfg.property.db.signature.rowlevel.algorithm.<table> is hmac, an
+ * HMAC with a secret key from the signing keystore, stored as
+ * "hmac-sha256:<key version>:<base64>". Verification follows what the row
+ * carries, so existing signed rows keep verifying and a table moves to the
+ * other algorithm as its rows are written.
+ */
+public final class RowIntegrity {
+
+    public static final String MODE_INLINE = "inline";
+    public static final String MODE_SAMPLE = "sample";
+    public static final String MODE_CHANGED = "changed";
+
+    public static final String TABLE_FIDO_KEYS = "fido_keys";
+    public static final String TABLE_FIDO_USERS = "fido_users";
+
+    public static final String ALGORITHM_SIGNATURE = "signature";
+    public static final String ALGORITHM_HMAC = "hmac";
+
+    private static final String HMAC_PREFIX = "hmac-sha256:";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Start time of the last completed full scan of each table
+     */
+    private static final Map<String, Long> lastFullScan = new ConcurrentHashMap<>();
+
+    /**
+     * table:id (sid-did-username[-fkid]) of rows that failed verification
+     */
+    private static volatile Set<String> quarantined = ConcurrentHashMap.newKeySet();
+
+    private RowIntegrity() {
+    }
+
+    /**
+     * @return true if row signatures are verified at all
+     */
+    public static boolean isEnabled() {
+        return ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.db.signature.rowlevel.verify");
+    }
+
+    public static String getMode() {
+        String mode = skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.verify.mode");
+        if (MODE_SAMPLE.equalsIgnoreCase(mode)) {
+            return MODE_SAMPLE;
+        } else if (MODE_CHANGED.equalsIgnoreCase(mode)) {
+            return MODE_CHANGED;
+        }
+        return MODE_INLINE;
+    }
+
+    /**
+     * @return true if the background scanner has to run
+     */
+    public static boolean isBackgroundScanEnabled() {
+        return isEnabled() && !getMode().equals(MODE_INLINE);
+    }
+
+    /**
+     * Decides whether a row read on the request path has to be verified
+     *
+     * @param table - TABLE_FIDO_KEYS or TABLE_FIDO_USERS
+     * @param modifyDate - last modification of the row, null if the table
+     * does not track it
+     * @return true if the signature of the row must be verified now
+     */
+    public static boolean verifyOnRead(String table, Date modifyDate) {
+        if (!isEnabled()) {
+            return false;
+        }
+        String mode = getMode();
+        if (mode.equals(MODE_INLINE)) {
+            return true;
+        }
+        if (mode.equals(MODE_CHANGED) && modifyDate != null) {
+            Long scanned = lastFullScan.get(table);
+            if (scanned == null || modifyDate.getTime() >= scanned) {
+                return true;
+            }
+        }
+        return ThreadLocalRandom.current().nextInt(100) < getSamplePercent();
+    }
+
+    /**
+     * Records the completion of a full scan of a table
+     *
+     * @param table - TABLE_FIDO_KEYS or TABLE_FIDO_USERS
+     * @param startedAt - time the scan started; rows modified after it were
+     * not necessarily covered
+     */
+    public static void scanCompleted(String table, long startedAt) {
+        lastFullScan.put(table, startedAt);
+    }
+
+    /**
+     * @param table - TABLE_FIDO_KEYS or TABLE_FIDO_USERS
+     * @return start time of the last completed full scan, null if none yet
+     */
+    public static Long getLastFullScan(String table) {
+        return lastFullScan.get(table);
+    }
+
+    /**
+     * Remembers a row that failed verification
+     *
+     * @param table - TABLE_FIDO_KEYS or TABLE_FIDO_USERS
+     * @param id - sid-did-username[-fkid] of the row
+     * @return false if the row was already quarantined
+     */
+    public static boolean quarantine(String table, String id) {
+        return quarantined.add(table + ":" + id);
+    }
+
+    public static boolean isQuarantined(String table, String id) {
+        return quarantined.contains(table + ":" + id);
+    }
+
+    /**
+     * Replaces the quarantined rows with those recorded in the database
+     *
+     * @param rows - tablename and rowid of each row of QUARANTINED_ROWS
+     */
+    public static void setQuarantined(List<Object[]> rows) {
+        Set<String> loaded = ConcurrentHashMap.newKeySet();
+        for (Object[] row : rows) {
+            loaded.add(row[0] + ":" + row[1]);
+        }
+        quarantined = loaded;
+    }
+
+    /**
+     * @param table - TABLE_FIDO_KEYS or TABLE_FIDO_USERS
+     * @return ALGORITHM_HMAC or ALGORITHM_SIGNATURE, the algorithm new
+     * integrity values of the table are computed with
+     */
+    public static String getAlgorithm(String table) {
+        try {
+            if (ALGORITHM_HMAC.equalsIgnoreCase(skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.algorithm." + table))) {
+                return ALGORITHM_HMAC;
+            }
+        } catch (MissingResourceException ex) {
+            // Not configured for this table
+        }
+        return ALGORITHM_SIGNATURE;
+    }
+
+    /**
+     * Computes the integrity value of a row with the algorithm configured
+     * for its table
+     *
+     * @param table - TABLE_FIDO_KEYS or TABLE_FIDO_USERS
+     * @param did - domain of the row
+     * @param signingdn - DN of the domain's signing key
+     * @param xml - JAXB encoding of the row
+     * @return the value to store in the signature column
+     * @throws CryptoException
+     */
+    public static String sign(String table, Long did, String signingdn, String xml) throws CryptoException {
+        if (getAlgorithm(table).equals(ALGORITHM_HMAC)) {
+            String version = skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.hmac.keyversion");
+            return HMAC_PREFIX + version + ":" + initCryptoModule.getCryptoModule().macDBRow(getKeystorePassword(),
+                    getHmacKeyAlias(version), HMAC_ALGORITHM, xml);
+        }
+        return initCryptoModule.getCryptoModule().signDBRow(did.toString(), signingdn, xml, isStandalone(), getKeystorePassword());
+    }
+
+    /**
+     * Verifies the integrity value of a row with the algorithm and key it
+     * was computed with, whatever the table is configured with now
+     *
+     * @param did - domain of the row
+     * @param signingdn - DN of the domain's signing key
+     * @param xml - JAXB encoding of the row
+     * @param signature - value of the signature column
+     * @return true if the row is intact
+     * @throws CryptoException
+     */
+    public static boolean verify(Long did, String signingdn, String xml, String signature) throws CryptoException {
+        if (signature != null && signature.startsWith(HMAC_PREFIX)) {
+            int sep = signature.indexOf(':', HMAC_PREFIX.length());
+            if (sep < 0) {
+                return false;
+            }
+            String version = signature.substring(HMAC_PREFIX.length(), sep);
+            return initCryptoModule.getCryptoModule().verifyDBRowMac(getKeystorePassword(), getHmacKeyAlias(version),
+                    HMAC_ALGORITHM, xml, signature.substring(sep + 1));
+        }
+        return initCryptoModule.getCryptoModule().verifyDBRow(did.toString(), xml, signingdn, isStandalone(), getKeystorePassword(), signature);
+    }
+
+    /**
+     * Rows record the version of their HMAC key, the key itself is the
+     * secret key stored under keyalias-version in the signing keystore; old
+     * versions must stay there until no row references them
+     */
+    private static String getHmacKeyAlias(String version) {
+        return skfsCommon.getConfigurationProperty("skfs.cfg.property.db.signature.rowlevel.hmac.keyalias") + "-" + version;
+    }
+
+    private static boolean isStandalone() {
+        return ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.standalone.fidoengine");
+    }
+
+    private static String getKeystorePassword() {
+        if (isStandalone()) {
+            return skfsCommon.getConfigurationProperty("skfs.cfg.property.standalone.signingkeystore.password");
+        }
+        return "";
+    }
+
+    private static int getSamplePercent() {
+        int percent = ConfigurationSnapshot.get().getInt("skfs.cfg.property.db.signature.rowlevel.verify.samplepercent", 100);
+        return Math.max(0, Math.min(100, percent));
+    }
+}
@@ -0,0 +1,466 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.skce.hashmaps.SAConcurrentHashMapImpl;
+import com.strongkey.skce.hashmaps.SessionMapListener;
+import com.strongkey.skce.pojos.UserSessionInfo;
+import com.strongkey.skce.utilities.skceMaps;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Local, append-only journal of the challenges issued and consumed on this
+ * node, so that the sessions of ceremonies in flight survive a restart of the
+ * server.
+ *
+ * Every session put into or removed from the session map is appended to a
+ * memory-mapped journal file (sessions-<generation>.journal); a write is a
+ * copy into the page cache, it does not wait for the disk, and outlives the
+ * JVM. Each record carries a CRC32 so that a record torn by a crash ends the
+ * replay. When a journal file fills up a new generation is started, and the
+ * mapping of the full one is released.
+ *
+ * A change is journaled after it is made to the map, with the journal's lock
+ * held across both (see SAConcurrentHashMapImpl), so a compaction sees either
+ * the change in the map or its record in the new generation.
+ *
+ * The compaction job starts a new generation, writes the live sessions of the
+ * map to sessions.snapshot and deletes the older generations. At startup the
+ * snapshot and the journals of the same or later generations are replayed in
+ * order into the session map, dropping sessions older than the session cutoff
+ * time.
+ */
+public final class SessionJournal implements SessionMapListener {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = SessionJournal.class.getName();
+
+    private static final int MAGIC = 0x534b534a;
+    private static final byte ISSUED = 1;
+    private static final byte CONSUMED = 2;
+
+    private static final String SNAPSHOT = "sessions.snapshot";
+    private static final String JOURNAL_PREFIX = "sessions-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final SessionJournal INSTANCE = new SessionJournal();
+
+    private final boolean enabled;
+    private final File directory;
+    private final int capacity;
+
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long generation = 0;
+    private volatile boolean open = false;
+    private long appended = 0;
+
+    private SessionJournal() {
+        enabled = Boolean.parseBoolean(getProperty("skfs.cfg.property.usersession.journal.enabled", "false"));
+        directory = new File(getProperty("skfs.cfg.property.usersession.journal.directory", "/usr/local/strongkey/skfs/journal"));
+        int size;
+        try {
+            size = Integer.parseInt(getProperty("skfs.cfg.property.usersession.journal.size.bytes", "67108864"));
+        } catch (NumberFormatException ex) {
+            size = 67108864;
+        }
+        capacity = Math.max(size, 1048576);
+    }
+
+    public static SessionJournal getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Replays the journal into the session map and starts recording changes
+     * to the map; does nothing if the journal is disabled.
+     */
+    public void open() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                replay();
+                rotate();
+                open = true;
+            } catch (IOException ex) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, "open", "FIDO-ERR-0046", ex.getLocalizedMessage());
+                return;
+            }
+        }
+        SAConcurrentHashMapImpl.setSessionListener(this);
+        compact();
+    }
+
+    @Override
+    public void sessionAdded(String key, UserSessionInfo session) {
+        if (!open) {
+            return;
+        }
+        try {
+            append(ISSUED, key, session.toBytes());
+        } catch (IOException ex) {
+            fail("sessionAdded", ex);
+        }
+    }
+
+    @Override
+    public void sessionRemoved(String key) {
+        if (!open) {
+            return;
+        }
+        try {
+            append(CONSUMED, key, null);
+        } catch (IOException ex) {
+            fail("sessionRemoved", ex);
+        }
+    }
+
+    /**
+     * Writes the live sessions to a new snapshot and deletes the journals it
+     * makes obsolete.
+     */
+    public void compact() {
+        if (!open) {
+            return;
+        }
+        long snapshotGeneration;
+        synchronized (this) {
+            try {
+                rotate();
+            } catch (IOException ex) {
+                fail("compact", ex);
+                return;
+            }
+            snapshotGeneration = generation;
+        }
+
+        //  Sessions changed from here on are also in the new generation,
+        //  which is replayed after the snapshot
+        File tmp = new File(directory, SNAPSHOT + ".tmp");
+        int sessions = 0;
+        long now = System.currentTimeMillis();
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                out.writeInt(MAGIC);
+                out.writeLong(snapshotGeneration);
+                CRC32 snapshotcrc = new CRC32();
+                long cutoffMillis = getCutoffMillis();
+                for (Map.Entry<String, UserSessionInfo> e : skceMaps.sessionMap.entrySet()) {
+                    if (now - e.getValue().getCreationdate().getTime() >= cutoffMillis) {
+                        continue;
+                    }
+                    byte[] record = encode(ISSUED, e.getKey(), e.getValue().toBytes());
+                    snapshotcrc.reset();
+                    snapshotcrc.update(record, 0, record.length);
+                    out.writeInt(record.length);
+                    out.writeInt((int) snapshotcrc.getValue());
+                    out.write(record);
+                    sessions++;
+                }
+                out.writeInt(0);
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(directory, SNAPSHOT).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "compact", "FIDO-ERR-0046", ex.getLocalizedMessage());
+            return;
+        }
+
+        int deleted = 0;
+        for (long gen : journalGenerations()) {
+            if (gen < snapshotGeneration && journalFile(gen).delete()) {
+                deleted++;
+            }
+        }
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "compact", "FIDO-MSG-0060",
+                "generation=" + snapshotGeneration + " sessions=" + sessions + " journals deleted=" + deleted + " " + getStatistics());
+    }
+
+    public synchronized String getStatistics() {
+        return "open=" + open
+                + " generation=" + generation
+                + " used=" + ((buffer == null) ? 0 : buffer.position()) + "/" + capacity
+                + " appended=" + appended;
+    }
+
+    private synchronized void append(byte type, String key, byte[] session) throws IOException {
+        if (!open) {
+            return;
+        }
+        byte[] record = encode(type, key, session);
+        if (buffer.remaining() < record.length + 8) {
+            rotate();
+            if (buffer.remaining() < record.length + 8) {
+                throw new IOException("Record of " + record.length + " bytes larger than the journal");
+            }
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        appended++;
+    }
+
+    /**
+     * Starts the journal of the next generation
+     */
+    private void rotate() throws IOException {
+        close();
+        generation++;
+        file = new RandomAccessFile(journalFile(generation), "rw");
+        file.setLength(capacity);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "close", "FIDO-ERR-0046", ex.getLocalizedMessage());
+            }
+            unmap(buffer);
+            file = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Releases a mapping now instead of when the buffer is garbage collected,
+     * which for a rarely collected buffer may be never. The buffer must not
+     * be used afterwards.
+     */
+    private static void unmap(ByteBuffer mapped) {
+        if (mapped == null || !mapped.isDirect()) {
+            return;
+        }
+        try {
+            //  Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), mapped);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            //  Java 8, below
+        }
+        try {
+            Method cleaner = mapped.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(mapped);
+            if (c != null) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "unmap", "FIDO-MSG-0060", "mapping left to the garbage collector: " + ex);
+        }
+    }
+
+    /**
+     * Stops journaling; sessions keep working from the map alone
+     */
+    private void fail(String method, IOException ex) {
+        synchronized (this) {
+            open = false;
+            close();
+        }
+        SAConcurrentHashMapImpl.setSessionListener(null);
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.SEVERE, classname, method, "FIDO-ERR-0046", ex.getLocalizedMessage());
+    }
+
+    private void replay() throws IOException {
+        long now = System.currentTimeMillis();
+        long cutoffMillis = getCutoffMillis();
+        int[] counts = new int[3];
+        long snapshotGeneration = 0;
+
+        File snapshot = new File(directory, SNAPSHOT);
+        if (snapshot.isFile()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(snapshot))) {
+                if (in.readInt() == MAGIC) {
+                    snapshotGeneration = in.readLong();
+                    CRC32 snapshotcrc = new CRC32();
+                    int length;
+                    while ((length = in.readInt()) > 0) {
+                        int checksum = in.readInt();
+                        byte[] record = new byte[length];
+                        in.readFully(record);
+                        snapshotcrc.reset();
+                        snapshotcrc.update(record, 0, record.length);
+                        if ((int) snapshotcrc.getValue() != checksum) {
+                            break;
+                        }
+                        apply(ByteBuffer.wrap(record), now, cutoffMillis, counts);
+                    }
+                }
+            } catch (EOFException ex) {
+                //  Truncated snapshot, keep what was read
+            }
+        }
+
+        generation = snapshotGeneration;
+        for (long gen : journalGenerations()) {
+            if (gen < snapshotGeneration) {
+                continue;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile(gen), "r")) {
+                MappedByteBuffer journal = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                try {
+                    replay(journal, now, cutoffMillis, counts);
+                } finally {
+                    unmap(journal);
+                }
+            }
+            generation = Math.max(generation, gen);
+        }
+        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "replay", "FIDO-MSG-0059",
+                "restored=" + counts[ISSUED] + " consumed=" + counts[CONSUMED] + " expired=" + counts[0]
+                + " sessions=" + skceMaps.sessionMap.size());
+    }
+
+    /**
+     * Applies the records of one journal file, up to the first torn one
+     */
+    private void replay(ByteBuffer journal, long now, long cutoffMillis, int[] counts) throws IOException {
+        while (journal.remaining() >= 8) {
+            int length = journal.getInt();
+            int checksum = journal.getInt();
+            if (length <= 0 || length > journal.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            journal.get(record);
+            crc.reset();
+            crc.update(record, 0, record.length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(ByteBuffer.wrap(record), now, cutoffMillis, counts);
+        }
+    }
+
+    private void apply(ByteBuffer record, long now, long cutoffMillis, int[] counts) throws IOException {
+        byte type = record.get();
+        byte[] key = new byte[record.getShort() & 0xffff];
+        record.get(key);
+        String mapkey = new String(key, StandardCharsets.UTF_8);
+        if (type == CONSUMED) {
+            if (skceMaps.sessionMap.remove(mapkey) != null) {
+                counts[CONSUMED]++;
+            }
+            return;
+        }
+        byte[] session = new byte[record.getInt()];
+        record.get(session);
+        UserSessionInfo usi = UserSessionInfo.fromBytes(session);
+        if (now - usi.getCreationdate().getTime() >= cutoffMillis) {
+            counts[0]++;
+            return;
+        }
+        skceMaps.sessionMap.put(mapkey, usi);
+        counts[ISSUED]++;
+    }
+
+    /**
+     * @return type, key and (when issued) the serialized session
+     */
+    private static byte[] encode(byte type, String key, byte[] session) {
+        byte[] keybytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(3 + keybytes.length + ((session == null) ? 0 : 4 + session.length));
+        record.put(type);
+        record.putShort((short) keybytes.length);
+        record.put(keybytes);
+        if (session != null) {
+            record.putInt(session.length);
+            record.put(session);
+        }
+        return record.array();
+    }
+
+    private File journalFile(long gen) {
+        return new File(directory, JOURNAL_PREFIX + gen + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return generations of the journal files on disk, in order
+     */
+    private List<Long> journalGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        //  Not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * @return age of the sessions dropped from the snapshot and the replay,
+     * the age at which the session map expires them; read on each use so it
+     * follows configuration reloads
+     */
+    private static long getCutoffMillis() {
+        long cutoff = ConfigurationSnapshot.get().getLong("skfs.cfg.property.usersession.flush.cutofftime.seconds", 30L);
+        return Math.min(Math.max(cutoff, 5L), 300L) * 1000L;
+    }
+
+    private static String getProperty(String name, String defaultValue) {
+        try {
+            return skfsCommon.getConfigurationProperty(name);
+        } catch (MissingResourceException ex) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import com.strongkey.skfs.entitybeans.Shards;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Routes FIDO_USERS and FIDO_KEYS rows to the database (shard) holding them,
+ * following the shard map in the SHARDS table (see shardMapLoader) when
+ * skfs.cfg.property.db.shard.enabled is true.
+ *
+ * The users of a domain are placed by a 16 bit hash of the username (the
+ * first two bytes of its SHA-256), so the shard of a user is computed here
+ * without any lookup and all the keys of a user are in the shard of the user.
+ * A domain without rows in SHARDS, and any hash not covered by its rows, is
+ * in the primary database (skfs.cfg.property.jdbc.jndiname).
+ *
+ * Shard databases are used through FIDOPU bootstrapped on their JTA JDBC
+ * resource, one entity manager per shard and transaction, so rows read and
+ * written by the beans of one request share a persistence context as they do
+ * on the primary. The REPLICATION outbox and FIDO_KEYS_ARCHIVE stay in the
+ * primary, written in the same transaction as the shard, so shard resources
+ * must be XA.
+ */
+public final class ShardRouter {
+
+    /**
+     * This class' name - used for logging
+     */
+    private static final String classname = ShardRouter.class.getName();
+
+    public static final int HASH_MAX = 0xFFFF;
+
+    private static final String PERSISTENCE_UNIT = "FIDOPU";
+    private static final String TSR_JNDI = "java:comp/TransactionSynchronizationRegistry";
+
+    /**
+     * Row of SHARDS holding a hash, share locked until the end of the
+     * transaction; the shard splitter updates it with an exclusive lock
+     */
+    private static final String FENCE_QUERY = "SELECT status, jndiname FROM SHARDS"
+            + " WHERE did = ? AND hash_start <= ? AND hash_end >= ? LOCK IN SHARE MODE";
+
+    /**
+     * A hash range of a domain and the shard holding it
+     */
+    public static final class Range {
+
+        private final int start;
+        private final int end;
+        private final String jndiname;
+        private final boolean frozen;
+
+        public Range(int start, int end, String jndiname, boolean frozen) {
+            this.start = start;
+            this.end = end;
+            this.jndiname = jndiname;
+            this.frozen = frozen;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public String getJndiname() {
+            return jndiname;
+        }
+
+        public boolean isFrozen() {
+            return frozen;
+        }
+    }
+
+    /**
+     * Ranges of each domain in hash order; replaced as a whole on reload
+     */
+    private static volatile Map<Long, List<Range>> shardmap = Collections.emptyMap();
+
+    private static final Map<String, EntityManagerFactory> factories = new ConcurrentHashMap<>();
+
+    private ShardRouter() {
+    }
+
+    public static boolean isEnabled() {
+        return ConfigurationSnapshot.get().getBoolean("skfs.cfg.property.db.shard.enabled");
+    }
+
+    public static String getPrimaryJndiname() {
+        return ConfigurationSnapshot.get().getString("skfs.cfg.property.jdbc.jndiname");
+    }
+
+    /**
+     * @param username - the user
+     * @return the shard hash of the username, 0 to HASH_MAX
+     */
+    public static int hash(String username) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(username.getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Replaces the shard map
+     *
+     * @param rows - all rows of SHARDS
+     */
+    public static void load(Collection<Shards> rows) {
+        Map<Long, List<Range>> map = new HashMap<>();
+        for (Shards s : rows) {
+            Long did = (long) s.getShardsPK().getDid();
+            List<Range> ranges = map.get(did);
+            if (ranges == null) {
+                ranges = new ArrayList<>();
+                map.put(did, ranges);
+            }
+            ranges.add(new Range(s.getShardsPK().getHashStart(), s.getHashEnd(), s.getJndiname(),
+                    Shards.STATUS_FROZEN.equalsIgnoreCase(s.getStatus())));
+        }
+        for (List<Range> ranges : map.values()) {
+            ranges.sort((a, b) -> Integer.compare(a.start, b.start));
+        }
+        shardmap = map;
+    }
+
+    /**
+     * @param did - the domain
+     * @return ranges of the domain in hash order, empty if it is not sharded
+     */
+    public static List<Range> getRanges(Long did) {
+        List<Range> ranges = shardmap.get(did);
+        return (ranges == null) ? Collections.<Range>emptyList() : Collections.unmodifiableList(ranges);
+    }
+
+    private static Range range(Long did, String username) {
+        if (!isEnabled() || username == null) {
+            return null;
+        }
+        List<Range> ranges = shardmap.get(did);
+        if (ranges == null) {
+            return null;
+        }
+        int h = hash(username);
+        for (Range r : ranges) {
+            if (h >= r.start && h <= r.end) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the JDBC resource holding the user, null for the primary
+     */
+    public static String getJndiname(Long did, String username) {
+        Range r = range(did, username);
+        if (r == null || r.jndiname.equals(getPrimaryJndiname())) {
+            return null;
+        }
+        return r.jndiname;
+    }
+
+    /**
+     * @param did - the domain
+     * @param username - the user, null for any user of the domain
+     * @return true if the rows are, or may be, outside the primary database
+     */
+    public static boolean isSharded(Long did, String username) {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (username != null) {
+            return getJndiname(did, username) != null;
+        }
+        for (Range r : getRanges(did)) {
+            if (!r.jndiname.equals(getPrimaryJndiname())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rejects writes to a user whose range is being moved to another shard.
+     * The in-memory map may be behind, so the SHARDS row of the user is read
+     * again with a share lock held until the caller's transaction ends: the
+     * shard splitter cannot freeze or switch the range until the write has
+     * committed, and a write starting after that sees the new row. Under
+     * REPEATABLE READ (the MariaDB default) a user of a domain without rows
+     * is fenced the same way, by the gap lock on the missing row.
+     *
+     * @param primary - entity manager of the calling bean, in the writing
+     * transaction
+     * @throws SKFEException - FIDO-ERR-0052, the client may retry shortly
+     */
+    public static void checkWritable(EntityManager primary, Long did, String username) throws SKFEException {
+        if (!isEnabled() || username == null) {
+            return;
+        }
+        Range r = range(did, username);
+        int h = hash(username);
+        boolean writable = (r == null || !r.frozen);
+        if (writable) {
+            List<?> rows = primary.createNativeQuery(FENCE_QUERY)
+                    .setParameter(1, did)
+                    .setParameter(2, h)
+                    .setParameter(3, h)
+                    .getResultList();
+            if (!rows.isEmpty()) {
+                Object[] row = (Object[]) rows.get(0);
+                String routed = (r == null) ? getPrimaryJndiname() : r.jndiname;
+                writable = !Shards.STATUS_FROZEN.equalsIgnoreCase((String) row[0]) && routed.equals(row[1]);
+            }
+        }
+        if (!writable) {
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.WARNING, classname, "checkWritable", "FIDO-ERR-0052", "did=" + did + " hash=" + h);
+            throw new SKFEException(skfsCommon.getMessageProperty("FIDO-ERR-0052") + "did=" + did);
+        }
+    }
+
+    /**
+     * @param primary - entity manager of the calling bean
+     * @return the entity manager of the shard holding the user, in the
+     * current transaction
+     */
+    public static EntityManager entityManager(EntityManager primary, Long did, String username) {
+        return entityManager(primary, getJndiname(did, username));
+    }
+
+    /**
+     * The entity manager is closed when the transaction completes, so shards
+     * can only be used in a JTA transaction; beans that do not run in one
+     * (NOT_SUPPORTED) call a REQUIRES_NEW method that does.
+     *
+     * @param primary - entity manager of the calling bean
+     * @param jndiname - JDBC resource of the shard, null for the primary
+     * @return the entity manager of the shard, in the current transaction
+     * @throws IllegalStateException - if there is no active transaction
+     */
+    public static EntityManager entityManager(EntityManager primary, String jndiname) {
+        if (jndiname == null || jndiname.equals(getPrimaryJndiname())) {
+            return primary;
+        }
+        TransactionSynchronizationRegistry tsr = getRegistry();
+        if (tsr == null || tsr.getTransactionStatus() != Status.STATUS_ACTIVE) {
+            throw new IllegalStateException("shard " + jndiname + " used without an active transaction");
+        }
+        String key = classname + ":" + jndiname;
+        EntityManager em = (EntityManager) tsr.getResource(key);
+        if (em == null) {
+            final EntityManager shard = getFactory(jndiname).createEntityManager();
+            shard.joinTransaction();
+            tsr.putResource(key, shard);
+            tsr.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (shard.isOpen()) {
+                        shard.close();
+                    }
+                }
+            });
+            em = shard;
+        }
+        return em;
+    }
+
+    /**
+     * @return entity managers of every database holding rows of the domain,
+     * the primary first
+     */
+    public static List<EntityManager> entityManagers(EntityManager primary, Long did) {
+        return entityManagers(primary, new LinkedHashSet<>(jndinames(did)));
+    }
+
+    /**
+     * @return JDBC resources of every database holding rows of the domain,
+     * the primary first
+     */
+    public static List<String> jndinames(Long did) {
+        Set<String> jndinames = new LinkedHashSet<>();
+        jndinames.add(getPrimaryJndiname());
+        if (isEnabled()) {
+            for (Range r : getRanges(did)) {
+                jndinames.add(r.jndiname);
+            }
+        }
+        return new ArrayList<>(jndinames);
+    }
+
+    /**
+     * @return entity managers of the primary and every shard in the map
+     */
+    public static List<EntityManager> allEntityManagers(EntityManager primary) {
+        Set<String> jndinames = new LinkedHashSet<>();
+        jndinames.add(getPrimaryJndiname());
+        if (isEnabled()) {
+            for (List<Range> ranges : shardmap.values()) {
+                for (Range r : ranges) {
+                    jndinames.add(r.jndiname);
+                }
+            }
+        }
+        return entityManagers(primary, jndinames);
+    }
+
+    private static List<EntityManager> entityManagers(EntityManager primary, Set<String> jndinames) {
+        List<EntityManager> ems = new ArrayList<>(jndinames.size());
+        for (String jndiname : jndinames) {
+            ems.add(entityManager(primary, jndiname));
+        }
+        return ems;
+    }
+
+    private static EntityManagerFactory getFactory(String jndiname) {
+        return factories.computeIfAbsent(jndiname, j -> {
+            Map<String, Object> props = new HashMap<>();
+            props.put("javax.persistence.transactionType", "JTA");
+            props.put("javax.persistence.jtaDataSource", j);
+            props.put("eclipselink.target-server", "Glassfish");
+            props.put("eclipselink.session-name", PERSISTENCE_UNIT + "-" + j);
+            //  rows move between shards; only the primary unit caches them
+            props.put("eclipselink.cache.shared.default", "false");
+            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.INFO, classname, "getFactory", "FIDO-MSG-0065", "opening shard " + j);
+            return Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, props);
+        });
+    }
+
+    private static TransactionSynchronizationRegistry getRegistry() {
+        try {
+            return (TransactionSynchronizationRegistry) new InitialContext().lookup(TSR_JNDI);
+        } catch (NamingException ex) {
+            return null;
+        }
+    }
+
+    public static void close() {
+        for (EntityManagerFactory emf : factories.values()) {
+            if (emf.isOpen()) {
+                emf.close();
+            }
+        }
+        factories.clear();
+    }
+}
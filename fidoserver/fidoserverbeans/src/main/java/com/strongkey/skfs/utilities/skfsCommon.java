@@ -9,6 +9,10 @@ package com.strongkey.skfs.utilities;
 
 import com.strongkey.appliance.utilities.applianceCommon;
 import com.strongkey.appliance.utilities.applianceMaps;
+import com.strongkey.fido2mds.MDS;
+import com.strongkey.skce.pojos.MDSClient;
+import com.strongkey.skce.pojos.MDSEndpoint;
+import com.strongkey.skce.utilities.RevocationCache;
 import com.strongkey.skfs.pojos.FIDOReturnObject;
 import com.strongkey.skce.utilities.TPMConstants;
 import java.io.BufferedReader;
@@ -19,17 +23,19 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
@@ -63,12 +69,12 @@ public class skfsCommon {
     // Location where StrongKey CryproEngine  is installed on this machine
     private static String skfshome;
 
-    public static List<String> tldList = new ArrayList<>();
+    // Public suffixes; a hash set so getTLdplusone is a lookup per label.
+    // Only filled by the static initializer
+    private static final Set<String> tldList = new HashSet<>();
 
     public static final skfsCron cron = new skfsCron();
 
-    private static SortedMap<Long, Map> skfsconfigmap = new ConcurrentSkipListMap<>();
-
     private static SortedMap<Integer, JsonArray> transport_combinations = new ConcurrentSkipListMap<>();
 
     static {
@@ -153,6 +159,13 @@ public class skfsCommon {
         // Print out local configuration values from SKFS_HOME
         skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.INFO, "SKCE-MSG-1054", baos.toString());
 
+        // Resolve and parse the configuration once; invalid overrides are left out
+        List<String> errors = new ArrayList<>();
+        ConfigurationSnapshot.install(ConfigurationSnapshot.build(defaultSKFEConfig, skcehrb, skfshome, errors));
+        if (!errors.isEmpty()) {
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0055", String.join(", ", errors));
+        }
+
         if (skfsCommon.getConfigurationProperty("skfs.cfg.property.retrieve.tld").trim().equalsIgnoreCase("true")) {
             // tld
             HttpClient client = new HttpClient();
@@ -194,10 +207,33 @@ public class skfsCommon {
             }
         }
 
+        SessionJournal.getInstance().open();
+
+        if (Boolean.parseBoolean(getConfigurationProperty("skfs.cfg.property.revocation.cache.enabled"))) {
+            try {
+                RevocationCache.getInstance().start(
+                        Paths.get(getConfigurationProperty("skfs.cfg.property.revocation.cache.directory")),
+                        Long.parseLong(getConfigurationProperty("skfs.cfg.property.revocation.cache.maxbytes")),
+                        Integer.parseInt(getConfigurationProperty("skfs.cfg.property.revocation.cache.maxentries")),
+                        Integer.parseInt(getConfigurationProperty("skfs.cfg.property.revocation.fetch.timeout.millis")),
+                        Long.parseLong(getConfigurationProperty("skfs.cfg.property.revocation.refresh.frequency.seconds")),
+                        Integer.parseInt(getConfigurationProperty("skfs.cfg.property.revocation.fetch.maxfailures")),
+                        Boolean.parseBoolean(getConfigurationProperty("skfs.cfg.property.revocation.softfail")));
+            } catch (NumberFormatException ex) {
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0049", ex.getLocalizedMessage());
+            }
+        }
+
         cron.flushUserSessionsJob();
 
+        cron.refreshRevocationCacheJob();
+
+        cron.compactSessionJournalJob();
+
         cron.flushFIDOKeysJob();
 
+        cron.reloadConfigurationJob();
+
         putTransportsMap();
     }
 
@@ -234,58 +270,27 @@ Y88b  d88P Y88..88P 888  888 888    888 Y88b 888 Y88b 888 888     888  888 Y88b.
      * it, then it replaces the variable with the actual value of SKFS_HOME in
      * the property-value and returns it.
      *
+     * Values are resolved when the configuration is loaded; see
+     * ConfigurationSnapshot for typed access.
+     *
      * @param key - The key in the resource file
      * @return String - The value of the specified key from the resource file
      */
     public static String getConfigurationProperty(String key) {
-        if (skcehrb != null) {
-            try {
-                String s = skcehrb.getString(key);
-                if (s.startsWith("SKFS_HOME")) {
-                    return s.replaceFirst("SKFS_HOME", skfshome);
-                } else {
-                    return s;
-                }
-            } catch (java.util.MissingResourceException ex) {
-                // Do nothing
-            }
-        }
-
-        String s = defaultSKFEConfig.getString(key);
-        if (s.startsWith("SKFS_HOME")) {
-            return s.replaceFirst("SKFS_HOME", skfshome);
-        } else {
-            return s;
-        }
+        return ConfigurationSnapshot.get().getString(key);
     }
 
     /**
      * Gets the value of the property for the specified domain with the
-     * specified key from either the Configuration map or the default Properties
-     * object (if not found in the configuration map).
+     * specified key from either SKFS_HOME/etc/skfs-configuration-<did>.properties
+     * or the configuration of the server (if not found in the domain's file).
      *
      * @param did - Long value of the domain ID
      * @param k - The key in the configuration property map
      * @return String - The value of the specified key
      */
     public static String getConfigurationProperty(Long did, String k) {
-        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "getConfigurationProperty", "SKCE-MSG-1056", did + "-" + k);
-
-        // First check for the domain in the configmap
-        if (skfsconfigmap.containsKey(did)) {
-            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "getConfigurationProperty", "SKCE-MSG-1057", did);
-            Map m = skfsconfigmap.get(did);
-            skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "getConfigurationProperty", "SKCE-MSG-1058", k + " [DID=" + did + "]");
-            if (m != null) {
-                if (m.containsKey(k)) {
-                    return (String) m.get(k);
-                }
-            }
-        }
-
-        // Default - in case returned map and DB have no value with the key k
-        skfsLogger.logp(skfsConstants.SKFE_LOGGER, Level.FINE, classname, "getConfigurationProperty", "SKCE-MSG-1059", k + " [DID=" + did + ", KEY=" + k + ", VALUE=" + getConfigurationProperty(k) + "]");
-        return getConfigurationProperty(k);
+        return ConfigurationSnapshot.get().getString(did, k);
     }
 
     /**
@@ -337,45 +342,50 @@ Y88b  d88P Y88..88P 888  888 888    888 Y88b 888 Y88b 888 888     888  888 Y88b.
     }
 
     /**
-     * Reloads the configuration properties
+     * Reloads the configuration properties; the configuration in use is kept
+     * if a value in the files is not of the type of its default value
      *
-     * @return
+     * @return true if the new configuration is in use
      */
     public static boolean reloadConfiguration() {
-        ResourceBundle rb;
-        try {
-            File f = new File(skfshome + fs + "etc" + fs + "skfs-configuration.properties");
+        ResourceBundle rb = null;
+        File f = new File(skfshome + fs + "etc" + fs + "skfs-configuration.properties");
+        if (f.exists()) {
             try (FileInputStream fis = new FileInputStream(f)) {
                 rb = new java.util.PropertyResourceBundle(fis);
+            } catch (IOException ex) {
+                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "SKCE-ERR-1112", f.getName());
+                Logger.getLogger(classname).log(Level.SEVERE, null, ex);
+                return false;
             }
+        }
 
-            if (rb != null) {
-                skcehrb = rb;
-
-                // Sort properties for readability
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                Enumeration enm = skcehrb.getKeys();
-                List<String> keys = new ArrayList<>();
-                while (enm.hasMoreElements()) {
-                    keys.add((String) enm.nextElement());
-                }
+        List<String> errors = new ArrayList<>();
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.build(defaultSKFEConfig, rb, skfshome, errors);
+        if (!errors.isEmpty()) {
+            ConfigurationSnapshot.reject(snapshot);
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0055", String.join(", ", errors));
+            return false;
+        }
+        skcehrb = rb;
+        ConfigurationSnapshot.install(snapshot);
 
-                // Print out local configuration values from SKFS_HOME
-                Collections.sort((List<String>) keys);
+        // Print out local configuration values from SKFS_HOME
+        if (rb != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            List<String> keys = Collections.list(rb.getKeys());
+            Collections.sort(keys);
+            try {
                 for (String key : keys) {
-                    baos.write(("\n\t" + key + ": " + skcehrb.getString(key)).getBytes());
+                    baos.write(("\n\t" + key + ": " + rb.getString(key)).getBytes());
                 }
-
-                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.INFO, "SKCE-MSG-1110", baos.toString());
-                return true;
-            } else {
-                skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "SKCE-ERR-1112", f.getName());
+            } catch (IOException ex) {
+                skfsLogger.printStrongAuthStackTrace(skfsConstants.SKFE_LOGGER, classname, "reloadConfiguration", ex);
             }
-        } catch (IOException ex) {
-            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "SKCE-ERR-1112", null);
-            Logger.getLogger(classname).log(Level.SEVERE, null, ex);
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.INFO, "SKCE-MSG-1110", baos.toString());
         }
-        return false;
+        skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.INFO, "FIDO-MSG-0067", "configuration reloaded from " + skfshome + fs + "etc");
+        return true;
     }
 
     /*
@@ -525,6 +535,13 @@ Y88b  d88P Y88..88P 888  888 888    888 Y88b 888 Y88b 888 888     888  888 Y88b.
         return jsonreader.readObject();
     }
 
+    /**
+     * @return the public suffixes getTLdplusone works from, read-only
+     */
+    public static Set<String> getTldList() {
+        return Collections.unmodifiableSet(tldList);
+    }
+
     public static String getTLdplusone(String domain) {
         String allowedtld = domain;
         if (tldList.contains(domain)) {
@@ -823,6 +840,31 @@ Y88b  d88P Y88..88P 888  888 888    888 Y88b 888 Y88b 888 888     888  888 Y88b.
         }
     }
 
+    /**
+     * Creates the MDS client of a policy, keeping a local snapshot of each of
+     * its endpoints if skfs.cfg.property.fido2.mds.snapshot.enabled is true.
+     * Status changes of authenticator models found by its refreshes are
+     * queued in MDSStatusChanges.
+     *
+     * @param did - domain of the policy
+     * @param endpoints - MDS endpoints of the policy
+     * @return MDSClient
+     */
+    public static MDSClient newMDS(Long did, List<MDSEndpoint> endpoints) {
+        try {
+            if (Boolean.parseBoolean(getConfigurationProperty("skfs.cfg.property.fido2.mds.snapshot.enabled"))) {
+                return new MDS(endpoints,
+                        getConfigurationProperty("skfs.cfg.property.fido2.mds.snapshot.directory"),
+                        Long.parseLong(getConfigurationProperty("skfs.cfg.property.fido2.mds.snapshot.maxage.seconds")),
+                        Long.parseLong(getConfigurationProperty("skfs.cfg.property.fido2.mds.refresh.frequency.seconds")),
+                        MDSStatusChanges.listener(did));
+            }
+        } catch (java.util.MissingResourceException | NumberFormatException ex) {
+            skfsLogger.log(skfsConstants.SKFE_LOGGER, Level.WARNING, "FIDO-ERR-0048", ex.getLocalizedMessage());
+        }
+        return new MDS(endpoints);
+    }
+
     /*
     ***********************************************************************
 8888888b.                                                                          
@@ -73,6 +73,7 @@ public class skfsConstants {
     public static final String FIDO_METHOD_DEACTIVATE = "deactivate";
     public static final String FIDO_METHOD_ACTIVATE = "activate";
     public static final String FIDO_METHOD_GETKEYSINFO = "getkeysinfo";
+    public static final String FIDO_METHOD_PATCHKEY = "patchkey";
     public static final String FIDO_METHOD_GETSERVERINFO = "getserverinfo";
 
     /**
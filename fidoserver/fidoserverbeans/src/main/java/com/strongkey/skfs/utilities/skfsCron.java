@@ -7,7 +7,11 @@
 
 package com.strongkey.skfs.utilities;
 
+import com.strongkey.appliance.utilities.applianceCommon;
+import com.strongkey.skce.utilities.RevocationCache;
 import com.strongkey.skce.utilities.skceMaps;
+import com.strongkey.skfs.core.AttestationVerifier;
+import com.strongkey.skfs.core.ChallengeRateLimiter;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -43,75 +47,158 @@ public class skfsCron {
     public void flushUserSessionsJob() {
         skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "flushUserSessionsJob");
 
+        /**
+         * Reschedules itself after each run so a change of frequency or
+         * cutoff time in the configuration is picked up without a restart
+         */
         final Runnable flushUserSessionsJob = new Runnable() {
             @Override
             public void run() {
-                //Common.cleanSessionMapInfo();
-                skceMaps.getMapObj().clean(skfsConstants.MAP_USER_SESSION_INFO);
+                try {
+                    //Common.cleanSessionMapInfo();
+                    skceMaps.getMapObj().setAgeLimit(skfsConstants.MAP_USER_SESSION_INFO,
+                            ConfigurationSnapshot.get().getLong("skfs.cfg.property.usersession.flush.cutofftime.seconds", 30L));
+                    skceMaps.getMapObj().clean(skfsConstants.MAP_USER_SESSION_INFO);
+                    ChallengeRateLimiter.getInstance().setOutstanding(skceMaps.getMapObj().size(skfsConstants.MAP_USER_SESSION_INFO));
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0058", ChallengeRateLimiter.getInstance().getStatistics());
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0057", AttestationVerifier.getInstance().getStatistics());
+                } finally {
+                    scheduler.schedule(this, flushFrequency("skfs.cfg.property.usersession.flush.frequency.seconds"), TimeUnit.SECONDS);
+                }
+            }
+        };
+
+        skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0044", flushFrequency("skfs.cfg.property.usersession.flush.frequency.seconds"));
+        scheduler.schedule(flushUserSessionsJob, 0, TimeUnit.SECONDS);
+
+        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "flushUserSessionsJob");
+    }
+    
+    //flush fidokeys
+    public void flushFIDOKeysJob() {
+        skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "flushFIDOKeysJob");
+
+        final Runnable flushUserSessionsJob = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    //Common.cleanSessionMapInfo();
+                    skceMaps.getMapObj().setAgeLimit(skfsConstants.MAP_FIDO_KEYS,
+                            ConfigurationSnapshot.get().getLong("skfs.cfg.property.fidokeys.flush.cutofftime.seconds", 30L));
+                    skceMaps.getMapObj().clean(skfsConstants.MAP_FIDO_KEYS);
+                    skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0054", CredentialCache.getInstance().getStatistics());
+                } finally {
+                    scheduler.schedule(this, flushFrequency("skfs.cfg.property.fidokeys.flush.frequency.seconds"), TimeUnit.SECONDS);
+                }
+            }
+        };
+
+        skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0044", flushFrequency("skfs.cfg.property.fidokeys.flush.frequency.seconds"));
+        scheduler.schedule(flushUserSessionsJob, 0, TimeUnit.SECONDS);
+
+        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "flushFIDOKeysJob");
+    }
+
+    /**
+     * Pick up site configured frequency - but cannot be more frequent than
+     * 5 seconds between runs; otherwise we risk bogging down the machine
+     * with cleanup activity
+     *
+     * At the same time, we don't want too long between each run which might
+     * bloat up memory used
+     */
+    private static long flushFrequency(String property) {
+        long runfrequency = ConfigurationSnapshot.get().getLong(property, 5L);
+        if (runfrequency < 5L || runfrequency > 300L) {
+            runfrequency = 5L;
+        }
+        return runfrequency;
+    }
+
+    //swap in a new configuration when the files in SKFS_HOME/etc change
+    public void reloadConfigurationJob() {
+        long runfrequency = ConfigurationSnapshot.get().getLong("skfs.cfg.property.configuration.reload.seconds", 10L);
+        if (runfrequency <= 0L) {
+            return;
+        }
+        skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "reloadConfigurationJob");
+
+        final Runnable reloadConfigurationJob = new Runnable() {
+            @Override
+            public void run() {
+                if (ConfigurationSnapshot.get().isStale(skfsCommon.getSkfeHome())) {
+                    skfsCommon.reloadConfiguration();
+                }
+                if (applianceCommon.isApplianceConfigurationStale()) {
+                    applianceCommon.reloadApplianceConfiguration();
+                }
+            }
+        };
+
+        skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0044", runfrequency);
+        scheduler.scheduleWithFixedDelay(reloadConfigurationJob, runfrequency, runfrequency, TimeUnit.SECONDS);
+
+        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "reloadConfigurationJob");
+    }
+
+    //refresh the CRLs cached for revocation checking
+    public void refreshRevocationCacheJob() {
+        if (!RevocationCache.getInstance().isEnabled()) {
+            return;
+        }
+        skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "refreshRevocationCacheJob");
+
+        final Runnable refreshRevocationCacheJob = new Runnable() {
+            @Override
+            public void run() {
+                RevocationCache.getInstance().refresh();
+                skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0062", RevocationCache.getInstance().getStatistics());
             }
         };
 
-        /**
-         * Pick up site configured frequency - but cannot be more frequent than
-         * 5 seconds between runs; otherwise we risk bogging down the machine
-         * with cleanup activity
-         *
-         * At the same time, we don't want too long between each run which might
-         * bloat up memory used
-         */
         long runfrequency;
         try {
-            runfrequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.usersession.flush.frequency.seconds"));
-            if (runfrequency < 5L) {
-                runfrequency = 5L;
-            } else if (runfrequency > 300L) {
-                runfrequency = 5L;
+            runfrequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.revocation.refresh.frequency.seconds"));
+            if (runfrequency < 30L) {
+                runfrequency = 30L;
             }
         } catch (NumberFormatException ex) {
-            runfrequency = 5L;  //  by default - in case of any error
+            runfrequency = 300L;  //  by default - in case of any error
         }
 
         skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0044", runfrequency);
-        scheduler.scheduleAtFixedRate(flushUserSessionsJob, 0, runfrequency, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(refreshRevocationCacheJob, 0, runfrequency, TimeUnit.SECONDS);
 
-        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "flushUserSessionsJob");
+        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "refreshRevocationCacheJob");
     }
-    
-    //flush fidokeys
-    public void flushFIDOKeysJob() {
-        skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "flushFIDOKeysJob");
 
-        final Runnable flushUserSessionsJob = new Runnable() {
+    //compact the user session journal
+    public void compactSessionJournalJob() {
+        if (!SessionJournal.getInstance().isEnabled()) {
+            return;
+        }
+        skfsLogger.entering(skfsConstants.SKFE_LOGGER,classname, "compactSessionJournalJob");
+
+        final Runnable compactSessionJournalJob = new Runnable() {
             @Override
             public void run() {
-                //Common.cleanSessionMapInfo();
-                skceMaps.getMapObj().clean(skfsConstants.MAP_FIDO_KEYS);
+                SessionJournal.getInstance().compact();
             }
         };
 
-        /**
-         * Pick up site configured frequency - but cannot be more frequent than
-         * 5 seconds between runs; otherwise we risk bogging down the machine
-         * with cleanup activity
-         *
-         * At the same time, we don't want too long between each run which might
-         * bloat up memory used
-         */
         long runfrequency;
         try {
-            runfrequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.fidokeys.flush.frequency.seconds"));
+            runfrequency = Long.parseLong(skfsCommon.getConfigurationProperty("skfs.cfg.property.usersession.journal.compaction.frequency.seconds"));
             if (runfrequency < 5L) {
                 runfrequency = 5L;
-            } else if (runfrequency > 300L) {
-                runfrequency = 5L;
             }
         } catch (NumberFormatException ex) {
-            runfrequency = 5L;  //  by default - in case of any error
+            runfrequency = 60L;  //  by default - in case of any error
         }
 
         skfsLogger.log(skfsConstants.SKFE_LOGGER,Level.FINE, "FIDO-MSG-0044", runfrequency);
-        scheduler.scheduleAtFixedRate(flushUserSessionsJob, 0, runfrequency, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(compactSessionJournalJob, runfrequency, runfrequency, TimeUnit.SECONDS);
 
-        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "flushFIDOKeysJob");
+        skfsLogger.exiting(skfsConstants.SKFE_LOGGER,classname, "compactSessionJournalJob");
     }
 }
@@ -0,0 +1,100 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class ChallengeReplayFilterTest {
+
+    private static final long VALIDITY = 20000L;
+    private static final long EXPIRY = 1_500_000_000_000L;
+
+    private final ChallengeReplayFilter filter = new ChallengeReplayFilter(VALIDITY);
+
+    @Test
+    public void aTokenCanOnlyBeUsedOnce() {
+        assertTrue(filter.markUsed(EXPIRY, 42L));
+        assertFalse(filter.markUsed(EXPIRY, 42L));
+        assertFalse(filter.markUsed(EXPIRY, 42L));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void tokensAreToldApartByFingerprintAndExpiry() {
+        assertTrue(filter.markUsed(EXPIRY, 42L));
+        assertTrue(filter.markUsed(EXPIRY, 43L));
+        //  same fingerprint in another slice is another token
+        assertTrue(filter.markUsed(EXPIRY + VALIDITY, 42L));
+        assertFalse(filter.markUsed(EXPIRY + VALIDITY, 42L));
+        assertEquals(3, filter.size());
+    }
+
+    @Test
+    public void tokensStayUsedForTheirWholeValidity() {
+        assertTrue(filter.markUsed(EXPIRY, 42L));
+        //  later tokens, up to one validity period after, do not evict it
+        for (long expiry = EXPIRY; expiry <= EXPIRY + VALIDITY; expiry += 1000L) {
+            filter.markUsed(expiry, expiry);
+        }
+        assertFalse(filter.markUsed(EXPIRY, 42L));
+    }
+
+    @Test
+    public void bucketsAreRecycledOnceEveryTokenInThemHasExpired() {
+        //  4 buckets of 10s for 20s of validity
+        long later = EXPIRY + 4 * 10000L;
+        assertTrue(filter.markUsed(EXPIRY, 42L));
+        assertTrue(filter.markUsed(EXPIRY, 43L));
+        assertTrue(filter.markUsed(later, 44L));
+        assertEquals(1, filter.size());
+        //  the expired token is forgotten; it is refused by its expiry anyway
+        assertTrue(filter.markUsed(later, 42L));
+    }
+
+    @Test
+    public void bucketsGrowPastTheirInitialCapacity() {
+        Random random = new Random(7L);
+        long[] fingerprints = new long[1000];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = random.nextLong();
+            assertTrue(filter.markUsed(EXPIRY, fingerprints[i]));
+        }
+        assertEquals(fingerprints.length, filter.size());
+        for (long fingerprint : fingerprints) {
+            assertFalse(filter.markUsed(EXPIRY, fingerprint));
+        }
+    }
+
+    @Test
+    public void zeroIsAValidFingerprint() {
+        assertTrue(filter.markUsed(EXPIRY, 0L));
+        assertFalse(filter.markUsed(EXPIRY, 0L));
+        //  and not the same as any other
+        assertTrue(filter.markUsed(EXPIRY, 1L));
+        assertFalse(filter.markUsed(EXPIRY, 1L));
+        assertEquals(2, filter.size());
+        //  nor remembered once its bucket is recycled
+        assertTrue(filter.markUsed(EXPIRY + 4 * 10000L, 2L));
+        assertTrue(filter.markUsed(EXPIRY + 4 * 10000L, 0L));
+    }
+
+    @Test
+    public void theSharedFilterCoversTheLongestValidity() {
+        ChallengeReplayFilter shared = ChallengeReplayFilter.getInstance();
+        long validity = SealedChallenge.MAX_VALIDITY * 1000L;
+        long fingerprint = new Random().nextLong() | 1L;
+        assertTrue(shared.markUsed(EXPIRY, fingerprint));
+        assertTrue(shared.markUsed(EXPIRY + validity, fingerprint));
+        assertFalse(shared.markUsed(EXPIRY, fingerprint));
+    }
+}
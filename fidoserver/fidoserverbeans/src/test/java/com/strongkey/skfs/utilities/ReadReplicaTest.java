@@ -0,0 +1,136 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.strongkey.skfs.entitybeans.Shards;
+import com.strongkey.skfs.entitybeans.ShardsPK;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadReplicaTest {
+
+    private static final Long DID = 1L;
+
+    @Before
+    public void setUp() {
+        configure(true, 1);
+        ReadReplica.setState(true, 0, null);
+    }
+
+    @After
+    public void tearDown() {
+        //  forget every write recorded by the test
+        configure(true, 0);
+        ReadReplica.expireWrites();
+        ReadReplica.setState(false, -1, "test done");
+        ShardRouter.load(Collections.<Shards>emptyList());
+    }
+
+    @Test
+    public void lookupsGoToTheReplicaWhenHealthy() {
+        assertTrue(ReadReplica.route(DID, "johndoe"));
+        assertTrue(ReadReplica.route(DID, null));
+    }
+
+    @Test
+    public void nothingGoesToTheReplicaWhenDisabled() {
+        configure(false, 1);
+        assertFalse(ReadReplica.route(DID, "johndoe"));
+        assertFalse(ReadReplica.route(DID, null));
+    }
+
+    @Test
+    public void aLaggingReplicaIsNotUsedUntilItCatchesUp() {
+        //  as replicaMonitor reports a lag over maxlag
+        ReadReplica.setState(false, 30, "lags 30s behind the primary");
+        assertFalse(ReadReplica.isHealthy());
+        assertEquals(30, ReadReplica.getLag());
+        assertFalse(ReadReplica.route(DID, "johndoe"));
+
+        ReadReplica.setState(true, 2, null);
+        assertEquals(2, ReadReplica.getLag());
+        assertTrue(ReadReplica.route(DID, "johndoe"));
+    }
+
+    @Test
+    public void aUserIsReadFromThePrimaryWithinTheWindowOfItsWrite() throws Exception {
+        ReadReplica.recordWrite(DID, "johndoe");
+        assertFalse(ReadReplica.route(DID, "johndoe"));
+        //  other users and the domain are not affected
+        assertTrue(ReadReplica.route(DID, "janedoe"));
+        assertTrue(ReadReplica.route(2L, "johndoe"));
+        assertTrue(ReadReplica.route(DID, null));
+
+        Thread.sleep(1100L);
+        assertTrue(ReadReplica.route(DID, "johndoe"));
+    }
+
+    @Test
+    public void aDomainWriteSendsTheWholeDomainToThePrimary() throws Exception {
+        ReadReplica.recordWrite(DID, null);
+        assertFalse(ReadReplica.route(DID, null));
+        assertFalse(ReadReplica.route(DID, "johndoe"));
+        assertTrue(ReadReplica.route(2L, "johndoe"));
+
+        Thread.sleep(1100L);
+        assertTrue(ReadReplica.route(DID, "johndoe"));
+    }
+
+    @Test
+    public void writesAreNotRecordedWhenDisabled() {
+        configure(false, 1);
+        ReadReplica.recordWrite(DID, "johndoe");
+        configure(true, 1);
+        assertTrue(ReadReplica.route(DID, "johndoe"));
+    }
+
+    @Test
+    public void expiredWritesAreDropped() throws Exception {
+        configure(true, 60);
+        ReadReplica.recordWrite(DID, "johndoe");
+        ReadReplica.expireWrites();
+        assertFalse(ReadReplica.route(DID, "johndoe"));
+
+        //  a shorter window expires the same record
+        configure(true, 0);
+        Thread.sleep(10L);
+        ReadReplica.expireWrites();
+        configure(true, 60);
+        assertTrue(ReadReplica.route(DID, "johndoe"));
+    }
+
+    @Test
+    public void usersInAShardAreReadFromTheirShard() {
+        TestConfiguration.install(
+                "skfs.cfg.property.db.replica.enabled", "true",
+                "skfs.cfg.property.db.replica.readyourwrites.seconds", "1",
+                "skfs.cfg.property.db.shard.enabled", "true",
+                "skfs.cfg.property.jdbc.jndiname", "jdbc/skfs");
+        ShardRouter.load(Collections.singletonList(new Shards(new ShardsPK(DID.shortValue(), 0),
+                ShardRouter.HASH_MAX, "jdbc/shard1", Shards.STATUS_ACTIVE, null)));
+
+        assertFalse(ReadReplica.route(DID, "johndoe"));
+        //  domain wide objects stay in the primary
+        assertTrue(ReadReplica.route(DID, null));
+        assertTrue(ReadReplica.route(2L, "johndoe"));
+    }
+
+    private static void configure(boolean enabled, int window) {
+        TestConfiguration.install(
+                "skfs.cfg.property.db.replica.enabled", Boolean.toString(enabled),
+                "skfs.cfg.property.db.replica.readyourwrites.seconds", Integer.toString(window),
+                "skfs.cfg.property.db.shard.enabled", "false",
+                "skfs.cfg.property.jdbc.jndiname", "jdbc/skfs");
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.strongkey.skfs.entitybeans.Shards;
+import com.strongkey.skfs.entitybeans.ShardsPK;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardRouterTest {
+
+    private static final String PRIMARY = "jdbc/skfs";
+    private static final String SHARD = "jdbc/shard1";
+    private static final Long DID = 1L;
+
+    @Before
+    public void setUp() {
+        TestConfiguration.install(
+                "skfs.cfg.property.db.shard.enabled", "true",
+                "skfs.cfg.property.jdbc.jndiname", PRIMARY);
+    }
+
+    @After
+    public void tearDown() {
+        ShardRouter.load(Collections.<Shards>emptyList());
+    }
+
+    @Test
+    public void hashIsTheFirstTwoBytesOfTheSha256OfTheUsername() throws Exception {
+        for (String username : Arrays.asList("", "johndoe", "ユーザー", "user@example.com")) {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(username.getBytes(StandardCharsets.UTF_8));
+            int h = ShardRouter.hash(username);
+            assertEquals(((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF), h);
+            assertTrue(h >= 0 && h <= ShardRouter.HASH_MAX);
+        }
+    }
+
+    @Test
+    public void rangesAreKeptInHashOrder() {
+        ShardRouter.load(Arrays.asList(
+                row(DID, 0x8000, ShardRouter.HASH_MAX, SHARD, Shards.STATUS_FROZEN),
+                row(DID, 0, 0x7FFF, PRIMARY, Shards.STATUS_ACTIVE)));
+
+        List<ShardRouter.Range> ranges = ShardRouter.getRanges(DID);
+        assertEquals(2, ranges.size());
+        assertEquals(0, ranges.get(0).getStart());
+        assertEquals(0x7FFF, ranges.get(0).getEnd());
+        assertFalse(ranges.get(0).isFrozen());
+        assertEquals(0x8000, ranges.get(1).getStart());
+        assertEquals(SHARD, ranges.get(1).getJndiname());
+        assertTrue(ranges.get(1).isFrozen());
+        assertTrue(ShardRouter.getRanges(2L).isEmpty());
+    }
+
+    @Test
+    public void usersAreRoutedByTheRangeOfTheirHash() {
+        ShardRouter.load(Arrays.asList(
+                row(DID, 0, 0x7FFF, PRIMARY, Shards.STATUS_ACTIVE),
+                row(DID, 0x8000, ShardRouter.HASH_MAX, SHARD, Shards.STATUS_ACTIVE)));
+
+        String low = username(0, 0x7FFF);
+        String high = username(0x8000, ShardRouter.HASH_MAX);
+        //  the primary is reported as null
+        assertNull(ShardRouter.getJndiname(DID, low));
+        assertEquals(SHARD, ShardRouter.getJndiname(DID, high));
+        assertFalse(ShardRouter.isSharded(DID, low));
+        assertTrue(ShardRouter.isSharded(DID, high));
+        assertTrue(ShardRouter.isSharded(DID, null));
+    }
+
+    @Test
+    public void rangeBoundsAreInclusive() {
+        String user = username(1, ShardRouter.HASH_MAX - 1);
+        int h = ShardRouter.hash(user);
+        ShardRouter.load(Arrays.asList(
+                row(DID, 0, h - 1, PRIMARY, Shards.STATUS_ACTIVE),
+                row(DID, h, h, SHARD, Shards.STATUS_ACTIVE),
+                row(DID, h + 1, ShardRouter.HASH_MAX, PRIMARY, Shards.STATUS_ACTIVE)));
+
+        assertEquals(SHARD, ShardRouter.getJndiname(DID, user));
+        assertNull(ShardRouter.getJndiname(DID, username(0, h - 1)));
+        assertNull(ShardRouter.getJndiname(DID, username(h + 1, ShardRouter.HASH_MAX)));
+    }
+
+    @Test
+    public void usersOutsideAnyRangeStayInThePrimary() {
+        ShardRouter.load(Collections.singletonList(row(DID, 0x8000, ShardRouter.HASH_MAX, SHARD, Shards.STATUS_ACTIVE)));
+
+        assertNull(ShardRouter.getJndiname(DID, username(0, 0x7FFF)));
+        assertNull(ShardRouter.getJndiname(2L, username(0x8000, ShardRouter.HASH_MAX)));
+        assertFalse(ShardRouter.isSharded(2L, null));
+    }
+
+    @Test
+    public void nothingIsRoutedWhenShardingIsDisabled() throws Exception {
+        ShardRouter.load(Collections.singletonList(row(DID, 0, ShardRouter.HASH_MAX, SHARD, Shards.STATUS_FROZEN)));
+        TestConfiguration.install(
+                "skfs.cfg.property.db.shard.enabled", "false",
+                "skfs.cfg.property.jdbc.jndiname", PRIMARY);
+
+        assertNull(ShardRouter.getJndiname(DID, "johndoe"));
+        assertFalse(ShardRouter.isSharded(DID, "johndoe"));
+        assertFalse(ShardRouter.isSharded(DID, null));
+        //  nor fenced, so no database is needed
+        ShardRouter.checkWritable(null, DID, "johndoe");
+    }
+
+    @Test
+    public void reloadReplacesTheWholeMap() {
+        ShardRouter.load(Collections.singletonList(row(DID, 0, ShardRouter.HASH_MAX, SHARD, Shards.STATUS_ACTIVE)));
+        ShardRouter.load(Collections.singletonList(row(2L, 0, ShardRouter.HASH_MAX, SHARD, Shards.STATUS_ACTIVE)));
+
+        assertTrue(ShardRouter.getRanges(DID).isEmpty());
+        assertEquals(SHARD, ShardRouter.getJndiname(2L, "johndoe"));
+    }
+
+    /**
+     * @return a username whose hash is within [start, end]
+     */
+    private static String username(int start, int end) {
+        for (int i = 0; ; i++) {
+            String username = "user" + i;
+            int h = ShardRouter.hash(username);
+            if (h >= start && h <= end) {
+                return username;
+            }
+        }
+    }
+
+    private static Shards row(Long did, int start, int end, String jndiname, String status) {
+        return new Shards(new ShardsPK(did.shortValue(), start), end, jndiname, status, null);
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright StrongAuth, Inc. All Rights Reserved.
+ *
+ * Use of this source code is governed by the Gnu Lesser General Public License 2.3.
+ * The license can be found at https://github.com/StrongKey/FIDO-Server/LICENSE
+ */
+
+package com.strongkey.skfs.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.ListResourceBundle;
+import java.util.Map;
+
+/**
+ * Installs a ConfigurationSnapshot of the given properties without loading
+ * skfsCommon, whose initialization needs a server (SKFS_HOME, jobs).
+ */
+final class TestConfiguration {
+
+    private static final String NO_SKFSHOME = System.getProperty("java.io.tmpdir") + File.separator + "skfs-test-none";
+
+    private TestConfiguration() {
+    }
+
+    /**
+     * @param keyvalues - key, value, key, value...
+     */
+    static void install(String... keyvalues) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < keyvalues.length; i += 2) {
+            values.put(keyvalues[i], keyvalues[i + 1]);
+        }
+        ListResourceBundle bundle = new ListResourceBundle() {
+            @Override
+            protected Object[][] getContents() {
+                Object[][] contents = new Object[values.size()][];
+                int i = 0;
+                for (Map.Entry<String, String> e : values.entrySet()) {
+                    contents[i++] = new Object[]{e.getKey(), e.getValue()};
+                }
+                return contents;
+            }
+        };
+        ConfigurationSnapshot.install(ConfigurationSnapshot.build(bundle, null, NO_SKFSHOME, new ArrayList<>()));
+    }
+}